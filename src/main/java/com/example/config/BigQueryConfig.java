@@ -1,6 +1,7 @@
 package com.example.config;
 
 import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.google.cloud.ServiceOptions;
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryOptions;
 import org.springframework.beans.factory.annotation.Value;
@@ -27,16 +28,14 @@ public class BigQueryConfig {
             
             if (resource.exists()) {
                 System.out.println("✅ Caricamento credenziali BigQuery da: " + credentialsFile);
-                return BigQueryOptions.newBuilder()
-                        .setProjectId(projectId)
+                return opzioni()
                         .setCredentials(ServiceAccountCredentials.fromStream(resource.getInputStream()))
                         .build()
                         .getService();
             } else {
                 System.out.println("⚠️  File credenziali non trovato: " + credentialsFile);
                 System.out.println("🔧 Uso credenziali di default (per testing)");
-                return BigQueryOptions.newBuilder()
-                        .setProjectId(projectId)
+                return opzioni()
                         .build()
                         .getService();
             }
@@ -50,12 +49,17 @@ public class BigQueryConfig {
             System.err.println("   5. Oppure usa il profilo 'dev' per testing senza credenziali reali");
             
             // Fallback: crea un'istanza di default
-            return BigQueryOptions.newBuilder()
-                    .setProjectId(projectId)
+            return opzioni()
                     .build()
                     .getService();
         }
     }
-}
-
 
+    private BigQueryOptions.Builder opzioni() {
+        // I retry sono gestiti da BigQueryResilience (backoff, circuit breaker, metriche):
+        // quelli interni del client li moltiplicherebbero e terrebbero occupati i thread durante un disservizio
+        return BigQueryOptions.newBuilder()
+                .setProjectId(projectId)
+                .setRetrySettings(ServiceOptions.getNoRetrySettings());
+    }
+}
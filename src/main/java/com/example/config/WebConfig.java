@@ -0,0 +1,92 @@
+package com.example.config;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.method.support.AsyncHandlerMethodReturnValueHandler;
+import org.springframework.web.method.support.HandlerMethodReturnValueHandler;
+import org.springframework.web.method.support.ModelAndViewContainer;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBodyReturnValueHandler;
+
+import java.util.List;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    // Thread che scrivono i corpi in streaming: limitati, come le richieste in attesa di un thread libero
+    @Value("${bigquery.streaming.threads:8}")
+    private int threadStreaming;
+
+    @Value("${bigquery.streaming.queue-capacity:100}")
+    private int capacitaCodaStreaming;
+
+    // Tempo massimo per scrivere una risposta in streaming, allo scadere la connessione viene chiusa
+    @Value("${bigquery.streaming.timeout-ms:600000}")
+    private long timeoutStreamingMs;
+
+    private ThreadPoolTaskExecutor esecutoreStreaming;
+
+    @PostConstruct
+    public void avvia() {
+        esecutoreStreaming = new ThreadPoolTaskExecutor();
+        esecutoreStreaming.setCorePoolSize(threadStreaming);
+        esecutoreStreaming.setMaxPoolSize(threadStreaming);
+        esecutoreStreaming.setQueueCapacity(capacitaCodaStreaming);
+        esecutoreStreaming.setThreadNamePrefix("bq-streaming-");
+        esecutoreStreaming.setDaemon(true);
+        esecutoreStreaming.initialize();
+    }
+
+    @PreDestroy
+    public void arresta() {
+        esecutoreStreaming.shutdown();
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        // Con la coda piena l'executor rifiuta la scrittura (TaskRejectedException) invece di accodarla senza limite
+        configurer.setTaskExecutor(esecutoreStreaming);
+        configurer.setDefaultTimeout(timeoutStreamingMs);
+    }
+
+    @Override
+    public void addReturnValueHandlers(List<HandlerMethodReturnValueHandler> handlers) {
+        handlers.add(new StreamingResponseEntityHandler());
+    }
+
+    /**
+     * Scrive in modo asincrono le risposte ResponseEntity il cui corpo è uno StreamingResponseBody,
+     * anche quando il tipo dichiarato è ResponseEntity<?> o il risultato arriva da un DeferredResult:
+     * Spring riconosce StreamingResponseBody solo dal tipo generico dichiarato.
+     * Il corpo viene scritto sull'executor asincrono configurato in {@link #configureAsyncSupport},
+     * non sul thread della richiesta.
+     */
+    static class StreamingResponseEntityHandler implements AsyncHandlerMethodReturnValueHandler {
+
+        private final StreamingResponseBodyReturnValueHandler delegato = new StreamingResponseBodyReturnValueHandler();
+
+        @Override
+        public boolean isAsyncReturnValue(Object returnValue, MethodParameter returnType) {
+            return returnValue instanceof ResponseEntity<?> risposta && risposta.getBody() instanceof StreamingResponseBody;
+        }
+
+        @Override
+        public boolean supportsReturnType(MethodParameter returnType) {
+            return ResponseEntity.class.isAssignableFrom(returnType.getParameterType());
+        }
+
+        @Override
+        public void handleReturnValue(Object returnValue, MethodParameter returnType, ModelAndViewContainer mavContainer,
+                                      NativeWebRequest webRequest) throws Exception {
+            delegato.handleReturnValue(returnValue, returnType, mavContainer, webRequest);
+        }
+    }
+}
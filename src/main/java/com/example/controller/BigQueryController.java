@@ -1,24 +1,52 @@
 package com.example.controller;
 
+import com.example.service.ArrowResultWriter;
+import com.example.service.BigQueryResilience;
+import com.example.service.BigQueryResilience.CircuitoApertoException;
 import com.example.service.BigQueryService;
+import com.example.service.QueryJobService;
+import com.example.service.QueryLatencyStats;
+import com.example.service.QueryMetrics;
+import com.example.service.QueryJobService.QueryAnnullataException;
+import com.example.service.QueryJobService.QueryJobHandle;
+import com.example.service.QueryResultCache;
+import com.example.service.QueryCostService;
+import com.example.service.QueryCostService.BudgetSuperatoException;
+import com.example.service.QueryScheduler.CodaPienaException;
 import com.example.service.QueryValidationService;
 import com.example.service.QueryValidationService.ValidationResult;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
 import com.google.cloud.bigquery.TableResult;
 import com.example.dto.*;
+import io.micrometer.core.instrument.Timer;
 import jakarta.servlet.http.HttpServletRequest;
-import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
 
-import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.validation.FieldError;
 import org.springframework.web.bind.MethodArgumentNotValidException;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -33,13 +61,36 @@ import io.swagger.v3.oas.annotations.media.Schema;
 @Tag(name = "BigQuery", description = "API per l'esecuzione di query su Google BigQuery")
 public class BigQueryController {
 
+    private static final Logger log = LoggerFactory.getLogger(BigQueryController.class);
+
+    private static final long MARGINE_TIMEOUT_MS = 5_000;
+
+    private static final String ENDPOINT_QUERY = "/bigquery/query";
+
+    // Byte stimati dal dry-run e addebitati all'IP, sulle risposte riuscite
+    static final String HEADER_BYTES_STIMATI = "X-BigQuery-Bytes-Estimated";
+
     private final BigQueryService bigQueryService;
     private final QueryValidationService queryValidationService;
+    private final QueryJobService queryJobService;
+    private final QueryResultCache queryResultCache;
+    private final QueryMetrics queryMetrics;
+    private final QueryLatencyStats queryLatencyStats;
+
+    // Lo stesso limite delle pagine di /query/pages
+    @Value("${bigquery.pagination.max-page-size:10000}")
+    private long dimensionePaginaMassima;
 
     @Autowired
-    public BigQueryController(BigQueryService bigQueryService, QueryValidationService queryValidationService) {
+    public BigQueryController(BigQueryService bigQueryService, QueryValidationService queryValidationService,
+                              QueryJobService queryJobService, QueryResultCache queryResultCache,
+                              QueryMetrics queryMetrics, QueryLatencyStats queryLatencyStats) {
         this.bigQueryService = bigQueryService;
         this.queryValidationService = queryValidationService;
+        this.queryJobService = queryJobService;
+        this.queryResultCache = queryResultCache;
+        this.queryMetrics = queryMetrics;
+        this.queryLatencyStats = queryLatencyStats;
     }
 
     @Operation(
@@ -50,56 +101,42 @@ public class BigQueryController {
         @ApiResponse(responseCode = "200", description = "Query eseguita con successo", 
                     content = @Content(schema = @Schema(implementation = Object.class))),
         @ApiResponse(responseCode = "400", description = "Richiesta non valida - query SQL mancante o non valida"),
+        @ApiResponse(responseCode = "429", description = "Troppe query in attesa o budget per IP esaurito"),
+        @ApiResponse(responseCode = "503", description = "BigQuery temporaneamente non disponibile (circuito aperto o errori transitori)"),
+        @ApiResponse(responseCode = "504", description = "Tempo massimo superato: il job BigQuery è stato annullato"),
         @ApiResponse(responseCode = "500", description = "Errore interno del server durante l'esecuzione della query")
     })
     @PostMapping("/query")
-    public ResponseEntity<?> eseguiQuery(
+    public DeferredResult<ResponseEntity<?>> eseguiQuery(
             @Parameter(description = "Dettagli della query da eseguire", required = true)
             @Valid @RequestBody QueryRequest request, 
-            HttpServletRequest httpRequest,
-            HttpServletResponse response) {
+            HttpServletRequest httpRequest) {
         
         try {
             // Valida la query prima dell'esecuzione
-            ValidationResult validationResult = queryValidationService.validaQuery(request.getSql());
+            ValidationResult validationResult = valida(request.getSql(), ENDPOINT_QUERY);
             if (!validationResult.isValida()) {
-                return ResponseEntity.badRequest().body(creaMessaggioErrore(
+                return rispostaImmediata(ResponseEntity.badRequest().body(creaMessaggioErrore(
                     "Query non valida: " + String.join(", ", validationResult.getErrori())
-                ));
-            }
-            
-            // Mostra avvisi se presenti
-            if (!validationResult.getAvvisi().isEmpty()) {
-                System.out.println("Avvisi per la query: " + String.join(", ", validationResult.getAvvisi()));
+                )));
             }
             
             // Ottieni l'IP dell'utente
             String userIp = ottieniIpUtente(httpRequest);
+            boolean accettaGzip = accettaGzip(httpRequest);
+            long timeoutMs = queryJobService.getTimeoutEffettivo(request.getTimeoutMs());
             
-            // Esegui la query con cronologia
-            TableResult result = bigQueryService.runQueryWithHistory(request.getSql(), userIp);
+            // Esegui la query con cronologia senza bloccare il thread della richiesta
+            AtomicReference<QueryCostService.Stima> stima = new AtomicReference<>();
+            CompletableFuture<TableResult> risultato = bigQueryService.runQueryWithHistoryAsync(
+                request.getSql(), null, userIp, request.isUseCache(), timeoutMs, stima::set);
             
-            if (request.isExport()) {
-                response.setHeader("Content-Disposition", "attachment; filename=\"export.csv\"");
-                response.setContentType("text/csv");
-                try {
-                    bigQueryService.writeCsv(result, response.getWriter());
-                } catch (IOException e) {
-                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                            .body(creaMessaggioErrore("Errore durante l'esportazione CSV: " + e.getMessage()));
-                }
-                return null;
-            } else {
-                return ResponseEntity.ok(bigQueryService.toList(result));
-            }
+            registraLatenza(risultato, ENDPOINT_QUERY, request.getSql());
+            return attendiRisultato(risultato, timeoutMs, result -> conStima(creaRispostaRisultati(ENDPOINT_QUERY,
+                result, request.getFormat(), request.isExport(), request.isGzip(), request.isStream(), accettaGzip), stima.get()));
             
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(creaMessaggioErrore("Query interrotta: " + e.getMessage()));
         } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(creaMessaggioErrore("Errore durante l'esecuzione della query: " + e.getMessage()));
+            return rispostaImmediata(creaRispostaErrore(e));
         }
     }
 
@@ -134,41 +171,233 @@ public class BigQueryController {
         @ApiResponse(responseCode = "200", description = "Query eseguita con successo",
                     content = @Content(schema = @Schema(implementation = Object.class))),
         @ApiResponse(responseCode = "400", description = "Richiesta non valida"),
+        @ApiResponse(responseCode = "429", description = "Troppe query in attesa o budget per IP esaurito"),
+        @ApiResponse(responseCode = "503", description = "BigQuery temporaneamente non disponibile (circuito aperto o errori transitori)"),
+        @ApiResponse(responseCode = "504", description = "Tempo massimo superato: il job BigQuery è stato annullato"),
         @ApiResponse(responseCode = "500", description = "Errore interno del server")
     })
     @PostMapping("/query-structured")
-    public ResponseEntity<?> eseguiQueryStrutturata(
+    public DeferredResult<ResponseEntity<?>> eseguiQueryStrutturata(
             @Valid @RequestBody StructuredQueryRequest request,
-            HttpServletResponse response,
             HttpServletRequest httpRequest) {
         try {
-            TableResult result = bigQueryService.runStructuredQueryWithHistory(request, ottieniIpUtente(httpRequest));
-
-            if (request.isExport()) {
-                response.setHeader("Content-Disposition", "attachment; filename=export.csv");
-                response.setContentType("text/csv");
-                try {
-                    bigQueryService.writeCsv(result, response.getWriter());
-                } catch (IOException e) {
-                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                            .body(creaMessaggioErrore("Errore durante l'esportazione CSV: " + e.getMessage()));
+            boolean accettaGzip = accettaGzip(httpRequest);
+            long timeoutMs = queryJobService.getTimeoutEffettivo(request.getTimeoutMs());
+
+            // La query viene costruita qui per attribuirne la latenza all'impronta del SQL generato
+            BigQueryService.BuiltQuery built = bigQueryService.buildQuery(request);
+            AtomicReference<QueryCostService.Stima> stima = new AtomicReference<>();
+            CompletableFuture<TableResult> risultato = bigQueryService.runQueryWithHistoryAsync(
+                built.getSql(), built.getParams(), ottieniIpUtente(httpRequest), request.isUseCache(), timeoutMs, stima::set);
+
+            registraLatenza(risultato, "/bigquery/query-structured", built.getSql());
+            return attendiRisultato(risultato, timeoutMs, result -> conStima(creaRispostaRisultati("/bigquery/query-structured",
+                result, request.getFormat(), request.isExport(), request.isGzip(), request.isStream(), accettaGzip), stima.get()));
+        } catch (Exception e) {
+            return rispostaImmediata(creaRispostaErrore(e));
+        }
+    }
+
+    @Operation(
+        summary = "Invia query asincrona",
+        description = "Crea un job BigQuery e restituisce subito il suo identificativo, senza attendere il completamento"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "202", description = "Job creato"),
+        @ApiResponse(responseCode = "400", description = "Richiesta non valida - query SQL mancante o non valida"),
+        @ApiResponse(responseCode = "429", description = "Troppe query in attesa o budget per IP esaurito"),
+        @ApiResponse(responseCode = "503", description = "Troppi job in esecuzione o BigQuery temporaneamente non disponibile"),
+        @ApiResponse(responseCode = "500", description = "Errore interno del server durante la creazione del job")
+    })
+    @PostMapping("/jobs")
+    public ResponseEntity<?> inviaJob(
+            @Parameter(description = "Dettagli della query da eseguire", required = true)
+            @Valid @RequestBody QueryRequest request,
+            HttpServletRequest httpRequest) {
+
+        ValidationResult validationResult = valida(request.getSql(), "/bigquery/jobs");
+        if (!validationResult.isValida()) {
+            return ResponseEntity.badRequest().body(creaMessaggioErrore(
+                "Query non valida: " + String.join(", ", validationResult.getErrori())
+            ));
+        }
+
+        try {
+            QueryJobHandle handle = bigQueryService.submitQueryWithHistory(
+                    request.getSql(), null, ottieniIpUtente(httpRequest), request.getTimeoutMs());
+            registraLatenza(handle.getFuture(), "/bigquery/jobs", request.getSql());
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(descriviJob(handle));
+        } catch (BudgetSuperatoException e) {
+            return creaRispostaBudgetSuperato(e);
+        } catch (CodaPienaException e) {
+            return creaRispostaCodaPiena(e);
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(creaMessaggioErrore(e.getMessage()));
+        } catch (Exception e) {
+            ResponseEntity<?> nonDisponibile = creaRispostaNonDisponibile(e);
+            if (nonDisponibile != null) {
+                return nonDisponibile;
+            }
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(creaMessaggioErrore("Errore durante la creazione del job: " + e.getMessage()));
+        }
+    }
+
+    @Operation(
+        summary = "Stato e risultati di un job",
+        description = "Restituisce lo stato del job e, se completato, una pagina dei risultati"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Stato del job"),
+        @ApiResponse(responseCode = "400", description = "Dimensione della pagina minore di 1"),
+        @ApiResponse(responseCode = "404", description = "Job non trovato"),
+        @ApiResponse(responseCode = "500", description = "Errore durante il recupero dei risultati")
+    })
+    @GetMapping("/jobs/{id}")
+    public ResponseEntity<?> statoJob(
+            @PathVariable String id,
+            @Parameter(description = "Numero di righe per pagina, al massimo bigquery.pagination.max-page-size") @RequestParam(defaultValue = "100") long pageSize,
+            @Parameter(description = "Token della pagina restituito dalla chiamata precedente") @RequestParam(required = false) String pageToken) {
+
+        if (pageSize < 1) {
+            return ResponseEntity.badRequest().body(creaMessaggioErrore("pageSize deve essere almeno 1"));
+        }
+        long dimensione = Math.min(pageSize, dimensionePaginaMassima);
+        QueryJobHandle handle = queryJobService.getJob(id);
+        if (handle == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(creaMessaggioErrore("Job non trovato: " + id));
+        }
+
+        Map<String, Object> risposta = descriviJob(handle);
+        if ("COMPLETATO".equals(handle.getStato())) {
+            try {
+                TableResult pagina = pageToken == null || pageToken.isBlank()
+                        ? queryJobService.leggiRisultati(handle.await(), BigQuery.QueryResultsOption.pageSize(dimensione))
+                        : queryJobService.leggiRisultati(handle.await(), BigQuery.QueryResultsOption.pageSize(dimensione),
+                                BigQuery.QueryResultsOption.pageToken(pageToken));
+                risposta.put("righeTotali", pagina.getTotalRows());
+                risposta.put("risultati", bigQueryService.toList(pagina.getSchema(), pagina.getValues()));
+                risposta.put("nextPageToken", pagina.getNextPageToken());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                        .body(creaMessaggioErrore("Lettura risultati interrotta: " + e.getMessage()));
+            } catch (Exception e) {
+                ResponseEntity<?> nonDisponibile = creaRispostaNonDisponibile(e);
+                if (nonDisponibile != null) {
+                    return nonDisponibile;
                 }
-                return null;
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                        .body(creaMessaggioErrore("Errore durante il recupero dei risultati: " + e.getMessage()));
             }
+        }
+        return ResponseEntity.ok(risposta);
+    }
 
-            return ResponseEntity.ok(bigQueryService.toList(result));
+    @Operation(
+        summary = "Esegui query paginata",
+        description = "Esegue la query e restituisce solo la prima pagina dei risultati insieme a un cursore opaco per la pagina successiva"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Prima pagina dei risultati"),
+        @ApiResponse(responseCode = "400", description = "Richiesta non valida - query SQL mancante o non valida"),
+        @ApiResponse(responseCode = "429", description = "Troppe query in attesa o budget per IP esaurito"),
+        @ApiResponse(responseCode = "503", description = "BigQuery temporaneamente non disponibile (circuito aperto o errori transitori)"),
+        @ApiResponse(responseCode = "504", description = "Tempo massimo superato: il job BigQuery è stato annullato"),
+        @ApiResponse(responseCode = "500", description = "Errore interno del server durante l'esecuzione della query")
+    })
+    @PostMapping("/query/pages")
+    public DeferredResult<ResponseEntity<?>> eseguiQueryPaginata(
+            @Parameter(description = "Dettagli della query da eseguire", required = true)
+            @Valid @RequestBody QueryRequest request,
+            @Parameter(description = "Numero di righe per pagina") @RequestParam(required = false) Long pageSize,
+            HttpServletRequest httpRequest) {
+
+        try {
+            ValidationResult validationResult = valida(request.getSql(), "/bigquery/query/pages");
+            if (!validationResult.isValida()) {
+                return rispostaImmediata(ResponseEntity.badRequest().body(creaMessaggioErrore(
+                    "Query non valida: " + String.join(", ", validationResult.getErrori())
+                )));
+            }
+
+            long timeoutMs = queryJobService.getTimeoutEffettivo(request.getTimeoutMs());
+            // Come /query: il thread della richiesta non attende il job
+            CompletableFuture<BigQueryService.PaginaRisultati> pagina = bigQueryService.eseguiPaginataAsync(
+                request.getSql(), null, ottieniIpUtente(httpRequest), pageSize, timeoutMs);
+
+            registraLatenza(pagina, "/bigquery/query/pages", request.getSql());
+            return attendiRisultato(pagina, timeoutMs, p -> ResponseEntity.ok(p.toMap()));
+        } catch (Exception e) {
+            return rispostaImmediata(creaRispostaErrore(e));
+        }
+    }
+
+    @Operation(
+        summary = "Pagina successiva dei risultati",
+        description = "Legge da BigQuery soltanto la pagina indicata dal cursore restituito dalla chiamata precedente"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Pagina dei risultati"),
+        @ApiResponse(responseCode = "400", description = "Cursore non valido"),
+        @ApiResponse(responseCode = "500", description = "Errore durante il recupero dei risultati")
+    })
+    @GetMapping("/results")
+    public ResponseEntity<?> paginaRisultati(
+            @Parameter(description = "Cursore restituito dalla pagina precedente", required = true) @RequestParam String cursor,
+            @Parameter(description = "Numero di righe per pagina (se diverso da quello del cursore)") @RequestParam(required = false) Long pageSize) {
+
+        try {
+            return ResponseEntity.ok(bigQueryService.leggiPagina(cursor, pageSize).toMap());
         } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().body(creaMessaggioErrore(e.getMessage()));
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            ResponseEntity<?> nonDisponibile = creaRispostaNonDisponibile(e);
+            if (nonDisponibile != null) {
+                return nonDisponibile;
+            }
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(creaMessaggioErrore("Query interrotta: " + e.getMessage()));
+                    .body(creaMessaggioErrore("Errore durante il recupero dei risultati: " + e.getMessage()));
+        }
+    }
+
+    @Operation(
+        summary = "Annulla un job",
+        description = "Richiede a BigQuery l'annullamento del job se ancora in esecuzione"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Annullamento richiesto"),
+        @ApiResponse(responseCode = "404", description = "Job non trovato")
+    })
+    @DeleteMapping("/jobs/{id}")
+    public ResponseEntity<?> annullaJob(@PathVariable String id) {
+        try {
+            if (!queryJobService.annulla(id)) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(creaMessaggioErrore("Job non trovato: " + id));
+            }
+            return ResponseEntity.ok(descriviJob(queryJobService.getJob(id)));
         } catch (Exception e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(creaMessaggioErrore("Errore durante l'esecuzione della query: " + e.getMessage()));
+                    .body(creaMessaggioErrore("Errore durante l'annullamento del job: " + e.getMessage()));
         }
     }
 
+    @Operation(
+        summary = "Svuota la cache dei risultati",
+        description = "Rimuove tutti i risultati memorizzati nella cache delle query"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Cache svuotata")
+    })
+    @DeleteMapping("/cache")
+    public ResponseEntity<?> svuotaCache() {
+        queryResultCache.svuota();
+        Map<String, Object> risposta = new HashMap<>();
+        risposta.put("messaggio", "Cache dei risultati svuotata");
+        risposta.put("timestamp", java.time.LocalDateTime.now());
+        return ResponseEntity.ok(risposta);
+    }
+
     @ExceptionHandler(MethodArgumentNotValidException.class)
     public ResponseEntity<?> gestisciErroriValidazione(MethodArgumentNotValidException ex) {
         Map<String, String> errori = new HashMap<>();
@@ -180,6 +409,14 @@ public class BigQueryController {
         return ResponseEntity.badRequest().body(creaMessaggioErrore("Errori di validazione", errori));
     }
 
+    @ExceptionHandler(TaskRejectedException.class)
+    public ResponseEntity<?> gestisciStreamingRifiutato(TaskRejectedException ex) {
+        // Tutti i thread di scrittura in streaming sono occupati e la loro coda è piena
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body(creaMessaggioErrore("Troppe risposte in streaming in corso, riprovare più tardi"));
+    }
+
     private Map<String, Object> creaMessaggioErrore(String messaggio) {
         Map<String, Object> errore = new HashMap<>();
         errore.put("errore", true);
@@ -194,6 +431,247 @@ public class BigQueryController {
         return errore;
     }
     
+    /**
+     * Attende il risultato senza occupare il thread della richiesta. Allo scadere del timeout
+     * o se la connessione con il client si interrompe, la richiesta abbandona la query e il job
+     * BigQuery viene annullato (se nessun'altra richiesta identica ne attende il risultato).
+     */
+    private <T> DeferredResult<ResponseEntity<?>> attendiRisultato(CompletableFuture<T> risultato, long timeoutMs,
+                                                                  Function<T, ResponseEntity<?>> risposta) {
+        // Il margine lascia a QueryJobService il tempo di annullare il job e restituire l'errore di timeout
+        DeferredResult<ResponseEntity<?>> deferred = new DeferredResult<>(timeoutMs + MARGINE_TIMEOUT_MS);
+        deferred.onTimeout(() -> {
+            risultato.completeExceptionally(new QueryAnnullataException(
+                "Tempo massimo della richiesta superato (" + timeoutMs + " ms)", true));
+            deferred.setErrorResult(ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT)
+                .body(creaMessaggioErrore("Tempo massimo della richiesta superato (" + timeoutMs + " ms)")));
+        });
+        deferred.onError(e -> risultato.completeExceptionally(
+            new QueryAnnullataException("Connessione con il client interrotta")));
+
+        risultato.whenComplete((result, errore) -> {
+            if (errore != null) {
+                deferred.setResult(creaRispostaErrore(BigQueryService.causa(errore)));
+                return;
+            }
+            try {
+                deferred.setResult(risposta.apply(result));
+            } catch (Exception e) {
+                deferred.setResult(creaRispostaErrore(e));
+            }
+        });
+        return deferred;
+    }
+
+    /**
+     * Registra nei percentili in memoria la durata delle query, dall'invio al risultato,
+     * con il loro esito: anche errori, timeout e annullamenti.
+     */
+    private void registraLatenza(CompletableFuture<?> futuro, String endpoint, String sql) {
+        long inizio = System.currentTimeMillis();
+        futuro.whenComplete((result, errore) -> queryLatencyStats.registra(endpoint, sql,
+                System.currentTimeMillis() - inizio, QueryLatencyStats.esito(errore)));
+    }
+
+    /**
+     * Aggiunge alla risposta i byte stimati dal dry-run, se la richiesta ha creato il job
+     * (non per i risultati dalla cache o condivisi con un'esecuzione in corso).
+     */
+    private ResponseEntity<?> conStima(ResponseEntity<?> risposta, QueryCostService.Stima stima) {
+        if (stima == null) {
+            return risposta;
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(risposta.getHeaders());
+        headers.set(HEADER_BYTES_STIMATI, String.valueOf(stima.getBytesStimati()));
+        return ResponseEntity.status(risposta.getStatusCode()).headers(headers).body(risposta.getBody());
+    }
+
+    private DeferredResult<ResponseEntity<?>> rispostaImmediata(ResponseEntity<?> risposta) {
+        DeferredResult<ResponseEntity<?>> deferred = new DeferredResult<>();
+        deferred.setResult(risposta);
+        return deferred;
+    }
+
+    private ResponseEntity<?> creaRispostaRisultati(String endpoint, TableResult result, String formato, boolean export,
+                                                    boolean gzip, boolean stream, boolean accettaGzip) {
+        if ("ndjson".equalsIgnoreCase(formato)) {
+            return misuraSerializzazione(creaRispostaNdjson(result), endpoint, "ndjson");
+        }
+        if ("arrow".equalsIgnoreCase(formato)) {
+            return misuraSerializzazione(creaRispostaArrow(result), endpoint, "arrow");
+        }
+        if (formato != null ? "csv".equalsIgnoreCase(formato) : export) {
+            return misuraSerializzazione(creaRispostaCsv(result, gzip, accettaGzip), endpoint, "csv");
+        }
+        if (stream) {
+            return misuraSerializzazione(creaRispostaStreaming(result), endpoint, "json-stream");
+        }
+        return ResponseEntity.ok(bigQueryService.toList(result));
+    }
+
+    /**
+     * Misura la scrittura della risposta in streaming, che avviene dopo il ritorno dal controller.
+     */
+    private ResponseEntity<StreamingResponseBody> misuraSerializzazione(ResponseEntity<StreamingResponseBody> risposta,
+                                                                        String endpoint, String formato) {
+        StreamingResponseBody body = risposta.getBody();
+        StreamingResponseBody misurato = out -> {
+            Timer.Sample sample = queryMetrics.avvia();
+            String esito = QueryMetrics.ERRORE;
+            try {
+                body.writeTo(out);
+                esito = QueryMetrics.SUCCESSO;
+            } finally {
+                queryMetrics.registra(sample, QueryMetrics.SERIALIZZAZIONE,
+                        "endpoint", endpoint, "format", formato, "outcome", esito);
+            }
+        };
+        return ResponseEntity.status(risposta.getStatusCode()).headers(risposta.getHeaders()).body(misurato);
+    }
+
+    /**
+     * Valida la query misurandone il tempo; gli avvisi vengono solo registrati nel log.
+     */
+    private ValidationResult valida(String sql, String endpoint) {
+        Timer.Sample sample = queryMetrics.avvia();
+        ValidationResult validationResult = queryValidationService.validaQuery(sql);
+        queryMetrics.registra(sample, QueryMetrics.VALIDAZIONE,
+                "endpoint", endpoint, "outcome", validationResult.isValida() ? "valid" : "invalid");
+        if (validationResult.isValida() && !validationResult.getAvvisi().isEmpty()) {
+            log.warn("Avvisi per la query su {}: {}", endpoint, String.join(", ", validationResult.getAvvisi()));
+        }
+        return validationResult;
+    }
+
+    private ResponseEntity<?> creaRispostaErrore(Throwable e) {
+        if (e instanceof BudgetSuperatoException) {
+            return creaRispostaBudgetSuperato((BudgetSuperatoException) e);
+        }
+        if (e instanceof CodaPienaException) {
+            return creaRispostaCodaPiena((CodaPienaException) e);
+        }
+        ResponseEntity<?> nonDisponibile = creaRispostaNonDisponibile(e);
+        if (nonDisponibile != null) {
+            return nonDisponibile;
+        }
+        if (e instanceof QueryAnnullataException) {
+            HttpStatus status = ((QueryAnnullataException) e).isScaduta() ? HttpStatus.GATEWAY_TIMEOUT : HttpStatus.CONFLICT;
+            return ResponseEntity.status(status).body(creaMessaggioErrore(e.getMessage()));
+        }
+        if (e instanceof IllegalArgumentException) {
+            return ResponseEntity.badRequest().body(creaMessaggioErrore(e.getMessage()));
+        }
+        if (e instanceof IllegalStateException) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(creaMessaggioErrore(e.getMessage()));
+        }
+        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(creaMessaggioErrore("Errore durante l'esecuzione della query: " + e.getMessage()));
+    }
+
+    /**
+     * CSV in streaming. Con gzip viene scaricato un file .csv.gz;
+     * altrimenti il CSV viene compresso al volo se il client accetta Content-Encoding gzip.
+     */
+    private ResponseEntity<StreamingResponseBody> creaRispostaCsv(TableResult result, boolean gzip, boolean accettaGzip) {
+        boolean comprimi = gzip || accettaGzip;
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok();
+        if (gzip) {
+            builder.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"export.csv.gz\"")
+                    .contentType(MediaType.parseMediaType("application/gzip"));
+        } else {
+            builder.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"export.csv\"")
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .contentType(new MediaType("text", "csv", StandardCharsets.UTF_8));
+            if (comprimi) {
+                builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+            }
+        }
+
+        StreamingResponseBody body = out -> {
+            OutputStream destinazione = comprimi ? new GZIPOutputStream(out, 64 * 1024) : out;
+            bigQueryService.writeCsv(result, new OutputStreamWriter(destinazione, StandardCharsets.UTF_8));
+        };
+        return builder.body(body);
+    }
+
+    private ResponseEntity<StreamingResponseBody> creaRispostaArrow(TableResult result) {
+        StreamingResponseBody body = out -> bigQueryService.writeArrow(result, out);
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"export.arrows\"")
+                .contentType(MediaType.parseMediaType(ArrowResultWriter.CONTENT_TYPE))
+                .body(body);
+    }
+
+    private boolean accettaGzip(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+    }
+
+    private ResponseEntity<StreamingResponseBody> creaRispostaStreaming(TableResult result) {
+        StreamingResponseBody body = out -> bigQueryService.writeJson(result, out);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+
+    private ResponseEntity<StreamingResponseBody> creaRispostaNdjson(TableResult result) {
+        StreamingResponseBody body = out -> bigQueryService.writeNdjson(result, out);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
+    private ResponseEntity<?> creaRispostaBudgetSuperato(BudgetSuperatoException e) {
+        Map<String, Object> errore = creaMessaggioErrore(e.getMessage());
+        errore.put("stima", e.getStima().toMap());
+        // Budget per IP: la richiesta può essere ripetuta più tardi
+        if (e.isBudgetIp()) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSecondi()))
+                    .body(errore);
+        }
+        return ResponseEntity.badRequest().body(errore);
+    }
+
+    private ResponseEntity<?> creaRispostaCodaPiena(CodaPienaException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSecondi()))
+                .body(creaMessaggioErrore(e.getMessage()));
+    }
+
+    /**
+     * 503 per il circuito aperto e per gli errori transitori di BigQuery ancora presenti dopo i retry;
+     * null per gli altri errori.
+     */
+    private ResponseEntity<?> creaRispostaNonDisponibile(Throwable e) {
+        if (e instanceof CircuitoApertoException) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(((CircuitoApertoException) e).getRetryAfterSecondi()))
+                    .body(creaMessaggioErrore(e.getMessage()));
+        }
+        if (BigQueryResilience.isRitentabile(e)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(creaMessaggioErrore("BigQuery temporaneamente non disponibile: " + e.getMessage()));
+        }
+        return null;
+    }
+
+    private Map<String, Object> descriviJob(QueryJobHandle handle) {
+        Map<String, Object> job = new HashMap<>();
+        job.put("id", handle.getId());
+        job.put("stato", handle.getStato());
+        job.put("dataInvio", handle.getDataInvio());
+        if (handle.getBytesStimati() != null) {
+            job.put("bytesStimati", handle.getBytesStimati());
+        }
+        job.put("link", "/bigquery/jobs/" + handle.getId());
+        if (handle.getErrore() != null) {
+            job.put("errore", handle.getErrore());
+        }
+        return job;
+    }
+    
     private String ottieniIpUtente(HttpServletRequest request) {
         String xForwardedFor = request.getHeader("X-Forwarded-For");
         if (xForwardedFor != null && !xForwardedFor.isEmpty()) {
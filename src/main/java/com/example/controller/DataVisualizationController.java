@@ -2,12 +2,18 @@ package com.example.controller;
 
 import com.example.service.DataVisualizationService;
 import com.example.service.BigQueryService;
+import com.example.service.QueryCostService.BudgetSuperatoException;
+import com.example.service.QueryScheduler.CodaPienaException;
 import com.example.dto.QueryRequest;
 import com.google.cloud.bigquery.TableResult;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import io.swagger.v3.oas.annotations.Operation;
@@ -33,16 +39,19 @@ public class DataVisualizationController {
     )
     @ApiResponses(value = {
         @ApiResponse(responseCode = "200", description = "Configurazione grafico generata con successo"),
-        @ApiResponse(responseCode = "400", description = "Parametri non validi"),
+        @ApiResponse(responseCode = "400", description = "Parametri non validi o query oltre il limite per richiesta"),
+        @ApiResponse(responseCode = "429", description = "Budget dell'IP esaurito o coda piena"),
         @ApiResponse(responseCode = "500", description = "Errore interno del server")
     })
     @PostMapping("/chart")
     public ResponseEntity<Map<String, Object>> generaGrafico(
             @Parameter(description = "Query SQL e tipo di grafico", required = true)
-            @RequestBody Map<String, String> request) {
+            @RequestBody Map<String, String> request,
+            HttpServletRequest httpRequest) {
         
         String sql = request.get("sql");
         String tipoGrafico = request.getOrDefault("tipo", "bar");
+        boolean usaCache = !"false".equalsIgnoreCase(request.get("useCache"));
         
         if (sql == null || sql.trim().isEmpty()) {
             return ResponseEntity.badRequest().body(Map.of(
@@ -52,13 +61,19 @@ public class DataVisualizationController {
         
         try {
             // Esegui la query
-            TableResult result = bigQueryService.runQuery(sql);
+            TableResult result = bigQueryService.runQuery(sql, null, usaCache, ottieniIpUtente(httpRequest));
             
             // Genera la configurazione del grafico
             Map<String, Object> config = dataVisualizationService.generaConfigurazioneGrafico(result, tipoGrafico);
             
             return ResponseEntity.ok(config);
             
+        } catch (BudgetSuperatoException e) {
+            return creaRispostaBudgetSuperato(e);
+        } catch (CodaPienaException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSecondi()))
+                .body(Map.of("errore", e.getMessage()));
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body(Map.of(
                 "errore", "Errore durante la generazione del grafico: " + e.getMessage()
@@ -98,17 +113,20 @@ public class DataVisualizationController {
     )
     @ApiResponses(value = {
         @ApiResponse(responseCode = "200", description = "Configurazione grafico generata con successo"),
-        @ApiResponse(responseCode = "400", description = "Parametri non validi"),
+        @ApiResponse(responseCode = "400", description = "Parametri non validi o query oltre il limite per richiesta"),
+        @ApiResponse(responseCode = "429", description = "Budget dell'IP esaurito o coda piena"),
         @ApiResponse(responseCode = "500", description = "Errore interno del server")
     })
     @PostMapping("/chart-advanced")
     public ResponseEntity<Map<String, Object>> generaGraficoAvanzato(
             @Parameter(description = "Parametri avanzati per la generazione del grafico", required = true)
-            @RequestBody Map<String, Object> request) {
+            @RequestBody Map<String, Object> request,
+            HttpServletRequest httpRequest) {
         
         String sql = (String) request.get("sql");
         String tipoGrafico = (String) request.getOrDefault("tipo", "bar");
         String titolo = (String) request.getOrDefault("titolo", "");
+        boolean usaCache = !Boolean.FALSE.equals(request.get("useCache"));
         
         if (sql == null || sql.trim().isEmpty()) {
             return ResponseEntity.badRequest().body(Map.of(
@@ -118,7 +136,7 @@ public class DataVisualizationController {
         
         try {
             // Esegui la query
-            TableResult result = bigQueryService.runQuery(sql);
+            TableResult result = bigQueryService.runQuery(sql, null, usaCache, ottieniIpUtente(httpRequest));
             
             // Genera la configurazione del grafico
             Map<String, Object> config = dataVisualizationService.generaConfigurazioneGrafico(result, tipoGrafico);
@@ -135,12 +153,43 @@ public class DataVisualizationController {
             
             return ResponseEntity.ok(config);
             
+        } catch (BudgetSuperatoException e) {
+            return creaRispostaBudgetSuperato(e);
+        } catch (CodaPienaException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSecondi()))
+                .body(Map.of("errore", e.getMessage()));
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body(Map.of(
                 "errore", "Errore durante la generazione del grafico: " + e.getMessage()
             ));
         }
     }
-}
 
+    private ResponseEntity<Map<String, Object>> creaRispostaBudgetSuperato(BudgetSuperatoException e) {
+        Map<String, Object> errore = new HashMap<>();
+        errore.put("errore", e.getMessage());
+        errore.put("stima", e.getStima().toMap());
+        // Budget per IP: la richiesta può essere ripetuta più tardi
+        if (e.isBudgetIp()) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSecondi()))
+                .body(errore);
+        }
+        return ResponseEntity.badRequest().body(errore);
+    }
+
+    private String ottieniIpUtente(HttpServletRequest request) {
+        String xForwardedFor = request.getHeader("X-Forwarded-For");
+        if (xForwardedFor != null && !xForwardedFor.isEmpty()) {
+            return xForwardedFor.split(",")[0].trim();
+        }
 
+        String xRealIp = request.getHeader("X-Real-IP");
+        if (xRealIp != null && !xRealIp.isEmpty()) {
+            return xRealIp;
+        }
+
+        return request.getRemoteAddr();
+    }
+}
@@ -1,9 +1,14 @@
 package com.example.controller;
 
+import com.example.service.PerformanceDashboardService;
 import com.example.service.PerformanceMonitoringService;
+import com.example.service.QueryLatencyStats;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import java.time.LocalDateTime;
 import java.util.Map;
@@ -22,6 +27,12 @@ public class PerformanceMonitoringController {
     @Autowired
     private PerformanceMonitoringService performanceMonitoringService;
 
+    @Autowired
+    private QueryLatencyStats queryLatencyStats;
+
+    @Autowired
+    private PerformanceDashboardService performanceDashboardService;
+
     @Operation(
         summary = "Ottieni statistiche performance", 
         description = "Restituisce statistiche complete sulle performance delle query"
@@ -42,6 +53,34 @@ public class PerformanceMonitoringController {
         }
     }
 
+    @Operation(
+        summary = "Percentili di latenza",
+        description = "Restituisce p50, p95, p99 e massimo delle latenze nella finestra scorrevole indicata, "
+            + "complessivi, per esito, per endpoint e per impronta della query, calcolati in memoria senza accedere al database. "
+            + "Contano anche errori, timeout e annullamenti"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Percentili recuperati con successo"),
+        @ApiResponse(responseCode = "400", description = "Finestra non valida"),
+        @ApiResponse(responseCode = "500", description = "Errore interno del server")
+    })
+    @GetMapping("/latency")
+    public ResponseEntity<Map<String, Object>> getPercentiliLatenza(
+            @Parameter(description = "Finestra scorrevole: 1m, 5m o 1h")
+            @RequestParam(defaultValue = "5m") String finestra,
+            @Parameter(description = "Numero massimo di impronte restituite, ordinate per p95 decrescente")
+            @RequestParam(defaultValue = "20") int impronte) {
+        try {
+            return ResponseEntity.ok(queryLatencyStats.getPercentili(finestra, Math.max(impronte, 0)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("errore", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of(
+                "errore", "Errore durante il calcolo dei percentili: " + e.getMessage()
+            ));
+        }
+    }
+
     @Operation(
         summary = "Analizza trend temporali", 
         description = "Analizza i trend delle performance in un periodo di tempo specifico"
@@ -112,22 +151,28 @@ public class PerformanceMonitoringController {
 
     @Operation(
         summary = "Dashboard performance completa", 
-        description = "Restituisce tutti i dati necessari per una dashboard delle performance"
+        description = "Restituisce tutti i dati necessari per una dashboard delle performance, da un'istantanea "
+            + "aggiornata in background. La risposta ha un ETag che cambia solo quando cambiano i dati: "
+            + "con If-None-Match le letture successive ricevono 304 senza corpo"
     )
     @ApiResponses(value = {
         @ApiResponse(responseCode = "200", description = "Dashboard generata con successo"),
+        @ApiResponse(responseCode = "304", description = "Dashboard invariata rispetto all'ETag indicato"),
         @ApiResponse(responseCode = "500", description = "Errore interno del server")
     })
     @GetMapping("/dashboard")
-    public ResponseEntity<Map<String, Object>> getDashboardPerformance() {
+    public ResponseEntity<?> getDashboardPerformance(WebRequest request) {
         try {
-            Map<String, Object> dashboard = Map.of(
-                "statistiche", performanceMonitoringService.getStatistichePerformance(),
-                "raccomandazioni", performanceMonitoringService.getRaccomandazioniOttimizzazione(),
-                "analisiUtenti", performanceMonitoringService.getAnalisiUtenti(),
-                "timestamp", LocalDateTime.now()
-            );
-            return ResponseEntity.ok(dashboard);
+            PerformanceDashboardService.Istantanea dashboard = performanceDashboardService.getIstantanea();
+            // Imposta ETag e 304 se coincide con If-None-Match
+            if (request.checkNotModified(dashboard.getEtag())) {
+                return null;
+            }
+            return ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .cacheControl(CacheControl.noCache())
+                    .eTag(dashboard.getEtag())
+                    .body(dashboard.getJson());
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body(Map.of(
                 "errore", "Errore durante la generazione della dashboard: " + e.getMessage()
@@ -135,5 +180,3 @@ public class PerformanceMonitoringController {
         }
     }
 }
-
-
@@ -0,0 +1,216 @@
+package com.example.controller;
+
+import com.example.entity.QueryHistory;
+import com.example.service.QueryHistoryService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Slice;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+
+@RestController
+@RequestMapping("/bigquery/history")
+@Tag(name = "Cronologia Query", description = "API per consultare la cronologia delle query eseguite")
+public class QueryHistoryController {
+
+    private static final int DIMENSIONE_MASSIMA = 100;
+
+    // Estremi del periodo quando non indicati
+    private static final LocalDateTime PRIMA_DATA = LocalDateTime.of(1970, 1, 1, 0, 0);
+    private static final LocalDateTime ULTIMA_DATA = LocalDateTime.of(9999, 12, 31, 23, 59, 59);
+
+    @Autowired
+    private QueryHistoryService queryHistoryService;
+
+    @Operation(
+        summary = "Cronologia delle query",
+        description = "Restituisce una pagina della cronologia, dalla query più recente, filtrata al più per uno tra "
+            + "IP, periodo ed esito. La risposta contiene il cursore della pagina successiva (null se è l'ultima): "
+            + "le pagine seguenti ripartono dall'ultima riga letta, quindi hanno lo stesso costo della prima"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Pagina recuperata con successo"),
+        @ApiResponse(responseCode = "400", description = "Parametri o cursore non validi"),
+        @ApiResponse(responseCode = "500", description = "Errore interno del server")
+    })
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> getCronologia(
+            @Parameter(description = "IP del client")
+            @RequestParam(required = false) String ip,
+            @Parameter(description = "Inizio del periodo (formato: yyyy-MM-ddTHH:mm:ss), insieme a fine")
+            @RequestParam(required = false) String inizio,
+            @Parameter(description = "Fine del periodo (formato: yyyy-MM-ddTHH:mm:ss), insieme a inizio")
+            @RequestParam(required = false) String fine,
+            @Parameter(description = "Esito: riuscite, fallite o annullate")
+            @RequestParam(required = false) String esito,
+            @Parameter(description = "Cursore restituito dalla pagina precedente")
+            @RequestParam(required = false) String cursore,
+            @Parameter(description = "Righe per pagina (massimo " + DIMENSIONE_MASSIMA + ")")
+            @RequestParam(defaultValue = "50") int dimensione) {
+        boolean periodo = inizio != null || fine != null;
+        int filtri = (ip != null ? 1 : 0) + (periodo ? 1 : 0) + (esito != null ? 1 : 0);
+        if (filtri > 1 || dimensione < 1 || dimensione > DIMENSIONE_MASSIMA) {
+            return ResponseEntity.badRequest().body(Map.of(
+                "errore", "Indicare al più un filtro tra ip, periodo ed esito e una dimensione tra 1 e " + DIMENSIONE_MASSIMA
+            ));
+        }
+        try {
+            QueryHistoryService.PaginaCronologia pagina;
+            if (ip != null) {
+                pagina = queryHistoryService.getCronologiaQuery(ip, cursore, dimensione);
+            } else if (periodo) {
+                if (inizio == null || fine == null) {
+                    throw new IllegalArgumentException("Indicare sia inizio sia fine del periodo");
+                }
+                pagina = queryHistoryService.getCronologiaQuery(LocalDateTime.parse(inizio), LocalDateTime.parse(fine),
+                        cursore, dimensione);
+            } else if (esito == null) {
+                pagina = queryHistoryService.getCronologia(cursore, dimensione);
+            } else {
+                pagina = switch (esito.toLowerCase()) {
+                    case "riuscite" -> queryHistoryService.getQueryRiuscite(cursore, dimensione);
+                    case "fallite" -> queryHistoryService.getQueryFallite(cursore, dimensione);
+                    case "annullate" -> queryHistoryService.getQueryAnnullate(cursore, dimensione);
+                    default -> throw new IllegalArgumentException("Esito non valido: " + esito);
+                };
+            }
+            return ResponseEntity.ok(pagina.toMap());
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            return ResponseEntity.badRequest().body(Map.of("errore", e.getMessage()));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of(
+                "errore", "Errore durante il recupero della cronologia: " + e.getMessage()
+            ));
+        }
+    }
+
+    @Operation(
+        summary = "Query più lente",
+        description = "Restituisce una pagina delle esecuzioni riuscite con il tempo di esecuzione più alto"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Pagina recuperata con successo"),
+        @ApiResponse(responseCode = "400", description = "Parametri non validi"),
+        @ApiResponse(responseCode = "500", description = "Errore interno del server")
+    })
+    @GetMapping("/slowest")
+    public ResponseEntity<Map<String, Object>> getQueryPiuLente(
+            @Parameter(description = "Numero di pagina, da 0")
+            @RequestParam(defaultValue = "0") int pagina,
+            @Parameter(description = "Righe per pagina (massimo " + DIMENSIONE_MASSIMA + ")")
+            @RequestParam(defaultValue = "20") int dimensione) {
+        if (pagina < 0 || dimensione < 1 || dimensione > DIMENSIONE_MASSIMA) {
+            return ResponseEntity.badRequest().body(Map.of(
+                "errore", "Indicare una pagina non negativa e una dimensione tra 1 e " + DIMENSIONE_MASSIMA
+            ));
+        }
+        try {
+            Slice<QueryHistory> lente = queryHistoryService.getQueryPiuLente(pagina, dimensione);
+            Map<String, Object> risposta = new LinkedHashMap<>();
+            risposta.put("risultati", lente.getContent());
+            risposta.put("pagina", pagina);
+            risposta.put("dimensione", dimensione);
+            risposta.put("altrePagine", lente.hasNext());
+            return ResponseEntity.ok(risposta);
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of(
+                "errore", "Errore durante il recupero delle query più lente: " + e.getMessage()
+            ));
+        }
+    }
+
+    @Operation(
+        summary = "Statistiche della cronologia",
+        description = "Restituisce il numero di query totali, riuscite, fallite e annullate, calcolato con query di conteggio"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Statistiche recuperate con successo"),
+        @ApiResponse(responseCode = "500", description = "Errore interno del server")
+    })
+    @GetMapping("/stats")
+    public ResponseEntity<Map<String, Object>> getStatisticheGenerali() {
+        try {
+            return ResponseEntity.ok(queryHistoryService.getStatisticheGenerali());
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of(
+                "errore", "Errore durante il recupero delle statistiche: " + e.getMessage()
+            ));
+        }
+    }
+
+    @Operation(
+        summary = "Esporta la cronologia",
+        description = "Scarica la cronologia del periodo come JSON delimitato da newline (una query per riga), "
+            + "dalla più vecchia. Le righe vengono lette e inviate a blocchi, senza caricare l'intera cronologia in memoria"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Export avviato"),
+        @ApiResponse(responseCode = "400", description = "Parametri di data non validi")
+    })
+    @GetMapping("/export")
+    public ResponseEntity<?> esportaCronologia(
+            @Parameter(description = "Inizio del periodo (formato: yyyy-MM-ddTHH:mm:ss), predefinito: senza limite")
+            @RequestParam(required = false) String inizio,
+            @Parameter(description = "Fine del periodo (formato: yyyy-MM-ddTHH:mm:ss), predefinito: senza limite")
+            @RequestParam(required = false) String fine) {
+        LocalDateTime dataInizio;
+        LocalDateTime dataFine;
+        try {
+            dataInizio = inizio != null ? LocalDateTime.parse(inizio) : PRIMA_DATA;
+            dataFine = fine != null ? LocalDateTime.parse(fine) : ULTIMA_DATA;
+        } catch (DateTimeParseException e) {
+            return ResponseEntity.badRequest().body(Map.of("errore", "Errore nei parametri di data: " + e.getMessage()));
+        }
+        StreamingResponseBody body = out -> queryHistoryService.esportaNdjson(dataInizio, dataFine, out);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"query-history.ndjson\"")
+                .body(body);
+    }
+
+    @Operation(
+        summary = "Cerca nella cronologia",
+        description = "Restituisce le esecuzioni il cui SQL contiene tutti i termini cercati (separati da spazi, "
+            + "senza distinzione tra maiuscole e minuscole), ordinate per pertinenza e poi dalla più recente. "
+            + "La ricerca usa un indice per trigrammi in memoria"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Ricerca completata"),
+        @ApiResponse(responseCode = "400", description = "Parametri non validi"),
+        @ApiResponse(responseCode = "500", description = "Errore interno del server")
+    })
+    @GetMapping("/search")
+    public ResponseEntity<Map<String, Object>> cercaQuery(
+            @Parameter(description = "Termini da cercare nel testo SQL", required = true)
+            @RequestParam String q,
+            @Parameter(description = "Numero di pagina, da 0")
+            @RequestParam(defaultValue = "0") int pagina,
+            @Parameter(description = "Risultati per pagina (massimo " + DIMENSIONE_MASSIMA + ")")
+            @RequestParam(defaultValue = "20") int dimensione) {
+        if (q.isBlank() || pagina < 0 || dimensione < 1 || dimensione > DIMENSIONE_MASSIMA) {
+            return ResponseEntity.badRequest().body(Map.of(
+                "errore", "Indicare almeno un termine, una pagina non negativa e una dimensione tra 1 e " + DIMENSIONE_MASSIMA
+            ));
+        }
+        try {
+            return ResponseEntity.ok(queryHistoryService.cercaQuery(q, pagina, dimensione));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of(
+                "errore", "Errore durante la ricerca nella cronologia: " + e.getMessage()
+            ));
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.controller;
 
+import com.example.service.QueryCostService;
 import com.example.service.QueryValidationService;
 import com.example.service.QueryValidationService.ValidationResult;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -22,6 +23,9 @@ public class QueryValidationController {
     @Autowired
     private QueryValidationService queryValidationService;
 
+    @Autowired
+    private QueryCostService queryCostService;
+
     @Operation(
         summary = "Valida query SQL", 
         description = "Valida una query SQL per controllare sintassi, sicurezza e best practices"
@@ -80,6 +84,44 @@ public class QueryValidationController {
         
         return ResponseEntity.ok(response);
     }
-}
 
+    @Operation(
+        summary = "Stima i byte elaborati da una query",
+        description = "Esegue un dry-run su BigQuery e restituisce i byte che la query elaborerebbe e il costo stimato"
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Stima completata"),
+        @ApiResponse(responseCode = "400", description = "Richiesta o query non valida"),
+        @ApiResponse(responseCode = "500", description = "Errore durante il dry-run")
+    })
+    @PostMapping("/estimate")
+    public ResponseEntity<Map<String, Object>> stimaQuery(
+            @Parameter(description = "Query SQL da stimare", required = true)
+            @RequestBody Map<String, String> request) {
+
+        String sql = request.get("sql");
+        if (sql == null || sql.trim().isEmpty()) {
+            return ResponseEntity.badRequest().body(Map.of(
+                "valida", false,
+                "errori", new String[]{"Query SQL non fornita"},
+                "avvisi", new String[0]
+            ));
+        }
+
+        ValidationResult result = queryValidationService.validaQuery(sql);
+        if (!result.isValida()) {
+            return ResponseEntity.badRequest().body(result.toMap());
+        }
 
+        try {
+            Map<String, Object> response = result.toMap();
+            response.putAll(queryCostService.stima(sql, null).toMap());
+            response.put("timestamp", java.time.LocalDateTime.now());
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of(
+                "errore", "Errore durante la stima della query: " + e.getMessage()
+            ));
+        }
+    }
+}
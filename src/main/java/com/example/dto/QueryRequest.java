@@ -1,7 +1,9 @@
 package com.example.dto;
 
 import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.Pattern;
 import jakarta.validation.constraints.Size;
 
 @Schema(description = "Request object for BigQuery operations")
@@ -14,6 +16,23 @@ public class QueryRequest {
     
     @Schema(description = "Whether to export results as CSV", example = "false", defaultValue = "false")
     private boolean export = false;
+    
+    @Schema(description = "Whether to stream JSON results page by page instead of building the full response", example = "false", defaultValue = "false")
+    private boolean stream = false;
+    
+    @Schema(description = "Whether results may be served from the result cache", example = "true", defaultValue = "true")
+    private boolean useCache = true;
+    
+    @Schema(description = "Whether to compress the CSV export as a .csv.gz download", example = "false", defaultValue = "false")
+    private boolean gzip = false;
+    
+    @Pattern(regexp = "(?i)json|ndjson|csv|arrow", message = "Supported formats are json, ndjson, csv and arrow (parquet is not available)")
+    @Schema(description = "Output format: json, ndjson (newline-delimited JSON), csv or arrow (Arrow IPC stream). Overrides 'export' when set", example = "arrow", allowableValues = {"json", "ndjson", "csv", "arrow"})
+    private String format;
+    
+    @Min(value = 1, message = "Timeout must be a positive number of milliseconds")
+    @Schema(description = "Maximum time in milliseconds to wait for the query; the BigQuery job is cancelled when it expires. Defaults to bigquery.query.timeout-ms", example = "60000")
+    private Long timeoutMs;
 
     // Constructors
     public QueryRequest() {}
@@ -39,4 +58,44 @@ public class QueryRequest {
     public void setExport(boolean export) {
         this.export = export;
     }
-}
\ No newline at end of file
+    
+    public boolean isStream() {
+        return stream;
+    }
+
+    public void setStream(boolean stream) {
+        this.stream = stream;
+    }
+    
+    public boolean isUseCache() {
+        return useCache;
+    }
+
+    public void setUseCache(boolean useCache) {
+        this.useCache = useCache;
+    }
+    
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+    
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+    
+    public Long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public void setTimeoutMs(Long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+}
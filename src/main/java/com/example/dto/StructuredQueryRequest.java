@@ -2,6 +2,7 @@ package com.example.dto;
 
 import io.swagger.v3.oas.annotations.media.Schema;
 import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.Pattern;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
 import java.util.List;
@@ -34,6 +35,25 @@ public class StructuredQueryRequest {
     @Schema(description = "Esporta i risultati in CSV", example = "false", defaultValue = "false")
     private boolean export = false;
 
+    @Schema(description = "Invia i risultati JSON in streaming, pagina per pagina", example = "false", defaultValue = "false")
+    private boolean stream = false;
+
+    @Schema(description = "Consenti di servire i risultati dalla cache", example = "true", defaultValue = "true")
+    private boolean useCache = true;
+
+    @Schema(description = "Comprimi l'export CSV come file .csv.gz", example = "false", defaultValue = "false")
+    private boolean gzip = false;
+
+    @Pattern(regexp = "(?i)json|ndjson|csv|arrow", message = "Formati supportati: json, ndjson, csv e arrow (parquet non è disponibile)")
+    @Schema(description = "Formato di output: json, ndjson (JSON delimitato da newline), csv o arrow (stream Arrow IPC). Se presente prevale su 'export'",
+            example = "arrow", allowableValues = {"json", "ndjson", "csv", "arrow"})
+    private String format;
+
+    @Min(1)
+    @Schema(description = "Tempo massimo di attesa in millisecondi; allo scadere il job BigQuery viene annullato. "
+            + "Se assente vale bigquery.query.timeout-ms", example = "60000")
+    private Long timeoutMs;
+
     // Getters & Setters
     public String getTable() { return table; }
     public void setTable(String table) { this.table = table; }
@@ -52,6 +72,21 @@ public class StructuredQueryRequest {
 
     public boolean isExport() { return export; }
     public void setExport(boolean export) { this.export = export; }
+
+    public boolean isStream() { return stream; }
+    public void setStream(boolean stream) { this.stream = stream; }
+
+    public boolean isUseCache() { return useCache; }
+    public void setUseCache(boolean useCache) { this.useCache = useCache; }
+
+    public boolean isGzip() { return gzip; }
+    public void setGzip(boolean gzip) { this.gzip = gzip; }
+
+    public String getFormat() { return format; }
+    public void setFormat(String format) { this.format = format; }
+
+    public Long getTimeoutMs() { return timeoutMs; }
+    public void setTimeoutMs(Long timeoutMs) { this.timeoutMs = timeoutMs; }
 }
 
 
@@ -0,0 +1,41 @@
+package com.example.entity;
+
+import jakarta.persistence.*;
+
+/**
+ * Esecuzioni riuscite per impronta della query, incrementate insieme agli aggregati orari da
+ * {@link com.example.service.QueryHistoryRollupService}: le query più frequenti si leggono
+ * da una riga per impronta invece di raggruppare l'intera cronologia.
+ */
+@Entity
+@Table(name = "query_fingerprint_rollup", indexes = {
+    @Index(name = "idx_query_fingerprint_rollup_successful", columnList = "successful_queries")
+})
+public class QueryFingerprintRollup {
+
+    @Id
+    @Column(name = "fingerprint")
+    private Long fingerprint;
+
+    // Testo normalizzato della prima esecuzione: è lo stesso per tutte le query con l'impronta
+    @Column(name = "normalized_query", length = 1000)
+    private String normalizedQuery;
+
+    @Column(name = "successful_queries", nullable = false)
+    private long successfulQueries;
+
+    protected QueryFingerprintRollup() {
+    }
+
+    public Long getFingerprint() {
+        return fingerprint;
+    }
+
+    public String getNormalizedQuery() {
+        return normalizedQuery;
+    }
+
+    public long getSuccessfulQueries() {
+        return successfulQueries;
+    }
+}
@@ -4,11 +4,22 @@ import jakarta.persistence.*;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "query_history")
+// Indici per le ricerche per periodo, per IP (in ordine di data) e per tempo di esecuzione.
+// Nessun indice sul solo esito: con due valori, leggere le righe tramite indice costa più della scansione
+// (i conteggi per esito vengono dagli aggregati di query_history_rollup)
+@Table(name = "query_history", indexes = {
+    // Con l'id gli indici restituiscono già le righe nell'ordine della paginazione per chiave
+    @Index(name = "idx_query_history_created_at", columnList = "created_at, id"),
+    @Index(name = "idx_query_history_user_ip", columnList = "user_ip, created_at, id"),
+    @Index(name = "idx_query_history_execution_time", columnList = "execution_time_ms"),
+    @Index(name = "idx_query_history_fingerprint", columnList = "fingerprint")
+})
 public class QueryHistory {
     
+    // Id da sequenza (non IDENTITY) così Hibernate può inserire le righe a lotti
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "query_history_seq")
+    @SequenceGenerator(name = "query_history_seq", sequenceName = "query_history_seq", allocationSize = 50)
     private Long id;
     
     @Column(name = "sql_query", columnDefinition = "TEXT")
@@ -32,6 +43,52 @@ public class QueryHistory {
     @Column(name = "user_ip")
     private String userIp;
     
+    @Column(name = "coalesced")
+    private Boolean coalesced = false;
+    
+    @Column(name = "cancelled")
+    private Boolean cancelled = false;
+    
+    // Statistiche del job BigQuery (assenti per le query servite dalla cache)
+    @Column(name = "job_id")
+    private String jobId;
+    
+    @Column(name = "bytes_processed")
+    private Long bytesProcessed;
+    
+    @Column(name = "bytes_billed")
+    private Long bytesBilled;
+    
+    @Column(name = "cache_hit")
+    private Boolean cacheHit;
+    
+    @Column(name = "slot_ms")
+    private Long slotMs;
+    
+    @Column(name = "job_created_at")
+    private LocalDateTime jobCreatedAt;
+    
+    @Column(name = "job_started_at")
+    private LocalDateTime jobStartedAt;
+    
+    @Column(name = "job_ended_at")
+    private LocalDateTime jobEndedAt;
+    
+    // Durata del job lato BigQuery (creazione -> fine), da confrontare con executionTimeMs
+    @Column(name = "server_time_ms")
+    private Long serverTimeMs;
+    
+    // Impronta della query (hash del testo normalizzato, senza valori né commenti) per raggruppare le esecuzioni
+    @Column(name = "fingerprint")
+    private Long fingerprint;
+    
+    @Column(name = "normalized_query", length = 1000)
+    private String normalizedQuery;
+    
+    // Già conteggiata in query_history_rollup: la compattazione può eliminarla senza riaggregarla
+    @Column(name = "rolled_up")
+    private Boolean rolledUp = false;
+    
     // Costruttori
     public QueryHistory() {
         this.createdAt = LocalDateTime.now();
@@ -107,5 +164,116 @@ public class QueryHistory {
     public void setUserIp(String userIp) {
         this.userIp = userIp;
     }
+    
+    public Boolean getCoalesced() {
+        return coalesced;
+    }
+    
+    public void setCoalesced(Boolean coalesced) {
+        this.coalesced = coalesced;
+    }
+    
+    public Boolean getCancelled() {
+        return cancelled;
+    }
+    
+    public void setCancelled(Boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+    
+    public String getJobId() {
+        return jobId;
+    }
+    
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+    
+    public Long getBytesProcessed() {
+        return bytesProcessed;
+    }
+    
+    public void setBytesProcessed(Long bytesProcessed) {
+        this.bytesProcessed = bytesProcessed;
+    }
+    
+    public Long getBytesBilled() {
+        return bytesBilled;
+    }
+    
+    public void setBytesBilled(Long bytesBilled) {
+        this.bytesBilled = bytesBilled;
+    }
+    
+    public Boolean getCacheHit() {
+        return cacheHit;
+    }
+    
+    public void setCacheHit(Boolean cacheHit) {
+        this.cacheHit = cacheHit;
+    }
+    
+    public Long getSlotMs() {
+        return slotMs;
+    }
+    
+    public void setSlotMs(Long slotMs) {
+        this.slotMs = slotMs;
+    }
+    
+    public LocalDateTime getJobCreatedAt() {
+        return jobCreatedAt;
+    }
+    
+    public void setJobCreatedAt(LocalDateTime jobCreatedAt) {
+        this.jobCreatedAt = jobCreatedAt;
+    }
+    
+    public LocalDateTime getJobStartedAt() {
+        return jobStartedAt;
+    }
+    
+    public void setJobStartedAt(LocalDateTime jobStartedAt) {
+        this.jobStartedAt = jobStartedAt;
+    }
+    
+    public LocalDateTime getJobEndedAt() {
+        return jobEndedAt;
+    }
+    
+    public void setJobEndedAt(LocalDateTime jobEndedAt) {
+        this.jobEndedAt = jobEndedAt;
+    }
+    
+    public Long getServerTimeMs() {
+        return serverTimeMs;
+    }
+    
+    public void setServerTimeMs(Long serverTimeMs) {
+        this.serverTimeMs = serverTimeMs;
+    }
+    
+    public Long getFingerprint() {
+        return fingerprint;
+    }
+    
+    public void setFingerprint(Long fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+    
+    public String getNormalizedQuery() {
+        return normalizedQuery;
+    }
+    
+    public void setNormalizedQuery(String normalizedQuery) {
+        this.normalizedQuery = normalizedQuery;
+    }
+    
+    public Boolean getRolledUp() {
+        return rolledUp;
+    }
+    
+    public void setRolledUp(Boolean rolledUp) {
+        this.rolledUp = rolledUp;
+    }
 }
-
@@ -0,0 +1,183 @@
+package com.example.entity;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.ColumnDefault;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+/**
+ * Aggregati della cronologia per ora (di inizio della query) e per IP, incrementati a ogni
+ * query conclusa da {@link com.example.service.QueryHistoryRollupService}: le analisi per periodo e per
+ * utente leggono poche righe per ora invece dell'intera cronologia.
+ */
+@Entity
+@Table(name = "query_history_rollup", indexes = {
+    @Index(name = "idx_query_history_rollup_user_ip", columnList = "user_ip")
+})
+public class QueryHistoryRollup {
+
+    @EmbeddedId
+    private Chiave id;
+
+    @Column(name = "total_queries", nullable = false)
+    private long totalQueries;
+
+    @Column(name = "successful_queries", nullable = false)
+    private long successfulQueries;
+
+    @Column(name = "cancelled_queries", nullable = false)
+    private long cancelledQueries;
+
+    // Somme dei tempi di esecuzione, per calcolare le medie senza rileggere le righe
+    @Column(name = "total_time_ms", nullable = false)
+    private long totalTimeMs;
+
+    @Column(name = "successful_time_ms", nullable = false)
+    private long successfulTimeMs;
+
+    @Column(name = "max_time_ms", nullable = false)
+    private long maxTimeMs;
+
+    // Tempo minimo e massimo delle sole riuscite; il minimo resta null finché non ce n'è una.
+    // I default servono allo schema aggiornato (profilo persistent) sulle righe già presenti
+    @Column(name = "successful_min_time_ms")
+    private Long successfulMinTimeMs;
+
+    @ColumnDefault("0")
+    @Column(name = "successful_max_time_ms", nullable = false)
+    private long successfulMaxTimeMs;
+
+    // Somme sulle riuscite con le statistiche del job BigQuery: tempo server e client, byte, cache hit
+    @ColumnDefault("0")
+    @Column(name = "job_stats_queries", nullable = false)
+    private long jobStatsQueries;
+
+    @ColumnDefault("0")
+    @Column(name = "server_time_ms", nullable = false)
+    private long serverTimeMs;
+
+    @ColumnDefault("0")
+    @Column(name = "client_time_ms", nullable = false)
+    private long clientTimeMs;
+
+    @ColumnDefault("0")
+    @Column(name = "bytes_processed", nullable = false)
+    private long bytesProcessed;
+
+    @ColumnDefault("0")
+    @Column(name = "bytes_billed", nullable = false)
+    private long bytesBilled;
+
+    @ColumnDefault("0")
+    @Column(name = "bigquery_cache_hits", nullable = false)
+    private long bigQueryCacheHits;
+
+    protected QueryHistoryRollup() {
+    }
+
+    public Chiave getId() {
+        return id;
+    }
+
+    public long getTotalQueries() {
+        return totalQueries;
+    }
+
+    public long getSuccessfulQueries() {
+        return successfulQueries;
+    }
+
+    public long getCancelledQueries() {
+        return cancelledQueries;
+    }
+
+    public long getTotalTimeMs() {
+        return totalTimeMs;
+    }
+
+    public long getSuccessfulTimeMs() {
+        return successfulTimeMs;
+    }
+
+    public long getMaxTimeMs() {
+        return maxTimeMs;
+    }
+
+    public Long getSuccessfulMinTimeMs() {
+        return successfulMinTimeMs;
+    }
+
+    public long getSuccessfulMaxTimeMs() {
+        return successfulMaxTimeMs;
+    }
+
+    public long getJobStatsQueries() {
+        return jobStatsQueries;
+    }
+
+    public long getServerTimeMs() {
+        return serverTimeMs;
+    }
+
+    public long getClientTimeMs() {
+        return clientTimeMs;
+    }
+
+    public long getBytesProcessed() {
+        return bytesProcessed;
+    }
+
+    public long getBytesBilled() {
+        return bytesBilled;
+    }
+
+    public long getBigQueryCacheHits() {
+        return bigQueryCacheHits;
+    }
+
+    @Embeddable
+    public static class Chiave implements Serializable {
+
+        // Inizio dell'ora
+        @Column(name = "bucket_start", nullable = false)
+        private LocalDateTime bucketStart;
+
+        @Column(name = "user_ip", nullable = false)
+        private String userIp;
+
+        protected Chiave() {
+        }
+
+        public Chiave(LocalDateTime bucketStart, String userIp) {
+            this.bucketStart = bucketStart;
+            this.userIp = userIp;
+        }
+
+        public LocalDateTime getBucketStart() {
+            return bucketStart;
+        }
+
+        public String getUserIp() {
+            return userIp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Chiave)) {
+                return false;
+            }
+            Chiave chiave = (Chiave) o;
+            return Objects.equals(bucketStart, chiave.bucketStart) && Objects.equals(userIp, chiave.userIp);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(bucketStart, userIp);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.example.repository;
+
+import com.example.entity.QueryFingerprintRollup;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface QueryFingerprintRollupRepository extends JpaRepository<QueryFingerprintRollup, Long> {
+
+    // Impronte più frequenti: impronta, testo normalizzato, esecuzioni riuscite (usa l'indice sulle esecuzioni)
+    @Query("SELECT f.fingerprint, f.normalizedQuery, f.successfulQueries FROM QueryFingerprintRollup f " +
+           "ORDER BY f.successfulQueries DESC")
+    List<Object[]> findPiuFrequenti(Pageable pageable);
+}
@@ -1,32 +1,63 @@
 package com.example.repository;
 
 import com.example.entity.QueryHistory;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 @Repository
 public interface QueryHistoryRepository extends JpaRepository<QueryHistory, Long> {
     
-    // Trova le query eseguite da un IP specifico
-    List<QueryHistory> findByUserIpOrderByCreatedAtDesc(String userIp);
+    // Paginazione per chiave (created_at, id) dalla più recente: la pagina successiva riparte dall'ultima
+    // riga letta invece di saltare le precedenti. La prima condizione permette di usare gli indici su created_at
+    String DOPO_CURSORE = "q.createdAt <= :createdAt AND (q.createdAt < :createdAt OR q.id < :id)";
+    String DALLA_PIU_RECENTE = " ORDER BY q.createdAt DESC, q.id DESC";
     
-    // Trova le query eseguite in un periodo di tempo
-    List<QueryHistory> findByCreatedAtBetweenOrderByCreatedAtDesc(LocalDateTime start, LocalDateTime end);
+    @Query("SELECT q FROM QueryHistory q WHERE " + DOPO_CURSORE + DALLA_PIU_RECENTE)
+    Slice<QueryHistory> findPaginaDopo(@Param("createdAt") LocalDateTime createdAt, @Param("id") Long id, Pageable pageable);
     
-    // Trova le query che contengono una stringa specifica
-    @Query("SELECT q FROM QueryHistory q WHERE q.sqlQuery LIKE %:searchTerm% ORDER BY q.createdAt DESC")
-    List<QueryHistory> findBySqlQueryContaining(@Param("searchTerm") String searchTerm);
+    // Query eseguite da un IP specifico
+    @Query("SELECT q FROM QueryHistory q WHERE q.userIp = :userIp AND " + DOPO_CURSORE + DALLA_PIU_RECENTE)
+    Slice<QueryHistory> findPaginaPerIpDopo(@Param("userIp") String userIp, @Param("createdAt") LocalDateTime createdAt,
+                                            @Param("id") Long id, Pageable pageable);
     
-    // Trova le query di successo
-    List<QueryHistory> findBySuccessTrueOrderByCreatedAtDesc();
+    // Query eseguite in un periodo di tempo
+    @Query("SELECT q FROM QueryHistory q WHERE q.createdAt BETWEEN :inizio AND :fine AND " + DOPO_CURSORE + DALLA_PIU_RECENTE)
+    Slice<QueryHistory> findPaginaPerPeriodoDopo(@Param("inizio") LocalDateTime inizio, @Param("fine") LocalDateTime fine,
+                                                 @Param("createdAt") LocalDateTime createdAt, @Param("id") Long id,
+                                                 Pageable pageable);
     
-    // Trova le query fallite
-    List<QueryHistory> findBySuccessFalseOrderByCreatedAtDesc();
+    // Query di successo
+    @Query("SELECT q FROM QueryHistory q WHERE q.success = true AND " + DOPO_CURSORE + DALLA_PIU_RECENTE)
+    Slice<QueryHistory> findPaginaRiusciteDopo(@Param("createdAt") LocalDateTime createdAt, @Param("id") Long id, Pageable pageable);
+    
+    // Query fallite per errore, escluse quelle annullate
+    @Query("SELECT q FROM QueryHistory q WHERE q.success = false AND q.cancelled = false AND " + DOPO_CURSORE + DALLA_PIU_RECENTE)
+    Slice<QueryHistory> findPaginaFalliteDopo(@Param("createdAt") LocalDateTime createdAt, @Param("id") Long id, Pageable pageable);
+    
+    // Query annullate (timeout o disconnessione del client)
+    @Query("SELECT q FROM QueryHistory q WHERE q.cancelled = true AND " + DOPO_CURSORE + DALLA_PIU_RECENTE)
+    Slice<QueryHistory> findPaginaAnnullateDopo(@Param("createdAt") LocalDateTime createdAt, @Param("id") Long id, Pageable pageable);
+    
+    // Export della cronologia di un periodo, dalla più vecchia: le righe arrivano dal database a blocchi
+    // di fetch size e vanno staccate dal contesto di persistenza dopo l'uso
+    @QueryHints({
+        @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"),
+        @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+    })
+    @Query("SELECT q FROM QueryHistory q WHERE q.createdAt BETWEEN :inizio AND :fine ORDER BY q.createdAt, q.id")
+    Stream<QueryHistory> streamPerPeriodo(@Param("inizio") LocalDateTime inizio, @Param("fine") LocalDateTime fine);
     
     // Statistiche delle query per IP
     @Query("SELECT q.userIp, COUNT(q) as totalQueries, " +
@@ -35,18 +66,45 @@ public interface QueryHistoryRepository extends JpaRepository<QueryHistory, Long
            "FROM QueryHistory q " +
            "GROUP BY q.userIp " +
            "ORDER BY totalQueries DESC")
-    List<Object[]> getQueryStatisticsByIp();
+    List<Object[]> getQueryStatisticsByIp(Pageable pageable);
+    
+    // Query più lente (usa l'indice su execution_time_ms)
+    Slice<QueryHistory> findBySuccessTrueOrderByExecutionTimeMsDesc(Pageable pageable);
+    
+    // Impronte più lente per tempo massimo: impronta, testo normalizzato, esecuzioni, tempo medio, tempo massimo
+    @Query("SELECT q.fingerprint, MIN(q.normalizedQuery), COUNT(q), AVG(q.executionTimeMs), MAX(q.executionTimeMs) as maxTime " +
+           "FROM QueryHistory q " +
+           "WHERE q.success = true AND q.fingerprint IS NOT NULL AND q.executionTimeMs IS NOT NULL " +
+           "GROUP BY q.fingerprint " +
+           "ORDER BY maxTime DESC")
+    List<Object[]> findSlowestFingerprints(Pageable pageable);
     
-    // Query più lente
-    @Query("SELECT q FROM QueryHistory q WHERE q.success = true ORDER BY q.executionTimeMs DESC")
-    List<QueryHistory> findSlowestQueries();
+    // Impronte delle esecuzioni riuscite, dalla più lenta (usa l'indice su execution_time_ms)
+    @Query("SELECT q.fingerprint FROM QueryHistory q " +
+           "WHERE q.success = true AND q.fingerprint IS NOT NULL AND q.executionTimeMs IS NOT NULL " +
+           "ORDER BY q.executionTimeMs DESC")
+    List<Long> findImpronteDallaPiuLenta(Pageable pageable);
     
-    // Query più frequenti
-    @Query("SELECT q.sqlQuery, COUNT(q) as frequency " +
+    // Come findSlowestFingerprints, ristretta alle impronte indicate (usa l'indice su fingerprint)
+    @Query("SELECT q.fingerprint, MIN(q.normalizedQuery), COUNT(q), AVG(q.executionTimeMs), MAX(q.executionTimeMs) as maxTime " +
            "FROM QueryHistory q " +
-           "WHERE q.success = true " +
-           "GROUP BY q.sqlQuery " +
-           "ORDER BY frequency DESC")
-    List<Object[]> findMostFrequentQueries();
+           "WHERE q.fingerprint IN :impronte AND q.success = true AND q.executionTimeMs IS NOT NULL " +
+           "GROUP BY q.fingerprint " +
+           "ORDER BY maxTime DESC")
+    List<Object[]> findStatisticheImpronte(@Param("impronte") Collection<Long> impronte);
+    
+    // Fallimenti recenti, senza caricare le righe
+    long countBySuccessFalseAndCancelledFalseAndCreatedAtAfter(LocalDateTime data);
+    
+    // Id e testo delle righe più vecchie del limite, dalla più vecchia (usa l'indice su created_at)
+    @Query("SELECT q.id, q.sqlQuery FROM QueryHistory q WHERE q.createdAt < :limite ORDER BY q.createdAt")
+    List<Object[]> findIdETestoCreatiPrima(@Param("limite") LocalDateTime limite, Pageable pageable);
+    
+    // Righe non ancora conteggiate negli aggregati
+    @Query("SELECT q FROM QueryHistory q WHERE q.id IN :ids AND (q.rolledUp = false OR q.rolledUp IS NULL)")
+    List<QueryHistory> findNonAggregate(@Param("ids") Collection<Long> ids);
+    
+    // Id e testo delle righe successive all'id indicato, per costruire l'indice di ricerca
+    @Query("SELECT q.id, q.sqlQuery FROM QueryHistory q WHERE q.id > :dopo ORDER BY q.id")
+    List<Object[]> findTestiDopo(@Param("dopo") Long dopo, Pageable pageable);
 }
-
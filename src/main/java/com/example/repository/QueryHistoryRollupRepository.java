@@ -0,0 +1,58 @@
+package com.example.repository;
+
+import com.example.entity.QueryHistoryRollup;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface QueryHistoryRollupRepository extends JpaRepository<QueryHistoryRollup, QueryHistoryRollup.Chiave> {
+
+    // Query concluse con successo, dagli aggregati
+    @Query("SELECT COALESCE(SUM(r.successfulQueries), 0) FROM QueryHistoryRollup r")
+    long countRiuscite();
+
+    // Query concluse, riuscite e annullate, dagli aggregati: restano esatte anche dopo la compattazione
+    @Query("SELECT COALESCE(SUM(r.totalQueries), 0), COALESCE(SUM(r.successfulQueries), 0), " +
+           "COALESCE(SUM(r.cancelledQueries), 0) FROM QueryHistoryRollup r")
+    List<Object[]> getTotali();
+
+    // Dalle riuscite: esecuzioni, tempo totale, minimo e massimo; poi per quelle con le statistiche del job
+    // il loro numero, tempo server e client totali, byte elaborati e fatturati, cache hit di BigQuery
+    @Query("SELECT COALESCE(SUM(r.successfulQueries), 0), COALESCE(SUM(r.successfulTimeMs), 0), " +
+           "MIN(r.successfulMinTimeMs), MAX(r.successfulMaxTimeMs), COALESCE(SUM(r.jobStatsQueries), 0), " +
+           "COALESCE(SUM(r.serverTimeMs), 0), COALESCE(SUM(r.clientTimeMs), 0), COALESCE(SUM(r.bytesProcessed), 0), " +
+           "COALESCE(SUM(r.bytesBilled), 0), COALESCE(SUM(r.bigQueryCacheHits), 0) FROM QueryHistoryRollup r")
+    List<Object[]> getStatisticheTempi();
+
+    // Aggregati per ora nel periodo (tutti gli IP uniti): ora, totali, riuscite, tempo delle riuscite
+    @Query("SELECT r.id.bucketStart, SUM(r.totalQueries), SUM(r.successfulQueries), SUM(r.successfulTimeMs) " +
+           "FROM QueryHistoryRollup r " +
+           "WHERE r.id.bucketStart BETWEEN :inizio AND :fine " +
+           "GROUP BY r.id.bucketStart " +
+           "ORDER BY r.id.bucketStart")
+    List<Object[]> getAggregatiPerOra(@Param("inizio") LocalDateTime inizio, @Param("fine") LocalDateTime fine);
+
+    // Aggregati per IP: IP, totali, riuscite, tempo totale
+    @Query("SELECT r.id.userIp, SUM(r.totalQueries) as totalQueries, SUM(r.successfulQueries), SUM(r.totalTimeMs) " +
+           "FROM QueryHistoryRollup r " +
+           "GROUP BY r.id.userIp " +
+           "ORDER BY totalQueries DESC")
+    List<Object[]> getAggregatiPerIp();
+
+    // Numero di query per ora del giorno (0-23)
+    @Query("SELECT EXTRACT(HOUR FROM r.id.bucketStart), SUM(r.totalQueries) " +
+           "FROM QueryHistoryRollup r " +
+           "GROUP BY EXTRACT(HOUR FROM r.id.bucketStart)")
+    List<Object[]> countByOra();
+
+    // Numero di query per giorno della settimana (1 = domenica, 7 = sabato)
+    @Query("SELECT EXTRACT(DAY OF WEEK FROM r.id.bucketStart), SUM(r.totalQueries) " +
+           "FROM QueryHistoryRollup r " +
+           "GROUP BY EXTRACT(DAY OF WEEK FROM r.id.bucketStart)")
+    List<Object[]> countByGiornoSettimana();
+}
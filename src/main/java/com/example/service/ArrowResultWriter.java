@@ -0,0 +1,181 @@
+package com.example.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.bigquery.TableResult;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.DateDayVector;
+import org.apache.arrow.vector.DecimalVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.TimeStampMicroTZVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.types.DateUnit;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.TimeUnit;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.RoundingMode;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Scrive i risultati nel formato Arrow IPC (stream), leggibile direttamente da pandas/pyarrow e Spark.
+ * Ogni pagina BigQuery diventa uno o più record batch: in memoria resta solo il batch corrente.
+ *
+ * INT64, FLOAT64, BOOL, TIMESTAMP, DATE e NUMERIC vengono mappati sui tipi Arrow corrispondenti;
+ * gli altri tipi (compresi RECORD e REPEATED, serializzati in JSON) diventano stringhe UTF-8.
+ */
+public class ArrowResultWriter {
+
+    public static final String CONTENT_TYPE = "application/vnd.apache.arrow.stream";
+
+    static final int RIGHE_MASSIME_PER_BATCH = 65_536;
+
+    private enum Tipo { LONG, DOUBLE, BOOLEAN, TIMESTAMP, DATE, DECIMAL, STRING }
+
+    private final FieldList campi;
+    private final Tipo[] tipi;
+    private final boolean[] testuale;
+    private final RowDecoder decoder;
+    private final ObjectMapper objectMapper;
+
+    public ArrowResultWriter(com.google.cloud.bigquery.Schema schema, ObjectMapper objectMapper) {
+        this.campi = schema.getFields();
+        this.tipi = new Tipo[campi.size()];
+        this.testuale = new boolean[campi.size()];
+        this.decoder = RowDecoder.of(schema);
+        this.objectMapper = objectMapper;
+        for (int i = 0; i < campi.size(); i++) {
+            Field field = campi.get(i);
+            tipi[i] = tipo(field);
+            testuale[i] = field.getMode() != Field.Mode.REPEATED
+                    && field.getType() != null
+                    && field.getType().getStandardType() != StandardSQLTypeName.STRUCT;
+        }
+    }
+
+    public void write(TableResult result, OutputStream out) throws IOException {
+        write(result, out, pagina -> pagina.hasNextPage() ? pagina.getNextPage() : null);
+    }
+
+    /**
+     * @param paginaSuccessiva legge la pagina dopo quella indicata, null se era l'ultima
+     */
+    public void write(TableResult result, OutputStream out, UnaryOperator<TableResult> paginaSuccessiva) throws IOException {
+        try (BufferAllocator allocator = new RootAllocator();
+             VectorSchemaRoot root = VectorSchemaRoot.create(schemaArrow(), allocator);
+             ArrowStreamWriter writer = new ArrowStreamWriter(root, null, Channels.newChannel(out))) {
+
+            writer.start();
+            for (TableResult pagina = result; pagina != null; pagina = paginaSuccessiva.apply(pagina)) {
+                root.allocateNew();
+                int riga = 0;
+                for (FieldValueList row : pagina.getValues()) {
+                    for (int i = 0; i < tipi.length; i++) {
+                        imposta(root.getVector(i), i, riga, row.get(i));
+                    }
+                    if (++riga == RIGHE_MASSIME_PER_BATCH) {
+                        root.setRowCount(riga);
+                        writer.writeBatch();
+                        root.allocateNew();
+                        riga = 0;
+                    }
+                }
+                if (riga > 0) {
+                    root.setRowCount(riga);
+                    writer.writeBatch();
+                }
+                // Invia al client ogni pagina appena disponibile
+                out.flush();
+            }
+            writer.end();
+        }
+    }
+
+    Schema schemaArrow() {
+        List<org.apache.arrow.vector.types.pojo.Field> campiArrow = new ArrayList<>();
+        for (int i = 0; i < campi.size(); i++) {
+            campiArrow.add(new org.apache.arrow.vector.types.pojo.Field(
+                    campi.get(i).getName(), FieldType.nullable(tipoArrow(tipi[i])), null));
+        }
+        return new Schema(campiArrow);
+    }
+
+    private void imposta(FieldVector vector, int colonna, int riga, FieldValue value) throws IOException {
+        if (value == null || value.isNull()) {
+            // Il bit di validità resta a zero: il valore è null
+            return;
+        }
+        switch (tipi[colonna]) {
+            case LONG:
+                ((BigIntVector) vector).setSafe(riga, value.getLongValue());
+                break;
+            case DOUBLE:
+                ((Float8Vector) vector).setSafe(riga, value.getDoubleValue());
+                break;
+            case BOOLEAN:
+                ((BitVector) vector).setSafe(riga, value.getBooleanValue() ? 1 : 0);
+                break;
+            case TIMESTAMP:
+                ((TimeStampMicroTZVector) vector).setSafe(riga, value.getTimestampValue());
+                break;
+            case DATE:
+                ((DateDayVector) vector).setSafe(riga, (int) LocalDate.parse(value.getStringValue()).toEpochDay());
+                break;
+            case DECIMAL:
+                ((DecimalVector) vector).setSafe(riga, value.getNumericValue().setScale(9, RoundingMode.HALF_UP));
+                break;
+            default:
+                String testo = testuale[colonna]
+                        ? value.getStringValue()
+                        : objectMapper.writeValueAsString(decoder.converti(colonna, value));
+                ((VarCharVector) vector).setSafe(riga, testo.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static Tipo tipo(Field field) {
+        if (field.getMode() == Field.Mode.REPEATED || field.getType() == null) {
+            return Tipo.STRING;
+        }
+        switch (field.getType().getStandardType()) {
+            case INT64: return Tipo.LONG;
+            case FLOAT64: return Tipo.DOUBLE;
+            case BOOL: return Tipo.BOOLEAN;
+            case TIMESTAMP: return Tipo.TIMESTAMP;
+            case DATE: return Tipo.DATE;
+            // BIGNUMERIC supera la precisione di Decimal128 e resta testuale
+            case NUMERIC: return Tipo.DECIMAL;
+            default: return Tipo.STRING;
+        }
+    }
+
+    private static ArrowType tipoArrow(Tipo tipo) {
+        switch (tipo) {
+            case LONG: return new ArrowType.Int(64, true);
+            case DOUBLE: return new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+            case BOOLEAN: return ArrowType.Bool.INSTANCE;
+            case TIMESTAMP: return new ArrowType.Timestamp(TimeUnit.MICROSECOND, "UTC");
+            case DATE: return new ArrowType.Date(DateUnit.DAY);
+            case DECIMAL: return new ArrowType.Decimal(38, 9, 128);
+            default: return ArrowType.Utf8.INSTANCE;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.example.service;
+
+import com.google.cloud.bigquery.BigQueryException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Retry e circuit breaker attorno alle chiamate a BigQuery.
+ * Gli errori transitori (backendError, 5xx, errori di rete) e i limiti di frequenza (rateLimitExceeded)
+ * vengono ritentati con backoff esponenziale e jitter; gli altri errori vengono propagati subito.
+ * Se nelle ultime chiamate gli errori transitori superano la soglia il circuito si apre e le richieste
+ * falliscono immediatamente; trascorsa la pausa, alcune chiamate di prova decidono se richiuderlo.
+ */
+@Service
+public class BigQueryResilience {
+
+    public enum Classe { TRANSITORIO, LIMITE, PERMANENTE }
+
+    public enum StatoCircuito { CHIUSO, SEMI_APERTO, APERTO }
+
+    private static final Set<String> MOTIVI_TRANSITORI = Set.of("backendError", "internalError");
+    private static final Set<String> MOTIVI_LIMITE = Set.of("rateLimitExceeded", "jobRateLimitExceeded");
+
+    @Value("${bigquery.resilience.max-attempts:4}")
+    private int maxTentativi;
+
+    @Value("${bigquery.resilience.base-delay-ms:200}")
+    private long attesaBaseMs;
+
+    @Value("${bigquery.resilience.rate-limit-base-delay-ms:1000}")
+    private long attesaBaseLimiteMs;
+
+    @Value("${bigquery.resilience.max-delay-ms:8000}")
+    private long attesaMassimaMs;
+
+    // Tempo complessivo di attesa tra i tentativi di una stessa chiamata, che occupa il thread chiamante
+    @Value("${bigquery.resilience.max-total-delay-ms:3000}")
+    private long attesaTotaleMassimaMs;
+
+    @Value("${bigquery.resilience.circuit.window:20}")
+    private int finestra;
+
+    @Value("${bigquery.resilience.circuit.min-calls:10}")
+    private int chiamateMinime;
+
+    @Value("${bigquery.resilience.circuit.failure-rate:0.5}")
+    private double sogliaErrori;
+
+    @Value("${bigquery.resilience.circuit.open-ms:30000}")
+    private long aperturaMs;
+
+    @Value("${bigquery.resilience.circuit.half-open-calls:3}")
+    private int chiamateProva;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Stato protetto dal monitor di this: esiti delle ultime chiamate in un buffer circolare
+    private boolean[] fallite;
+    private int posizione;
+    private int registrate;
+    private int errori;
+    private StatoCircuito stato = StatoCircuito.CHIUSO;
+    private long apertoFinoA;
+    private int proveInCorso;
+    private int proveRiuscite;
+
+    @PostConstruct
+    public void inizializza() {
+        fallite = new boolean[finestra];
+        Gauge.builder("bigquery.resilience.circuit.state", this, r -> r.getStato().ordinal()).register(meterRegistry);
+    }
+
+    /**
+     * Esegue la chiamata ritentando gli errori transitori fino al numero massimo di tentativi configurato,
+     * senza superare complessivamente bigquery.resilience.max-total-delay-ms di attesa.
+     *
+     * @throws CircuitoApertoException se il circuito è aperto
+     */
+    public <T> T esegui(String operazione, Supplier<T> chiamata) {
+        return esegui(operazione, chiamata, maxTentativi);
+    }
+
+    public <T> T esegui(String operazione, Supplier<T> chiamata, int tentativi) {
+        long attesaResiduaMs = attesaTotaleMassimaMs;
+        for (int tentativo = 1; ; tentativo++) {
+            boolean prova = autorizza(operazione);
+            T risultato;
+            try {
+                risultato = chiamata.get();
+            } catch (RuntimeException e) {
+                Classe classe = classifica(e);
+                registra(prova, classe);
+                if (classe == Classe.PERMANENTE) {
+                    conta(operazione, "errore");
+                    throw e;
+                }
+                long attesa = attesa(tentativo, classe);
+                if (tentativo >= tentativi || attesa > attesaResiduaMs) {
+                    conta(operazione, "esaurito");
+                    throw e;
+                }
+                attesaResiduaMs -= attesa;
+                Counter.builder("bigquery.resilience.retries")
+                        .tag("operation", operazione)
+                        .tag("class", classe.name().toLowerCase())
+                        .register(meterRegistry)
+                        .increment();
+                if (!attendi(attesa)) {
+                    throw e;
+                }
+                continue;
+            }
+            registra(prova, null);
+            conta(operazione, tentativo == 1 ? "successo" : "successo_dopo_retry");
+            return risultato;
+        }
+    }
+
+    /**
+     * Classifica l'errore: solo TRANSITORIO e LIMITE vengono ritentati.
+     */
+    public static Classe classifica(Throwable e) {
+        if (!(e instanceof BigQueryException)) {
+            return Classe.PERMANENTE;
+        }
+        BigQueryException bq = (BigQueryException) e;
+        if (bq.getCode() == 429 || MOTIVI_LIMITE.contains(bq.getReason())) {
+            return Classe.LIMITE;
+        }
+        if (MOTIVI_TRANSITORI.contains(bq.getReason())
+                || bq.getCode() == 500 || bq.getCode() == 502 || bq.getCode() == 503 || bq.getCode() == 504
+                || bq.getCause() instanceof IOException) {
+            return Classe.TRANSITORIO;
+        }
+        return Classe.PERMANENTE;
+    }
+
+    public static boolean isRitentabile(Throwable e) {
+        return e instanceof CircuitoApertoException || classifica(e) != Classe.PERMANENTE;
+    }
+
+    public synchronized StatoCircuito getStato() {
+        if (stato == StatoCircuito.APERTO && System.nanoTime() - apertoFinoA >= 0) {
+            return StatoCircuito.SEMI_APERTO;
+        }
+        return stato;
+    }
+
+    /**
+     * Attesa prima del tentativo successivo: backoff esponenziale con jitter completo,
+     * più lungo per i limiti di frequenza.
+     */
+    long attesa(int tentativo, Classe classe) {
+        long base = classe == Classe.LIMITE ? attesaBaseLimiteMs : attesaBaseMs;
+        long limite = Math.min(attesaMassimaMs, base << Math.min(tentativo - 1, 20));
+        return ThreadLocalRandom.current().nextLong(limite + 1);
+    }
+
+    /**
+     * Ammette la chiamata in base allo stato del circuito.
+     *
+     * @return true se la chiamata è una prova del circuito semi-aperto
+     */
+    private synchronized boolean autorizza(String operazione) {
+        long adesso = System.nanoTime();
+        if (stato == StatoCircuito.APERTO && adesso - apertoFinoA >= 0) {
+            cambiaStato(StatoCircuito.SEMI_APERTO);
+        }
+        if (stato == StatoCircuito.CHIUSO) {
+            return false;
+        }
+        if (stato == StatoCircuito.SEMI_APERTO && proveInCorso + proveRiuscite < chiamateProva) {
+            proveInCorso++;
+            return true;
+        }
+        conta(operazione, "rifiutata");
+        long residuoMs = stato == StatoCircuito.APERTO ? TimeUnit.NANOSECONDS.toMillis(apertoFinoA - adesso) : 0;
+        throw new CircuitoApertoException("BigQuery temporaneamente non disponibile, riprova più tardi",
+                Math.max(1, (residuoMs + 999) / 1000));
+    }
+
+    /**
+     * Registra l'esito di una chiamata.
+     *
+     * @param errore classe dell'errore, null se la chiamata è riuscita
+     */
+    private synchronized void registra(boolean prova, Classe errore) {
+        boolean fallita = errore == Classe.TRANSITORIO;
+        if (prova) {
+            proveInCorso--;
+            if (stato != StatoCircuito.SEMI_APERTO) {
+                return;
+            }
+            if (fallita) {
+                apri();
+            } else if (errore != null) {
+                // Un limite di frequenza non dice se BigQuery si è ripreso: la prova non conta come riuscita
+                return;
+            } else if (++proveRiuscite >= chiamateProva) {
+                azzeraFinestra();
+                cambiaStato(StatoCircuito.CHIUSO);
+            }
+            return;
+        }
+        if (stato != StatoCircuito.CHIUSO) {
+            // Chiamate avviate prima dell'apertura: non influenzano le prove
+            return;
+        }
+        if (registrate == finestra) {
+            if (fallite[posizione]) {
+                errori--;
+            }
+        } else {
+            registrate++;
+        }
+        fallite[posizione] = fallita;
+        if (fallita) {
+            errori++;
+        }
+        posizione = (posizione + 1) % finestra;
+        if (registrate >= chiamateMinime && errori >= sogliaErrori * registrate) {
+            apri();
+        }
+    }
+
+    private void apri() {
+        apertoFinoA = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(aperturaMs);
+        proveRiuscite = 0;
+        azzeraFinestra();
+        cambiaStato(StatoCircuito.APERTO);
+    }
+
+    private void azzeraFinestra() {
+        posizione = 0;
+        registrate = 0;
+        errori = 0;
+        Arrays.fill(fallite, false);
+    }
+
+    private void cambiaStato(StatoCircuito nuovo) {
+        if (stato != nuovo) {
+            stato = nuovo;
+            Counter.builder("bigquery.resilience.circuit.transitions")
+                    .tag("state", nuovo.name().toLowerCase())
+                    .register(meterRegistry)
+                    .increment();
+        }
+    }
+
+    private void conta(String operazione, String esito) {
+        Counter.builder("bigquery.resilience.calls")
+                .tag("operation", operazione)
+                .tag("outcome", esito)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    private static boolean attendi(long millisecondi) {
+        try {
+            Thread.sleep(millisecondi);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public static class CircuitoApertoException extends RuntimeException {
+        private final long retryAfterSecondi;
+
+        public CircuitoApertoException(String messaggio, long retryAfterSecondi) {
+            super(messaggio);
+            this.retryAfterSecondi = retryAfterSecondi;
+        }
+
+        public long getRetryAfterSecondi() { return retryAfterSecondi; }
+    }
+}
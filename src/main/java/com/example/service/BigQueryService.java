@@ -3,15 +3,30 @@ package com.example.service;
 import com.google.cloud.bigquery.*;
 import com.example.dto.StructuredQueryRequest;
 import com.example.entity.QueryHistory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -20,138 +35,754 @@ import org.springframework.stereotype.Service;
 @Service
 public class BigQueryService {
 
-    private final BigQuery bigQuery;
-    
-    @Value("${bigquery.location:US}")
-    private String jobLocation;
+    private final QueryJobService queryJobService;
     
     @Autowired
     private QueryHistoryService queryHistoryService;
 
-    public BigQueryService(BigQuery bigQuery) {
-        this.bigQuery = bigQuery;
-    }
+    @Autowired
+    private ObjectMapper objectMapper;
 
-    public TableResult runQuery(String sql) throws InterruptedException {
-        QueryJobConfiguration queryConfig = QueryJobConfiguration.newBuilder(sql).build();
-        JobId jobId = JobId.newBuilder().setLocation(jobLocation).build();
-        Job queryJob = bigQuery.create(JobInfo.newBuilder(queryConfig).setJobId(jobId).build());
+    @Autowired
+    private QueryResultCache queryResultCache;
+
+    @Autowired
+    private QueryCostService queryCostService;
+
+    @Autowired
+    private BigQueryResilience bigQueryResilience;
+
+    @Autowired
+    private QueryMetrics queryMetrics;
+
+    @Value("${bigquery.export.ndjson.flush-rows:1000}")
+    private int righePerFlushNdjson;
+
+    @Value("${bigquery.pagination.default-page-size:100}")
+    private long dimensionePaginaPredefinita;
 
-        // Attendi che la query finisca
-        queryJob = queryJob.waitFor();
+    @Value("${bigquery.pagination.max-page-size:10000}")
+    private long dimensionePaginaMassima;
 
-        if (queryJob == null) {
-            throw new RuntimeException("La query è stata interrotta");
+    // Chiave HMAC dei cursori; se vuota ne viene generata una casuale all'avvio
+    @Value("${bigquery.pagination.cursor-key:}")
+    private String chiaveCursoreConfigurata;
+
+    @Value("${bigquery.jobs.result-threads:8}")
+    private int threadRisultati;
+
+    // Query in esecuzione, condivise tra le richieste identiche concorrenti
+    private final Map<QueryResultCache.Chiave, QueryCondivisa> queryInCorso = new ConcurrentHashMap<>();
+
+    // Legge la prima pagina dei risultati quando il job termina, senza occupare i thread di polling
+    private ExecutorService esecutoreRisultati;
+    private byte[] chiaveCursore;
+
+    public BigQueryService(QueryJobService queryJobService) {
+        this.queryJobService = queryJobService;
+    }
+
+    @PostConstruct
+    public void avvia() {
+        if (chiaveCursoreConfigurata != null && !chiaveCursoreConfigurata.isEmpty()) {
+            chiaveCursore = chiaveCursoreConfigurata.getBytes(StandardCharsets.UTF_8);
         } else {
-            JobStatus status = queryJob.getStatus();
-            if (status != null && status.getError() != null) {
-                throw new RuntimeException(status.getError().toString());
-            }
+            chiaveCursore = new byte[32];
+            new SecureRandom().nextBytes(chiaveCursore);
         }
+        AtomicInteger contatore = new AtomicInteger();
+        esecutoreRisultati = Executors.newFixedThreadPool(threadRisultati, r -> {
+            Thread t = new Thread(r, "bq-results-" + contatore.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void arresta() {
+        esecutoreRisultati.shutdownNow();
+    }
 
-        return queryJob.getQueryResults();
+    public TableResult runQuery(String sql) throws InterruptedException {
+        return runQuery(sql, null, true);
     }
 
     public TableResult runQuery(String sql, Map<String, QueryParameterValue> namedParameters) throws InterruptedException {
-        QueryJobConfiguration.Builder builder = QueryJobConfiguration.newBuilder(sql);
-        if (namedParameters != null && !namedParameters.isEmpty()) {
-            builder.setNamedParameters(namedParameters);
-        }
-        JobId jobId = JobId.newBuilder().setLocation(jobLocation).build();
-        Job queryJob = bigQuery.create(JobInfo.newBuilder(builder.build()).setJobId(jobId).build());
+        return runQuery(sql, namedParameters, true);
+    }
 
-        queryJob = queryJob.waitFor();
+    public TableResult runQuery(String sql, Map<String, QueryParameterValue> namedParameters, boolean usaCache) throws InterruptedException {
+        return runQuery(sql, namedParameters, usaCache, null);
+    }
 
-        if (queryJob == null) {
-            throw new RuntimeException("La query è stata interrotta");
-        } else {
-            JobStatus status = queryJob.getStatus();
-            if (status != null && status.getError() != null) {
-                throw new RuntimeException(status.getError().toString());
-            }
+    /**
+     * Esegue la query senza registrarla nella cronologia. Con l'IP del client i byte stimati
+     * vengono addebitati al suo budget; senza IP (query interne) si applica solo il limite per richiesta.
+     */
+    public TableResult runQuery(String sql, Map<String, QueryParameterValue> namedParameters, boolean usaCache,
+                                String userIp) throws InterruptedException {
+        return attendi(runQueryAsync(sql, namedParameters, usaCache, userIp, null));
+    }
+
+    /**
+     * Avvia la query senza attenderne il completamento.
+     * Il future restituito appartiene al chiamante: completarlo con {@link QueryJobService.QueryAnnullataException}
+     * (timeout della richiesta, client disconnesso) annulla il job, se nessun'altra richiesta ne attende il risultato.
+     */
+    public CompletableFuture<TableResult> runQueryAsync(String sql, Map<String, QueryParameterValue> namedParameters,
+                                                        boolean usaCache, String userIp, Long timeoutMs) {
+        Timer.Sample esecuzione = queryMetrics.avvia();
+        QueryResultCache.Chiave chiave = usaCache ? queryResultCache.chiave(sql, namedParameters) : null;
+        ColumnarResult inCache = queryResultCache.get(chiave);
+        if (inCache != null) {
+            queryMetrics.registra(esecuzione, QueryMetrics.ESECUZIONE, "cache", "hit", "outcome", QueryMetrics.SUCCESSO);
+            return CompletableFuture.completedFuture(inCache.toTableResult());
         }
 
-        return queryJob.getQueryResults();
+        // La query viene eseguita una sola volta anche se arrivano richieste identiche mentre è in corso
+        return eseguiCondivisa(
+            QueryResultCache.Chiave.of(sql, namedParameters),
+            chiave,
+            risultato -> {
+                // Controlla i byte stimati prima di creare il job reale
+                QueryCostService.Stima stima = queryCostService.verificaEPrenota(sql, namedParameters, userIp);
+                try {
+                    return queryJobService.submit(creaConfigurazione(sql, namedParameters), userIp, timeoutMs);
+                } catch (RuntimeException e) {
+                    queryCostService.rimborsa(stima);
+                    throw e;
+                }
+            },
+            (inCorso, condivisa) -> inCorso,
+            esecuzione
+        );
     }
     
     public TableResult runQueryWithHistory(String sql, String userIp) throws InterruptedException {
-        long startTime = System.currentTimeMillis();
-        QueryHistory queryHistory = null;
-        
-        try {
-            // Salva la query nella cronologia
-            queryHistory = queryHistoryService.salvaQuery(sql, userIp);
-            
-            // Esegui la query
-            TableResult result = runQuery(sql);
-            
-            // Calcola il tempo di esecuzione
-            long executionTime = System.currentTimeMillis() - startTime;
-            
-            // Conta le righe restituite
-            int rowCount = (int) result.getTotalRows();
-            
-            // Aggiorna la cronologia con i risultati
+        return runQueryWithHistory(sql, null, userIp, true);
+    }
+
+    public TableResult runQueryWithHistory(String sql, Map<String, QueryParameterValue> namedParameters,
+                                           String userIp, boolean usaCache) throws InterruptedException {
+        return attendi(runQueryWithHistoryAsync(sql, namedParameters, userIp, usaCache, null));
+    }
+
+    public CompletableFuture<TableResult> runQueryWithHistoryAsync(String sql, Map<String, QueryParameterValue> namedParameters,
+                                                                   String userIp, boolean usaCache, Long timeoutMs) {
+        return runQueryWithHistoryAsync(sql, namedParameters, userIp, usaCache, timeoutMs, null);
+    }
+
+    /**
+     * Come {@link #runQueryWithHistoryAsync(String, Map, String, boolean, Long)}; se la richiesta crea un job,
+     * {@code suStima} riceve la stima del dry-run addebitata all'IP, prima del ritorno. Le richieste servite
+     * dalla cache o unite a un'esecuzione in corso non spendono byte e non la ricevono.
+     */
+    public CompletableFuture<TableResult> runQueryWithHistoryAsync(String sql, Map<String, QueryParameterValue> namedParameters,
+                                                                   String userIp, boolean usaCache, Long timeoutMs,
+                                                                   Consumer<QueryCostService.Stima> suStima) {
+        Timer.Sample esecuzione = queryMetrics.avvia();
+        QueryResultCache.Chiave chiave = usaCache ? queryResultCache.chiave(sql, namedParameters) : null;
+        ColumnarResult inCache = queryResultCache.get(chiave);
+        if (inCache != null) {
+            queryMetrics.registra(esecuzione, QueryMetrics.ESECUZIONE, "cache", "hit", "outcome", QueryMetrics.SUCCESSO);
+            // Registra comunque l'esecuzione nella cronologia
+            long startTime = System.currentTimeMillis();
+            QueryHistory queryHistory = queryHistoryService.salvaQuery(sql, userIp);
             queryHistoryService.aggiornaQueryCompletata(
-                queryHistory.getId(), 
-                executionTime, 
-                rowCount, 
-                true, 
+                queryHistory,
+                System.currentTimeMillis() - startTime,
+                inCache.getNumeroRighe(),
+                true,
                 null
             );
-            
-            return result;
-            
-        } catch (Exception e) {
-            // Calcola il tempo di esecuzione anche in caso di errore
+            return CompletableFuture.completedFuture(inCache.toTableResult());
+        }
+
+        return eseguiCondivisa(
+            QueryResultCache.Chiave.of(sql, namedParameters),
+            chiave,
+            risultato -> {
+                // La cronologia si chiude quando i risultati sono stati letti, non al termine del job
+                QueryInviata inviata = inviaConCronologia(sql, namedParameters, userIp, timeoutMs);
+                if (suStima != null && inviata.stima != null) {
+                    suStima.accept(inviata.stima);
+                }
+                risultato.whenComplete((result, errore) -> completaCronologia(inviata,
+                        errore == null ? (int) result.getTotalRows() : 0, errore != null ? causa(errore) : null));
+                return inviata.handle;
+            },
+            (inCorso, condivisa) -> conCronologia(inCorso, condivisa, sql, userIp),
+            esecuzione
+        );
+    }
+
+    /**
+     * Esegue la query una sola volta per chiave: chi arriva mentre un'esecuzione identica
+     * è in corso ne attende il risultato invece di creare un nuovo job.
+     * Gli errori che impediscono di creare il job (budget, coda piena) vengono lanciati subito.
+     */
+    private CompletableFuture<TableResult> eseguiCondivisa(QueryResultCache.Chiave chiave, QueryResultCache.Chiave chiaveCache,
+                                                          AvvioQuery avvio, AdesioneQuery adesione, Timer.Sample esecuzione) {
+        while (true) {
+            QueryCondivisa nuova = new QueryCondivisa(chiave);
+            QueryCondivisa esistente = queryInCorso.putIfAbsent(chiave, nuova);
+            if (esistente == null) {
+                try {
+                    avvia(nuova, chiaveCache, avvio);
+                } catch (RuntimeException e) {
+                    queryMetrics.registra(esecuzione, QueryMetrics.ESECUZIONE, "cache", "miss", "outcome", QueryMetrics.ERRORE);
+                    throw e;
+                }
+                return misuraEsecuzione(nuova.perChiamante(), esecuzione, "miss");
+            }
+            // Un'esecuzione appena terminata resta registrata finché non viene rimossa dal suo completamento
+            if (!esistente.risultato.isDone() && esistente.aderisci()) {
+                return misuraEsecuzione(adesione.aderisci(esistente.perChiamante(), esistente), esecuzione, "shared");
+            }
+            // Esecuzione terminata o abbandonata da tutti i richiedenti: se ne avvia una nuova
+            queryInCorso.remove(chiave, esistente);
+        }
+    }
+
+    private void avvia(QueryCondivisa condivisa, QueryResultCache.Chiave chiaveCache, AvvioQuery avvio) {
+        condivisa.risultato.whenComplete((result, errore) -> queryInCorso.remove(condivisa.chiave, condivisa));
+
+        QueryJobService.QueryJobHandle handle;
+        try {
+            handle = avvio.avvia(condivisa.risultato);
+        } catch (RuntimeException e) {
+            condivisa.risultato.completeExceptionally(e);
+            throw e;
+        }
+        condivisa.impostaJob(handle);
+
+        handle.getFuture().whenCompleteAsync((job, errore) -> {
+            if (errore != null) {
+                condivisa.risultato.completeExceptionally(errore);
+                return;
+            }
+            try {
+                condivisa.risultato.complete(memorizzaInCache(chiaveCache, queryJobService.leggiRisultati(job)));
+            } catch (Exception e) {
+                condivisa.risultato.completeExceptionally(e);
+            }
+        }, esecutoreRisultati);
+    }
+
+    private CompletableFuture<TableResult> misuraEsecuzione(CompletableFuture<TableResult> risultato, Timer.Sample esecuzione,
+                                                            String cache) {
+        risultato.whenComplete((result, errore) -> queryMetrics.registra(
+                esecuzione, QueryMetrics.ESECUZIONE, "cache", cache, "outcome", QueryMetrics.esito(errore)));
+        return risultato;
+    }
+
+    /**
+     * Attende il risultato sul thread chiamante; se il thread viene interrotto la richiesta viene abbandonata.
+     */
+    private TableResult attendi(CompletableFuture<TableResult> risultato) throws InterruptedException {
+        try {
+            return risultato.get();
+        } catch (InterruptedException e) {
+            risultato.completeExceptionally(new QueryJobService.QueryAnnullataException("Richiesta interrotta"));
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable causa = causa(e);
+            if (causa instanceof RuntimeException) {
+                throw (RuntimeException) causa;
+            }
+            throw new RuntimeException(causa);
+        }
+    }
+
+    /**
+     * Eccezione originale, senza gli involucri aggiunti da CompletableFuture.
+     */
+    public static Throwable causa(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * Cronologia di chi si è unito a un'esecuzione in corso: si registra l'id del job condiviso,
+     * ma non le sue statistiche, già attribuite alla richiesta che lo ha creato.
+     */
+    private CompletableFuture<TableResult> conCronologia(CompletableFuture<TableResult> inCorso, QueryCondivisa condivisa,
+                                                         String sql, String userIp) {
+        long startTime = System.currentTimeMillis();
+        QueryHistory queryHistory = queryHistoryService.salvaQueryCondivisa(sql, userIp);
+        inCorso.whenComplete((result, errore) -> {
             long executionTime = System.currentTimeMillis() - startTime;
-            
-            // Aggiorna la cronologia con l'errore
-            if (queryHistory != null) {
-                queryHistoryService.aggiornaQueryCompletata(
-                    queryHistory.getId(), 
-                    executionTime, 
-                    0, 
-                    false, 
-                    e.getMessage()
-                );
+            QueryJobService.QueryJobHandle handle = condivisa.handle;
+            String jobId = handle != null ? handle.getId() : null;
+            Throwable causa = errore != null ? causa(errore) : null;
+            if (causa == null) {
+                queryHistoryService.aggiornaQueryCompletata(queryHistory, executionTime, (int) result.getTotalRows(), true, null, jobId, null);
+            } else if (causa instanceof CancellationException) {
+                queryHistoryService.aggiornaQueryAnnullata(queryHistory, executionTime, causa.getMessage(), jobId);
+            } else {
+                queryHistoryService.aggiornaQueryCompletata(queryHistory, executionTime, 0, false, causa.getMessage(), jobId, null);
+            }
+        });
+        return inCorso;
+    }
+
+    private interface AvvioQuery {
+        /**
+         * Crea il job; il future ricevuto si completa quando i risultati sono stati letti.
+         */
+        QueryJobService.QueryJobHandle avvia(CompletableFuture<TableResult> risultato);
+    }
+
+    private interface AdesioneQuery {
+        CompletableFuture<TableResult> aderisci(CompletableFuture<TableResult> inCorso, QueryCondivisa condivisa);
+    }
+
+    /**
+     * Esecuzione condivisa tra le richieste identiche. Conta i richiedenti ancora interessati:
+     * quando l'ultimo abbandona (timeout o disconnessione) il job BigQuery viene annullato.
+     */
+    private final class QueryCondivisa {
+        private final QueryResultCache.Chiave chiave;
+        private final CompletableFuture<TableResult> risultato = new CompletableFuture<>();
+        private final AtomicInteger richiedenti = new AtomicInteger(1);
+        private volatile QueryJobService.QueryJobHandle handle;
+        private volatile QueryJobService.QueryAnnullataException motivoAnnullamento;
+
+        private QueryCondivisa(QueryResultCache.Chiave chiave) {
+            this.chiave = chiave;
+        }
+
+        private boolean aderisci() {
+            while (true) {
+                int n = richiedenti.get();
+                if (n == 0) {
+                    return false;
+                }
+                if (richiedenti.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private CompletableFuture<TableResult> perChiamante() {
+            CompletableFuture<TableResult> copia = risultato.copy();
+            copia.whenComplete((result, errore) -> {
+                // Solo il chiamante può completare la propria copia con un annullamento
+                if (errore instanceof CancellationException) {
+                    abbandona(errore instanceof QueryJobService.QueryAnnullataException
+                            ? (QueryJobService.QueryAnnullataException) errore
+                            : new QueryJobService.QueryAnnullataException(errore.getMessage()));
+                }
+            });
+            return copia;
+        }
+
+        private void impostaJob(QueryJobService.QueryJobHandle handle) {
+            this.handle = handle;
+            if (motivoAnnullamento != null) {
+                queryJobService.annulla(handle.getId(), motivoAnnullamento);
+            }
+        }
+
+        private void abbandona(QueryJobService.QueryAnnullataException motivo) {
+            if (richiedenti.decrementAndGet() > 0 || risultato.isDone()) {
+                return;
+            }
+            queryInCorso.remove(chiave, this);
+            motivoAnnullamento = motivo;
+            QueryJobService.QueryJobHandle corrente = handle;
+            if (corrente != null) {
+                queryJobService.annulla(corrente.getId(), motivo);
+            }
+        }
+    }
+
+    private TableResult memorizzaInCache(QueryResultCache.Chiave chiave, TableResult result) {
+        if (chiave == null || !queryResultCache.isMemorizzabile(result)) {
+            return result;
+        }
+        // Il risultato è piccolo: lo si legge una volta sola e lo si serve dalle colonne
+        ColumnarResult columnar = ColumnarResult.from(result);
+        queryResultCache.put(chiave, columnar);
+        return columnar.toTableResult();
+    }
+
+    public QueryJobService.QueryJobHandle submitQueryWithHistory(String sql, Map<String, QueryParameterValue> namedParameters, String userIp) {
+        return submitQueryWithHistory(sql, namedParameters, userIp, null);
+    }
+
+    /**
+     * Invia la query senza attenderne il completamento. La cronologia viene
+     * aggiornata quando il job termina, con il numero di righe ricavato dalle statistiche del job.
+     */
+    public QueryJobService.QueryJobHandle submitQueryWithHistory(String sql, Map<String, QueryParameterValue> namedParameters,
+                                                                 String userIp, Long timeoutMs) {
+        QueryInviata inviata = inviaConCronologia(sql, namedParameters, userIp, timeoutMs);
+        inviata.handle.getFuture().whenComplete((job, errore) -> completaCronologia(inviata,
+                errore == null ? righeRestituite(job.getStatistics()) : 0, errore));
+        return inviata.handle;
+    }
+
+    /**
+     * Registra la query nella cronologia e crea il job. Chi chiama chiude la cronologia
+     * con {@link #completaCronologia} quando conosce l'esito.
+     */
+    private QueryInviata inviaConCronologia(String sql, Map<String, QueryParameterValue> namedParameters,
+                                            String userIp, Long timeoutMs) {
+        long startTime = System.currentTimeMillis();
+
+        // Salva la query nella cronologia
+        QueryHistory queryHistory = queryHistoryService.salvaQuery(sql, userIp);
+
+        QueryJobService.QueryJobHandle handle;
+        QueryCostService.Stima stima = null;
+        try {
+            // Controlla i byte stimati prima di creare il job reale
+            stima = queryCostService.verificaEPrenota(sql, namedParameters, userIp);
+            handle = queryJobService.submit(creaConfigurazione(sql, namedParameters), userIp, timeoutMs);
+            if (stima != null) {
+                handle.setBytesStimati(stima.getBytesStimati());
             }
-            
+        } catch (RuntimeException e) {
+            // Il job non è stato creato (coda piena, circuito aperto, errore di BigQuery): i byte tornano all'IP
+            queryCostService.rimborsa(stima);
+            queryHistoryService.aggiornaQueryCompletata(
+                queryHistory,
+                System.currentTimeMillis() - startTime,
+                0,
+                false,
+                e.getMessage()
+            );
             throw e;
         }
+        return new QueryInviata(handle, queryHistory, startTime, stima);
+    }
+
+    private void completaCronologia(QueryInviata inviata, int rowCount, Throwable errore) {
+        // Calcola il tempo di esecuzione anche in caso di errore
+        long executionTime = System.currentTimeMillis() - inviata.startTime;
+        QueryJobService.QueryJobHandle handle = inviata.handle;
+        if (errore == null) {
+            Job job = handle.getFuture().getNow(null);
+            queryHistoryService.aggiornaQueryCompletata(inviata.queryHistory, executionTime, rowCount, true, null,
+                    handle.getId(), job != null ? job.getStatistics() : null);
+        } else if (errore instanceof CancellationException) {
+            // Annullata (dall'utente, per timeout o disconnessione): non è un errore della query
+            String motivo = errore.getMessage() != null ? errore.getMessage() : "La query è stata annullata";
+            queryHistoryService.aggiornaQueryAnnullata(inviata.queryHistory, executionTime, motivo, handle.getId());
+        } else {
+            queryHistoryService.aggiornaQueryCompletata(inviata.queryHistory, executionTime, 0, false, errore.getMessage(),
+                    handle.getId(), null);
+        }
+    }
+
+    /**
+     * Righe del risultato secondo le statistiche del job, senza leggerne i risultati:
+     * quelle scritte dall'ultimo stadio del piano, o le righe modificate da un DML.
+     */
+    static int righeRestituite(JobStatistics statistiche) {
+        if (!(statistiche instanceof JobStatistics.QueryStatistics)) {
+            return 0;
+        }
+        JobStatistics.QueryStatistics query = (JobStatistics.QueryStatistics) statistiche;
+        if (query.getNumDmlAffectedRows() != null) {
+            return query.getNumDmlAffectedRows().intValue();
+        }
+        List<QueryStage> piano = query.getQueryPlan();
+        return piano == null || piano.isEmpty() ? 0 : (int) piano.get(piano.size() - 1).getRecordsWritten();
+    }
+
+    private static final class QueryInviata {
+        private final QueryJobService.QueryJobHandle handle;
+        private final QueryHistory queryHistory;
+        private final long startTime;
+        // Null se la stima dei costi è disattivata
+        private final QueryCostService.Stima stima;
+
+        private QueryInviata(QueryJobService.QueryJobHandle handle, QueryHistory queryHistory, long startTime,
+                             QueryCostService.Stima stima) {
+            this.handle = handle;
+            this.queryHistory = queryHistory;
+            this.startTime = startTime;
+            this.stima = stima;
+        }
+    }
+
+    private QueryJobConfiguration creaConfigurazione(String sql, Map<String, QueryParameterValue> namedParameters) {
+        QueryJobConfiguration.Builder builder = QueryJobConfiguration.newBuilder(sql);
+        if (namedParameters != null && !namedParameters.isEmpty()) {
+            builder.setNamedParameters(namedParameters);
+        }
+        return builder.build();
     }
     
+    /**
+     * Esegue la query senza bloccare il chiamante e ne restituisce solo la prima pagina dei risultati,
+     * con il cursore per leggere la successiva. La pagina viene letta dai thread dei risultati quando
+     * il job termina; se il chiamante annulla il future (timeout, client disconnesso) il job viene annullato.
+     */
+    public CompletableFuture<PaginaRisultati> eseguiPaginataAsync(String sql, Map<String, QueryParameterValue> namedParameters,
+                                                                  String userIp, Long pageSize, Long timeoutMs) {
+        QueryJobService.QueryJobHandle handle = submitQueryWithHistory(sql, namedParameters, userIp, timeoutMs);
+        long dimensione = dimensionePagina(pageSize);
+        CompletableFuture<PaginaRisultati> pagina = new CompletableFuture<>();
+        pagina.whenComplete((p, errore) -> {
+            if (errore instanceof CancellationException && !handle.isCompletato()) {
+                queryJobService.annulla(handle.getId(), errore instanceof QueryJobService.QueryAnnullataException
+                        ? (QueryJobService.QueryAnnullataException) errore
+                        : new QueryJobService.QueryAnnullataException(errore.getMessage()));
+            }
+        });
+        handle.getFuture().whenCompleteAsync((job, errore) -> {
+            if (errore != null) {
+                pagina.completeExceptionally(errore);
+                return;
+            }
+            try {
+                pagina.complete(leggiPagina(new ResultCursor(handle.getJobId(), null, dimensione)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pagina.completeExceptionally(e);
+            } catch (Exception e) {
+                pagina.completeExceptionally(e);
+            }
+        }, esecutoreRisultati);
+        return pagina;
+    }
+
+    /**
+     * Legge da BigQuery soltanto la pagina indicata dal cursore.
+     */
+    public PaginaRisultati leggiPagina(String cursore, Long pageSize) throws InterruptedException {
+        ResultCursor decodificato = ResultCursor.decodifica(cursore, chiaveCursore);
+        long dimensione = pageSize != null ? dimensionePagina(pageSize) : decodificato.getPageSize();
+        return leggiPagina(new ResultCursor(decodificato.getJobId(), decodificato.getPageToken(), dimensione));
+    }
+
+    private PaginaRisultati leggiPagina(ResultCursor cursore) throws InterruptedException {
+        TableResult pagina = cursore.getPageToken() == null
+                ? queryJobService.leggiRisultati(cursore.getJobId(),
+                        BigQuery.QueryResultsOption.pageSize(cursore.getPageSize()))
+                : queryJobService.leggiRisultati(cursore.getJobId(),
+                        BigQuery.QueryResultsOption.pageSize(cursore.getPageSize()),
+                        BigQuery.QueryResultsOption.pageToken(cursore.getPageToken()));
+
+        // getValues contiene solo la pagina corrente: le successive non vengono scaricate
+        List<Map<String, Object>> righe = toList(pagina.getSchema(), pagina.getValues());
+        String successivo = pagina.hasNextPage()
+                ? new ResultCursor(cursore.getJobId(), pagina.getNextPageToken(), cursore.getPageSize()).codifica(chiaveCursore)
+                : null;
+        return new PaginaRisultati(righe, pagina.getTotalRows(), successivo);
+    }
+
+    private long dimensionePagina(Long richiesta) {
+        if (richiesta == null || richiesta <= 0) {
+            return dimensionePaginaPredefinita;
+        }
+        return Math.min(richiesta, dimensionePaginaMassima);
+    }
+
+    public static class PaginaRisultati {
+        private final List<Map<String, Object>> righe;
+        private final long righeTotali;
+        private final String cursoreSuccessivo;
+
+        public PaginaRisultati(List<Map<String, Object>> righe, long righeTotali, String cursoreSuccessivo) {
+            this.righe = righe;
+            this.righeTotali = righeTotali;
+            this.cursoreSuccessivo = cursoreSuccessivo;
+        }
+
+        public List<Map<String, Object>> getRighe() { return righe; }
+        public long getRigheTotali() { return righeTotali; }
+        public String getCursoreSuccessivo() { return cursoreSuccessivo; }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("risultati", righe);
+            result.put("righe", righe.size());
+            result.put("righeTotali", righeTotali);
+            result.put("cursore", cursoreSuccessivo);
+            return result;
+        }
+    }
+
      public List<Map<String, Object>> toList(TableResult result) {
-        List<Map<String, Object>> rows = new ArrayList<>();
-        for (FieldValueList row : result.iterateAll()) {
-            Map<String, Object> map = new HashMap<>();
-            Schema schema = result.getSchema();
-            for (Field field : schema.getFields()) {
-                map.put(field.getName(), row.get(field.getName()).getValue());
+        return toList(result.getSchema(), result.iterateAll());
+    }
+
+     public List<Map<String, Object>> toList(Schema schema, Iterable<FieldValueList> righe) {
+        return queryMetrics.misura(QueryMetrics.CONVERSIONE_RIGHE, () -> {
+            RowDecoder decoder = RowDecoder.of(schema);
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (FieldValueList row : righe) {
+                rows.add(decoder.decode(row));
+            }
+            return rows;
+        });
+    }
+
+    /**
+     * Scrive i risultati come array JSON direttamente sullo stream, una pagina alla volta,
+     * senza materializzare l'intero risultato in memoria.
+     */
+     public void writeJson(TableResult result, OutputStream out) throws IOException {
+        RowDecoder decoder = RowDecoder.of(result.getSchema());
+        try (JsonGenerator generator = objectMapper.createGenerator(out)) {
+            generator.writeStartArray();
+            for (TableResult pagina = result; pagina != null; pagina = paginaSuccessiva(pagina)) {
+                for (FieldValueList row : pagina.getValues()) {
+                    decoder.write(row, generator);
+                }
+                // Invia al client ogni pagina appena disponibile
+                generator.flush();
+            }
+            generator.writeEndArray();
+        }
+    }
+
+     public void writeJson(ColumnarResult result, OutputStream out) throws IOException {
+        try (JsonGenerator generator = objectMapper.createGenerator(out)) {
+            generator.writeStartArray();
+            for (int riga = 0; riga < result.getNumeroRighe(); riga++) {
+                result.writeRow(riga, generator);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    /**
+     * Scrive i risultati come JSON delimitato da newline (un oggetto per riga), inviando i dati
+     * al client ogni N righe. La pagina successiva viene richiesta a BigQuery solo dopo che la
+     * precedente è stata scritta: se il client rallenta la lettura si ferma anche la paginazione,
+     * e se si disconnette la scrittura fallisce e l'export si interrompe.
+     */
+     public void writeNdjson(TableResult result, OutputStream out) throws IOException {
+        RowDecoder decoder = RowDecoder.of(result.getSchema());
+        try (JsonGenerator generator = objectMapper.createGenerator(out)) {
+            generator.setRootValueSeparator(null);
+            int righe = 0;
+            for (TableResult pagina = result; pagina != null; pagina = paginaSuccessiva(pagina)) {
+                for (FieldValueList row : pagina.getValues()) {
+                    decoder.write(row, generator);
+                    generator.writeRaw('\n');
+                    if (++righe % righePerFlushNdjson == 0) {
+                        generator.flush();
+                    }
+                }
             }
-            rows.add(map);
         }
-        return rows;
     }
 
+    /**
+     * Scrive i risultati come stream Arrow IPC, un record batch per pagina.
+     */
+     public void writeArrow(TableResult result, OutputStream out) throws IOException {
+        new ArrowResultWriter(result.getSchema(), objectMapper).write(result, out, this::paginaSuccessiva);
+    }
+
+    /**
+     * Pagina successiva dei risultati, o null se era l'ultima. Gli errori transitori durante
+     * un export vengono ritentati invece di interrompere il download.
+     */
+    private TableResult paginaSuccessiva(TableResult pagina) {
+        if (!pagina.hasNextPage()) {
+            return null;
+        }
+        return queryMetrics.misura(QueryMetrics.LETTURA_RISULTATI,
+                () -> bigQueryResilience.esegui("tabledata.list", pagina::getNextPage), "operation", "nextPage");
+    }
+
+    /**
+     * Scrive i risultati in CSV (RFC 4180) una pagina alla volta.
+     * Il writer viene chiuso al termine, così un eventuale GZIPOutputStream sottostante viene completato.
+     */
      public void writeCsv(TableResult result, Writer writer) {
-        try (BufferedWriter bw = new BufferedWriter(writer)) {
-            Schema schema = result.getSchema();
-            List<String> headers = new ArrayList<>();
-            for (Field field : schema.getFields()) {
-                headers.add(field.getName());
+        FieldList campi = result.getSchema() != null ? result.getSchema().getFields() : FieldList.of();
+        RowDecoder decoder = RowDecoder.of(result.getSchema());
+        // Per i tipi scalari il valore testuale restituito da BigQuery va già bene nel CSV
+        boolean[] testuale = new boolean[campi.size()];
+        for (int i = 0; i < campi.size(); i++) {
+            testuale[i] = isTestuale(campi.get(i));
+        }
+
+        try (CsvWriter csv = new CsvWriter(writer)) {
+            for (Field field : campi) {
+                csv.campo(field.getName());
             }
-            bw.write(String.join(",", headers));
-            bw.newLine();
-
-            for (FieldValueList row : result.iterateAll()) {
-                List<String> values = new ArrayList<>();
-                for (String h : headers) {
-                    FieldValue value = row.get(h);
-                    values.add(value.isNull() ? "" : value.getValue().toString());
+            csv.fineRiga();
+
+            for (TableResult pagina = result; pagina != null; pagina = paginaSuccessiva(pagina)) {
+                for (FieldValueList row : pagina.getValues()) {
+                    for (int i = 0; i < testuale.length; i++) {
+                        FieldValue value = row.get(i);
+                        if (value.isNull()) {
+                            csv.vuoto();
+                        } else if (testuale[i]) {
+                            csv.campo(value.getStringValue());
+                        } else {
+                            csv.campo(String.valueOf(decoder.converti(i, value)));
+                        }
+                    }
+                    csv.fineRiga();
                 }
-                bw.write(String.join(",", values));
-                bw.newLine();
+                csv.flush();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Errore durante la scrittura del CSV", e);
+        }
+    }
+
+    private static boolean isTestuale(Field field) {
+        if (field.getMode() == Field.Mode.REPEATED || field.getType() == null) {
+            return false;
+        }
+        switch (field.getType().getStandardType()) {
+            case STRING:
+            case INT64:
+            case FLOAT64:
+            case BOOL:
+            case NUMERIC:
+            case BIGNUMERIC:
+            case DATE:
+            case TIME:
+            case DATETIME:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+     public void writeCsv(ColumnarResult result, Writer writer) {
+        try (CsvWriter csv = new CsvWriter(writer)) {
+            for (int i = 0; i < result.getNumeroColonne(); i++) {
+                csv.campo(result.getNomeColonna(i));
+            }
+            csv.fineRiga();
+
+            for (int riga = 0; riga < result.getNumeroRighe(); riga++) {
+                for (int i = 0; i < result.getNumeroColonne(); i++) {
+                    if (result.isNull(i, riga)) {
+                        csv.vuoto();
+                        continue;
+                    }
+                    switch (result.getTipo(i)) {
+                        case LONG:
+                            csv.campo(result.getLong(i, riga));
+                            break;
+                        case DOUBLE:
+                            csv.campo(result.getDouble(i, riga));
+                            break;
+                        case BOOLEAN:
+                            csv.campo(result.getBoolean(i, riga));
+                            break;
+                        default:
+                            csv.campo(result.getString(i, riga));
+                    }
+                }
+                csv.fineRiga();
             }
         } catch (IOException e) {
             throw new RuntimeException("Errore durante la scrittura del CSV", e);
@@ -239,41 +870,14 @@ public class BigQueryService {
     }
 
     public TableResult runStructuredQueryWithHistory(StructuredQueryRequest req, String userIp) throws InterruptedException {
-        long startTime = System.currentTimeMillis();
-        QueryHistory queryHistory = null;
+        return attendi(runStructuredQueryWithHistoryAsync(req, userIp));
+    }
 
+    public CompletableFuture<TableResult> runStructuredQueryWithHistoryAsync(StructuredQueryRequest req, String userIp) {
         BuiltQuery built = buildQuery(req);
-        try {
-            // Salva SQL generato nella cronologia
-            queryHistory = queryHistoryService.salvaQuery(built.getSql(), userIp);
-
-            TableResult result = runQuery(built.getSql(), built.getParams());
 
-            long executionTime = System.currentTimeMillis() - startTime;
-            int rowCount = (int) result.getTotalRows();
-
-            queryHistoryService.aggiornaQueryCompletata(
-                queryHistory.getId(),
-                executionTime,
-                rowCount,
-                true,
-                null
-            );
-
-            return result;
-        } catch (Exception e) {
-            long executionTime = System.currentTimeMillis() - startTime;
-            if (queryHistory != null) {
-                queryHistoryService.aggiornaQueryCompletata(
-                    queryHistory.getId(),
-                    executionTime,
-                    0,
-                    false,
-                    e.getMessage()
-                );
-            }
-            throw e;
-        }
+        // Salva SQL generato nella cronologia
+        return runQueryWithHistoryAsync(built.getSql(), built.getParams(), userIp, req.isUseCache(), req.getTimeoutMs());
     }
 
     private String quoteTableIdentifier(String tableRef) {
@@ -0,0 +1,624 @@
+package com.example.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.api.gax.paging.Page;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.bigquery.TableResult;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Risultato di una query memorizzato per colonne.
+ * INT64, FLOAT64, BOOL e TIMESTAMP sono tenuti in array primitivi con una bitmap dei null,
+ * le stringhe in un dizionario (o in un buffer UTF-8 con offset se i valori distinti sono troppi).
+ */
+public class ColumnarResult {
+
+    public enum TipoColonna { LONG, DOUBLE, BOOLEAN, TIMESTAMP, STRING, OBJECT }
+
+    private static final int CAPACITA_INIZIALE = 1024;
+    private static final int CAPACITA_MASSIMA_INIZIALE = 1 << 20;
+    private static final FieldValue VALORE_NULLO = FieldValue.of(FieldValue.Attribute.PRIMITIVE, null);
+
+    private final Schema schema;
+    private final Colonna[] colonne;
+    private final int numeroRighe;
+
+    private ColumnarResult(Schema schema, Colonna[] colonne, int numeroRighe) {
+        this.schema = schema;
+        this.colonne = colonne;
+        this.numeroRighe = numeroRighe;
+    }
+
+    /**
+     * Legge tutte le pagine del risultato e lo converte in colonne.
+     */
+    public static ColumnarResult from(TableResult result) {
+        Schema schema = result.getSchema();
+        FieldList fields = schema.getFields();
+        RowDecoder decoder = RowDecoder.of(schema);
+        int capacita = (int) Math.max(CAPACITA_INIZIALE, Math.min(result.getTotalRows(), CAPACITA_MASSIMA_INIZIALE));
+
+        Colonna[] colonne = new Colonna[fields.size()];
+        for (int i = 0; i < colonne.length; i++) {
+            colonne[i] = creaColonna(fields.get(i), i, decoder, capacita);
+        }
+
+        int righe = 0;
+        for (FieldValueList row : result.iterateAll()) {
+            for (int i = 0; i < colonne.length; i++) {
+                colonne[i].aggiungi(righe, row.get(i));
+            }
+            righe++;
+        }
+        for (Colonna colonna : colonne) {
+            colonna.chiudi(righe);
+            colonna.compattaNulli(righe);
+        }
+        return new ColumnarResult(schema, colonne, righe);
+    }
+
+    private static Colonna creaColonna(Field field, int indice, RowDecoder decoder, int capacita) {
+        if (field.getMode() == Field.Mode.REPEATED || field.getType() == null) {
+            return new ColonnaOggetti(indice, decoder, capacita);
+        }
+        StandardSQLTypeName tipo = field.getType().getStandardType();
+        switch (tipo) {
+            case INT64:
+                return new ColonnaLong(TipoColonna.LONG, capacita);
+            case TIMESTAMP:
+                return new ColonnaLong(TipoColonna.TIMESTAMP, capacita);
+            case FLOAT64:
+                return new ColonnaDouble(capacita);
+            case BOOL:
+                return new ColonnaBoolean(capacita);
+            case STRUCT:
+            case NUMERIC:
+            case BIGNUMERIC:
+                return new ColonnaOggetti(indice, decoder, capacita);
+            default:
+                return new ColonnaStringhe(capacita);
+        }
+    }
+
+    public Schema getSchema() { return schema; }
+    public int getNumeroRighe() { return numeroRighe; }
+    public int getNumeroColonne() { return colonne.length; }
+
+    public String getNomeColonna(int colonna) {
+        return schema.getFields().get(colonna).getName();
+    }
+
+    public TipoColonna getTipo(int colonna) {
+        return colonne[colonna].tipo;
+    }
+
+    public boolean isNumerica(int colonna) {
+        TipoColonna tipo = colonne[colonna].tipo;
+        return tipo == TipoColonna.LONG || tipo == TipoColonna.DOUBLE;
+    }
+
+    public boolean isNull(int colonna, int riga) {
+        return colonne[colonna].isNull(riga);
+    }
+
+    public long getLong(int colonna, int riga) {
+        Colonna c = colonne[colonna];
+        if (c instanceof ColonnaLong) return ((ColonnaLong) c).valori[riga];
+        if (c instanceof ColonnaDouble) return (long) ((ColonnaDouble) c).valori[riga];
+        throw new IllegalStateException("La colonna " + getNomeColonna(colonna) + " non è numerica");
+    }
+
+    /**
+     * Valore numerico della cella; per le colonne testuali prova a interpretare il testo.
+     * Restituisce NaN se la cella è nulla o non numerica.
+     */
+    public double getDouble(int colonna, int riga) {
+        Colonna c = colonne[colonna];
+        if (c.isNull(riga)) return Double.NaN;
+        if (c instanceof ColonnaDouble) return ((ColonnaDouble) c).valori[riga];
+        if (c instanceof ColonnaLong) return ((ColonnaLong) c).valori[riga];
+        Object valore = c.getValue(riga);
+        if (valore instanceof Number) return ((Number) valore).doubleValue();
+        if (valore instanceof String) {
+            try {
+                return Double.parseDouble((String) valore);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+
+    public boolean getBoolean(int colonna, int riga) {
+        Colonna c = colonne[colonna];
+        if (c instanceof ColonnaBoolean) return ((ColonnaBoolean) c).get(riga);
+        throw new IllegalStateException("La colonna " + getNomeColonna(colonna) + " non è booleana");
+    }
+
+    public String getString(int colonna, int riga) {
+        Colonna c = colonne[colonna];
+        if (c.isNull(riga)) return null;
+        if (c instanceof ColonnaStringhe) return ((ColonnaStringhe) c).get(riga);
+        return String.valueOf(c.getValue(riga));
+    }
+
+    /**
+     * Valore della cella come oggetto (con boxing). Da usare solo dove serve un Object.
+     */
+    public Object getValue(int colonna, int riga) {
+        return colonne[colonna].getValue(riga);
+    }
+
+    /**
+     * Vista per righe compatibile con {@link BigQueryService#toList}; i valori vengono creati su richiesta.
+     */
+    public List<Map<String, Object>> toList() {
+        return new AbstractList<>() {
+            @Override
+            public Map<String, Object> get(int riga) {
+                Map<String, Object> map = new LinkedHashMap<>(colonne.length * 2);
+                for (int i = 0; i < colonne.length; i++) {
+                    map.put(getNomeColonna(i), colonne[i].getValue(riga));
+                }
+                return map;
+            }
+
+            @Override
+            public int size() {
+                return numeroRighe;
+            }
+        };
+    }
+
+    /**
+     * Ricostruisce un {@link TableResult} di una sola pagina le cui righe vengono
+     * generate dalle colonne mentre lo si scorre.
+     */
+    public TableResult toTableResult() {
+        Iterable<FieldValueList> righe = () -> new Iterator<>() {
+            private int riga = 0;
+
+            @Override
+            public boolean hasNext() {
+                return riga < numeroRighe;
+            }
+
+            @Override
+            public FieldValueList next() {
+                if (riga >= numeroRighe) throw new NoSuchElementException();
+                List<FieldValue> valori = new ArrayList<>(colonne.length);
+                for (Colonna colonna : colonne) {
+                    valori.add(colonna.toFieldValue(riga));
+                }
+                riga++;
+                return FieldValueList.of(valori, schema.getFields());
+            }
+        };
+        Page<FieldValueList> pagina = new Page<>() {
+            @Override public boolean hasNextPage() { return false; }
+            @Override public String getNextPageToken() { return null; }
+            @Override public Page<FieldValueList> getNextPage() { return null; }
+            @Override public Iterable<FieldValueList> iterateAll() { return righe; }
+            @Override public Iterable<FieldValueList> getValues() { return righe; }
+        };
+        return new TableResult(schema, numeroRighe, pagina);
+    }
+
+    public void writeRow(int riga, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        for (int i = 0; i < colonne.length; i++) {
+            generator.writeFieldName(getNomeColonna(i));
+            colonne[i].scrivi(riga, generator);
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Stima della memoria occupata, usata per limitare la dimensione della cache.
+     */
+    public long getDimensioneStimataBytes() {
+        long totale = 64;
+        for (Colonna colonna : colonne) {
+            totale += colonna.stimaBytes();
+        }
+        return totale;
+    }
+
+    // ===== Colonne =====
+
+    private abstract static class Colonna {
+        final TipoColonna tipo;
+        long[] nulli;
+
+        Colonna(TipoColonna tipo, int capacita) {
+            this.tipo = tipo;
+            this.nulli = new long[(capacita >>> 6) + 1];
+        }
+
+        void segnaNullo(int riga) {
+            int parola = riga >>> 6;
+            if (parola >= nulli.length) {
+                nulli = Arrays.copyOf(nulli, Math.max(parola + 1, nulli.length * 2));
+            }
+            nulli[parola] |= 1L << riga;
+        }
+
+        boolean isNull(int riga) {
+            int parola = riga >>> 6;
+            return parola < nulli.length && (nulli[parola] & (1L << riga)) != 0;
+        }
+
+        void compattaNulli(int righe) {
+            int parole = (righe >>> 6) + 1;
+            if (nulli.length > parole) nulli = Arrays.copyOf(nulli, parole);
+        }
+
+        static int nuovaCapacita(int attuale, int richiesta) {
+            return Math.max(richiesta, attuale + (attuale >> 1) + 16);
+        }
+
+        abstract void aggiungi(int riga, FieldValue value);
+
+        abstract void chiudi(int righe);
+
+        abstract Object getValue(int riga);
+
+        abstract FieldValue toFieldValue(int riga);
+
+        abstract void scrivi(int riga, JsonGenerator generator) throws IOException;
+
+        long stimaBytes() {
+            return 16 + nulli.length * 8L;
+        }
+    }
+
+    private static final class ColonnaLong extends Colonna {
+        long[] valori;
+
+        ColonnaLong(TipoColonna tipo, int capacita) {
+            super(tipo, capacita);
+            this.valori = new long[capacita];
+        }
+
+        @Override
+        void aggiungi(int riga, FieldValue value) {
+            if (riga >= valori.length) valori = Arrays.copyOf(valori, nuovaCapacita(valori.length, riga + 1));
+            if (value == null || value.isNull()) {
+                segnaNullo(riga);
+            } else {
+                valori[riga] = tipo == TipoColonna.TIMESTAMP ? value.getTimestampValue() : value.getLongValue();
+            }
+        }
+
+        @Override
+        void chiudi(int righe) {
+            if (valori.length != righe) valori = Arrays.copyOf(valori, righe);
+        }
+
+        @Override
+        Object getValue(int riga) {
+            if (isNull(riga)) return null;
+            return tipo == TipoColonna.TIMESTAMP ? istante(valori[riga]) : (Object) valori[riga];
+        }
+
+        @Override
+        void scrivi(int riga, JsonGenerator generator) throws IOException {
+            if (isNull(riga)) generator.writeNull();
+            else if (tipo == TipoColonna.TIMESTAMP) generator.writeString(istante(valori[riga]).toString());
+            else generator.writeNumber(valori[riga]);
+        }
+
+        @Override
+        FieldValue toFieldValue(int riga) {
+            if (isNull(riga)) return VALORE_NULLO;
+            String testo = tipo == TipoColonna.TIMESTAMP
+                    ? BigDecimal.valueOf(valori[riga], 6).toPlainString()
+                    : Long.toString(valori[riga]);
+            return FieldValue.of(FieldValue.Attribute.PRIMITIVE, testo);
+        }
+
+        private static Instant istante(long micros) {
+            return Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000L), Math.floorMod(micros, 1_000_000L) * 1000L);
+        }
+
+        @Override
+        long stimaBytes() {
+            return super.stimaBytes() + valori.length * 8L;
+        }
+    }
+
+    private static final class ColonnaDouble extends Colonna {
+        double[] valori;
+
+        ColonnaDouble(int capacita) {
+            super(TipoColonna.DOUBLE, capacita);
+            this.valori = new double[capacita];
+        }
+
+        @Override
+        void aggiungi(int riga, FieldValue value) {
+            if (riga >= valori.length) valori = Arrays.copyOf(valori, nuovaCapacita(valori.length, riga + 1));
+            if (value == null || value.isNull()) segnaNullo(riga);
+            else valori[riga] = value.getDoubleValue();
+        }
+
+        @Override
+        void chiudi(int righe) {
+            if (valori.length != righe) valori = Arrays.copyOf(valori, righe);
+        }
+
+        @Override
+        Object getValue(int riga) {
+            return isNull(riga) ? null : (Object) valori[riga];
+        }
+
+        @Override
+        FieldValue toFieldValue(int riga) {
+            return isNull(riga) ? VALORE_NULLO : FieldValue.of(FieldValue.Attribute.PRIMITIVE, Double.toString(valori[riga]));
+        }
+
+        @Override
+        void scrivi(int riga, JsonGenerator generator) throws IOException {
+            if (isNull(riga)) generator.writeNull();
+            else generator.writeNumber(valori[riga]);
+        }
+
+        @Override
+        long stimaBytes() {
+            return super.stimaBytes() + valori.length * 8L;
+        }
+    }
+
+    private static final class ColonnaBoolean extends Colonna {
+        long[] bit;
+
+        ColonnaBoolean(int capacita) {
+            super(TipoColonna.BOOLEAN, capacita);
+            this.bit = new long[(capacita >>> 6) + 1];
+        }
+
+        @Override
+        void aggiungi(int riga, FieldValue value) {
+            if (value == null || value.isNull()) {
+                segnaNullo(riga);
+                return;
+            }
+            int parola = riga >>> 6;
+            if (parola >= bit.length) bit = Arrays.copyOf(bit, Math.max(parola + 1, bit.length * 2));
+            if (value.getBooleanValue()) bit[parola] |= 1L << riga;
+        }
+
+        boolean get(int riga) {
+            int parola = riga >>> 6;
+            return parola < bit.length && (bit[parola] & (1L << riga)) != 0;
+        }
+
+        @Override
+        void chiudi(int righe) {
+            int parole = (righe >>> 6) + 1;
+            if (bit.length > parole) bit = Arrays.copyOf(bit, parole);
+        }
+
+        @Override
+        Object getValue(int riga) {
+            return isNull(riga) ? null : (Object) get(riga);
+        }
+
+        @Override
+        FieldValue toFieldValue(int riga) {
+            return isNull(riga) ? VALORE_NULLO : FieldValue.of(FieldValue.Attribute.PRIMITIVE, get(riga) ? "true" : "false");
+        }
+
+        @Override
+        void scrivi(int riga, JsonGenerator generator) throws IOException {
+            if (isNull(riga)) generator.writeNull();
+            else generator.writeBoolean(get(riga));
+        }
+
+        @Override
+        long stimaBytes() {
+            return super.stimaBytes() + bit.length * 8L;
+        }
+    }
+
+    /**
+     * Colonna testuale: codifica a dizionario finché i valori distinti sono pochi,
+     * poi passa a un unico buffer UTF-8 con un array di offset.
+     */
+    private static final class ColonnaStringhe extends Colonna {
+        private static final int SOGLIA_DIZIONARIO = 4096;
+
+        // Codifica a dizionario
+        private Map<String, Integer> codici = new HashMap<>();
+        private List<String> dizionario = new ArrayList<>();
+        private int[] codiciRighe;
+
+        // Codifica con offset
+        private byte[] dati;
+        private int[] offset;
+        private int lunghezzaDati;
+
+        ColonnaStringhe(int capacita) {
+            super(TipoColonna.STRING, capacita);
+            this.codiciRighe = new int[capacita];
+        }
+
+        private boolean isDizionario() {
+            return codiciRighe != null;
+        }
+
+        @Override
+        void aggiungi(int riga, FieldValue value) {
+            boolean nullo = value == null || value.isNull();
+            if (nullo) segnaNullo(riga);
+            String testo = nullo ? null : value.getStringValue();
+
+            if (isDizionario()) {
+                if (riga >= codiciRighe.length) codiciRighe = Arrays.copyOf(codiciRighe, nuovaCapacita(codiciRighe.length, riga + 1));
+                if (nullo) {
+                    codiciRighe[riga] = -1;
+                    return;
+                }
+                Integer codice = codici.get(testo);
+                if (codice == null) {
+                    codice = dizionario.size();
+                    dizionario.add(testo);
+                    codici.put(testo, codice);
+                }
+                codiciRighe[riga] = codice;
+                if (dizionario.size() > SOGLIA_DIZIONARIO && dizionario.size() > (riga + 1) / 2) {
+                    convertiInOffset(riga + 1);
+                }
+            } else {
+                aggiungiBytes(riga, nullo ? null : testo.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        private void convertiInOffset(int righe) {
+            int[] codiciEsistenti = codiciRighe;
+            List<String> valori = dizionario;
+            codiciRighe = null;
+            codici = null;
+            dizionario = null;
+            offset = new int[Math.max(righe + 1, codiciEsistenti.length + 1)];
+            dati = new byte[Math.max(1024, righe * 16)];
+            lunghezzaDati = 0;
+            for (int r = 0; r < righe; r++) {
+                int codice = codiciEsistenti[r];
+                aggiungiBytes(r, codice < 0 ? null : valori.get(codice).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        private void aggiungiBytes(int riga, byte[] bytes) {
+            if (riga + 1 >= offset.length) offset = Arrays.copyOf(offset, nuovaCapacita(offset.length, riga + 2));
+            int lunghezza = bytes == null ? 0 : bytes.length;
+            if (lunghezzaDati + lunghezza > dati.length) {
+                dati = Arrays.copyOf(dati, nuovaCapacita(dati.length, lunghezzaDati + lunghezza));
+            }
+            if (bytes != null) System.arraycopy(bytes, 0, dati, lunghezzaDati, lunghezza);
+            offset[riga] = lunghezzaDati;
+            lunghezzaDati += lunghezza;
+            offset[riga + 1] = lunghezzaDati;
+        }
+
+        String get(int riga) {
+            if (isNull(riga)) return null;
+            if (isDizionario()) return dizionario.get(codiciRighe[riga]);
+            return new String(dati, offset[riga], offset[riga + 1] - offset[riga], StandardCharsets.UTF_8);
+        }
+
+        @Override
+        void chiudi(int righe) {
+            if (isDizionario()) {
+                if (codiciRighe.length != righe) codiciRighe = Arrays.copyOf(codiciRighe, righe);
+                codici = null;
+            } else {
+                if (offset.length != righe + 1) offset = Arrays.copyOf(offset, righe + 1);
+                if (dati.length != lunghezzaDati) dati = Arrays.copyOf(dati, lunghezzaDati);
+            }
+        }
+
+        @Override
+        Object getValue(int riga) {
+            return get(riga);
+        }
+
+        @Override
+        FieldValue toFieldValue(int riga) {
+            return isNull(riga) ? VALORE_NULLO : FieldValue.of(FieldValue.Attribute.PRIMITIVE, get(riga));
+        }
+
+        @Override
+        void scrivi(int riga, JsonGenerator generator) throws IOException {
+            if (isNull(riga)) {
+                generator.writeNull();
+            } else if (isDizionario()) {
+                generator.writeString(dizionario.get(codiciRighe[riga]));
+            } else {
+                generator.writeUTF8String(dati, offset[riga], offset[riga + 1] - offset[riga]);
+            }
+        }
+
+        @Override
+        long stimaBytes() {
+            long totale = super.stimaBytes();
+            if (isDizionario()) {
+                totale += codiciRighe.length * 4L;
+                for (String valore : dizionario) {
+                    totale += 40 + valore.length() * 2L;
+                }
+            } else {
+                totale += offset.length * 4L + dati.length;
+            }
+            return totale;
+        }
+    }
+
+    /**
+     * Colonne annidate, ripetute o NUMERIC: si conserva il valore originale di BigQuery,
+     * convertito con {@link RowDecoder} solo quando viene letto.
+     */
+    private static final class ColonnaOggetti extends Colonna {
+        private final int indice;
+        private final RowDecoder decoder;
+        private FieldValue[] valori;
+
+        ColonnaOggetti(int indice, RowDecoder decoder, int capacita) {
+            super(TipoColonna.OBJECT, capacita);
+            this.indice = indice;
+            this.decoder = decoder;
+            this.valori = new FieldValue[capacita];
+        }
+
+        @Override
+        void aggiungi(int riga, FieldValue value) {
+            if (riga >= valori.length) valori = Arrays.copyOf(valori, nuovaCapacita(valori.length, riga + 1));
+            if (value == null || value.isNull()) segnaNullo(riga);
+            else valori[riga] = value;
+        }
+
+        @Override
+        void chiudi(int righe) {
+            if (valori.length != righe) valori = Arrays.copyOf(valori, righe);
+        }
+
+        @Override
+        Object getValue(int riga) {
+            return isNull(riga) ? null : decoder.converti(indice, valori[riga]);
+        }
+
+        @Override
+        FieldValue toFieldValue(int riga) {
+            return isNull(riga) ? VALORE_NULLO : valori[riga];
+        }
+
+        @Override
+        void scrivi(int riga, JsonGenerator generator) throws IOException {
+            generator.writeObject(getValue(riga));
+        }
+
+        @Override
+        long stimaBytes() {
+            // Stima approssimativa: riferimento più un valore medio per cella
+            return super.stimaBytes() + valori.length * 64L;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.service;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Scrittore CSV conforme a RFC 4180: i campi che contengono virgole, virgolette o
+ * ritorni a capo vengono racchiusi tra virgolette, le virgolette interne raddoppiate
+ * e le righe terminate da CRLF.
+ * I caratteri vengono accumulati in un buffer riutilizzato, senza creare stringhe per riga.
+ */
+public class CsvWriter implements Flushable, Closeable {
+
+    private static final int DIMENSIONE_BUFFER = 64 * 1024;
+
+    private final Writer writer;
+    private final char[] buffer = new char[DIMENSIONE_BUFFER];
+    private int posizione;
+    private boolean inizioRiga = true;
+
+    public CsvWriter(Writer writer) {
+        this.writer = writer;
+    }
+
+    public CsvWriter campo(String valore) throws IOException {
+        separatore();
+        if (valore == null || valore.isEmpty()) {
+            return this;
+        }
+        if (!richiedeVirgolette(valore)) {
+            scrivi(valore);
+            return this;
+        }
+        scrivi('"');
+        int inizio = 0;
+        for (int i = 0; i < valore.length(); i++) {
+            if (valore.charAt(i) == '"') {
+                scrivi(valore, inizio, i + 1);
+                scrivi('"');
+                inizio = i + 1;
+            }
+        }
+        scrivi(valore, inizio, valore.length());
+        scrivi('"');
+        return this;
+    }
+
+    public CsvWriter campo(long valore) throws IOException {
+        separatore();
+        if (posizione + 20 > buffer.length) {
+            svuotaBuffer();
+        }
+        if (valore == Long.MIN_VALUE) {
+            scrivi(Long.toString(valore));
+            return this;
+        }
+        if (valore < 0) {
+            buffer[posizione++] = '-';
+            valore = -valore;
+        }
+        // Scrive le cifre da destra verso sinistra direttamente nel buffer
+        int cifre = 1;
+        for (long v = valore / 10; v > 0; v /= 10) {
+            cifre++;
+        }
+        int fine = posizione + cifre;
+        for (int i = fine - 1; i >= posizione; i--) {
+            buffer[i] = (char) ('0' + valore % 10);
+            valore /= 10;
+        }
+        posizione = fine;
+        return this;
+    }
+
+    public CsvWriter campo(double valore) throws IOException {
+        separatore();
+        scrivi(Double.toString(valore));
+        return this;
+    }
+
+    public CsvWriter campo(boolean valore) throws IOException {
+        separatore();
+        scrivi(valore ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Campo vuoto (valore NULL).
+     */
+    public CsvWriter vuoto() throws IOException {
+        separatore();
+        return this;
+    }
+
+    public void fineRiga() throws IOException {
+        if (posizione + 2 > buffer.length) {
+            svuotaBuffer();
+        }
+        buffer[posizione++] = '\r';
+        buffer[posizione++] = '\n';
+        inizioRiga = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        svuotaBuffer();
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        svuotaBuffer();
+        writer.close();
+    }
+
+    static boolean richiedeVirgolette(String valore) {
+        for (int i = 0; i < valore.length(); i++) {
+            char c = valore.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void separatore() throws IOException {
+        if (inizioRiga) {
+            inizioRiga = false;
+        } else {
+            scrivi(',');
+        }
+    }
+
+    private void scrivi(char c) throws IOException {
+        if (posizione == buffer.length) {
+            svuotaBuffer();
+        }
+        buffer[posizione++] = c;
+    }
+
+    private void scrivi(String s) throws IOException {
+        scrivi(s, 0, s.length());
+    }
+
+    private void scrivi(String s, int inizio, int fine) throws IOException {
+        while (inizio < fine) {
+            if (posizione == buffer.length) {
+                svuotaBuffer();
+            }
+            int n = Math.min(fine - inizio, buffer.length - posizione);
+            s.getChars(inizio, inizio + n, buffer, posizione);
+            posizione += n;
+            inizio += n;
+        }
+    }
+
+    private void svuotaBuffer() throws IOException {
+        if (posizione > 0) {
+            writer.write(buffer, 0, posizione);
+            posizione = 0;
+        }
+    }
+}
@@ -1,24 +1,42 @@
 package com.example.service;
 
 import com.google.cloud.bigquery.TableResult;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 @Service
 public class DataVisualizationService {
     
+    private static final Set<String> TIPI_GRAFICO = Set.of("bar", "line", "pie", "scatter", "histogram");
+    
+    @Autowired
+    private QueryMetrics queryMetrics;
+    
     public Map<String, Object> generaConfigurazioneGrafico(TableResult result, String tipoGrafico) {
+        if (result == null) {
+            Map<String, Object> config = new HashMap<>();
+            config.put("errore", "Nessun dato disponibile per la visualizzazione");
+            return config;
+        }
+        return generaConfigurazioneGrafico(ColumnarResult.from(result), tipoGrafico);
+    }
+    
+    public Map<String, Object> generaConfigurazioneGrafico(ColumnarResult dati, String tipoGrafico) {
+        // Il tag resta limitato ai tipi noti: gli altri producono una tabella
+        String tipo = TIPI_GRAFICO.contains(tipoGrafico.toLowerCase()) ? tipoGrafico.toLowerCase() : "table";
+        return queryMetrics.misura(QueryMetrics.GRAFICO, () -> costruisciConfigurazione(dati, tipoGrafico), "type", tipo);
+    }
+    
+    private Map<String, Object> costruisciConfigurazione(ColumnarResult dati, String tipoGrafico) {
         Map<String, Object> config = new HashMap<>();
         
-        if (result == null || !result.iterateAll().iterator().hasNext()) {
+        if (dati == null || dati.getNumeroRighe() == 0) {
             config.put("errore", "Nessun dato disponibile per la visualizzazione");
             return config;
         }
         
-        List<Map<String, Object>> dati = convertiRisultatiInLista(result);
-        
         switch (tipoGrafico.toLowerCase()) {
             case "bar":
                 return generaConfigurazioneBarChart(dati);
@@ -35,45 +53,19 @@ public class DataVisualizationService {
         }
     }
     
-    private Map<String, Object> generaConfigurazioneBarChart(List<Map<String, Object>> dati) {
+    private Map<String, Object> generaConfigurazioneBarChart(ColumnarResult dati) {
         Map<String, Object> config = new HashMap<>();
         config.put("tipo", "bar");
         config.put("titolo", "Grafico a Barre");
         
-        if (dati.isEmpty()) {
-            config.put("errore", "Nessun dato disponibile");
-            return config;
-        }
-        
         // Prendi le prime due colonne per x e y
-        List<String> colonne = new ArrayList<>(dati.get(0).keySet());
-        String colonnaX = colonne.get(0);
-        String colonnaY = colonne.size() > 1 ? colonne.get(1) : colonne.get(0);
-        
-        List<Object> labels = dati.stream()
-                .map(row -> row.get(colonnaX))
-                .collect(Collectors.toList());
-        
-        List<Object> values = dati.stream()
-                .map(row -> {
-                    Object val = row.get(colonnaY);
-                    if (val instanceof Number) {
-                        return val;
-                    } else if (val instanceof String) {
-                        try {
-                            return Double.parseDouble((String) val);
-                        } catch (NumberFormatException e) {
-                            return 0.0;
-                        }
-                    }
-                    return 0.0;
-                })
-                .collect(Collectors.toList());
+        int colonnaX = 0;
+        int colonnaY = dati.getNumeroColonne() > 1 ? 1 : 0;
         
-        config.put("labels", labels);
+        config.put("labels", estraiEtichette(dati, colonnaX));
         config.put("datasets", Arrays.asList(Map.of(
-            "label", colonnaY,
-            "data", values,
+            "label", dati.getNomeColonna(colonnaY),
+            "data", estraiValori(dati, colonnaY),
             "backgroundColor", "rgba(54, 162, 235, 0.6)",
             "borderColor", "rgba(54, 162, 235, 1)",
             "borderWidth", 1
@@ -82,44 +74,18 @@ public class DataVisualizationService {
         return config;
     }
     
-    private Map<String, Object> generaConfigurazioneLineChart(List<Map<String, Object>> dati) {
+    private Map<String, Object> generaConfigurazioneLineChart(ColumnarResult dati) {
         Map<String, Object> config = new HashMap<>();
         config.put("tipo", "line");
         config.put("titolo", "Grafico a Linee");
         
-        if (dati.isEmpty()) {
-            config.put("errore", "Nessun dato disponibile");
-            return config;
-        }
-        
-        List<String> colonne = new ArrayList<>(dati.get(0).keySet());
-        String colonnaX = colonne.get(0);
-        String colonnaY = colonne.size() > 1 ? colonne.get(1) : colonne.get(0);
-        
-        List<Object> labels = dati.stream()
-                .map(row -> row.get(colonnaX))
-                .collect(Collectors.toList());
+        int colonnaX = 0;
+        int colonnaY = dati.getNumeroColonne() > 1 ? 1 : 0;
         
-        List<Object> values = dati.stream()
-                .map(row -> {
-                    Object val = row.get(colonnaY);
-                    if (val instanceof Number) {
-                        return val;
-                    } else if (val instanceof String) {
-                        try {
-                            return Double.parseDouble((String) val);
-                        } catch (NumberFormatException e) {
-                            return 0.0;
-                        }
-                    }
-                    return 0.0;
-                })
-                .collect(Collectors.toList());
-        
-        config.put("labels", labels);
+        config.put("labels", estraiEtichette(dati, colonnaX));
         config.put("datasets", Arrays.asList(Map.of(
-            "label", colonnaY,
-            "data", values,
+            "label", dati.getNomeColonna(colonnaY),
+            "data", estraiValori(dati, colonnaY),
             "borderColor", "rgba(75, 192, 192, 1)",
             "backgroundColor", "rgba(75, 192, 192, 0.2)",
             "tension", 0.1
@@ -128,46 +94,20 @@ public class DataVisualizationService {
         return config;
     }
     
-    private Map<String, Object> generaConfigurazionePieChart(List<Map<String, Object>> dati) {
+    private Map<String, Object> generaConfigurazionePieChart(ColumnarResult dati) {
         Map<String, Object> config = new HashMap<>();
         config.put("tipo", "pie");
         config.put("titolo", "Grafico a Torta");
         
-        if (dati.isEmpty()) {
-            config.put("errore", "Nessun dato disponibile");
-            return config;
-        }
-        
-        List<String> colonne = new ArrayList<>(dati.get(0).keySet());
-        String colonnaLabel = colonne.get(0);
-        String colonnaValue = colonne.size() > 1 ? colonne.get(1) : colonne.get(0);
-        
-        List<Object> labels = dati.stream()
-                .map(row -> row.get(colonnaLabel))
-                .collect(Collectors.toList());
-        
-        List<Object> values = dati.stream()
-                .map(row -> {
-                    Object val = row.get(colonnaValue);
-                    if (val instanceof Number) {
-                        return val;
-                    } else if (val instanceof String) {
-                        try {
-                            return Double.parseDouble((String) val);
-                        } catch (NumberFormatException e) {
-                            return 0.0;
-                        }
-                    }
-                    return 0.0;
-                })
-                .collect(Collectors.toList());
+        int colonnaLabel = 0;
+        int colonnaValue = dati.getNumeroColonne() > 1 ? 1 : 0;
         
         // Genera colori per ogni segmento
-        List<String> colors = generaColori(dati.size());
+        List<String> colors = generaColori(dati.getNumeroRighe());
         
-        config.put("labels", labels);
+        config.put("labels", estraiEtichette(dati, colonnaLabel));
         config.put("datasets", Arrays.asList(Map.of(
-            "data", values,
+            "data", estraiValori(dati, colonnaValue),
             "backgroundColor", colors,
             "borderWidth", 2
         )));
@@ -175,34 +115,24 @@ public class DataVisualizationService {
         return config;
     }
     
-    private Map<String, Object> generaConfigurazioneScatterPlot(List<Map<String, Object>> dati) {
+    private Map<String, Object> generaConfigurazioneScatterPlot(ColumnarResult dati) {
         Map<String, Object> config = new HashMap<>();
         config.put("tipo", "scatter");
         config.put("titolo", "Scatter Plot");
         
-        if (dati.isEmpty()) {
-            config.put("errore", "Nessun dato disponibile");
-            return config;
-        }
-        
-        List<String> colonne = new ArrayList<>(dati.get(0).keySet());
-        String colonnaX = colonne.get(0);
-        String colonnaY = colonne.size() > 1 ? colonne.get(1) : colonne.get(0);
+        int colonnaX = 0;
+        int colonnaY = dati.getNumeroColonne() > 1 ? 1 : 0;
         
-        List<Map<String, Object>> scatterData = dati.stream()
-                .map(row -> {
-                    Map<String, Object> point = new HashMap<>();
-                    Object xVal = row.get(colonnaX);
-                    Object yVal = row.get(colonnaY);
-                    
-                    point.put("x", convertiInNumero(xVal));
-                    point.put("y", convertiInNumero(yVal));
-                    return point;
-                })
-                .collect(Collectors.toList());
+        List<Map<String, Object>> scatterData = new ArrayList<>(dati.getNumeroRighe());
+        for (int riga = 0; riga < dati.getNumeroRighe(); riga++) {
+            Map<String, Object> point = new HashMap<>();
+            point.put("x", convertiInNumero(dati.getDouble(colonnaX, riga)));
+            point.put("y", convertiInNumero(dati.getDouble(colonnaY, riga)));
+            scatterData.add(point);
+        }
         
         config.put("datasets", Arrays.asList(Map.of(
-            "label", colonnaX + " vs " + colonnaY,
+            "label", dati.getNomeColonna(colonnaX) + " vs " + dati.getNomeColonna(colonnaY),
             "data", scatterData,
             "backgroundColor", "rgba(255, 99, 132, 0.6)",
             "borderColor", "rgba(255, 99, 132, 1)"
@@ -211,37 +141,39 @@ public class DataVisualizationService {
         return config;
     }
     
-    private Map<String, Object> generaConfigurazioneHistogram(List<Map<String, Object>> dati) {
+    private Map<String, Object> generaConfigurazioneHistogram(ColumnarResult dati) {
         Map<String, Object> config = new HashMap<>();
         config.put("tipo", "histogram");
         config.put("titolo", "Istogramma");
         
-        if (dati.isEmpty()) {
-            config.put("errore", "Nessun dato disponibile");
-            return config;
+        int colonna = 0;
+        
+        // Valori numerici della colonna, senza boxing
+        double[] valori = new double[dati.getNumeroRighe()];
+        int numeroValori = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int riga = 0; riga < dati.getNumeroRighe(); riga++) {
+            double val = dati.getDouble(colonna, riga);
+            if (!Double.isNaN(val)) {
+                valori[numeroValori++] = val;
+                min = Math.min(min, val);
+                max = Math.max(max, val);
+            }
         }
         
-        List<String> colonne = new ArrayList<>(dati.get(0).keySet());
-        String colonna = colonne.get(0);
-        
-        List<Double> valori = dati.stream()
-                .map(row -> convertiInNumero(row.get(colonna)))
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList());
-        
-        if (valori.isEmpty()) {
+        if (numeroValori == 0) {
             config.put("errore", "Nessun valore numerico trovato");
             return config;
         }
         
         // Calcola bins per l'istogramma
-        double min = Collections.min(valori);
-        double max = Collections.max(valori);
-        int numBins = Math.min(10, valori.size());
+        int numBins = Math.min(10, numeroValori);
         double binWidth = (max - min) / numBins;
         
         Map<String, Integer> bins = new HashMap<>();
-        for (double val : valori) {
+        for (int i = 0; i < numeroValori; i++) {
+            double val = valori[i];
             int binIndex = (int) Math.min((val - min) / binWidth, numBins - 1);
             String binLabel = String.format("%.2f-%.2f", min + binIndex * binWidth, min + (binIndex + 1) * binWidth);
             bins.put(binLabel, bins.getOrDefault(binLabel, 0) + 1);
@@ -259,43 +191,41 @@ public class DataVisualizationService {
         return config;
     }
     
-    private Map<String, Object> generaConfigurazioneTabella(List<Map<String, Object>> dati) {
+    private Map<String, Object> generaConfigurazioneTabella(ColumnarResult dati) {
         Map<String, Object> config = new HashMap<>();
         config.put("tipo", "table");
         config.put("titolo", "Tabella Dati");
-        config.put("dati", dati);
+        config.put("dati", dati.toList());
         
-        if (!dati.isEmpty()) {
-            config.put("colonne", new ArrayList<>(dati.get(0).keySet()));
+        List<String> colonne = new ArrayList<>();
+        for (int i = 0; i < dati.getNumeroColonne(); i++) {
+            colonne.add(dati.getNomeColonna(i));
         }
+        config.put("colonne", colonne);
         
         return config;
     }
     
-    private List<Map<String, Object>> convertiRisultatiInLista(TableResult result) {
-        List<Map<String, Object>> rows = new ArrayList<>();
-        for (com.google.cloud.bigquery.FieldValueList row : result.iterateAll()) {
-            Map<String, Object> map = new HashMap<>();
-            com.google.cloud.bigquery.Schema schema = result.getSchema();
-            for (com.google.cloud.bigquery.Field field : schema.getFields()) {
-                map.put(field.getName(), row.get(field.getName()).getValue());
-            }
-            rows.add(map);
+    private List<Object> estraiEtichette(ColumnarResult dati, int colonna) {
+        List<Object> labels = new ArrayList<>(dati.getNumeroRighe());
+        for (int riga = 0; riga < dati.getNumeroRighe(); riga++) {
+            labels.add(dati.getValue(colonna, riga));
         }
-        return rows;
+        return labels;
     }
     
-    private Double convertiInNumero(Object valore) {
-        if (valore instanceof Number) {
-            return ((Number) valore).doubleValue();
-        } else if (valore instanceof String) {
-            try {
-                return Double.parseDouble((String) valore);
-            } catch (NumberFormatException e) {
-                return null;
-            }
+    private double[] estraiValori(ColumnarResult dati, int colonna) {
+        double[] values = new double[dati.getNumeroRighe()];
+        for (int riga = 0; riga < values.length; riga++) {
+            double val = dati.getDouble(colonna, riga);
+            // I valori non numerici vengono rappresentati come 0
+            values[riga] = Double.isNaN(val) ? 0.0 : val;
         }
-        return null;
+        return values;
+    }
+    
+    private Double convertiInNumero(double valore) {
+        return Double.isNaN(valore) ? null : valore;
     }
     
     private List<String> generaColori(int numeroColori) {
@@ -0,0 +1,57 @@
+package com.example.service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * Cursore opaco per la paginazione della cronologia: contiene data di creazione e id dell'ultima
+ * riga restituita. La pagina successiva parte dalla riga immediatamente più vecchia, quindi le righe
+ * scritte nel frattempo non spostano né duplicano i risultati.
+ */
+public final class HistoryCursor {
+
+    private static final char SEPARATORE = '\n';
+
+    // Posizione prima della riga più recente, per la prima pagina
+    static final HistoryCursor INIZIO = new HistoryCursor(LocalDateTime.of(9999, 12, 31, 23, 59, 59), Long.MAX_VALUE);
+
+    private final LocalDateTime createdAt;
+    private final long id;
+
+    public HistoryCursor(LocalDateTime createdAt, long id) {
+        this.createdAt = createdAt;
+        this.id = id;
+    }
+
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public long getId() { return id; }
+
+    public String codifica() {
+        String testo = createdAt.toString() + SEPARATORE + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(testo.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Cursore della prima pagina se {@code cursore} è null.
+     *
+     * @throws IllegalArgumentException se il cursore non è stato prodotto da {@link #codifica()}
+     */
+    public static HistoryCursor decodifica(String cursore) {
+        if (cursore == null) {
+            return INIZIO;
+        }
+        try {
+            String testo = new String(Base64.getUrlDecoder().decode(cursore), StandardCharsets.UTF_8);
+            String[] parti = testo.split(String.valueOf(SEPARATORE), -1);
+            if (parti.length != 2) {
+                throw new IllegalArgumentException("Cursore non valido");
+            }
+            return new HistoryCursor(LocalDateTime.parse(parti[0]), Long.parseLong(parti[1]));
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            // Include anche Base64 malformato e NumberFormatException
+            throw new IllegalArgumentException("Cursore non valido", e);
+        }
+    }
+}
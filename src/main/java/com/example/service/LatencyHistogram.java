@@ -0,0 +1,208 @@
+package com.example.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Istogramma delle latenze su finestre scorrevoli, senza lock.
+ * I bucket sono logaritmici con 8 suddivisioni per ogni potenza di due (errore relativo massimo
+ * del 12,5%, esatti sotto i 16 ms), come in HdrHistogram. Il tempo è diviso in fette da 10 secondi
+ * (finestra di 1 minuto) e da 1 minuto (finestre di 5 minuti e 1 ora); le fette scadute vengono
+ * sostituite quando il loro slot torna in uso.
+ */
+class LatencyHistogram {
+
+    private static final int BIT_SUDDIVISIONI = 3;
+    private static final int SUDDIVISIONI = 1 << BIT_SUDDIVISIONI;
+    // Latenze oltre 2^32 ms (circa 50 giorni) finiscono nell'ultimo bucket
+    private static final long VALORE_MASSIMO = (1L << 32) - 1;
+    static final int NUMERO_BUCKET = (32 - BIT_SUDDIVISIONI + 1) * SUDDIVISIONI;
+
+    private static final long FETTA_BREVE_MS = 10_000;
+    private static final long FETTA_LUNGA_MS = 60_000;
+
+    /**
+     * Finestre disponibili, con la durata e le fette da unire.
+     */
+    enum Finestra {
+        UN_MINUTO("1m", FETTA_BREVE_MS, 6),
+        CINQUE_MINUTI("5m", FETTA_LUNGA_MS, 5),
+        UN_ORA("1h", FETTA_LUNGA_MS, 60);
+
+        private final String nome;
+        private final long durataFettaMs;
+        private final int fette;
+
+        Finestra(String nome, long durataFettaMs, int fette) {
+            this.nome = nome;
+            this.durataFettaMs = durataFettaMs;
+            this.fette = fette;
+        }
+
+        String getNome() {
+            return nome;
+        }
+
+        static Finestra daNome(String nome) {
+            for (Finestra finestra : values()) {
+                if (finestra.nome.equalsIgnoreCase(nome)) {
+                    return finestra;
+                }
+            }
+            throw new IllegalArgumentException("Finestra non valida: " + nome + " (ammesse: 1m, 5m, 1h)");
+        }
+    }
+
+    private final Anello breve = new Anello(FETTA_BREVE_MS, Finestra.UN_MINUTO.fette);
+    private final Anello lungo = new Anello(FETTA_LUNGA_MS, Finestra.UN_ORA.fette);
+    private volatile long ultimoAggiornamento = System.currentTimeMillis();
+
+    void registra(long latenzaMs, long adesso) {
+        int bucket = bucket(latenzaMs);
+        long valore = Math.min(Math.max(latenzaMs, 0), VALORE_MASSIMO);
+        breve.registra(bucket, valore, adesso);
+        lungo.registra(bucket, valore, adesso);
+        ultimoAggiornamento = adesso;
+    }
+
+    Riepilogo riepilogo(Finestra finestra, long adesso) {
+        Anello anello = finestra.durataFettaMs == FETTA_BREVE_MS ? breve : lungo;
+        return anello.riepilogo(finestra.fette, adesso);
+    }
+
+    long getUltimoAggiornamento() {
+        return ultimoAggiornamento;
+    }
+
+    static int bucket(long latenzaMs) {
+        long valore = Math.min(Math.max(latenzaMs, 0), VALORE_MASSIMO);
+        if (valore < SUDDIVISIONI) {
+            return (int) valore;
+        }
+        int esponente = 63 - Long.numberOfLeadingZeros(valore);
+        int suddivisione = (int) (valore >>> (esponente - BIT_SUDDIVISIONI)) & (SUDDIVISIONI - 1);
+        return (esponente - BIT_SUDDIVISIONI + 1) * SUDDIVISIONI + suddivisione;
+    }
+
+    /**
+     * Valore rappresentativo del bucket: il punto medio del suo intervallo.
+     */
+    static long valore(int bucket) {
+        if (bucket < SUDDIVISIONI) {
+            return bucket;
+        }
+        int esponente = bucket / SUDDIVISIONI + BIT_SUDDIVISIONI - 1;
+        long ampiezza = 1L << (esponente - BIT_SUDDIVISIONI);
+        long inizio = (long) (SUDDIVISIONI + bucket % SUDDIVISIONI) << (esponente - BIT_SUDDIVISIONI);
+        return inizio + ampiezza / 2;
+    }
+
+    private static final class Fetta {
+        private final long epoca;
+        private final AtomicLongArray conteggi = new AtomicLongArray(NUMERO_BUCKET);
+        private final AtomicLong massimo = new AtomicLong();
+
+        private Fetta(long epoca) {
+            this.epoca = epoca;
+        }
+    }
+
+    private static final class Anello {
+        private final long durataFettaMs;
+        private final AtomicReferenceArray<Fetta> fette;
+
+        private Anello(long durataFettaMs, int numeroFette) {
+            this.durataFettaMs = durataFettaMs;
+            this.fette = new AtomicReferenceArray<>(numeroFette);
+        }
+
+        private void registra(int bucket, long valore, long adesso) {
+            long epoca = adesso / durataFettaMs;
+            int slot = (int) (epoca % fette.length());
+            Fetta fetta = fette.get(slot);
+            if (fetta == null || fetta.epoca < epoca) {
+                Fetta nuova = new Fetta(epoca);
+                fetta = fette.compareAndSet(slot, fetta, nuova) ? nuova : fette.get(slot);
+            }
+            if (fetta.epoca != epoca) {
+                // Registrazione in ritardo su una fetta già sostituita
+                return;
+            }
+            fetta.conteggi.incrementAndGet(bucket);
+            fetta.massimo.accumulateAndGet(valore, Math::max);
+        }
+
+        private Riepilogo riepilogo(int numeroFette, long adesso) {
+            long epocaCorrente = adesso / durataFettaMs;
+            long[] conteggi = new long[NUMERO_BUCKET];
+            long massimo = 0;
+            for (int i = 0; i < fette.length(); i++) {
+                Fetta fetta = fette.get(i);
+                if (fetta == null || fetta.epoca > epocaCorrente || fetta.epoca <= epocaCorrente - numeroFette) {
+                    continue;
+                }
+                for (int b = 0; b < NUMERO_BUCKET; b++) {
+                    conteggi[b] += fetta.conteggi.get(b);
+                }
+                massimo = Math.max(massimo, fetta.massimo.get());
+            }
+            return new Riepilogo(conteggi, massimo);
+        }
+    }
+
+    /**
+     * Conteggi uniti delle fette di una finestra.
+     */
+    static final class Riepilogo {
+        private final long[] conteggi;
+        private final long totale;
+        private final long massimo;
+
+        private Riepilogo(long[] conteggi, long massimo) {
+            this.conteggi = conteggi;
+            long somma = 0;
+            for (long conteggio : conteggi) {
+                somma += conteggio;
+            }
+            this.totale = somma;
+            this.massimo = massimo;
+        }
+
+        long getTotale() {
+            return totale;
+        }
+
+        long getMassimo() {
+            return massimo;
+        }
+
+        long percentile(double percentile) {
+            if (totale == 0) {
+                return 0;
+            }
+            long soglia = (long) Math.ceil(totale * percentile / 100.0);
+            long cumulato = 0;
+            for (int b = 0; b < NUMERO_BUCKET; b++) {
+                cumulato += conteggi[b];
+                if (cumulato >= soglia) {
+                    // Il valore del bucket non può superare il massimo osservato
+                    return Math.min(valore(b), massimo);
+                }
+            }
+            return massimo;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("conteggio", totale);
+            map.put("p50", percentile(50));
+            map.put("p95", percentile(95));
+            map.put("p99", percentile(99));
+            map.put("max", massimo);
+            return map;
+        }
+    }
+}
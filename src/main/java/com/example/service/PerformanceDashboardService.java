@@ -0,0 +1,193 @@
+package com.example.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Dashboard delle performance calcolata in background e servita da un'istantanea in memoria.
+ * Le tre sezioni vengono calcolate in parallelo su un pool limitato; l'istantanea già serializzata
+ * viene sostituita atomicamente solo quando il contenuto cambia, così il suo ETag resta lo stesso
+ * finché i dati non cambiano.
+ * L'aggiornamento in background si sospende se nessuno legge la dashboard da più di
+ * {@code bigquery.performance.dashboard.idle-ms}: la prima lettura successiva ricalcola l'istantanea.
+ */
+@Service
+public class PerformanceDashboardService {
+
+    private static final Logger log = LoggerFactory.getLogger(PerformanceDashboardService.class);
+
+    @Autowired
+    private PerformanceMonitoringService performanceMonitoringService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${bigquery.performance.dashboard.refresh-ms:5000}")
+    private long intervalloMs;
+
+    @Value("${bigquery.performance.dashboard.idle-ms:60000}")
+    private long inattivitaMs;
+
+    @Value("${bigquery.performance.dashboard.threads:3}")
+    private int thread;
+
+    private final AtomicReference<Istantanea> istantanea = new AtomicReference<>();
+    private final Object aggiornamento = new Object();
+    private volatile long ultimaLetturaNanos = System.nanoTime();
+
+    // Calcola le sezioni della dashboard, ciascuna con le proprie letture dal database
+    private ExecutorService esecutore;
+    // Chiavi ordinate: lo stesso contenuto produce sempre gli stessi byte, e quindi lo stesso ETag
+    private ObjectWriter writer;
+
+    @PostConstruct
+    public void avvia() {
+        AtomicInteger contatore = new AtomicInteger();
+        esecutore = Executors.newFixedThreadPool(thread, r -> {
+            Thread t = new Thread(r, "bq-dashboard-" + contatore.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        writer = objectMapper.writer().with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+    }
+
+    @PreDestroy
+    public void arresta() {
+        esecutore.shutdownNow();
+    }
+
+    /**
+     * Istantanea corrente, calcolata al momento se manca o se l'aggiornamento in background era sospeso.
+     */
+    public Istantanea getIstantanea() {
+        ultimaLetturaNanos = System.nanoTime();
+        Istantanea corrente = istantanea.get();
+        if (corrente != null && !scaduta(corrente)) {
+            return corrente;
+        }
+        synchronized (aggiornamento) {
+            // Un'altra richiesta o l'aggiornamento pianificato potrebbe averla già ricalcolata
+            corrente = istantanea.get();
+            return corrente != null && !scaduta(corrente) ? corrente : aggiorna();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${bigquery.performance.dashboard.refresh-ms:5000}")
+    public void aggiornaPianificato() {
+        if (System.nanoTime() - ultimaLetturaNanos > inattivitaMs * 1_000_000) {
+            return;
+        }
+        try {
+            synchronized (aggiornamento) {
+                aggiorna();
+            }
+        } catch (RuntimeException e) {
+            // Resta servita l'istantanea precedente
+            log.error("Errore nell'aggiornamento della dashboard delle performance", e);
+        }
+    }
+
+    /**
+     * Ricalcola le sezioni e sostituisce l'istantanea. Se il contenuto non è cambiato resta il corpo
+     * precedente, con il suo timestamp e il suo ETag.
+     */
+    Istantanea aggiorna() {
+        CompletableFuture<Map<String, Object>> statistiche = calcola(performanceMonitoringService::getStatistichePerformance);
+        CompletableFuture<Map<String, Object>> raccomandazioni = calcola(performanceMonitoringService::getRaccomandazioniOttimizzazione);
+        CompletableFuture<Map<String, Object>> analisiUtenti = calcola(performanceMonitoringService::getAnalisiUtenti);
+
+        Map<String, Object> sezioni = new LinkedHashMap<>();
+        try {
+            sezioni.put("statistiche", statistiche.join());
+            sezioni.put("raccomandazioni", raccomandazioni.join());
+            sezioni.put("analisiUtenti", analisiUtenti.join());
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException causa) {
+                throw causa;
+            }
+            throw e;
+        }
+
+        long ora = System.nanoTime();
+        String etag = impronta(serializza(sezioni));
+        Istantanea precedente = istantanea.get();
+        Istantanea nuova;
+        if (precedente != null && precedente.getEtag().equals(etag)) {
+            nuova = new Istantanea(precedente.json, etag, ora);
+        } else {
+            sezioni.put("timestamp", LocalDateTime.now());
+            nuova = new Istantanea(serializza(sezioni), etag, ora);
+        }
+        istantanea.set(nuova);
+        return nuova;
+    }
+
+    private CompletableFuture<Map<String, Object>> calcola(Supplier<Map<String, Object>> sezione) {
+        return CompletableFuture.supplyAsync(sezione, esecutore);
+    }
+
+    // Mentre l'aggiornamento in background è attivo l'istantanea ha al più un intervallo più il tempo di calcolo
+    private boolean scaduta(Istantanea corrente) {
+        return System.nanoTime() - corrente.verificataNanos > 2 * intervalloMs * 1_000_000;
+    }
+
+    private byte[] serializza(Map<String, Object> valore) {
+        try {
+            return writer.writeValueAsBytes(valore);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Serializzazione della dashboard non riuscita", e);
+        }
+    }
+
+    private static String impronta(byte[] contenuto) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(contenuto);
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Dashboard serializzata in JSON con il suo ETag (senza virgolette).
+     */
+    public static class Istantanea {
+        private final byte[] json;
+        private final String etag;
+        private final long verificataNanos;
+
+        Istantanea(byte[] json, String etag, long verificataNanos) {
+            this.json = json;
+            this.etag = etag;
+            this.verificataNanos = verificataNanos;
+        }
+
+        // Condiviso tra le richieste: da non modificare
+        public byte[] getJson() { return json; }
+        public String getEtag() { return etag; }
+    }
+}
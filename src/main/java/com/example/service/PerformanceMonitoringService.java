@@ -1,135 +1,152 @@
 package com.example.service;
 
-import com.example.entity.QueryHistory;
+import com.example.repository.QueryFingerprintRollupRepository;
 import com.example.repository.QueryHistoryRepository;
+import com.example.repository.QueryHistoryRollupRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 
+import java.time.DayOfWeek;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.stream.Collectors;
 
 @Service
 public class PerformanceMonitoringService {
     
+    // Esecuzioni lette al massimo, dalla più lenta, per trovare le impronte più lente
+    private static final int DIMENSIONE_PAGINA_IMPRONTE = 500;
+    private static final int PAGINE_IMPRONTE_LENTE = 10;
+    
     @Autowired
     private QueryHistoryRepository queryHistoryRepository;
     
+    @Autowired
+    private QueryHistoryRollupRepository rollupRepository;
+    
+    @Autowired
+    private QueryFingerprintRollupRepository fingerprintRollupRepository;
+    
     public Map<String, Object> getStatistichePerformance() {
         Map<String, Object> stats = new HashMap<>();
         
-        // Query totali e successo
-        long totalQueries = queryHistoryRepository.count();
-        long successfulQueries = queryHistoryRepository.findBySuccessTrueOrderByCreatedAtDesc().size();
-        long failedQueries = totalQueries - successfulQueries;
+        // Query totali e successo, tutti dagli aggregati: le righe compattate restano conteggiate
+        Object[] totali = primaRiga(rollupRepository.getTotali());
+        long totalQueries = longValue(totali[0]);
+        long successfulQueries = longValue(totali[1]);
+        long cancelledQueries = longValue(totali[2]);
+        long failedQueries = totalQueries - successfulQueries - cancelledQueries;
         
         stats.put("queryTotali", totalQueries);
         stats.put("queryRiuscite", successfulQueries);
         stats.put("queryFallite", failedQueries);
+        stats.put("queryAnnullate", cancelledQueries);
         stats.put("percentualeSuccesso", totalQueries > 0 ? (double) successfulQueries / totalQueries * 100 : 0);
         
-        // Tempo di esecuzione medio
-        List<QueryHistory> queryRiuscite = queryHistoryRepository.findBySuccessTrueOrderByCreatedAtDesc();
-        if (!queryRiuscite.isEmpty()) {
-            double tempoMedio = queryRiuscite.stream()
-                    .filter(q -> q.getExecutionTimeMs() != null)
-                    .mapToLong(QueryHistory::getExecutionTimeMs)
-                    .average()
-                    .orElse(0.0);
-            stats.put("tempoEsecuzioneMedio", Math.round(tempoMedio));
-            
-            // Tempo massimo e minimo
-            long tempoMassimo = queryRiuscite.stream()
-                    .filter(q -> q.getExecutionTimeMs() != null)
-                    .mapToLong(QueryHistory::getExecutionTimeMs)
-                    .max()
-                    .orElse(0L);
-            long tempoMinimo = queryRiuscite.stream()
-                    .filter(q -> q.getExecutionTimeMs() != null)
-                    .mapToLong(QueryHistory::getExecutionTimeMs)
-                    .min()
-                    .orElse(0L);
+        if (successfulQueries > 0) {
+            // Tempo di esecuzione medio, massimo e minimo, dagli aggregati delle riuscite
+            Object[] tempi = primaRiga(rollupRepository.getStatisticheTempi());
+            stats.put("tempoEsecuzioneMedio", Math.round(doubleValue(tempi[1]) / longValue(tempi[0])));
+            stats.put("tempoEsecuzioneMassimo", longValue(tempi[3]));
+            stats.put("tempoEsecuzioneMinimo", longValue(tempi[2]));
             
-            stats.put("tempoEsecuzioneMassimo", tempoMassimo);
-            stats.put("tempoEsecuzioneMinimo", tempoMinimo);
+            // Tempo speso in BigQuery e nell'applicazione, solo per le query con le statistiche del job
+            long conStatistiche = longValue(tempi[4]);
+            if (conStatistiche > 0) {
+                stats.put("tempoServerMedio", Math.round(doubleValue(tempi[5]) / conStatistiche));
+                stats.put("tempoClientMedio", Math.round(doubleValue(tempi[6]) / conStatistiche));
+                stats.put("bytesElaboratiTotali", longValue(tempi[7]));
+                stats.put("bytesFatturatiTotali", longValue(tempi[8]));
+                stats.put("percentualeCacheHitBigQuery", (double) longValue(tempi[9]) / conStatistiche * 100);
+            }
         }
         
-        // Query più lente
-        List<QueryHistory> queryLente = queryHistoryRepository.findSlowestQueries();
+        // Impronte più lente, per tempo massimo
+        List<Object[]> queryLente = impronteLente(5);
         if (!queryLente.isEmpty()) {
             stats.put("queryPiuLente", queryLente.stream()
-                    .limit(5)
-                    .map(this::convertiQueryInMap)
+                    .map(row -> {
+                        Map<String, Object> map = new LinkedHashMap<>();
+                        map.put("impronta", QueryFingerprint.esadecimale(longValue(row[0])));
+                        map.put("query", row[1]);
+                        map.put("esecuzioni", longValue(row[2]));
+                        map.put("tempoEsecuzioneMedio", Math.round(doubleValue(row[3])));
+                        map.put("tempoEsecuzioneMassimo", longValue(row[4]));
+                        return map;
+                    })
                     .collect(Collectors.toList()));
         }
         
-        // Query più frequenti
-        List<Object[]> queryFrequenti = queryHistoryRepository.findMostFrequentQueries();
+        // Impronte più frequenti, dagli aggregati per impronta
+        List<Object[]> queryFrequenti = fingerprintRollupRepository.findPiuFrequenti(PageRequest.of(0, 5));
         if (!queryFrequenti.isEmpty()) {
             stats.put("queryPiuFrequenti", queryFrequenti.stream()
-                    .limit(5)
                     .map(row -> Map.of(
-                        "query", row[0],
-                        "frequenza", row[1]
+                        "impronta", QueryFingerprint.esadecimale(longValue(row[0])),
+                        "query", row[1],
+                        "frequenza", row[2]
                     ))
                     .collect(Collectors.toList()));
         }
         
         // Statistiche per ora del giorno
-        Map<Integer, Long> queryPerOra = queryHistoryRepository.findAll().stream()
-                .collect(Collectors.groupingBy(
-                    q -> q.getCreatedAt().getHour(),
-                    Collectors.counting()
-                ));
-        stats.put("queryPerOra", queryPerOra);
+        stats.put("queryPerOra", getQueryPerOra());
         
         // Statistiche per giorno della settimana
-        Map<String, Long> queryPerGiorno = queryHistoryRepository.findAll().stream()
-                .collect(Collectors.groupingBy(
-                    q -> q.getCreatedAt().getDayOfWeek().toString(),
-                    Collectors.counting()
-                ));
+        Map<String, Long> queryPerGiorno = new HashMap<>();
+        for (Object[] row : rollupRepository.countByGiornoSettimana()) {
+            queryPerGiorno.put(giornoSettimana(((Number) row[0]).intValue()).toString(), longValue(row[1]));
+        }
         stats.put("queryPerGiorno", queryPerGiorno);
         
         return stats;
     }
     
+    /**
+     * Trend giornalieri calcolati dagli aggregati orari delle query concluse: il costo dipende
+     * dal numero di ore del periodo, non dal numero di query.
+     */
     public Map<String, Object> getAnalisiTrend(LocalDateTime inizio, LocalDateTime fine) {
         Map<String, Object> trend = new HashMap<>();
         
-        List<QueryHistory> queryNelPeriodo = queryHistoryRepository.findByCreatedAtBetweenOrderByCreatedAtDesc(inizio, fine);
+        List<Object[]> aggregatiPerOra = rollupRepository.getAggregatiPerOra(inizio.truncatedTo(ChronoUnit.HOURS), fine);
         
-        if (queryNelPeriodo.isEmpty()) {
+        if (aggregatiPerOra.isEmpty()) {
             trend.put("messaggio", "Nessuna query trovata nel periodo specificato");
             return trend;
         }
         
-        // Trend temporale
-        Map<String, Long> queryPerGiorno = queryNelPeriodo.stream()
-                .collect(Collectors.groupingBy(
-                    q -> q.getCreatedAt().toLocalDate().toString(),
-                    Collectors.counting()
-                ));
-        trend.put("queryPerGiorno", queryPerGiorno);
+        Map<String, long[]> perGiorno = new TreeMap<>();
+        for (Object[] row : aggregatiPerOra) {
+            long[] giorno = perGiorno.computeIfAbsent(((LocalDateTime) row[0]).toLocalDate().toString(), g -> new long[3]);
+            giorno[0] += longValue(row[1]);
+            giorno[1] += longValue(row[2]);
+            giorno[2] += longValue(row[3]);
+        }
         
-        // Performance nel tempo
-        Map<String, Double> tempoMedioPerGiorno = queryNelPeriodo.stream()
-                .filter(q -> q.getSuccess() && q.getExecutionTimeMs() != null)
-                .collect(Collectors.groupingBy(
-                    q -> q.getCreatedAt().toLocalDate().toString(),
-                    Collectors.averagingLong(QueryHistory::getExecutionTimeMs)
-                ));
+        Map<String, Long> queryPerGiorno = new HashMap<>();
+        Map<String, Double> tempoMedioPerGiorno = new HashMap<>();
+        Map<String, Map<String, Long>> successoPerGiorno = new HashMap<>();
+        perGiorno.forEach((giorno, valori) -> {
+            long totali = valori[0];
+            long riuscite = valori[1];
+            queryPerGiorno.put(giorno, totali);
+            if (riuscite > 0) {
+                tempoMedioPerGiorno.put(giorno, (double) valori[2] / riuscite);
+            }
+            Map<String, Long> esiti = new HashMap<>();
+            if (riuscite > 0) {
+                esiti.put("riuscite", riuscite);
+            }
+            if (totali > riuscite) {
+                esiti.put("fallite", totali - riuscite);
+            }
+            successoPerGiorno.put(giorno, esiti);
+        });
+        trend.put("queryPerGiorno", queryPerGiorno);
         trend.put("tempoMedioPerGiorno", tempoMedioPerGiorno);
-        
-        // Tasso di successo nel tempo
-        Map<String, Map<String, Long>> successoPerGiorno = queryNelPeriodo.stream()
-                .collect(Collectors.groupingBy(
-                    q -> q.getCreatedAt().toLocalDate().toString(),
-                    Collectors.groupingBy(
-                        q -> q.getSuccess() ? "riuscite" : "fallite",
-                        Collectors.counting()
-                    )
-                ));
         trend.put("successoPerGiorno", successoPerGiorno);
         
         return trend;
@@ -138,8 +155,15 @@ public class PerformanceMonitoringService {
     public Map<String, Object> getAnalisiUtenti() {
         Map<String, Object> analisi = new HashMap<>();
         
-        // Statistiche per IP
-        List<Object[]> statsPerIp = queryHistoryRepository.getQueryStatisticsByIp();
+        // Statistiche per IP, dagli aggregati già ordinati per numero di query
+        List<Object[]> statsPerIp = rollupRepository.getAggregatiPerIp().stream()
+                .map(row -> new Object[] {
+                    row[0],
+                    longValue(row[1]),
+                    longValue(row[2]),
+                    longValue(row[1]) > 0 ? doubleValue(row[3]) / longValue(row[1]) : 0.0
+                })
+                .collect(Collectors.toList());
         analisi.put("statistichePerIp", statsPerIp.stream()
                 .map(row -> Map.of(
                     "ip", row[0],
@@ -150,11 +174,7 @@ public class PerformanceMonitoringService {
                 .collect(Collectors.toList()));
         
         // IP più attivi
-        List<Object[]> ipAttivi = statsPerIp.stream()
-                .sorted((a, b) -> ((Long) b[1]).compareTo((Long) a[1]))
-                .limit(10)
-                .collect(Collectors.toList());
-        analisi.put("ipPiuAttivi", ipAttivi);
+        analisi.put("ipPiuAttivi", statsPerIp.stream().limit(10).collect(Collectors.toList()));
         
         return analisi;
     }
@@ -164,11 +184,10 @@ public class PerformanceMonitoringService {
         List<String> suggerimenti = new ArrayList<>();
         
         // Analizza query lente
-        List<QueryHistory> queryLente = queryHistoryRepository.findSlowestQueries();
+        List<Object[]> queryLente = impronteLente(10);
         if (!queryLente.isEmpty()) {
             double tempoMedioLente = queryLente.stream()
-                    .limit(10)
-                    .mapToLong(q -> q.getExecutionTimeMs() != null ? q.getExecutionTimeMs() : 0)
+                    .mapToLong(row -> longValue(row[4]))
                     .average()
                     .orElse(0.0);
             
@@ -178,23 +197,14 @@ public class PerformanceMonitoringService {
         }
         
         // Analizza query fallite
-        List<QueryHistory> queryFallite = queryHistoryRepository.findBySuccessFalseOrderByCreatedAtDesc();
-        if (!queryFallite.isEmpty()) {
-            long queryFalliteRecenti = queryFallite.stream()
-                    .filter(q -> q.getCreatedAt().isAfter(LocalDateTime.now().minusDays(7)))
-                    .count();
-            
-            if (queryFalliteRecenti > 10) {
-                suggerimenti.add("Alto numero di query fallite negli ultimi 7 giorni. Verifica la sintassi SQL");
-            }
+        long queryFalliteRecenti = queryHistoryRepository.countBySuccessFalseAndCancelledFalseAndCreatedAtAfter(
+                LocalDateTime.now().minusDays(7));
+        if (queryFalliteRecenti > 10) {
+            suggerimenti.add("Alto numero di query fallite negli ultimi 7 giorni. Verifica la sintassi SQL");
         }
         
         // Analizza pattern di utilizzo
-        Map<Integer, Long> queryPerOra = queryHistoryRepository.findAll().stream()
-                .collect(Collectors.groupingBy(
-                    q -> q.getCreatedAt().getHour(),
-                    Collectors.counting()
-                ));
+        Map<Integer, Long> queryPerOra = getQueryPerOra();
         
         long piccoUtilizzo = queryPerOra.values().stream().mapToLong(Long::longValue).max().orElse(0);
         int oraPicco = queryPerOra.entrySet().stream()
@@ -212,17 +222,56 @@ public class PerformanceMonitoringService {
         return raccomandazioni;
     }
     
-    private Map<String, Object> convertiQueryInMap(QueryHistory query) {
-        Map<String, Object> map = new HashMap<>();
-        map.put("id", query.getId());
-        map.put("sql", query.getSqlQuery().length() > 100 ? 
-                query.getSqlQuery().substring(0, 100) + "..." : 
-                query.getSqlQuery());
-        map.put("tempoEsecuzione", query.getExecutionTimeMs());
-        map.put("righeRestituite", query.getRowsReturned());
-        map.put("dataEsecuzione", query.getCreatedAt());
-        return map;
+    private Map<Integer, Long> getQueryPerOra() {
+        Map<Integer, Long> queryPerOra = new HashMap<>();
+        for (Object[] row : rollupRepository.countByOra()) {
+            queryPerOra.put(((Number) row[0]).intValue(), longValue(row[1]));
+        }
+        return queryPerOra;
+    }
+    
+    /**
+     * Converte il giorno della settimana di EXTRACT (1 = domenica) in {@link DayOfWeek} (1 = lunedì).
+     */
+    static DayOfWeek giornoSettimana(int giorno) {
+        return DayOfWeek.of((giorno + 5) % 7 + 1);
+    }
+    
+    /**
+     * Le n impronte con l'esecuzione più lenta: sono le prime n distinte scorrendo le esecuzioni dalla più lenta,
+     * quindi basta leggere l'inizio dell'indice sui tempi invece di raggruppare tutta la cronologia.
+     * Se tra le prime esecuzioni le impronte distinte sono troppo poche si ricade sul raggruppamento.
+     */
+    private List<Object[]> impronteLente(int n) {
+        Set<Long> impronte = new LinkedHashSet<>();
+        for (int pagina = 0; pagina < PAGINE_IMPRONTE_LENTE && impronte.size() < n; pagina++) {
+            List<Long> lette = queryHistoryRepository.findImpronteDallaPiuLenta(PageRequest.of(pagina, DIMENSIONE_PAGINA_IMPRONTE));
+            for (Long impronta : lette) {
+                if (impronte.size() < n) {
+                    impronte.add(impronta);
+                }
+            }
+            if (lette.size() < DIMENSIONE_PAGINA_IMPRONTE) {
+                // Lette tutte le esecuzioni riuscite
+                return impronte.isEmpty() ? List.of() : queryHistoryRepository.findStatisticheImpronte(impronte);
+            }
+        }
+        if (impronte.size() < n) {
+            return queryHistoryRepository.findSlowestFingerprints(PageRequest.of(0, n));
+        }
+        return queryHistoryRepository.findStatisticheImpronte(impronte);
+    }
+    
+    // Le funzioni di aggregazione restituiscono null se non ci sono righe
+    private static Object[] primaRiga(List<Object[]> righe) {
+        return righe.isEmpty() ? new Object[10] : righe.get(0);
+    }
+    
+    private static long longValue(Object valore) {
+        return valore != null ? ((Number) valore).longValue() : 0L;
+    }
+    
+    private static double doubleValue(Object valore) {
+        return valore != null ? ((Number) valore).doubleValue() : 0.0;
     }
 }
-
-
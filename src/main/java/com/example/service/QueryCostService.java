@@ -0,0 +1,265 @@
+package com.example.service;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.JobStatistics;
+import com.google.cloud.bigquery.QueryJobConfiguration;
+import com.google.cloud.bigquery.QueryParameterValue;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Stima dei byte elaborati tramite dry-run e controllo del budget prima di creare il job reale.
+ * Il budget per IP conta i byte prenotati negli ultimi {@code bigquery.cost.ip-window-ms}
+ * (finestra scorrevole): ogni prenotazione smette di contare quando esce dalla finestra.
+ */
+@Service
+public class QueryCostService {
+
+    private static final double BYTES_PER_TIB = 1024d * 1024 * 1024 * 1024;
+
+    private final BigQuery bigQuery;
+    private final BigQueryResilience resilience;
+
+    @Value("${bigquery.location:US}")
+    private String jobLocation;
+
+    @Value("${bigquery.cost.enabled:true}")
+    private boolean abilitato;
+
+    @Value("${bigquery.cost.max-bytes-per-query:107374182400}")
+    private long maxBytesPerQuery;
+
+    @Value("${bigquery.cost.max-bytes-per-ip:1099511627776}")
+    private long maxBytesPerIp;
+
+    @Value("${bigquery.cost.ip-window-ms:3600000}")
+    private long finestraIpMs;
+
+    @Value("${bigquery.cost.usd-per-tib:6.25}")
+    private double usdPerTib;
+
+    private final Map<String, ConsumoIp> consumi = new ConcurrentHashMap<>();
+
+    public QueryCostService(BigQuery bigQuery, BigQueryResilience resilience) {
+        this.bigQuery = bigQuery;
+        this.resilience = resilience;
+    }
+
+    /**
+     * Esegue un dry-run della query e restituisce i byte che verrebbero elaborati.
+     */
+    public Stima stima(String sql, Map<String, QueryParameterValue> namedParameters) {
+        QueryJobConfiguration.Builder builder = QueryJobConfiguration.newBuilder(sql)
+                .setDryRun(true)
+                .setUseQueryCache(false);
+        if (namedParameters != null && !namedParameters.isEmpty()) {
+            builder.setNamedParameters(namedParameters);
+        }
+        JobId jobId = JobId.newBuilder().setLocation(jobLocation).build();
+        JobInfo jobInfo = JobInfo.newBuilder(builder.build()).setJobId(jobId).build();
+        Job job = resilience.esegui("jobs.insert.dryRun", () -> bigQuery.create(jobInfo));
+
+        Long bytes = null;
+        if (job != null && job.getStatistics() instanceof JobStatistics.QueryStatistics) {
+            bytes = ((JobStatistics.QueryStatistics) job.getStatistics()).getTotalBytesProcessed();
+        }
+        long bytesStimati = bytes != null ? bytes : 0L;
+        return new Stima(bytesStimati, bytesStimati / BYTES_PER_TIB * usdPerTib, maxBytesPerQuery);
+    }
+
+    /**
+     * Stima la query e la ammette solo se rientra nel limite per richiesta e nel budget dell'IP.
+     * I byte stimati vengono addebitati all'IP al momento dell'ammissione; se poi il job non viene
+     * creato la prenotazione va restituita con {@link #rimborsa(Stima)}.
+     */
+    public Stima verificaEPrenota(String sql, Map<String, QueryParameterValue> namedParameters, String userIp) {
+        if (!abilitato) {
+            return null;
+        }
+        Stima stima = stima(sql, namedParameters);
+        if (stima.getBytesStimati() > maxBytesPerQuery) {
+            throw new BudgetSuperatoException(
+                "La query elaborerebbe " + formattaBytes(stima.getBytesStimati()) +
+                ", oltre il limite per richiesta di " + formattaBytes(maxBytesPerQuery),
+                stima, false);
+        }
+        if (userIp != null) {
+            long attesaMs = prenota(userIp, stima);
+            if (attesaMs > 0) {
+                throw new BudgetSuperatoException(
+                    "Budget di " + formattaBytes(maxBytesPerIp) + " per IP esaurito, riprova più tardi",
+                    stima, true, Math.max(1, (attesaMs + 999) / 1000));
+            }
+        }
+        return stima;
+    }
+
+    /**
+     * Restituisce all'IP i byte prenotati per una query il cui job non è stato creato.
+     */
+    public void rimborsa(Stima stima) {
+        Prenotazione prenotazione = stima != null ? stima.prenotazione : null;
+        if (prenotazione == null) {
+            return;
+        }
+        stima.prenotazione = null;
+        ConsumoIp consumo = prenotazione.consumo;
+        synchronized (consumo) {
+            if (consumo.prenotazioni.remove(prenotazione)) {
+                consumo.bytes -= prenotazione.bytes;
+            }
+        }
+    }
+
+    public long getBytesResidui(String userIp) {
+        ConsumoIp consumo = consumi.get(userIp);
+        if (consumo == null) {
+            return maxBytesPerIp;
+        }
+        synchronized (consumo) {
+            consumo.scarta(System.currentTimeMillis() - finestraIpMs);
+            return Math.max(0, maxBytesPerIp - consumo.bytes);
+        }
+    }
+
+    /**
+     * Addebita all'IP i byte stimati. Restituisce 0 se la query è ammessa, altrimenti i millisecondi
+     * dopo i quali le prenotazioni più vecchie lasciano abbastanza budget.
+     */
+    private long prenota(String userIp, Stima stima) {
+        long adesso = System.currentTimeMillis();
+        long inizioFinestra = adesso - finestraIpMs;
+        if (consumi.size() > 10_000) {
+            consumi.values().removeIf(c -> {
+                synchronized (c) {
+                    c.scarta(inizioFinestra);
+                    return c.prenotazioni.isEmpty();
+                }
+            });
+        }
+        ConsumoIp consumo = consumi.computeIfAbsent(userIp, ip -> new ConsumoIp());
+        long bytes = stima.getBytesStimati();
+        synchronized (consumo) {
+            consumo.scarta(inizioFinestra);
+            if (consumo.bytes + bytes > maxBytesPerIp) {
+                long liberati = 0;
+                for (Prenotazione p : consumo.prenotazioni) {
+                    liberati += p.bytes;
+                    if (consumo.bytes - liberati + bytes <= maxBytesPerIp) {
+                        return p.istante + finestraIpMs - adesso;
+                    }
+                }
+                return finestraIpMs;
+            }
+            if (bytes > 0) {
+                Prenotazione prenotazione = new Prenotazione(consumo, adesso, bytes);
+                consumo.prenotazioni.addLast(prenotazione);
+                consumo.bytes += bytes;
+                stima.prenotazione = prenotazione;
+            }
+            return 0;
+        }
+    }
+
+    static String formattaBytes(long bytes) {
+        String[] unita = {"B", "KiB", "MiB", "GiB", "TiB", "PiB"};
+        double valore = bytes;
+        int i = 0;
+        while (valore >= 1024 && i < unita.length - 1) {
+            valore /= 1024;
+            i++;
+        }
+        return String.format("%.2f %s", valore, unita[i]);
+    }
+
+    /**
+     * Prenotazioni dell'IP ancora nella finestra, dalla più vecchia, e la loro somma.
+     */
+    private static final class ConsumoIp {
+        private final ArrayDeque<Prenotazione> prenotazioni = new ArrayDeque<>();
+        private long bytes;
+
+        private void scarta(long inizioFinestra) {
+            while (!prenotazioni.isEmpty() && prenotazioni.peekFirst().istante <= inizioFinestra) {
+                bytes -= prenotazioni.pollFirst().bytes;
+            }
+        }
+    }
+
+    private static final class Prenotazione {
+        private final ConsumoIp consumo;
+        private final long istante;
+        private final long bytes;
+
+        private Prenotazione(ConsumoIp consumo, long istante, long bytes) {
+            this.consumo = consumo;
+            this.istante = istante;
+            this.bytes = bytes;
+        }
+    }
+
+    public static class Stima {
+        private final long bytesStimati;
+        private final double costoStimatoUsd;
+        private final long limitePerQuery;
+        // Byte addebitati all'IP per questa stima, finché non vengono rimborsati
+        private Prenotazione prenotazione;
+
+        public Stima(long bytesStimati, double costoStimatoUsd, long limitePerQuery) {
+            this.bytesStimati = bytesStimati;
+            this.costoStimatoUsd = costoStimatoUsd;
+            this.limitePerQuery = limitePerQuery;
+        }
+
+        public long getBytesStimati() { return bytesStimati; }
+        public double getCostoStimatoUsd() { return costoStimatoUsd; }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> result = new HashMap<>();
+            result.put("bytesStimati", bytesStimati);
+            result.put("bytesStimatiLeggibili", formattaBytes(bytesStimati));
+            result.put("costoStimatoUsd", costoStimatoUsd);
+            result.put("limitePerQuery", limitePerQuery);
+            result.put("entroLimite", bytesStimati <= limitePerQuery);
+            return result;
+        }
+    }
+
+    public static class BudgetSuperatoException extends RuntimeException {
+        private final Stima stima;
+        private final boolean budgetIp;
+        private final long retryAfterSecondi;
+
+        public BudgetSuperatoException(String messaggio, Stima stima, boolean budgetIp) {
+            this(messaggio, stima, budgetIp, 0);
+        }
+
+        public BudgetSuperatoException(String messaggio, Stima stima, boolean budgetIp, long retryAfterSecondi) {
+            super(messaggio);
+            this.stima = stima;
+            this.budgetIp = budgetIp;
+            this.retryAfterSecondi = retryAfterSecondi;
+        }
+
+        public Stima getStima() { return stima; }
+
+        /**
+         * Secondi dopo i quali il budget dell'IP basta per questa query; 0 se non è un superamento del budget per IP.
+         */
+        public long getRetryAfterSecondi() { return retryAfterSecondi; }
+
+        /**
+         * true se è stato superato il budget dell'IP (riprovabile), false se la singola query è troppo costosa.
+         */
+        public boolean isBudgetIp() { return budgetIp; }
+    }
+}
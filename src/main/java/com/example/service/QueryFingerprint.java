@@ -0,0 +1,192 @@
+package com.example.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Impronta di una query SQL: il testo normalizzato e il suo hash a 64 bit.
+ * La normalizzazione rimuove commenti e spazi superflui, porta parole chiave e identificatori in
+ * minuscolo (tranne quelli tra backtick), sostituisce stringhe e numeri con {@code ?} e riduce le
+ * liste di soli valori, come {@code IN (1, 2, 3)}, a {@code (?+)}: query che differiscono solo
+ * per i valori hanno la stessa impronta.
+ */
+public final class QueryFingerprint {
+
+    // Il testo salvato è troncato; l'hash è calcolato sul testo completo
+    public static final int LUNGHEZZA_MASSIMA_TESTO = 1000;
+
+    private static final String OPERATORI = "<>=!|&+-*/%^~";
+
+    private final long hash;
+    private final String testo;
+
+    private QueryFingerprint(long hash, String testo) {
+        this.hash = hash;
+        this.testo = testo;
+    }
+
+    public static QueryFingerprint di(String sql) {
+        String normalizzata = normalizza(sql);
+        String testo = normalizzata.length() > LUNGHEZZA_MASSIMA_TESTO
+                ? normalizzata.substring(0, LUNGHEZZA_MASSIMA_TESTO)
+                : normalizzata;
+        return new QueryFingerprint(hash(normalizzata), testo);
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    public String getTesto() {
+        return testo;
+    }
+
+    /**
+     * Hash in esadecimale, per le risposte JSON (i long oltre 2^53 non sono rappresentabili in JavaScript).
+     */
+    public static String esadecimale(long hash) {
+        return String.format("%016x", hash);
+    }
+
+    static String normalizza(String sql) {
+        StringBuilder out = new StringBuilder(sql.length());
+        Tipo precedente = null;
+        int i = 0;
+        int n = sql.length();
+        while (i < n) {
+            char c = sql.charAt(i);
+            int commento = fineCommento(sql, i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (commento >= 0) {
+                i = commento;
+            } else if (c == '\'' || c == '"') {
+                i = fineStringa(sql, i);
+                precedente = aggiungi(out, precedente, Tipo.VALORE, "?");
+            } else if (c == '`') {
+                int fine = sql.indexOf('`', i + 1);
+                fine = fine < 0 ? n : fine + 1;
+                precedente = aggiungi(out, precedente, Tipo.PAROLA, sql.substring(i, fine));
+                i = fine;
+            } else if (Character.isDigit(c) || (c == '.' && i + 1 < n && Character.isDigit(sql.charAt(i + 1)))) {
+                i = fineNumero(sql, i);
+                precedente = aggiungi(out, precedente, Tipo.VALORE, "?");
+            } else if (Character.isLetter(c) || c == '_' || c == '@') {
+                int inizio = i;
+                while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_' || sql.charAt(i) == '@')) {
+                    i++;
+                }
+                String parola = sql.substring(inizio, i).toLowerCase(Locale.ROOT);
+                // Prefissi di stringhe raw e bytes: r'...', b'...', rb'...'
+                if (i < n && (sql.charAt(i) == '\'' || sql.charAt(i) == '"') && parola.matches("[rb]|rb|br")) {
+                    i = fineStringa(sql, i);
+                    precedente = aggiungi(out, precedente, Tipo.VALORE, "?");
+                } else {
+                    precedente = aggiungi(out, precedente, Tipo.PAROLA, parola);
+                }
+            } else if (OPERATORI.indexOf(c) >= 0) {
+                precedente = aggiungi(out, precedente, Tipo.OPERATORE, String.valueOf(c));
+                i++;
+            } else {
+                precedente = aggiungi(out, precedente, Tipo.PUNTEGGIATURA, String.valueOf(c));
+                i++;
+            }
+        }
+        return out.toString().replaceAll("\\(\\?(, \\?)*\\)", "(?+)");
+    }
+
+    /**
+     * Hash FNV-1a a 64 bit.
+     */
+    static long hash(String testo) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : testo.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private enum Tipo { PAROLA, VALORE, OPERATORE, PUNTEGGIATURA }
+
+    /**
+     * Separa i token con un solo spazio, tranne attorno a punto e parentesi, prima della virgola
+     * e tra operatori consecutivi: la spaziatura originale non influisce sul risultato.
+     */
+    private static Tipo aggiungi(StringBuilder out, Tipo precedente, Tipo tipo, String token) {
+        if (precedente != null) {
+            char ultimo = out.charAt(out.length() - 1);
+            boolean unito = ultimo == '.' || ultimo == '(' || token.equals(".") || token.equals(")")
+                    || token.equals(",") || (precedente == Tipo.OPERATORE && tipo == Tipo.OPERATORE)
+                    || (token.equals("(") && precedente == Tipo.PAROLA);
+            if (!unito) {
+                out.append(' ');
+            }
+        }
+        out.append(token);
+        return tipo;
+    }
+
+    /**
+     * Fine del commento che inizia in {@code inizio} ({@code --} e {@code #} fino a fine riga,
+     * oppure un blocco), o -1 se in quella posizione non inizia un commento.
+     */
+    static int fineCommento(String sql, int inizio) {
+        int n = sql.length();
+        char c = sql.charAt(inizio);
+        if (c == '#' || (c == '-' && inizio + 1 < n && sql.charAt(inizio + 1) == '-')) {
+            int fine = sql.indexOf('\n', inizio);
+            return fine < 0 ? n : fine;
+        }
+        if (c == '/' && inizio + 1 < n && sql.charAt(inizio + 1) == '*') {
+            int fine = sql.indexOf("*/", inizio + 2);
+            return fine < 0 ? n : fine + 2;
+        }
+        return -1;
+    }
+
+    /**
+     * Fine della stringa letterale che inizia in {@code inizio}, con apici singoli, doppi o tripli.
+     */
+    static int fineStringa(String sql, int inizio) {
+        char apice = sql.charAt(inizio);
+        int n = sql.length();
+        boolean tripla = inizio + 2 < n && sql.charAt(inizio + 1) == apice && sql.charAt(inizio + 2) == apice;
+        int i = inizio + (tripla ? 3 : 1);
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == apice && (!tripla || (i + 2 < n && sql.charAt(i + 1) == apice && sql.charAt(i + 2) == apice))) {
+                return i + (tripla ? 3 : 1);
+            } else {
+                i++;
+            }
+        }
+        return n;
+    }
+
+    private static int fineNumero(String sql, int inizio) {
+        int i = inizio;
+        int n = sql.length();
+        if (sql.startsWith("0x", i) || sql.startsWith("0X", i)) {
+            i += 2;
+            while (i < n && Character.digit(sql.charAt(i), 16) >= 0) {
+                i++;
+            }
+            return i;
+        }
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (Character.isDigit(c) || c == '.') {
+                i++;
+            } else if ((c == 'e' || c == 'E') && i + 1 < n
+                    && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '+' || sql.charAt(i + 1) == '-')) {
+                i += 2;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.service;
+
+import com.example.entity.QueryHistory;
+import com.example.repository.QueryHistoryRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Conservazione della cronologia: le righe più vecchie di {@code bigquery.history.retention.days}
+ * vengono eliminate a lotti, dalla più vecchia, restando conteggiate negli aggregati orari, e
+ * rimosse dall'indice di ricerca.
+ * Ogni lotto è una transazione separata eseguita in esclusiva con il writer della cronologia,
+ * così le scritture delle richieste attendono al più un lotto.
+ */
+@Service
+public class QueryHistoryRetentionService {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryHistoryRetentionService.class);
+
+    @Autowired
+    private QueryHistoryRepository queryHistoryRepository;
+
+    @Autowired
+    private QueryHistoryRollupService rollupService;
+
+    @Autowired
+    private QueryHistoryWriter queryHistoryWriter;
+
+    @Autowired
+    private QueryHistorySearchIndex searchIndex;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${bigquery.history.retention.days:30}")
+    private int giorni;
+
+    @Value("${bigquery.history.retention.batch-size:1000}")
+    private int dimensioneLotto;
+
+    private TransactionTemplate transactionTemplate;
+    private Counter righeEliminate;
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        righeEliminate = Counter.builder("bigquery.history.retention.deleted").register(meterRegistry);
+    }
+
+    @Scheduled(cron = "${bigquery.history.retention.cron:0 15 3 * * *}")
+    public void compattaPianificata() {
+        try {
+            compatta(LocalDateTime.now().minusDays(giorni));
+        } catch (RuntimeException e) {
+            log.error("Errore nella compattazione della cronologia", e);
+        }
+    }
+
+    /**
+     * Aggrega le righe create prima del limite non ancora conteggiate negli aggregati e le elimina.
+     *
+     * @return numero di righe eliminate
+     */
+    public long compatta(LocalDateTime limite) {
+        long eliminate = 0;
+        int lotto;
+        do {
+            lotto = queryHistoryWriter.eseguiInEsclusiva(() -> {
+                Map<Long, String> eliminati = transactionTemplate.execute(status -> compattaLotto(limite));
+                searchIndex.rimuovi(eliminati);
+                return eliminati.size();
+            });
+            eliminate += lotto;
+            righeEliminate.increment(lotto);
+        } while (lotto == dimensioneLotto);
+        if (eliminate > 0) {
+            log.info("Compattazione della cronologia: eliminate {} righe precedenti al {}", eliminate, limite);
+        }
+        return eliminate;
+    }
+
+    // Testi SQL delle righe eliminate, per id
+    private Map<Long, String> compattaLotto(LocalDateTime limite) {
+        Map<Long, String> eliminati = new HashMap<>();
+        for (Object[] riga : queryHistoryRepository.findIdETestoCreatiPrima(limite, PageRequest.of(0, dimensioneLotto))) {
+            eliminati.put((Long) riga[0], (String) riga[1]);
+        }
+        if (eliminati.isEmpty()) {
+            return eliminati;
+        }
+        List<QueryHistory> daAggregare = queryHistoryRepository.findNonAggregate(eliminati.keySet());
+        rollupService.aggiungi(daAggregare);
+        queryHistoryRepository.deleteAllByIdInBatch(eliminati.keySet());
+        return eliminati;
+    }
+}
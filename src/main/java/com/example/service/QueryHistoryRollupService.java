@@ -0,0 +1,192 @@
+package com.example.service;
+
+import com.example.entity.QueryHistory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Aggiornamento incrementale degli aggregati della cronologia, per ora e IP e per impronta della query.
+ * Le query di un lotto vengono sommate in memoria per chiave; ogni aggregato riceve poi un solo
+ * incremento atomico sul database (un batch JDBC di MERGE per tabella e lotto), quindi il writer della
+ * cronologia e la compattazione possono aggiornarlo senza coordinarsi.
+ */
+@Service
+public class QueryHistoryRollupService {
+
+    // Chiave per le query registrate senza IP
+    static final String IP_SCONOSCIUTO = "sconosciuto";
+
+    // Somma gli incrementi all'aggregato dell'ora e dell'IP, creando la riga se manca, senza leggerla prima.
+    // Il minimo delle riuscite è null finché non ce n'è una: LEAST con COALESCE ignora il lato ancora vuoto
+    private static final String INCREMENTA =
+            "MERGE INTO query_history_rollup r " +
+            "USING (VALUES (CAST(? AS TIMESTAMP), CAST(? AS VARCHAR), CAST(? AS BIGINT), CAST(? AS BIGINT), " +
+            "CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS BIGINT), " +
+            "CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS BIGINT), " +
+            "CAST(? AS BIGINT), CAST(? AS BIGINT))) " +
+            "v(bucket_start, user_ip, totali, riuscite, annullate, tempo_totale, tempo_riuscite, tempo_massimo, " +
+            "minimo_riuscite, massimo_riuscite, con_statistiche, tempo_server, tempo_client, bytes_elaborati, " +
+            "bytes_fatturati, cache_hit) " +
+            "ON r.bucket_start = v.bucket_start AND r.user_ip = v.user_ip " +
+            "WHEN MATCHED THEN UPDATE SET total_queries = r.total_queries + v.totali, " +
+            "successful_queries = r.successful_queries + v.riuscite, cancelled_queries = r.cancelled_queries + v.annullate, " +
+            "total_time_ms = r.total_time_ms + v.tempo_totale, successful_time_ms = r.successful_time_ms + v.tempo_riuscite, " +
+            "max_time_ms = GREATEST(r.max_time_ms, v.tempo_massimo), " +
+            "successful_min_time_ms = LEAST(COALESCE(r.successful_min_time_ms, v.minimo_riuscite), " +
+            "COALESCE(v.minimo_riuscite, r.successful_min_time_ms)), " +
+            "successful_max_time_ms = GREATEST(r.successful_max_time_ms, v.massimo_riuscite), " +
+            "job_stats_queries = r.job_stats_queries + v.con_statistiche, server_time_ms = r.server_time_ms + v.tempo_server, " +
+            "client_time_ms = r.client_time_ms + v.tempo_client, bytes_processed = r.bytes_processed + v.bytes_elaborati, " +
+            "bytes_billed = r.bytes_billed + v.bytes_fatturati, bigquery_cache_hits = r.bigquery_cache_hits + v.cache_hit " +
+            "WHEN NOT MATCHED THEN INSERT (bucket_start, user_ip, total_queries, successful_queries, cancelled_queries, " +
+            "total_time_ms, successful_time_ms, max_time_ms, successful_min_time_ms, successful_max_time_ms, " +
+            "job_stats_queries, server_time_ms, client_time_ms, bytes_processed, bytes_billed, bigquery_cache_hits) " +
+            "VALUES (v.bucket_start, v.user_ip, v.totali, v.riuscite, v.annullate, v.tempo_totale, v.tempo_riuscite, " +
+            "v.tempo_massimo, v.minimo_riuscite, v.massimo_riuscite, v.con_statistiche, v.tempo_server, v.tempo_client, " +
+            "v.bytes_elaborati, v.bytes_fatturati, v.cache_hit)";
+
+    // Somma le esecuzioni riuscite all'impronta, creando la riga con il testo normalizzato se manca
+    private static final String INCREMENTA_IMPRONTA =
+            "MERGE INTO query_fingerprint_rollup f " +
+            "USING (VALUES (CAST(? AS BIGINT), CAST(? AS VARCHAR), CAST(? AS BIGINT))) v(fingerprint, testo, riuscite) " +
+            "ON f.fingerprint = v.fingerprint " +
+            "WHEN MATCHED THEN UPDATE SET successful_queries = f.successful_queries + v.riuscite " +
+            "WHEN NOT MATCHED THEN INSERT (fingerprint, normalized_query, successful_queries) " +
+            "VALUES (v.fingerprint, v.testo, v.riuscite)";
+
+    // Usa la connessione della transazione JPA in corso
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * Aggiunge agli aggregati le query appena concluse. Le esecuzioni senza esito (mai concluse) contano come fallite.
+     * Le riuscite con un'impronta incrementano anche l'aggregato della loro impronta.
+     */
+    @Transactional
+    public void aggiungi(Collection<QueryHistory> concluse) {
+        Map<Chiave, Incremento> incrementi = new LinkedHashMap<>();
+        Map<Long, IncrementoImpronta> impronte = new LinkedHashMap<>();
+        for (QueryHistory queryHistory : concluse) {
+            incrementi.computeIfAbsent(chiave(queryHistory), c -> new Incremento()).aggiungi(queryHistory);
+            if (Boolean.TRUE.equals(queryHistory.getSuccess()) && queryHistory.getFingerprint() != null) {
+                impronte.computeIfAbsent(queryHistory.getFingerprint(),
+                        f -> new IncrementoImpronta(queryHistory.getNormalizedQuery())).riuscite++;
+            }
+        }
+        if (incrementi.isEmpty()) {
+            return;
+        }
+        List<Object[]> parametri = new ArrayList<>(incrementi.size());
+        incrementi.forEach((chiave, incremento) -> parametri.add(new Object[] {
+                Timestamp.valueOf(chiave.ora), chiave.userIp, incremento.totali, incremento.riuscite,
+                incremento.annullate, incremento.tempoTotale, incremento.tempoRiuscite, incremento.tempoMassimo,
+                incremento.minimoRiuscite, incremento.massimoRiuscite, incremento.conStatistiche,
+                incremento.tempoServer, incremento.tempoClient, incremento.bytesElaborati,
+                incremento.bytesFatturati, incremento.cacheHit }));
+        jdbcTemplate.batchUpdate(INCREMENTA, parametri);
+        if (!impronte.isEmpty()) {
+            List<Object[]> parametriImpronte = new ArrayList<>(impronte.size());
+            impronte.forEach((impronta, incremento) -> parametriImpronte.add(new Object[] {
+                    impronta, incremento.testo, incremento.riuscite }));
+            jdbcTemplate.batchUpdate(INCREMENTA_IMPRONTA, parametriImpronte);
+        }
+    }
+
+    static Chiave chiave(QueryHistory queryHistory) {
+        LocalDateTime createdAt = queryHistory.getCreatedAt() != null ? queryHistory.getCreatedAt() : LocalDateTime.now();
+        String userIp = queryHistory.getUserIp() != null ? queryHistory.getUserIp() : IP_SCONOSCIUTO;
+        return new Chiave(createdAt.truncatedTo(ChronoUnit.HOURS), userIp);
+    }
+
+    static final class Chiave {
+        private final LocalDateTime ora;
+        private final String userIp;
+
+        private Chiave(LocalDateTime ora, String userIp) {
+            this.ora = ora;
+            this.userIp = userIp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Chiave)) {
+                return false;
+            }
+            Chiave chiave = (Chiave) o;
+            return ora.equals(chiave.ora) && userIp.equals(chiave.userIp);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ora, userIp);
+        }
+    }
+
+    private static final class Incremento {
+        private long totali;
+        private long riuscite;
+        private long annullate;
+        private long tempoTotale;
+        private long tempoRiuscite;
+        private long tempoMassimo;
+        private Long minimoRiuscite;
+        private long massimoRiuscite;
+        private long conStatistiche;
+        private long tempoServer;
+        private long tempoClient;
+        private long bytesElaborati;
+        private long bytesFatturati;
+        private long cacheHit;
+
+        private void aggiungi(QueryHistory queryHistory) {
+            long tempo = queryHistory.getExecutionTimeMs() != null ? queryHistory.getExecutionTimeMs() : 0L;
+            totali++;
+            tempoTotale += tempo;
+            tempoMassimo = Math.max(tempoMassimo, tempo);
+            if (Boolean.TRUE.equals(queryHistory.getSuccess())) {
+                riuscite++;
+                tempoRiuscite += tempo;
+                if (queryHistory.getExecutionTimeMs() != null) {
+                    minimoRiuscite = minimoRiuscite != null ? Math.min(minimoRiuscite, tempo) : tempo;
+                    massimoRiuscite = Math.max(massimoRiuscite, tempo);
+                }
+                // Tempo client: quanto l'esecuzione supera il tempo speso in BigQuery
+                Long server = queryHistory.getServerTimeMs();
+                if (server != null) {
+                    conStatistiche++;
+                    tempoServer += server;
+                    tempoClient += Math.max(tempo - server, 0L);
+                    bytesElaborati += queryHistory.getBytesProcessed() != null ? queryHistory.getBytesProcessed() : 0L;
+                    bytesFatturati += queryHistory.getBytesBilled() != null ? queryHistory.getBytesBilled() : 0L;
+                    if (Boolean.TRUE.equals(queryHistory.getCacheHit())) {
+                        cacheHit++;
+                    }
+                }
+            }
+            if (Boolean.TRUE.equals(queryHistory.getCancelled())) {
+                annullate++;
+            }
+        }
+    }
+
+    private static final class IncrementoImpronta {
+        private final String testo;
+        private long riuscite;
+
+        private IncrementoImpronta(String testo) {
+            this.testo = testo;
+        }
+    }
+}
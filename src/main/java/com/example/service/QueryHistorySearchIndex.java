@@ -0,0 +1,150 @@
+package com.example.service;
+
+import com.example.entity.QueryHistory;
+import com.example.repository.QueryHistoryRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Indice di ricerca in memoria sul testo SQL della cronologia.
+ * Viene costruito dal database all'avvio, poi aggiornato dal writer della cronologia dopo ogni
+ * lotto salvato e dalla compattazione per le righe eliminate. Le ricerche si eseguono in parallelo
+ * tra loro e attendono solo gli aggiornamenti in corso; la verifica dei testi candidati avviene
+ * fuori dal lock, così una ricerca lenta non ritarda il writer.
+ */
+@Service
+public class QueryHistorySearchIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryHistorySearchIndex.class);
+
+    @Autowired
+    private QueryHistoryRepository queryHistoryRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${bigquery.history.search.rebuild-batch-size:10000}")
+    private int dimensioneLotto;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private TrigramIndex indice = new TrigramIndex();
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("bigquery.history.search.entries", this, QueryHistorySearchIndex::getNumeroVoci).register(meterRegistry);
+        ricostruisci();
+    }
+
+    /**
+     * Ricostruisce l'indice leggendo la cronologia a lotti, in ordine di id.
+     */
+    public void ricostruisci() {
+        long inizio = System.currentTimeMillis();
+        TrigramIndex nuovo = new TrigramIndex();
+        long ultimoId = 0;
+        List<Object[]> lotto;
+        do {
+            lotto = queryHistoryRepository.findTestiDopo(ultimoId, PageRequest.of(0, dimensioneLotto));
+            for (Object[] riga : lotto) {
+                ultimoId = (Long) riga[0];
+                if (riga[1] != null) {
+                    nuovo.aggiungi(ultimoId, (String) riga[1]);
+                }
+            }
+        } while (lotto.size() == dimensioneLotto);
+        lock.writeLock().lock();
+        try {
+            indice = nuovo;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Indice di ricerca della cronologia: {} esecuzioni, {} testi distinti, costruito in {} ms",
+                nuovo.getNumeroVoci(), nuovo.getNumeroTesti(), System.currentTimeMillis() - inizio);
+    }
+
+    /**
+     * Aggiunge le esecuzioni appena salvate (con l'id assegnato).
+     */
+    public void aggiungi(Collection<QueryHistory> salvate) {
+        lock.writeLock().lock();
+        try {
+            for (QueryHistory queryHistory : salvate) {
+                if (queryHistory.getId() != null && queryHistory.getSqlQuery() != null) {
+                    indice.aggiungi(queryHistory.getId(), queryHistory.getSqlQuery());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rimuove le esecuzioni eliminate dalla cronologia, indicate con il rispettivo testo SQL.
+     */
+    public void rimuovi(Map<Long, String> testiPerId) {
+        lock.writeLock().lock();
+        try {
+            indice.rimuovi(testiPerId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void svuota() {
+        lock.writeLock().lock();
+        try {
+            indice = new TrigramIndex();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Id delle esecuzioni che contengono tutti i termini cercati, per pertinenza decrescente.
+     */
+    TrigramIndex.Risultati cerca(String ricerca, int inizio, int limite) {
+        String[] termini = TrigramIndex.termini(ricerca);
+        if (termini.length == 0) {
+            return new TrigramIndex.Risultati(0, false, List.of());
+        }
+        TrigramIndex corrente;
+        TrigramIndex.Candidati candidati;
+        lock.readLock().lock();
+        try {
+            corrente = indice;
+            candidati = corrente.candidati(termini);
+        } finally {
+            lock.readLock().unlock();
+        }
+        TrigramIndex.Classifica classifica = TrigramIndex.classifica(candidati, termini, (long) inizio + limite);
+        // Se nel frattempo l'indice è stato ricostruito, i numeri dei testi restano quelli del vecchio
+        lock.readLock().lock();
+        try {
+            return corrente.pagina(classifica, inizio, limite);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getNumeroVoci() {
+        lock.readLock().lock();
+        try {
+            return indice.getNumeroVoci();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -1,14 +1,35 @@
 package com.example.service;
 
 import com.example.entity.QueryHistory;
+import com.example.repository.QueryFingerprintRollupRepository;
 import com.example.repository.QueryHistoryRepository;
+import com.example.repository.QueryHistoryRollupRepository;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.bigquery.JobStatistics;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
 
 @Service
 public class QueryHistoryService {
@@ -16,75 +37,291 @@ public class QueryHistoryService {
     @Autowired
     private QueryHistoryRepository queryHistoryRepository;
     
+    @Autowired
+    private QueryHistoryRollupRepository rollupRepository;
+    
+    @Autowired
+    private QueryFingerprintRollupRepository fingerprintRollupRepository;
+    
+    @Autowired
+    private QueryHistoryWriter queryHistoryWriter;
+    
+    @Autowired
+    private QueryHistorySearchIndex searchIndex;
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    @PersistenceContext
+    private EntityManager entityManager;
+    
+    @Value("${bigquery.history.export.flush-rows:1000}")
+    private int righePerFlush;
+    
+    /**
+     * Registra l'inizio di un'esecuzione. La scrittura sul database avviene in differita,
+     * quindi l'id della riga non è ancora disponibile.
+     */
     public QueryHistory salvaQuery(String sqlQuery, String userIp) {
+        QueryHistory queryHistory = nuovaQuery(sqlQuery, userIp);
+        queryHistoryWriter.inserisci(queryHistory);
+        return queryHistory;
+    }
+    
+    public QueryHistory salvaQueryCondivisa(String sqlQuery, String userIp) {
+        // Query servita dal risultato di un'esecuzione identica già in corso
+        QueryHistory queryHistory = nuovaQuery(sqlQuery, userIp);
+        queryHistory.setCoalesced(true);
+        queryHistoryWriter.inserisci(queryHistory);
+        return queryHistory;
+    }
+    
+    private static QueryHistory nuovaQuery(String sqlQuery, String userIp) {
         QueryHistory queryHistory = new QueryHistory(sqlQuery, userIp);
-        return queryHistoryRepository.save(queryHistory);
+        if (sqlQuery != null) {
+            QueryFingerprint impronta = QueryFingerprint.di(sqlQuery);
+            queryHistory.setFingerprint(impronta.getHash());
+            queryHistory.setNormalizedQuery(impronta.getTesto());
+        }
+        return queryHistory;
+    }
+    
+    public void aggiornaQueryCompletata(QueryHistory queryHistory, Long executionTimeMs, Integer rowsReturned, boolean success, String errorMessage) {
+        aggiornaQueryCompletata(queryHistory, executionTimeMs, rowsReturned, success, errorMessage, null, null);
+    }
+    
+    /**
+     * Aggiorna l'esecuzione con l'esito e, se disponibili, l'id e le statistiche del job BigQuery.
+     * Le statistiche vanno passate solo per la richiesta che ha creato il job, così byte e slot
+     * delle richieste condivise non vengono contati più volte.
+     */
+    public void aggiornaQueryCompletata(QueryHistory queryHistory, Long executionTimeMs, Integer rowsReturned, boolean success,
+                                        String errorMessage, String jobId, JobStatistics statistiche) {
+        queryHistoryWriter.aggiorna(queryHistory, q -> {
+            q.setExecutionTimeMs(executionTimeMs);
+            q.setRowsReturned(rowsReturned);
+            q.setSuccess(success);
+            q.setErrorMessage(errorMessage);
+            q.setJobId(jobId);
+            applicaStatistiche(q, statistiche);
+        });
+    }
+    
+    public void aggiornaQueryAnnullata(QueryHistory queryHistory, Long executionTimeMs, String motivo) {
+        aggiornaQueryAnnullata(queryHistory, executionTimeMs, motivo, null);
+    }
+    
+    public void aggiornaQueryAnnullata(QueryHistory queryHistory, Long executionTimeMs, String motivo, String jobId) {
+        queryHistoryWriter.aggiorna(queryHistory, q -> {
+            q.setExecutionTimeMs(executionTimeMs);
+            q.setRowsReturned(0);
+            q.setSuccess(false);
+            q.setCancelled(true);
+            q.setErrorMessage(motivo);
+            q.setJobId(jobId);
+        });
     }
     
-    public void aggiornaQueryCompletata(Long queryId, Long executionTimeMs, Integer rowsReturned, boolean success, String errorMessage) {
-        QueryHistory queryHistory = queryHistoryRepository.findById(queryId).orElse(null);
-        if (queryHistory != null) {
-            queryHistory.setExecutionTimeMs(executionTimeMs);
-            queryHistory.setRowsReturned(rowsReturned);
-            queryHistory.setSuccess(success);
-            queryHistory.setErrorMessage(errorMessage);
-            queryHistoryRepository.save(queryHistory);
+    static void applicaStatistiche(QueryHistory queryHistory, JobStatistics statistiche) {
+        if (statistiche == null) {
+            return;
         }
+        queryHistory.setJobCreatedAt(toLocalDateTime(statistiche.getCreationTime()));
+        queryHistory.setJobStartedAt(toLocalDateTime(statistiche.getStartTime()));
+        queryHistory.setJobEndedAt(toLocalDateTime(statistiche.getEndTime()));
+        if (statistiche.getCreationTime() != null && statistiche.getEndTime() != null) {
+            queryHistory.setServerTimeMs(statistiche.getEndTime() - statistiche.getCreationTime());
+        }
+        if (statistiche instanceof JobStatistics.QueryStatistics) {
+            JobStatistics.QueryStatistics query = (JobStatistics.QueryStatistics) statistiche;
+            queryHistory.setBytesProcessed(query.getTotalBytesProcessed());
+            queryHistory.setBytesBilled(query.getTotalBytesBilled());
+            queryHistory.setCacheHit(query.getCacheHit());
+            queryHistory.setSlotMs(query.getTotalSlotMs());
+        }
+    }
+    
+    private static LocalDateTime toLocalDateTime(Long epochMillis) {
+        // Stesso fuso di createdAt
+        return epochMillis != null ? LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault()) : null;
+    }
+    
+    /**
+     * Cronologia dalla query più recente, una pagina alla volta: {@code cursore} è null per la prima pagina,
+     * poi quello restituito dalla pagina precedente.
+     */
+    public PaginaCronologia getCronologia(String cursore, int dimensione) {
+        return pagina(cursore, dimensione, (c, p) -> queryHistoryRepository.findPaginaDopo(c.getCreatedAt(), c.getId(), p));
+    }
+    
+    public PaginaCronologia getCronologiaQuery(String userIp, String cursore, int dimensione) {
+        return pagina(cursore, dimensione,
+                (c, p) -> queryHistoryRepository.findPaginaPerIpDopo(userIp, c.getCreatedAt(), c.getId(), p));
+    }
+    
+    public PaginaCronologia getCronologiaQuery(LocalDateTime start, LocalDateTime end, String cursore, int dimensione) {
+        return pagina(cursore, dimensione,
+                (c, p) -> queryHistoryRepository.findPaginaPerPeriodoDopo(start, end, c.getCreatedAt(), c.getId(), p));
+    }
+    
+    /**
+     * Cerca nella cronologia le esecuzioni il cui SQL contiene tutti i termini indicati, tramite l'indice
+     * in memoria: risultati per pertinenza decrescente e, a parità, dal più recente.
+     */
+    public Map<String, Object> cercaQuery(String ricerca, int pagina, int dimensione) {
+        long inizio = System.nanoTime();
+        TrigramIndex.Risultati trovati = searchIndex.cerca(ricerca, (int) Math.min(Integer.MAX_VALUE, (long) pagina * dimensione), dimensione);
+        List<Long> ids = trovati.getRisultati().stream().map(TrigramIndex.Risultato::getId).toList();
+        Map<Long, QueryHistory> righe = new HashMap<>();
+        queryHistoryRepository.findAllById(ids).forEach(q -> righe.put(q.getId(), q));
+        
+        List<Map<String, Object>> risultati = new ArrayList<>();
+        for (TrigramIndex.Risultato risultato : trovati.getRisultati()) {
+            QueryHistory queryHistory = righe.get(risultato.getId());
+            if (queryHistory != null) {
+                Map<String, Object> voce = new LinkedHashMap<>();
+                voce.put("id", queryHistory.getId());
+                voce.put("query", queryHistory.getSqlQuery());
+                voce.put("punteggio", risultato.getPunteggio());
+                voce.put("userIp", queryHistory.getUserIp());
+                voce.put("createdAt", queryHistory.getCreatedAt());
+                voce.put("success", queryHistory.getSuccess());
+                voce.put("cancelled", queryHistory.getCancelled());
+                voce.put("executionTimeMs", queryHistory.getExecutionTimeMs());
+                risultati.add(voce);
+            }
+        }
+        
+        Map<String, Object> risposta = new LinkedHashMap<>();
+        risposta.put("ricerca", ricerca);
+        risposta.put("pagina", pagina);
+        risposta.put("dimensione", dimensione);
+        risposta.put("totaleRisultati", trovati.getTotale());
+        risposta.put("totaleStimato", trovati.isTotaleStimato());
+        risposta.put("risultati", risultati);
+        risposta.put("tempoRicercaMs", (System.nanoTime() - inizio) / 1_000_000.0);
+        return risposta;
     }
     
-    public List<QueryHistory> getCronologiaQuery(String userIp) {
-        return queryHistoryRepository.findByUserIpOrderByCreatedAtDesc(userIp);
+    public PaginaCronologia getQueryRiuscite(String cursore, int dimensione) {
+        return pagina(cursore, dimensione,
+                (c, p) -> queryHistoryRepository.findPaginaRiusciteDopo(c.getCreatedAt(), c.getId(), p));
     }
     
-    public List<QueryHistory> getCronologiaQuery(LocalDateTime start, LocalDateTime end) {
-        return queryHistoryRepository.findByCreatedAtBetweenOrderByCreatedAtDesc(start, end);
+    public PaginaCronologia getQueryFallite(String cursore, int dimensione) {
+        return pagina(cursore, dimensione,
+                (c, p) -> queryHistoryRepository.findPaginaFalliteDopo(c.getCreatedAt(), c.getId(), p));
     }
     
-    public List<QueryHistory> cercaQuery(String searchTerm) {
-        return queryHistoryRepository.findBySqlQueryContaining(searchTerm);
+    public PaginaCronologia getQueryAnnullate(String cursore, int dimensione) {
+        return pagina(cursore, dimensione,
+                (c, p) -> queryHistoryRepository.findPaginaAnnullateDopo(c.getCreatedAt(), c.getId(), p));
     }
     
-    public List<QueryHistory> getQueryRiuscite() {
-        return queryHistoryRepository.findBySuccessTrueOrderByCreatedAtDesc();
+    private static PaginaCronologia pagina(String cursore, int dimensione,
+                                           BiFunction<HistoryCursor, Pageable, Slice<QueryHistory>> lettura) {
+        Slice<QueryHistory> slice = lettura.apply(HistoryCursor.decodifica(cursore), PageRequest.of(0, dimensione));
+        List<QueryHistory> righe = slice.getContent();
+        String successivo = null;
+        if (slice.hasNext()) {
+            QueryHistory ultima = righe.get(righe.size() - 1);
+            successivo = new HistoryCursor(ultima.getCreatedAt(), ultima.getId()).codifica();
+        }
+        return new PaginaCronologia(righe, successivo);
     }
     
-    public List<QueryHistory> getQueryFallite() {
-        return queryHistoryRepository.findBySuccessFalseOrderByCreatedAtDesc();
+    public List<Object[]> getStatistichePerIp(int pagina, int dimensione) {
+        return queryHistoryRepository.getQueryStatisticsByIp(PageRequest.of(pagina, dimensione));
     }
     
-    public List<Object[]> getStatistichePerIp() {
-        return queryHistoryRepository.getQueryStatisticsByIp();
+    public Slice<QueryHistory> getQueryPiuLente(int pagina, int dimensione) {
+        return queryHistoryRepository.findBySuccessTrueOrderByExecutionTimeMsDesc(PageRequest.of(pagina, dimensione));
     }
     
-    public List<QueryHistory> getQueryPiuLente() {
-        return queryHistoryRepository.findSlowestQueries();
+    public List<Object[]> getQueryPiuFrequenti(int pagina, int dimensione) {
+        return fingerprintRollupRepository.findPiuFrequenti(PageRequest.of(pagina, dimensione));
     }
     
-    public List<Object[]> getQueryPiuFrequenti() {
-        return queryHistoryRepository.findMostFrequentQueries();
+    /**
+     * Scrive la cronologia del periodo come JSON delimitato da newline, dalla query più vecchia.
+     * Le righe arrivano dal database a blocchi e vengono staccate dal contesto di persistenza appena
+     * scritte: la memoria usata non dipende dal numero di righe esportate.
+     *
+     * @return numero di righe scritte
+     */
+    @Transactional(readOnly = true)
+    public long esportaNdjson(LocalDateTime inizio, LocalDateTime fine, OutputStream out) throws IOException {
+        long righe = 0;
+        try (Stream<QueryHistory> cronologia = queryHistoryRepository.streamPerPeriodo(inizio, fine);
+             JsonGenerator generator = objectMapper.createGenerator(out)) {
+            generator.setRootValueSeparator(null);
+            Iterator<QueryHistory> iteratore = cronologia.iterator();
+            while (iteratore.hasNext()) {
+                QueryHistory queryHistory = iteratore.next();
+                generator.writeObject(queryHistory);
+                generator.writeRaw('\n');
+                entityManager.detach(queryHistory);
+                if (++righe % righePerFlush == 0) {
+                    generator.flush();
+                }
+            }
+        }
+        return righe;
     }
     
     public Map<String, Object> getStatisticheGenerali() {
         Map<String, Object> stats = new HashMap<>();
         
-        long totalQueries = queryHistoryRepository.count();
-        long successfulQueries = queryHistoryRepository.findBySuccessTrueOrderByCreatedAtDesc().size();
-        long failedQueries = queryHistoryRepository.findBySuccessFalseOrderByCreatedAtDesc().size();
+        // Dagli aggregati, come la dashboard: niente scansioni della cronologia e conteggi stabili dopo la compattazione
+        List<Object[]> righe = rollupRepository.getTotali();
+        Object[] totali = righe.isEmpty() ? new Object[3] : righe.get(0);
+        long totalQueries = totali[0] != null ? ((Number) totali[0]).longValue() : 0L;
+        long successfulQueries = totali[1] != null ? ((Number) totali[1]).longValue() : 0L;
+        long cancelledQueries = totali[2] != null ? ((Number) totali[2]).longValue() : 0L;
+        long failedQueries = totalQueries - successfulQueries - cancelledQueries;
         
         stats.put("queryTotali", totalQueries);
         stats.put("queryRiuscite", successfulQueries);
         stats.put("queryFallite", failedQueries);
+        stats.put("queryAnnullate", cancelledQueries);
         stats.put("percentualeSuccesso", totalQueries > 0 ? (double) successfulQueries / totalQueries * 100 : 0);
         
         return stats;
     }
     
     public void eliminaQuery(Long id) {
-        queryHistoryRepository.deleteById(id);
+        queryHistoryRepository.findById(id).ifPresent(queryHistory -> {
+            queryHistoryRepository.delete(queryHistory);
+            if (queryHistory.getSqlQuery() != null) {
+                searchIndex.rimuovi(Map.of(id, queryHistory.getSqlQuery()));
+            }
+        });
     }
     
     public void eliminaCronologiaCompleta() {
-        queryHistoryRepository.deleteAll();
+        queryHistoryRepository.deleteAllInBatch();
+        searchIndex.svuota();
+    }
+    
+    public static class PaginaCronologia {
+        private final List<QueryHistory> righe;
+        private final String cursoreSuccessivo;
+        
+        public PaginaCronologia(List<QueryHistory> righe, String cursoreSuccessivo) {
+            this.righe = righe;
+            this.cursoreSuccessivo = cursoreSuccessivo;
+        }
+        
+        public List<QueryHistory> getRighe() { return righe; }
+        public String getCursoreSuccessivo() { return cursoreSuccessivo; }
+        
+        public Map<String, Object> toMap() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("risultati", righe);
+            result.put("righe", righe.size());
+            result.put("cursore", cursoreSuccessivo);
+            return result;
+        }
     }
 }
 
@@ -0,0 +1,300 @@
+package com.example.service;
+
+import com.example.entity.QueryHistory;
+import com.example.repository.QueryHistoryRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Scrittura differita della cronologia delle query.
+ * I thread delle richieste accodano gli eventi di inizio e fine; un thread dedicato li unisce
+ * (inizio e fine nello stesso lotto diventano un solo INSERT) e li scrive a lotti, quando la coda
+ * raggiunge la dimensione del lotto o allo scadere dell'intervallo.
+ * Se la coda è piena, il chiamante svuota la coda e scrive l'evento di persona, rispettando
+ * l'ordine inizio/fine. Gli eventi che non è possibile salvare nemmeno riga per riga vengono
+ * contati in bigquery.history.writer.failed.
+ */
+@Service
+public class QueryHistoryWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryHistoryWriter.class);
+
+    @Autowired
+    private QueryHistoryRepository queryHistoryRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private QueryHistoryRollupService rollupService;
+
+    @Autowired
+    private QueryHistorySearchIndex searchIndex;
+
+    @Autowired
+    private QueryMetrics queryMetrics;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${bigquery.history.writer.capacity:10000}")
+    private int capacita;
+
+    @Value("${bigquery.history.writer.batch-size:50}")
+    private int dimensioneLotto;
+
+    @Value("${bigquery.history.writer.flush-interval-ms:500}")
+    private long intervalloMs;
+
+    // Coda senza lock, limitata tramite il contatore
+    private final Queue<Evento> coda = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inCoda = new AtomicInteger();
+    private final Object scrittura = new Object();
+
+    private TransactionTemplate transactionTemplate;
+    private Counter scrittureDirette;
+    private Counter eventiScartati;
+    private volatile boolean attivo;
+    private Thread writer;
+
+    @PostConstruct
+    public void avvia() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        scrittureDirette = Counter.builder("bigquery.history.writer.overflow").register(meterRegistry);
+        eventiScartati = Counter.builder("bigquery.history.writer.failed").register(meterRegistry);
+        Gauge.builder("bigquery.history.writer.queue", inCoda, AtomicInteger::get).register(meterRegistry);
+        attivo = true;
+        writer = new Thread(this::esegui, "query-history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Ferma il thread di scrittura e salva gli eventi rimasti in coda.
+     */
+    @PreDestroy
+    public void arresta() {
+        attivo = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        svuota();
+    }
+
+    /**
+     * Accoda l'inserimento di una nuova esecuzione; l'id viene assegnato al momento della scrittura.
+     */
+    public void inserisci(QueryHistory queryHistory) {
+        pubblica(new Evento(queryHistory, null));
+    }
+
+    /**
+     * Accoda una modifica a un'esecuzione già accodata con {@link #inserisci}.
+     */
+    public void aggiorna(QueryHistory queryHistory, Consumer<QueryHistory> modifica) {
+        pubblica(new Evento(queryHistory, modifica));
+    }
+
+    /**
+     * Scrive subito tutti gli eventi in coda.
+     */
+    public void svuota() {
+        synchronized (scrittura) {
+            List<Evento> lotto;
+            while (!(lotto = preleva()).isEmpty()) {
+                scrivi(lotto);
+            }
+        }
+    }
+
+    /**
+     * Esegue l'operazione senza scritture concorrenti della cronologia, ad esempio per aggiornare
+     * gli aggregati al di fuori dei lotti. Le scritture restano in coda fino al termine.
+     */
+    public <T> T eseguiInEsclusiva(Supplier<T> operazione) {
+        synchronized (scrittura) {
+            return operazione.get();
+        }
+    }
+
+    public int getNumeroInCoda() {
+        return inCoda.get();
+    }
+
+    private void pubblica(Evento evento) {
+        if (!attivo || inCoda.incrementAndGet() > capacita) {
+            if (attivo) {
+                inCoda.decrementAndGet();
+                scrittureDirette.increment();
+            }
+            synchronized (scrittura) {
+                svuota();
+                scrivi(List.of(evento));
+            }
+            return;
+        }
+        coda.offer(evento);
+        if (inCoda.get() >= dimensioneLotto) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void esegui() {
+        while (attivo) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(intervalloMs));
+            try {
+                svuota();
+            } catch (RuntimeException e) {
+                log.error("Errore nella scrittura della cronologia", e);
+            }
+        }
+    }
+
+    private List<Evento> preleva() {
+        List<Evento> lotto = new ArrayList<>(dimensioneLotto);
+        Evento evento;
+        while (lotto.size() < dimensioneLotto && (evento = coda.poll()) != null) {
+            inCoda.decrementAndGet();
+            lotto.add(evento);
+        }
+        return lotto;
+    }
+
+    /**
+     * Inserisce le nuove esecuzioni e applica le modifiche: quelle delle esecuzioni inserite nello stesso
+     * lotto vengono applicate prima dell'INSERT, le altre alle righe lette con un'unica SELECT.
+     * Le esecuzioni che ricevono l'esito in questo lotto vengono aggiunte agli aggregati nella stessa transazione;
+     * quelle nuove entrano nell'indice di ricerca dopo il commit.
+     * Se il lotto non può essere scritto, le righe vengono ritentate una per transazione, così
+     * una riga non valida non fa perdere le altre.
+     */
+    private void scrivi(List<Evento> lotto) {
+        List<QueryHistory> nuove = new ArrayList<>();
+        // Eventi confluiti in ciascuna nuova esecuzione: inserimento e modifiche dello stesso lotto
+        Map<QueryHistory, Integer> eventiNuove = new IdentityHashMap<>();
+        Set<QueryHistory> concluse = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<Long, List<Consumer<QueryHistory>>> modifiche = new LinkedHashMap<>();
+        for (Evento evento : lotto) {
+            QueryHistory queryHistory = evento.queryHistory;
+            if (evento.modifica == null) {
+                nuove.add(queryHistory);
+                eventiNuove.put(queryHistory, 1);
+            } else if (eventiNuove.containsKey(queryHistory)) {
+                applica(evento.modifica, queryHistory, concluse);
+                eventiNuove.merge(queryHistory, 1, Integer::sum);
+            } else if (queryHistory.getId() != null) {
+                modifiche.computeIfAbsent(queryHistory.getId(), id -> new ArrayList<>()).add(evento.modifica);
+            } else {
+                // L'inserimento è fallito in un lotto precedente
+                eventiScartati.increment();
+            }
+        }
+        if (nuove.size() + modifiche.size() <= 1) {
+            int eventi = nuove.isEmpty() ? modifiche.values().stream().mapToInt(List::size).sum() : eventiNuove.get(nuove.get(0));
+            salvaOConta(nuove, modifiche, concluse, eventi);
+            return;
+        }
+        try {
+            eventiScartati.increment(salva(nuove, modifiche, concluse));
+            return;
+        } catch (RuntimeException e) {
+            log.warn("Impossibile salvare il lotto di {} eventi della cronologia, nuovo tentativo riga per riga", lotto.size(), e);
+        }
+        // Il rollback non annulla gli id assegnati dall'INSERT: senza azzerarli le righe risulterebbero già scritte
+        nuove.forEach(queryHistory -> queryHistory.setId(null));
+        for (QueryHistory queryHistory : nuove) {
+            salvaOConta(List.of(queryHistory), Map.of(),
+                    concluse.contains(queryHistory) ? Set.of(queryHistory) : Set.of(), eventiNuove.get(queryHistory));
+        }
+        // Le righe lette nella transazione annullata vengono rilette: gli aggregati dipendono dal loro stato
+        modifiche.forEach((id, elenco) -> salvaOConta(List.of(), Map.of(id, elenco),
+                Collections.newSetFromMap(new IdentityHashMap<>()), elenco.size()));
+    }
+
+    /**
+     * Scrive le righe in una transazione; se fallisce, conta come scartati tutti i loro eventi.
+     */
+    private void salvaOConta(List<QueryHistory> nuove, Map<Long, List<Consumer<QueryHistory>>> modifiche,
+                             Set<QueryHistory> concluse, int eventi) {
+        try {
+            eventiScartati.increment(salva(nuove, modifiche, concluse));
+        } catch (RuntimeException e) {
+            nuove.forEach(queryHistory -> queryHistory.setId(null));
+            eventiScartati.increment(eventi);
+            log.error("Impossibile salvare {} eventi della cronologia", eventi, e);
+        }
+    }
+
+    /**
+     * @return modifiche scartate perché la riga non esiste più (ad esempio eliminata dalla conservazione)
+     */
+    private int salva(List<QueryHistory> nuove, Map<Long, List<Consumer<QueryHistory>>> modifiche,
+                      Set<QueryHistory> concluse) {
+        int perse = queryMetrics.misura(QueryMetrics.CRONOLOGIA, () -> transactionTemplate.execute(status -> {
+            queryHistoryRepository.saveAll(nuove);
+            int mancanti = 0;
+            if (!modifiche.isEmpty()) {
+                Map<Long, List<Consumer<QueryHistory>>> daApplicare = new LinkedHashMap<>(modifiche);
+                for (QueryHistory salvata : queryHistoryRepository.findAllById(new ArrayList<>(modifiche.keySet()))) {
+                    daApplicare.remove(salvata.getId()).forEach(modifica -> applica(modifica, salvata, concluse));
+                }
+                for (List<Consumer<QueryHistory>> elenco : daApplicare.values()) {
+                    mancanti += elenco.size();
+                }
+            }
+            rollupService.aggiungi(concluse);
+            return mancanti;
+        }));
+        searchIndex.aggiungi(nuove);
+        return perse;
+    }
+
+    // Un'esecuzione conta negli aggregati una volta sola, quando riceve l'esito
+    private static void applica(Consumer<QueryHistory> modifica, QueryHistory queryHistory, Set<QueryHistory> concluse) {
+        boolean inCorso = queryHistory.getSuccess() == null;
+        modifica.accept(queryHistory);
+        if (inCorso && queryHistory.getSuccess() != null) {
+            queryHistory.setRolledUp(true);
+            concluse.add(queryHistory);
+        }
+    }
+
+    private static final class Evento {
+        private final QueryHistory queryHistory;
+        // null per l'inserimento
+        private final Consumer<QueryHistory> modifica;
+
+        private Evento(QueryHistory queryHistory, Consumer<QueryHistory> modifica) {
+            this.queryHistory = queryHistory;
+            this.modifica = modifica;
+        }
+    }
+}
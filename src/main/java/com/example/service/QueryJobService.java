@@ -0,0 +1,455 @@
+package com.example.service;
+
+import com.google.cloud.bigquery.*;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Registro dei job BigQuery in esecuzione.
+ * I job vengono creati subito, o quando lo scheduler assegna un posto se la richiesta è in coda,
+ * e il loro completamento viene controllato da un pool di polling limitato, senza tenere occupati
+ * i thread delle richieste HTTP. Le creazioni dalla coda hanno un pool a parte: con i ritentativi
+ * possono attendere secondi, e il pool di polling esegue solo controlli brevi e gli annullamenti.
+ */
+@Service
+public class QueryJobService {
+
+    private static final long MARGINE_TIMEOUT_BIGQUERY_MS = 5_000;
+
+    private final BigQuery bigQuery;
+    private final QueryScheduler queryScheduler;
+    private final BigQueryResilience resilience;
+    private final QueryMetrics queryMetrics;
+
+    @Value("${bigquery.location:US}")
+    private String jobLocation;
+
+    @Value("${bigquery.jobs.poll-threads:2}")
+    private int pollThreads;
+
+    @Value("${bigquery.jobs.create-threads:4}")
+    private int threadCreazione;
+
+    @Value("${bigquery.jobs.poll-interval-ms:250}")
+    private long intervalloPollingIniziale;
+
+    @Value("${bigquery.jobs.max-poll-interval-ms:2000}")
+    private long intervalloPollingMassimo;
+
+    @Value("${bigquery.jobs.max-in-flight:200}")
+    private int maxJobInEsecuzione;
+
+    @Value("${bigquery.jobs.retention-ms:600000}")
+    private long ritenzioneJobCompletatiMs;
+
+    @Value("${bigquery.query.timeout-ms:300000}")
+    private long timeoutPredefinitoMs;
+
+    @Value("${bigquery.query.max-timeout-ms:3600000}")
+    private long timeoutMassimoMs;
+
+    private final Map<String, QueryJobHandle> jobs = new ConcurrentHashMap<>();
+    private final AtomicInteger jobInEsecuzione = new AtomicInteger();
+    private ScheduledExecutorService scheduler;
+    // Crea i job delle richieste uscite dalla coda dello scheduler
+    private ExecutorService esecutoreCreazione;
+
+    public QueryJobService(BigQuery bigQuery, QueryScheduler queryScheduler, BigQueryResilience resilience,
+                           QueryMetrics queryMetrics) {
+        this.bigQuery = bigQuery;
+        this.queryScheduler = queryScheduler;
+        this.resilience = resilience;
+        this.queryMetrics = queryMetrics;
+    }
+
+    @PostConstruct
+    public void avvia() {
+        AtomicInteger contatore = new AtomicInteger();
+        scheduler = Executors.newScheduledThreadPool(pollThreads, r -> {
+            Thread t = new Thread(r, "bq-job-poller-" + contatore.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger contatoreCreazione = new AtomicInteger();
+        esecutoreCreazione = Executors.newFixedThreadPool(threadCreazione, r -> {
+            Thread t = new Thread(r, "bq-job-create-" + contatoreCreazione.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        long intervalloPulizia = Math.max(1000, ritenzioneJobCompletatiMs / 10);
+        scheduler.scheduleWithFixedDelay(this::rimuoviJobScaduti, intervalloPulizia, intervalloPulizia, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void arresta() {
+        scheduler.shutdownNow();
+        esecutoreCreazione.shutdownNow();
+    }
+
+    public QueryJobHandle submit(QueryJobConfiguration config) {
+        return submit(config, null, null);
+    }
+
+    public QueryJobHandle submit(QueryJobConfiguration config, String client) {
+        return submit(config, client, null);
+    }
+
+    /**
+     * Crea il job dopo aver ottenuto un permesso dallo scheduler per il client indicato.
+     * Se c'è posto il job viene creato subito e gli errori di creazione arrivano al chiamante;
+     * altrimenti l'handle viene restituito in coda e il job viene creato da un thread di creazione
+     * quando lo scheduler assegna il posto (gli errori completano il future dell'handle).
+     * Il permesso viene rilasciato quando il job termina.
+     * Se il job non termina entro il timeout (quello predefinito se null), attesa in coda compresa,
+     * viene annullato; lo stesso limite, con un piccolo margine, viene passato a BigQuery come jobTimeoutMs.
+     *
+     * @throws QueryScheduler.CodaPienaException se la coda dello scheduler è piena
+     */
+    public QueryJobHandle submit(QueryJobConfiguration config, String client, Long timeoutMs) {
+        long timeout = getTimeoutEffettivo(timeoutMs);
+        // Il limite lato BigQuery è una rete di sicurezza se l'applicazione si ferma prima di annullare il job
+        QueryJobConfiguration configurazione = config.toBuilder().setJobTimeoutMs(timeout + MARGINE_TIMEOUT_BIGQUERY_MS).build();
+
+        CompletableFuture<QueryScheduler.Permesso> permesso = queryScheduler.acquisisci(client);
+        JobId jobId = JobId.newBuilder()
+                .setJob(UUID.randomUUID().toString())
+                .setLocation(jobLocation)
+                .build();
+        QueryJobHandle handle = new QueryJobHandle(jobId, configurazione.getQuery());
+        if (permesso.isDone()) {
+            creaJob(handle, configurazione, permesso.join());
+        } else {
+            jobs.put(handle.getId(), handle);
+            // Annullata o scaduta mentre è in coda: il posto in coda viene liberato
+            handle.future.whenComplete((j, e) -> permesso.cancel(false));
+            permesso.whenCompleteAsync((p, errore) -> {
+                if (errore != null) {
+                    handle.future.completeExceptionally(errore instanceof CompletionException && errore.getCause() != null
+                            ? errore.getCause() : errore);
+                    return;
+                }
+                try {
+                    creaJob(handle, configurazione, p);
+                } catch (RuntimeException e) {
+                    handle.future.completeExceptionally(e);
+                }
+            }, esecutoreCreazione);
+        }
+        scheduler.schedule(() -> {
+            if (!handle.isCompletato()) {
+                annulla(handle, new QueryAnnullataException("Tempo massimo di esecuzione superato (" + timeout + " ms)", true));
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        return handle;
+    }
+
+    private void creaJob(QueryJobHandle handle, QueryJobConfiguration config, QueryScheduler.Permesso permesso) {
+        if (handle.isCompletato()) {
+            // Annullata mentre attendeva il posto
+            permesso.rilascia();
+            return;
+        }
+        if (jobInEsecuzione.incrementAndGet() > maxJobInEsecuzione) {
+            jobInEsecuzione.decrementAndGet();
+            permesso.rilascia();
+            throw new IllegalStateException("Troppi job in esecuzione (massimo " + maxJobInEsecuzione + "), riprova più tardi");
+        }
+
+        try {
+            JobInfo jobInfo = JobInfo.newBuilder(config).setJobId(handle.getJobId()).build();
+            Job job = queryMetrics.misura(QueryMetrics.CREAZIONE_JOB, () -> resilience.esegui("jobs.insert", () -> crea(jobInfo)));
+            if (job.getJobId() != null) {
+                handle.jobId = job.getJobId();
+            }
+            handle.creato = true;
+            jobs.put(handle.getId(), handle);
+            Timer.Sample attesa = queryMetrics.avvia();
+            handle.future.whenComplete((j, e) -> {
+                queryMetrics.registra(attesa, QueryMetrics.ATTESA_JOB, "outcome", QueryMetrics.esito(e));
+                handle.completatoIl = System.currentTimeMillis();
+                jobInEsecuzione.decrementAndGet();
+                permesso.rilascia();
+            });
+            if (handle.isCompletato()) {
+                // Annullata mentre il job veniva creato: si annulla anche su BigQuery
+                annullaSuBigQuery(handle);
+                return;
+            }
+            controllaStato(handle, job, intervalloPollingIniziale);
+        } catch (RuntimeException e) {
+            jobInEsecuzione.decrementAndGet();
+            permesso.rilascia();
+            throw e;
+        }
+    }
+
+    /**
+     * Crea il job; l'id è fissato dal client, quindi se un tentativo precedente lo aveva già
+     * creato prima dell'errore BigQuery risponde "duplicate" e si legge il job esistente.
+     */
+    private Job crea(JobInfo jobInfo) {
+        try {
+            return bigQuery.create(jobInfo);
+        } catch (BigQueryException e) {
+            if (e.getCode() == 409 || "duplicate".equals(e.getReason())) {
+                Job esistente = bigQuery.getJob(jobInfo.getJobId());
+                if (esistente != null) {
+                    return esistente;
+                }
+            }
+            throw e;
+        }
+    }
+
+    public QueryJobHandle getJob(String id) {
+        return jobs.get(id);
+    }
+
+    public Collection<QueryJobHandle> getJobs() {
+        return jobs.values();
+    }
+
+    public boolean annulla(String id) {
+        return annulla(id, "La query è stata annullata");
+    }
+
+    public boolean annulla(String id, String motivo) {
+        return annulla(id, new QueryAnnullataException(motivo));
+    }
+
+    public boolean annulla(String id, QueryAnnullataException motivo) {
+        QueryJobHandle handle = jobs.get(id);
+        if (handle == null) {
+            return false;
+        }
+        annulla(handle, motivo);
+        return true;
+    }
+
+    private void annulla(QueryJobHandle handle, QueryAnnullataException motivo) {
+        if (handle.isCompletato()) {
+            return;
+        }
+        // Prima si completa il future, così chi attende viene liberato anche se la cancel fallisce
+        handle.future.completeExceptionally(motivo);
+        // Ancora in coda: il job non esiste su BigQuery
+        if (handle.creato) {
+            annullaSuBigQuery(handle);
+        }
+    }
+
+    private void annullaSuBigQuery(QueryJobHandle handle) {
+        try {
+            bigQuery.cancel(handle.getJobId());
+        } catch (RuntimeException e) {
+            // Il job potrebbe essere già terminato: l'annullamento lato client resta valido
+        }
+    }
+
+    /**
+     * Timeout da applicare alla richiesta: quello predefinito se non indicato, mai oltre il massimo.
+     */
+    public long getTimeoutEffettivo(Long timeoutMs) {
+        if (timeoutMs == null || timeoutMs <= 0) {
+            return timeoutPredefinitoMs;
+        }
+        return Math.min(timeoutMs, timeoutMassimoMs);
+    }
+
+    /**
+     * Legge i risultati di un job già completato direttamente da BigQuery,
+     * anche se non è più presente nel registro.
+     */
+    public TableResult leggiRisultati(JobId jobId, BigQuery.QueryResultsOption... options) throws InterruptedException {
+        Job job = resilience.esegui("jobs.get", () -> bigQuery.getJob(jobId));
+        if (job == null) {
+            throw new IllegalArgumentException("Job non trovato: " + jobId.getJob());
+        }
+        return leggiRisultati(job, options);
+    }
+
+    /**
+     * Legge i risultati del job ritentando gli errori transitori.
+     */
+    public TableResult leggiRisultati(Job job, BigQuery.QueryResultsOption... options) throws InterruptedException {
+        try {
+            return queryMetrics.misura(QueryMetrics.LETTURA_RISULTATI, () -> resilience.esegui("jobs.getQueryResults", () -> {
+                try {
+                    return job.getQueryResults(options);
+                } catch (InterruptedException e) {
+                    throw new InterruptedRuntimeException(e);
+                }
+            }), "operation", "getQueryResults");
+        } catch (InterruptedRuntimeException e) {
+            throw (InterruptedException) e.getCause();
+        }
+    }
+
+    public int getNumeroJobInEsecuzione() {
+        return jobInEsecuzione.get();
+    }
+
+    private void controllaStato(QueryJobHandle handle, Job job, long intervallo) {
+        if (handle.isCompletato()) {
+            // Annullato nel frattempo
+            return;
+        }
+        if (job == null) {
+            handle.future.completeExceptionally(new RuntimeException("Il job " + handle.getId() + " non esiste più"));
+            return;
+        }
+
+        JobStatus status = job.getStatus();
+        if (status != null && status.getState() == JobStatus.State.DONE) {
+            if (status.getError() != null) {
+                handle.future.completeExceptionally(new BigQueryException(List.of(status.getError())));
+            } else {
+                handle.future.complete(job);
+            }
+            return;
+        }
+
+        long prossimoIntervallo = Math.min(intervallo * 2, intervalloPollingMassimo);
+        scheduler.schedule(() -> {
+            Job aggiornato;
+            try {
+                // Un solo tentativo: il ritentativo è il prossimo controllo, senza bloccare il thread di polling
+                aggiornato = resilience.esegui("jobs.get", () -> bigQuery.getJob(handle.getJobId()), 1);
+            } catch (Exception e) {
+                if (BigQueryResilience.isRitentabile(e)) {
+                    // Il job continua su BigQuery: si riprova fino alla scadenza della query
+                    controllaStato(handle, job, prossimoIntervallo);
+                } else {
+                    handle.future.completeExceptionally(e);
+                }
+                return;
+            }
+            controllaStato(handle, aggiornato, prossimoIntervallo);
+        }, intervallo, TimeUnit.MILLISECONDS);
+    }
+
+    private void rimuoviJobScaduti() {
+        long limite = System.currentTimeMillis() - ritenzioneJobCompletatiMs;
+        jobs.values().removeIf(h -> h.isCompletato() && h.completatoIl > 0 && h.completatoIl < limite);
+    }
+
+    public static class QueryJobHandle {
+        // Fissato dal client; dopo la creazione è quello restituito da BigQuery, con la location
+        private volatile JobId jobId;
+        private final String sql;
+        private final LocalDateTime dataInvio = LocalDateTime.now();
+        private final CompletableFuture<Job> future = new CompletableFuture<>();
+        private volatile boolean creato;
+        private volatile long completatoIl;
+        private volatile Long bytesStimati;
+
+        QueryJobHandle(JobId jobId, String sql) {
+            this.jobId = jobId;
+            this.sql = sql;
+        }
+
+        public String getId() { return jobId.getJob(); }
+        public JobId getJobId() { return jobId; }
+        public String getSql() { return sql; }
+        public LocalDateTime getDataInvio() { return dataInvio; }
+        public CompletableFuture<Job> getFuture() { return future; }
+        public Long getBytesStimati() { return bytesStimati; }
+        public void setBytesStimati(Long bytesStimati) { this.bytesStimati = bytesStimati; }
+
+        public boolean isCompletato() {
+            return future.isDone();
+        }
+
+        public String getStato() {
+            if (!future.isDone()) return creato ? "IN_ESECUZIONE" : "IN_CODA";
+            if (future.isCancelled()) return "ANNULLATO";
+            if (future.isCompletedExceptionally()) return "FALLITO";
+            return "COMPLETATO";
+        }
+
+        public String getErrore() {
+            if (!future.isCompletedExceptionally() || future.isCancelled()) {
+                return null;
+            }
+            try {
+                future.join();
+                return null;
+            } catch (Exception e) {
+                return e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+            }
+        }
+
+        /**
+         * Attende il completamento del job sul thread chiamante.
+         *
+         * @throws QueryAnnullataException se il job è stato annullato (anche per timeout)
+         */
+        public Job await() throws InterruptedException {
+            try {
+                return future.get();
+            } catch (QueryAnnullataException e) {
+                throw e;
+            } catch (CancellationException e) {
+                throw new QueryAnnullataException("La query è stata annullata");
+            } catch (ExecutionException e) {
+                Throwable causa = e.getCause();
+                if (causa instanceof RuntimeException) {
+                    throw (RuntimeException) causa;
+                }
+                throw new RuntimeException(causa);
+            }
+        }
+
+    }
+
+    /**
+     * Trasporta l'interruzione attraverso il Supplier del retry.
+     */
+    private static final class InterruptedRuntimeException extends RuntimeException {
+        private InterruptedRuntimeException(InterruptedException causa) {
+            super(causa);
+        }
+    }
+
+    /**
+     * Il job è stato annullato (dall'utente, per timeout o per disconnessione del client).
+     * Estende CancellationException, così il future del job risulta annullato e non fallito.
+     */
+    public static class QueryAnnullataException extends CancellationException {
+        private final boolean scaduta;
+
+        public QueryAnnullataException(String motivo) {
+            this(motivo, false);
+        }
+
+        public QueryAnnullataException(String motivo, boolean scaduta) {
+            super(motivo);
+            this.scaduta = scaduta;
+        }
+
+        /**
+         * true se l'annullamento è dovuto al superamento del tempo massimo.
+         */
+        public boolean isScaduta() { return scaduta; }
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Percentili di latenza calcolati in memoria a ogni completamento di query, complessivi,
+ * per endpoint e per impronta della query, senza interrogare la cronologia sul database.
+ * Contano tutti gli esiti, compresi errori, timeout e annullamenti, che hanno anche una serie
+ * propria per esito: senza, le richieste più lente (quelle scadute) sparirebbero dai percentili.
+ */
+@Service
+public class QueryLatencyStats {
+
+    private static final long INATTIVITA_MASSIMA_MS = 3_600_000;
+    private static final int LUNGHEZZA_ESEMPIO = 100;
+
+    // Esito di una query annullata allo scadere del tempo massimo, distinto dagli altri annullamenti
+    public static final String TIMEOUT = "timeout";
+
+    @Value("${bigquery.latency.max-fingerprints:200}")
+    private int maxImpronte;
+
+    private final LatencyHistogram complessivo = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> perEsito = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> perEndpoint = new ConcurrentHashMap<>();
+    private final Map<Long, Impronta> perImpronta = new ConcurrentHashMap<>();
+
+    /**
+     * @param esito {@link QueryMetrics#SUCCESSO}, {@link QueryMetrics#ERRORE}, {@link QueryMetrics#ANNULLATA}
+     *              o {@link #TIMEOUT}, come restituito da {@link #esito}
+     */
+    public void registra(String endpoint, String sql, long latenzaMs, String esito) {
+        registra(endpoint, sql, latenzaMs, esito, System.currentTimeMillis());
+    }
+
+    void registra(String endpoint, String sql, long latenzaMs, long adesso) {
+        registra(endpoint, sql, latenzaMs, QueryMetrics.SUCCESSO, adesso);
+    }
+
+    void registra(String endpoint, String sql, long latenzaMs, String esito, long adesso) {
+        complessivo.registra(latenzaMs, adesso);
+        perEsito.computeIfAbsent(esito, e -> new LatencyHistogram()).registra(latenzaMs, adesso);
+        perEndpoint.computeIfAbsent(endpoint, e -> new LatencyHistogram()).registra(latenzaMs, adesso);
+        if (sql != null) {
+            Impronta impronta = impronta(sql, adesso);
+            if (impronta != null) {
+                impronta.istogramma.registra(latenzaMs, adesso);
+            }
+        }
+    }
+
+    /**
+     * Esito della query completata con l'errore indicato (null se riuscita).
+     */
+    public static String esito(Throwable errore) {
+        Throwable causa = errore != null ? BigQueryService.causa(errore) : null;
+        if (causa instanceof QueryJobService.QueryAnnullataException annullata && annullata.isScaduta()) {
+            return TIMEOUT;
+        }
+        return QueryMetrics.esito(causa);
+    }
+
+    /**
+     * Percentili nella finestra indicata (1m, 5m o 1h); le impronte sono ordinate per p95 decrescente.
+     */
+    public Map<String, Object> getPercentili(String nomeFinestra, int maxImpronteRestituite) {
+        LatencyHistogram.Finestra finestra = LatencyHistogram.Finestra.daNome(nomeFinestra);
+        long adesso = System.currentTimeMillis();
+
+        Map<String, Object> esito = riepiloghi(perEsito, finestra, adesso);
+        Map<String, Object> endpoint = riepiloghi(perEndpoint, finestra, adesso);
+
+        List<Map<String, Object>> impronte = perImpronta.entrySet().stream()
+                .map(e -> Map.entry(e, e.getValue().istogramma.riepilogo(finestra, adesso)))
+                .filter(e -> e.getValue().getTotale() > 0)
+                .sorted(Comparator.comparingLong(
+                        (Map.Entry<Map.Entry<Long, Impronta>, LatencyHistogram.Riepilogo> e) -> e.getValue().percentile(95))
+                        .reversed())
+                .limit(maxImpronteRestituite)
+                .map(e -> {
+                    Map<String, Object> map = new LinkedHashMap<>();
+                    map.put("impronta", QueryFingerprint.esadecimale(e.getKey().getKey()));
+                    map.put("sql", e.getKey().getValue().esempio);
+                    map.putAll(e.getValue().toMap());
+                    return map;
+                })
+                .collect(Collectors.toList());
+
+        Map<String, Object> risultato = new LinkedHashMap<>();
+        risultato.put("finestra", finestra.getNome());
+        risultato.put("complessivo", complessivo.riepilogo(finestra, adesso).toMap());
+        risultato.put("perEsito", esito);
+        risultato.put("perEndpoint", endpoint);
+        risultato.put("perImpronta", impronte);
+        return risultato;
+    }
+
+    private static Map<String, Object> riepiloghi(Map<String, LatencyHistogram> istogrammi, LatencyHistogram.Finestra finestra,
+                                                  long adesso) {
+        Map<String, Object> riepiloghi = new LinkedHashMap<>();
+        istogrammi.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(e -> {
+                    LatencyHistogram.Riepilogo riepilogo = e.getValue().riepilogo(finestra, adesso);
+                    if (riepilogo.getTotale() > 0) {
+                        riepiloghi.put(e.getKey(), riepilogo.toMap());
+                    }
+                });
+        return riepiloghi;
+    }
+
+    /**
+     * Oltre il limite di impronte vengono rimosse quelle inattive da più di un'ora; se non basta,
+     * la nuova impronta non viene tracciata (resta nelle statistiche complessive e per endpoint).
+     */
+    private Impronta impronta(String sql, long adesso) {
+        QueryFingerprint fingerprint = QueryFingerprint.di(sql);
+        Impronta esistente = perImpronta.get(fingerprint.getHash());
+        if (esistente != null) {
+            return esistente;
+        }
+        if (perImpronta.size() >= maxImpronte) {
+            perImpronta.values().removeIf(i -> adesso - i.istogramma.getUltimoAggiornamento() > INATTIVITA_MASSIMA_MS);
+            if (perImpronta.size() >= maxImpronte) {
+                return null;
+            }
+        }
+        return perImpronta.computeIfAbsent(fingerprint.getHash(), k -> new Impronta(fingerprint.getTesto()));
+    }
+
+    private static final class Impronta {
+        private final String esempio;
+        private final LatencyHistogram istogramma = new LatencyHistogram();
+
+        private Impronta(String testo) {
+            this.esempio = testo.length() > LUNGHEZZA_ESEMPIO ? testo.substring(0, LUNGHEZZA_ESEMPIO) + "..." : testo;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+
+import org.springframework.stereotype.Service;
+
+/**
+ * Timer per le fasi di una query: validazione, cronologia, creazione e attesa del job,
+ * lettura dei risultati, conversione delle righe, grafici e serializzazione della risposta.
+ * Ogni timer pubblica i percentili su /actuator/metrics e l'istogramma su /actuator/prometheus.
+ */
+@Service
+public class QueryMetrics {
+
+    public static final String VALIDAZIONE = "bigquery.validation";
+    public static final String CRONOLOGIA = "bigquery.history.insert";
+    public static final String CREAZIONE_JOB = "bigquery.job.create";
+    public static final String ATTESA_JOB = "bigquery.job.wait";
+    public static final String LETTURA_RISULTATI = "bigquery.results.fetch";
+    public static final String CONVERSIONE_RIGHE = "bigquery.rows.convert";
+    public static final String GRAFICO = "bigquery.chart.build";
+    public static final String SERIALIZZAZIONE = "bigquery.response.serialization";
+    public static final String ESECUZIONE = "bigquery.query.execution";
+
+    public static final String SUCCESSO = "success";
+    public static final String ERRORE = "error";
+    public static final String ANNULLATA = "cancelled";
+
+    // I job possono durare molto più dei 30 secondi coperti dall'istogramma predefinito
+    private static final Duration DURATA_MASSIMA_ATTESA = Duration.ofHours(1);
+
+    private final MeterRegistry meterRegistry;
+
+    public QueryMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    public Timer.Sample avvia() {
+        return Timer.start(meterRegistry);
+    }
+
+    /**
+     * @param tag coppie nome/valore
+     */
+    public void registra(Timer.Sample sample, String fase, String... tag) {
+        sample.stop(timer(fase, tag));
+    }
+
+    /**
+     * Misura la chiamata aggiungendo il tag outcome (success, error o cancelled).
+     */
+    public <T> T misura(String fase, Supplier<T> chiamata, String... tag) {
+        Timer.Sample sample = avvia();
+        String esito = ERRORE;
+        try {
+            T risultato = chiamata.get();
+            esito = SUCCESSO;
+            return risultato;
+        } catch (CancellationException e) {
+            esito = ANNULLATA;
+            throw e;
+        } finally {
+            registra(sample, fase, conEsito(esito, tag));
+        }
+    }
+
+    public static String esito(Throwable errore) {
+        if (errore == null) {
+            return SUCCESSO;
+        }
+        return BigQueryService.causa(errore) instanceof CancellationException ? ANNULLATA : ERRORE;
+    }
+
+    public static String[] conEsito(String esito, String... tag) {
+        String[] tutti = new String[tag.length + 2];
+        System.arraycopy(tag, 0, tutti, 0, tag.length);
+        tutti[tag.length] = "outcome";
+        tutti[tag.length + 1] = esito;
+        return tutti;
+    }
+
+    private Timer timer(String fase, String... tag) {
+        return Timer.builder(fase)
+                .tags(tag)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .maximumExpectedValue(DURATA_MASSIMA_ATTESA)
+                .register(meterRegistry);
+    }
+}
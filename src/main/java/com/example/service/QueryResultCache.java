@@ -0,0 +1,254 @@
+package com.example.service;
+
+import com.google.cloud.bigquery.QueryParameterValue;
+import com.google.cloud.bigquery.TableResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Cache dei risultati delle query, limitata in byte, con scadenza per voce ed eviction LRU.
+ * La chiave è l'SQL normalizzato insieme ai parametri della query.
+ */
+@Service
+public class QueryResultCache {
+
+    // Funzioni che rendono il risultato diverso a ogni esecuzione
+    private static final Pattern NON_DETERMINISTICA = Pattern.compile(
+        "\\b(CURRENT_DATE|CURRENT_TIME|CURRENT_DATETIME|CURRENT_TIMESTAMP|NOW|RAND|GENERATE_UUID|SESSION_USER)\\b",
+        Pattern.CASE_INSENSITIVE
+    );
+
+    @Value("${bigquery.cache.enabled:true}")
+    private boolean abilitata;
+
+    @Value("${bigquery.cache.max-bytes:268435456}")
+    private long maxBytes;
+
+    @Value("${bigquery.cache.max-entry-bytes:33554432}")
+    private long maxBytesPerVoce;
+
+    @Value("${bigquery.cache.max-rows:100000}")
+    private long maxRighePerVoce;
+
+    @Value("${bigquery.cache.ttl-ms:300000}")
+    private long ttlMs;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // LinkedHashMap in ordine di accesso: il primo elemento è il meno usato di recente
+    private final LinkedHashMap<Chiave, Voce> voci = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytesOccupati;
+
+    private Counter hit;
+    private Counter miss;
+    private Counter eviction;
+    private Counter scadute;
+
+    @PostConstruct
+    public void registraMetriche() {
+        hit = Counter.builder("bigquery.cache.requests").tag("result", "hit").register(meterRegistry);
+        miss = Counter.builder("bigquery.cache.requests").tag("result", "miss").register(meterRegistry);
+        eviction = Counter.builder("bigquery.cache.evictions").tag("cause", "size").register(meterRegistry);
+        scadute = Counter.builder("bigquery.cache.evictions").tag("cause", "expired").register(meterRegistry);
+        Gauge.builder("bigquery.cache.entries", this, c -> c.getNumeroVoci()).register(meterRegistry);
+        Gauge.builder("bigquery.cache.bytes", this, c -> c.getBytesOccupati()).baseUnit("bytes").register(meterRegistry);
+    }
+
+    /**
+     * Restituisce la chiave per la query, oppure null se la query non deve essere messa in cache.
+     */
+    public Chiave chiave(String sql, Map<String, QueryParameterValue> parametri) {
+        if (!abilitata || sql == null) {
+            return null;
+        }
+        // Sull'SQL normalizzato: una funzione citata solo in un commento non esclude la query
+        Chiave chiave = Chiave.of(sql, parametri);
+        return NON_DETERMINISTICA.matcher(chiave.getSql()).find() ? null : chiave;
+    }
+
+    public ColumnarResult get(Chiave chiave) {
+        if (chiave == null) {
+            return null;
+        }
+        synchronized (this) {
+            Voce voce = voci.get(chiave);
+            if (voce != null && voce.scadenza < System.currentTimeMillis()) {
+                rimuovi(chiave, voce);
+                scadute.increment();
+                voce = null;
+            }
+            if (voce == null) {
+                miss.increment();
+                return null;
+            }
+            hit.increment();
+            return voce.risultato;
+        }
+    }
+
+    public boolean isMemorizzabile(TableResult result) {
+        return abilitata && result != null && result.getTotalRows() <= maxRighePerVoce;
+    }
+
+    public void put(Chiave chiave, ColumnarResult risultato) {
+        if (chiave == null || risultato == null) {
+            return;
+        }
+        long dimensione = risultato.getDimensioneStimataBytes();
+        if (dimensione > maxBytesPerVoce || dimensione > maxBytes) {
+            return;
+        }
+        synchronized (this) {
+            Voce precedente = voci.remove(chiave);
+            if (precedente != null) {
+                bytesOccupati -= precedente.dimensione;
+            }
+            voci.put(chiave, new Voce(risultato, dimensione, System.currentTimeMillis() + ttlMs));
+            bytesOccupati += dimensione;
+
+            // Rimuovi prima le voci scadute, poi le meno usate fino a rientrare nel limite
+            long adesso = System.currentTimeMillis();
+            Iterator<Map.Entry<Chiave, Voce>> it = voci.entrySet().iterator();
+            while (bytesOccupati > maxBytes && it.hasNext()) {
+                Map.Entry<Chiave, Voce> e = it.next();
+                if (e.getValue().scadenza < adesso) {
+                    bytesOccupati -= e.getValue().dimensione;
+                    it.remove();
+                    scadute.increment();
+                }
+            }
+            it = voci.entrySet().iterator();
+            while (bytesOccupati > maxBytes && it.hasNext()) {
+                Map.Entry<Chiave, Voce> e = it.next();
+                bytesOccupati -= e.getValue().dimensione;
+                it.remove();
+                eviction.increment();
+            }
+        }
+    }
+
+    public synchronized void svuota() {
+        voci.clear();
+        bytesOccupati = 0;
+    }
+
+    public synchronized int getNumeroVoci() {
+        return voci.size();
+    }
+
+    public synchronized long getBytesOccupati() {
+        return bytesOccupati;
+    }
+
+    private void rimuovi(Chiave chiave, Voce voce) {
+        voci.remove(chiave);
+        bytesOccupati -= voce.dimensione;
+    }
+
+    /**
+     * Compatta gli spazi fuori dalle stringhe letterali, rimuove i commenti e il punto e virgola finale,
+     * così query che differiscono solo per la formattazione condividono la stessa voce.
+     * Stringhe e commenti si riconoscono come in {@link QueryFingerprint}: un commento vale come spazio,
+     * e il testo dopo un {@code --} resta fuori dalla chiave fino a fine riga.
+     */
+    static String normalizzaSql(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        boolean spazio = false;
+        int i = 0;
+        int n = sql.length();
+        while (i < n) {
+            char c = sql.charAt(i);
+            int commento = QueryFingerprint.fineCommento(sql, i);
+            if (Character.isWhitespace(c) || commento >= 0) {
+                spazio = true;
+                i = commento >= 0 ? commento : i + 1;
+                continue;
+            }
+            if (spazio && sb.length() > 0) {
+                sb.append(' ');
+            }
+            spazio = false;
+            int fine;
+            if (c == '\'' || c == '"') {
+                fine = QueryFingerprint.fineStringa(sql, i);
+            } else if (c == '`') {
+                fine = sql.indexOf('`', i + 1);
+                fine = fine < 0 ? n : fine + 1;
+            } else {
+                fine = i + 1;
+            }
+            sb.append(sql, i, Math.min(fine, n));
+            i = fine;
+        }
+        int fine = sb.length();
+        while (fine > 0 && (sb.charAt(fine - 1) == ';' || sb.charAt(fine - 1) == ' ')) {
+            fine--;
+        }
+        return sb.substring(0, fine);
+    }
+
+    public static final class Chiave {
+        private final String sql;
+        private final Map<String, QueryParameterValue> parametri;
+        private final int hash;
+
+        private Chiave(String sql, Map<String, QueryParameterValue> parametri) {
+            this.sql = sql;
+            this.parametri = parametri;
+            this.hash = Objects.hash(sql, parametri);
+        }
+
+        /**
+         * Chiave che identifica la query indipendentemente dalla cache (es. per le query in corso).
+         */
+        public static Chiave of(String sql, Map<String, QueryParameterValue> parametri) {
+            Map<String, QueryParameterValue> copia = parametri == null || parametri.isEmpty()
+                    ? Collections.emptyMap()
+                    : Collections.unmodifiableMap(new HashMap<>(parametri));
+            return new Chiave(normalizzaSql(sql), copia);
+        }
+
+        public String getSql() { return sql; }
+        public Map<String, QueryParameterValue> getParametri() { return parametri; }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Chiave)) return false;
+            Chiave altra = (Chiave) o;
+            return hash == altra.hash && sql.equals(altra.sql) && parametri.equals(altra.parametri);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Voce {
+        private final ColumnarResult risultato;
+        private final long dimensione;
+        private final long scadenza;
+
+        private Voce(ColumnarResult risultato, long dimensione, long scadenza) {
+            this.risultato = risultato;
+            this.dimensione = dimensione;
+            this.scadenza = scadenza;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.example.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Limita i job BigQuery in esecuzione, sia in totale che per client (IP).
+ * Le richieste oltre i limiti attendono in una coda limitata, servita in modo equo
+ * tra i client (weighted fair queuing): un client che invia molte query non ritarda
+ * gli altri più della sua quota.
+ * L'attesa non occupa thread: chi è in coda riceve un future, completato quando si libera un posto.
+ */
+@Service
+public class QueryScheduler {
+
+    static final String CLIENT_ANONIMO = "anonimo";
+
+    @Value("${bigquery.scheduler.max-concurrent:50}")
+    private int maxGlobali;
+
+    @Value("${bigquery.scheduler.max-concurrent-per-client:5}")
+    private int maxPerClient;
+
+    @Value("${bigquery.scheduler.max-queue:500}")
+    private int maxCoda;
+
+    @Value("${bigquery.scheduler.max-wait-ms:30000}")
+    private long attesaMassimaMs;
+
+    @Value("${bigquery.scheduler.retry-after-seconds:2}")
+    private long retryAfterSecondi;
+
+    // Pesi per client nel formato "ip=peso,ip=peso"; i client non elencati hanno peso 1
+    @Value("${bigquery.scheduler.weights:}")
+    private String pesiConfigurati;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, Double> pesi = new HashMap<>();
+
+    // Stato protetto dal monitor di this
+    private final Map<String, ArrayDeque<Attesa>> code = new HashMap<>();
+    private final Map<String, Integer> attiviPerClient = new HashMap<>();
+    private final Map<String, Double> ultimoTurno = new HashMap<>();
+    private int attivi;
+    private int inCoda;
+    private double tempoVirtuale;
+
+    private Timer tempoAttesa;
+    private Counter rifiutate;
+
+    @PostConstruct
+    public void inizializza() {
+        for (String voce : pesiConfigurati.split(",")) {
+            String[] parti = voce.split("=");
+            if (parti.length == 2) {
+                pesi.put(parti[0].trim(), Math.max(0.01, Double.parseDouble(parti[1].trim())));
+            }
+        }
+        tempoAttesa = Timer.builder("bigquery.scheduler.wait").register(meterRegistry);
+        rifiutate = Counter.builder("bigquery.scheduler.rejected").register(meterRegistry);
+        Gauge.builder("bigquery.scheduler.queue.depth", this, s -> s.getNumeroInCoda()).register(meterRegistry);
+        Gauge.builder("bigquery.scheduler.active", this, s -> s.getNumeroAttivi()).register(meterRegistry);
+    }
+
+    /**
+     * Richiede un permesso di esecuzione per il client. Se c'è posto il future è già completato;
+     * altrimenti la richiesta entra in coda e il future viene completato quando le viene assegnato
+     * un posto, o con {@link CodaPienaException} se l'attesa supera il massimo configurato.
+     * Annullare il future toglie la richiesta dalla coda. Il permesso va rilasciato quando il job termina.
+     *
+     * @throws CodaPienaException se la coda è piena
+     */
+    public CompletableFuture<Permesso> acquisisci(String client) {
+        String chiave = client != null ? client : CLIENT_ANONIMO;
+        Attesa attesa;
+        List<Attesa> assegnate;
+        synchronized (this) {
+            if (inCoda == 0 && puoPartire(chiave)) {
+                avvia(chiave);
+                tempoAttesa.record(0, TimeUnit.NANOSECONDS);
+                return CompletableFuture.completedFuture(new Permesso(chiave));
+            }
+            if (inCoda >= maxCoda) {
+                rifiutate.increment();
+                throw new CodaPienaException("Troppe query in attesa, riprova più tardi", retryAfterSecondi);
+            }
+            double turno = Math.max(tempoVirtuale, ultimoTurno.getOrDefault(chiave, 0d)) + 1d / pesi.getOrDefault(chiave, 1d);
+            ultimoTurno.put(chiave, turno);
+            attesa = new Attesa(chiave, turno);
+            code.computeIfAbsent(chiave, c -> new ArrayDeque<>()).addLast(attesa);
+            inCoda++;
+            assegnate = assegna();
+        }
+        // Annullata dal chiamante o scaduta: lascia la coda
+        attesa.permesso.whenComplete((permesso, errore) -> {
+            if (errore != null) {
+                abbandona(attesa);
+            }
+        });
+        CompletableFuture.delayedExecutor(attesaMassimaMs, TimeUnit.MILLISECONDS).execute(() -> scadi(attesa));
+        consegna(assegnate);
+        return attesa.permesso;
+    }
+
+    public synchronized int getNumeroInCoda() {
+        return inCoda;
+    }
+
+    public synchronized int getNumeroAttivi() {
+        return attivi;
+    }
+
+    private boolean puoPartire(String client) {
+        return attivi < maxGlobali && attiviPerClient.getOrDefault(client, 0) < maxPerClient;
+    }
+
+    private void avvia(String client) {
+        attivi++;
+        attiviPerClient.merge(client, 1, Integer::sum);
+    }
+
+    private void rilascia(String client) {
+        List<Attesa> assegnate;
+        synchronized (this) {
+            attivi--;
+            attiviPerClient.computeIfPresent(client, (c, n) -> n > 1 ? n - 1 : null);
+            assegnate = assegna();
+        }
+        consegna(assegnate);
+    }
+
+    private synchronized void abbandona(Attesa attesa) {
+        rimuoviDallaCoda(attesa);
+    }
+
+    private void scadi(Attesa attesa) {
+        synchronized (this) {
+            if (attesa.assegnata || attesa.permesso.isDone()) {
+                return;
+            }
+            rimuoviDallaCoda(attesa);
+            rifiutate.increment();
+        }
+        attesa.permesso.completeExceptionally(
+                new CodaPienaException("Tempo di attesa in coda superato, riprova più tardi", retryAfterSecondi));
+    }
+
+    /**
+     * Completa fuori dal monitor i future delle richieste a cui è stato assegnato un posto,
+     * così il lavoro che ne dipende (la creazione del job) non blocca lo scheduler.
+     * Se il chiamante ha già rinunciato il posto viene restituito.
+     */
+    private void consegna(List<Attesa> assegnate) {
+        for (Attesa attesa : assegnate) {
+            tempoAttesa.record(System.nanoTime() - attesa.inizioNanos, TimeUnit.NANOSECONDS);
+            Permesso permesso = new Permesso(attesa.client);
+            if (!attesa.permesso.complete(permesso)) {
+                permesso.rilascia();
+            }
+        }
+    }
+
+    /**
+     * Assegna i permessi liberi alle richieste in coda con il turno virtuale più basso,
+     * saltando i client che hanno già raggiunto il proprio limite. Va chiamato con il monitor;
+     * le richieste restituite vanno consegnate con {@link #consegna(List)} dopo averlo lasciato.
+     */
+    private List<Attesa> assegna() {
+        List<Attesa> assegnate = new ArrayList<>();
+        while (attivi < maxGlobali && inCoda > 0) {
+            Attesa prossima = null;
+            for (ArrayDeque<Attesa> coda : code.values()) {
+                Attesa testa = coda.peekFirst();
+                if (testa != null && attiviPerClient.getOrDefault(testa.client, 0) < maxPerClient
+                        && (prossima == null || testa.turno < prossima.turno)) {
+                    prossima = testa;
+                }
+            }
+            if (prossima == null) {
+                break;
+            }
+            rimuoviDallaCoda(prossima);
+            tempoVirtuale = prossima.turno;
+            avvia(prossima.client);
+            prossima.assegnata = true;
+            assegnate.add(prossima);
+        }
+        if (inCoda == 0 && ultimoTurno.size() > 1_000) {
+            ultimoTurno.clear();
+        }
+        return assegnate;
+    }
+
+    private void rimuoviDallaCoda(Attesa attesa) {
+        ArrayDeque<Attesa> coda = code.get(attesa.client);
+        if (coda != null && coda.remove(attesa)) {
+            inCoda--;
+            if (coda.isEmpty()) {
+                code.remove(attesa.client);
+            }
+        }
+    }
+
+    private static final class Attesa {
+        private final String client;
+        private final double turno;
+        private final long inizioNanos = System.nanoTime();
+        private final CompletableFuture<Permesso> permesso = new CompletableFuture<>();
+        private boolean assegnata;
+
+        private Attesa(String client, double turno) {
+            this.client = client;
+            this.turno = turno;
+        }
+    }
+
+    public final class Permesso {
+        private final String client;
+        private final AtomicBoolean rilasciato = new AtomicBoolean();
+
+        private Permesso(String client) {
+            this.client = client;
+        }
+
+        public String getClient() { return client; }
+
+        /**
+         * Restituisce il permesso; le chiamate successive alla prima non hanno effetto.
+         */
+        public void rilascia() {
+            if (rilasciato.compareAndSet(false, true)) {
+                QueryScheduler.this.rilascia(client);
+            }
+        }
+    }
+
+    public static class CodaPienaException extends RuntimeException {
+        private final long retryAfterSecondi;
+
+        public CodaPienaException(String messaggio, long retryAfterSecondi) {
+            super(messaggio);
+            this.retryAfterSecondi = retryAfterSecondi;
+        }
+
+        public long getRetryAfterSecondi() { return retryAfterSecondi; }
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.service;
+
+import com.google.cloud.bigquery.JobId;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Cursore opaco per la paginazione dei risultati: contiene il job BigQuery,
+ * il token della pagina da leggere e la dimensione della pagina.
+ * Permette di leggere una pagina successiva anche dopo che il job è uscito dal registro locale.
+ * Il cursore è firmato con HMAC-SHA256 e una chiave del server: un client non può costruirne
+ * uno per un job che non gli è stato restituito.
+ */
+public final class ResultCursor {
+
+    private static final char SEPARATORE = '\n';
+    private static final char SEPARATORE_FIRMA = '.';
+    private static final String ALGORITMO = "HmacSHA256";
+
+    private final JobId jobId;
+    private final String pageToken;
+    private final long pageSize;
+
+    public ResultCursor(JobId jobId, String pageToken, long pageSize) {
+        this.jobId = jobId;
+        this.pageToken = pageToken;
+        this.pageSize = pageSize;
+    }
+
+    public JobId getJobId() { return jobId; }
+    public String getPageToken() { return pageToken; }
+    public long getPageSize() { return pageSize; }
+
+    public String codifica(byte[] chiave) {
+        String testo = valore(jobId.getProject()) + SEPARATORE
+                + jobId.getJob() + SEPARATORE
+                + valore(jobId.getLocation()) + SEPARATORE
+                + valore(pageToken) + SEPARATORE
+                + pageSize;
+        byte[] contenuto = testo.getBytes(StandardCharsets.UTF_8);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(contenuto) + SEPARATORE_FIRMA + encoder.encodeToString(firma(contenuto, chiave));
+    }
+
+    /**
+     * @throws IllegalArgumentException se il cursore non è stato prodotto da {@link #codifica(byte[])}
+     *                                  con la stessa chiave
+     */
+    public static ResultCursor decodifica(String cursore, byte[] chiave) {
+        try {
+            int punto = cursore.indexOf(SEPARATORE_FIRMA);
+            if (punto < 0) {
+                throw new IllegalArgumentException("Cursore non firmato");
+            }
+            byte[] contenuto = Base64.getUrlDecoder().decode(cursore.substring(0, punto));
+            byte[] firma = Base64.getUrlDecoder().decode(cursore.substring(punto + 1));
+            // Confronto a tempo costante
+            if (!MessageDigest.isEqual(firma, firma(contenuto, chiave))) {
+                throw new IllegalArgumentException("Firma del cursore non valida");
+            }
+            String testo = new String(contenuto, StandardCharsets.UTF_8);
+            String[] parti = testo.split(String.valueOf(SEPARATORE), -1);
+            if (parti.length != 5 || parti[1].isEmpty()) {
+                throw new IllegalArgumentException("Cursore non valido");
+            }
+            JobId.Builder builder = JobId.newBuilder().setJob(parti[1]);
+            if (!parti[0].isEmpty()) {
+                builder.setProject(parti[0]);
+            }
+            if (!parti[2].isEmpty()) {
+                builder.setLocation(parti[2]);
+            }
+            String token = parti[3].isEmpty() ? null : parti[3];
+            return new ResultCursor(builder.build(), token, Long.parseLong(parti[4]));
+        } catch (IllegalArgumentException e) {
+            // Include anche Base64 malformato e NumberFormatException
+            throw new IllegalArgumentException("Cursore non valido", e);
+        }
+    }
+
+    private static byte[] firma(byte[] contenuto, byte[] chiave) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITMO);
+            mac.init(new SecretKeySpec(chiave, ALGORITMO));
+            return mac.doFinal(contenuto);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String valore(String s) {
+        return s != null ? s : "";
+    }
+}
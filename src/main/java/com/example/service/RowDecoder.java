@@ -0,0 +1,288 @@
+package com.example.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Decodifica le righe di un risultato BigQuery risolvendo lo schema una sola volta:
+ * i campi vengono letti per posizione e convertiti con un convertitore tipizzato per colonna.
+ */
+public class RowDecoder {
+
+    private final String[] nomi;
+    private final Map<String, Integer> indici;
+    private final Convertitore[] convertitori;
+
+    private RowDecoder(FieldList fields) {
+        int n = fields.size();
+        this.nomi = new String[n];
+        this.indici = new HashMap<>(n * 2);
+        this.convertitori = new Convertitore[n];
+        for (int i = 0; i < n; i++) {
+            Field field = fields.get(i);
+            nomi[i] = field.getName();
+            indici.put(field.getName(), i);
+            convertitori[i] = creaConvertitore(field);
+        }
+    }
+
+    /**
+     * Decoder per lo schema del risultato. Le istruzioni senza risultato (DML, DDL, script)
+     * non hanno schema: il decoder non ha colonne.
+     */
+    public static RowDecoder of(Schema schema) {
+        return new RowDecoder(schema != null ? schema.getFields() : FieldList.of());
+    }
+
+    public int getNumeroColonne() {
+        return nomi.length;
+    }
+
+    public String getNomeColonna(int indice) {
+        return nomi[indice];
+    }
+
+    /**
+     * Converte la riga in una mappa compatta che condivide i nomi delle colonne
+     * con tutte le altre righe dello stesso risultato.
+     */
+    public Map<String, Object> decode(FieldValueList row) {
+        return new Riga(decodeValues(row));
+    }
+
+    public Object[] decodeValues(FieldValueList row) {
+        Object[] valori = new Object[nomi.length];
+        for (int i = 0; i < nomi.length; i++) {
+            valori[i] = convertitori[i].converti(row.get(i));
+        }
+        return valori;
+    }
+
+    /**
+     * Scrive la riga come oggetto JSON senza creare oggetti intermedi per i tipi primitivi.
+     */
+    public void write(FieldValueList row, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        for (int i = 0; i < nomi.length; i++) {
+            generator.writeFieldName(nomi[i]);
+            convertitori[i].scrivi(row.get(i), generator);
+        }
+        generator.writeEndObject();
+    }
+
+    Object converti(int indice, FieldValue value) {
+        return convertitori[indice].converti(value);
+    }
+
+    private static Convertitore creaConvertitore(Field field) {
+        Convertitore base = creaConvertitoreScalare(field);
+        if (field.getMode() == Field.Mode.REPEATED) {
+            return new Convertitore() {
+                @Override
+                public Object converti(FieldValue value) {
+                    if (value == null || value.isNull()) return null;
+                    List<FieldValue> elementi = value.getRepeatedValue();
+                    List<Object> lista = new ArrayList<>(elementi.size());
+                    for (FieldValue elemento : elementi) {
+                        lista.add(base.converti(elemento));
+                    }
+                    return lista;
+                }
+
+                @Override
+                public void scrivi(FieldValue value, JsonGenerator generator) throws IOException {
+                    if (value == null || value.isNull()) {
+                        generator.writeNull();
+                        return;
+                    }
+                    generator.writeStartArray();
+                    for (FieldValue elemento : value.getRepeatedValue()) {
+                        base.scrivi(elemento, generator);
+                    }
+                    generator.writeEndArray();
+                }
+            };
+        }
+        return base;
+    }
+
+    private static Convertitore creaConvertitoreScalare(Field field) {
+        StandardSQLTypeName tipo = field.getType() != null ? field.getType().getStandardType() : StandardSQLTypeName.STRING;
+        switch (tipo) {
+            case INT64:
+                return new Convertitore() {
+                    @Override
+                    public Object converti(FieldValue value) {
+                        return value == null || value.isNull() ? null : value.getLongValue();
+                    }
+
+                    @Override
+                    public void scrivi(FieldValue value, JsonGenerator generator) throws IOException {
+                        if (value == null || value.isNull()) generator.writeNull();
+                        else generator.writeNumber(value.getLongValue());
+                    }
+                };
+            case FLOAT64:
+                return new Convertitore() {
+                    @Override
+                    public Object converti(FieldValue value) {
+                        return value == null || value.isNull() ? null : value.getDoubleValue();
+                    }
+
+                    @Override
+                    public void scrivi(FieldValue value, JsonGenerator generator) throws IOException {
+                        if (value == null || value.isNull()) generator.writeNull();
+                        else generator.writeNumber(value.getDoubleValue());
+                    }
+                };
+            case BOOL:
+                return new Convertitore() {
+                    @Override
+                    public Object converti(FieldValue value) {
+                        return value == null || value.isNull() ? null : value.getBooleanValue();
+                    }
+
+                    @Override
+                    public void scrivi(FieldValue value, JsonGenerator generator) throws IOException {
+                        if (value == null || value.isNull()) generator.writeNull();
+                        else generator.writeBoolean(value.getBooleanValue());
+                    }
+                };
+            case NUMERIC:
+            case BIGNUMERIC:
+                return new Convertitore() {
+                    @Override
+                    public Object converti(FieldValue value) {
+                        return value == null || value.isNull() ? null : value.getNumericValue();
+                    }
+
+                    @Override
+                    public void scrivi(FieldValue value, JsonGenerator generator) throws IOException {
+                        if (value == null || value.isNull()) generator.writeNull();
+                        // Il testo di BigQuery è già un numero decimale valido: nessun passaggio per BigDecimal
+                        else generator.writeNumber(value.getStringValue());
+                    }
+                };
+            case TIMESTAMP:
+                return new Convertitore() {
+                    @Override
+                    public Object converti(FieldValue value) {
+                        return value == null || value.isNull() ? null : value.getTimestampInstant();
+                    }
+
+                    @Override
+                    public void scrivi(FieldValue value, JsonGenerator generator) throws IOException {
+                        if (value == null || value.isNull()) generator.writeNull();
+                        else generator.writeString(value.getTimestampInstant().toString());
+                    }
+                };
+            case STRUCT:
+                RowDecoder record = new RowDecoder(field.getSubFields());
+                return new Convertitore() {
+                    @Override
+                    public Object converti(FieldValue value) {
+                        return value == null || value.isNull() ? null : record.decode(value.getRecordValue());
+                    }
+
+                    @Override
+                    public void scrivi(FieldValue value, JsonGenerator generator) throws IOException {
+                        if (value == null || value.isNull()) generator.writeNull();
+                        else record.write(value.getRecordValue(), generator);
+                    }
+                };
+            default:
+                // STRING, DATE, TIME, DATETIME, BYTES, GEOGRAPHY, JSON, INTERVAL: valore testuale di BigQuery
+                return new Convertitore() {
+                    @Override
+                    public Object converti(FieldValue value) {
+                        return value == null || value.isNull() ? null : value.getStringValue();
+                    }
+
+                    @Override
+                    public void scrivi(FieldValue value, JsonGenerator generator) throws IOException {
+                        if (value == null || value.isNull()) generator.writeNull();
+                        else generator.writeString(value.getStringValue());
+                    }
+                };
+        }
+    }
+
+    private interface Convertitore {
+        Object converti(FieldValue value);
+
+        void scrivi(FieldValue value, JsonGenerator generator) throws IOException;
+    }
+
+    /**
+     * Riga decodificata: i valori sono in un array, i nomi delle colonne sono condivisi.
+     */
+    private final class Riga extends AbstractMap<String, Object> {
+        private final Object[] valori;
+
+        private Riga(Object[] valori) {
+            this.valori = valori;
+        }
+
+        @Override
+        public Object get(Object key) {
+            Integer indice = indici.get(key);
+            return indice != null ? valori[indice] : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indici.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return valori.length;
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<>() {
+                        private int i = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return i < valori.length;
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            if (i >= valori.length) throw new NoSuchElementException();
+                            Entry<String, Object> entry = new SimpleImmutableEntry<>(nomi[i], valori[i]);
+                            i++;
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return valori.length;
+                }
+            };
+        }
+    }
+}
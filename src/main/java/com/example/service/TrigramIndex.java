@@ -0,0 +1,494 @@
+package com.example.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Indice invertito per trigrammi sui testi SQL della cronologia, in minuscolo.
+ * Ogni testo distinto viene indicizzato una volta sola e conserva gli id delle esecuzioni che lo
+ * hanno usato; le liste dei trigrammi contengono i numeri dei testi, crescenti, codificati come
+ * differenze in varint. Anche le coppie e i singoli caratteri hanno una lista, per i termini più
+ * corti di un trigramma.
+ * Una ricerca ha tre fasi: {@link #candidati} interseca le liste più rare dei termini, dai testi più
+ * recenti, fino a {@link #TESTI_DA_VERIFICARE} testi; {@link #classifica} li verifica e tiene solo i
+ * migliori che servono alla pagina; {@link #pagina} ne legge gli id. Oltre quel numero di testi il
+ * totale è stimato dalla frazione esaminata.
+ * Non è thread-safe: la sincronizzazione è a carico di {@link QueryHistorySearchIndex}, che esegue
+ * la classifica fuori dal lock perché lavora solo su una copia dei candidati.
+ */
+class TrigramIndex {
+
+    // Sotto questo numero di candidati conviene verificare i testi invece di intersecare altre liste
+    private static final int CANDIDATI_DA_VERIFICARE = 64;
+
+    // Testi verificati al massimo per ricerca: i termini comuni non scorrono tutto l'indice
+    static final int TESTI_DA_VERIFICARE = 5_000;
+
+    // Numeri della lista più rara decodificati e intersecati per volta, dalla fine
+    private static final int FINESTRA = 1_024;
+
+    // Per pertinenza decrescente e poi dal testo usato più di recente
+    private static final Comparator<Corrispondenza> ORDINE = Comparator
+            .comparingDouble((Corrispondenza c) -> c.punteggio).reversed()
+            .thenComparing(Comparator.comparingLong((Corrispondenza c) -> c.ultimoId).reversed());
+
+    private final Map<String, Integer> numeriTesti = new HashMap<>();
+    private final Map<Long, ListaPosting> posting = new HashMap<>();
+    private String[] testi = new String[1024];
+    private long[][] idPerTesto = new long[1024][];
+    private int[] conteggiPerTesto = new int[1024];
+    private int numeroTesti;
+    private long numeroVoci;
+
+    void aggiungi(long id, String sql) {
+        String testo = sql.toLowerCase(Locale.ROOT);
+        Integer numero = numeriTesti.get(testo);
+        if (numero == null) {
+            numero = nuovoTesto(testo);
+        }
+        long[] ids = idPerTesto[numero];
+        int conteggio = conteggiPerTesto[numero];
+        if (conteggio == ids.length) {
+            ids = idPerTesto[numero] = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[conteggio] = id;
+        conteggiPerTesto[numero] = conteggio + 1;
+        numeroVoci++;
+    }
+
+    /**
+     * Rimuove le esecuzioni indicate, con il rispettivo testo SQL. Il testo resta nel dizionario
+     * anche senza esecuzioni e viene ignorato dalle ricerche.
+     */
+    void rimuovi(Map<Long, String> testiPerId) {
+        Map<Integer, Set<Long>> daRimuovere = new HashMap<>();
+        testiPerId.forEach((id, sql) -> {
+            Integer numero = sql != null ? numeriTesti.get(sql.toLowerCase(Locale.ROOT)) : null;
+            if (numero != null) {
+                daRimuovere.computeIfAbsent(numero, n -> new HashSet<>()).add(id);
+            }
+        });
+        daRimuovere.forEach((numero, ids) -> {
+            long[] voci = idPerTesto[numero];
+            int conteggio = conteggiPerTesto[numero];
+            int rimasti = 0;
+            for (int i = 0; i < conteggio; i++) {
+                if (!ids.contains(voci[i])) {
+                    voci[rimasti++] = voci[i];
+                }
+            }
+            numeroVoci -= conteggio - rimasti;
+            conteggiPerTesto[numero] = rimasti;
+        });
+    }
+
+    /**
+     * Esecuzioni il cui testo contiene tutti i termini (separati da spazi) di {@code ricerca}, senza
+     * distinguere maiuscole e minuscole, ordinate per pertinenza e poi dalla più recente.
+     * La pertinenza è la frazione del testo coperta dai termini, con peso doppio per le occorrenze
+     * che sono parole intere.
+     */
+    Risultati cerca(String ricerca, int inizio, int limite) {
+        String[] termini = termini(ricerca);
+        if (termini.length == 0) {
+            return new Risultati(0, false, List.of());
+        }
+        return pagina(classifica(candidati(termini), termini, (long) inizio + limite), inizio, limite);
+    }
+
+    static String[] termini(String ricerca) {
+        String[] termini = ricerca.toLowerCase(Locale.ROOT).trim().split("\\s+");
+        return termini[0].isEmpty() ? new String[0] : termini;
+    }
+
+    /**
+     * Testi che contengono tutte le chiavi dei termini, dal più recente, con le esecuzioni di
+     * ciascuno al momento della lettura. Si ferma dopo {@link #TESTI_DA_VERIFICARE} testi.
+     */
+    Candidati candidati(String[] termini) {
+        Set<Long> chiavi = new LinkedHashSet<>();
+        for (String termine : termini) {
+            chiavi.addAll(chiavi(termine));
+        }
+        List<ListaPosting> liste = new ArrayList<>(chiavi.size());
+        for (long chiave : chiavi) {
+            ListaPosting lista = posting.get(chiave);
+            if (lista == null) {
+                return new Candidati(0);
+            }
+            liste.add(lista);
+        }
+        liste.sort(Comparator.comparingInt(ListaPosting::getConteggio));
+        ListaPosting piuRara = liste.get(0);
+        Candidati candidati = new Candidati(piuRara.getConteggio());
+        int fine = piuRara.getConteggio();
+        while (fine > 0 && candidati.dimensione < TESTI_DA_VERIFICARE) {
+            int inizio = Math.max(0, fine - FINESTRA);
+            int[] finestra = piuRara.decodifica(inizio, fine);
+            for (int i = 1; i < liste.size() && finestra.length > CANDIDATI_DA_VERIFICARE; i++) {
+                finestra = liste.get(i).interseca(finestra);
+            }
+            for (int i = finestra.length - 1; i >= 0; i--) {
+                int numero = finestra[i];
+                int conteggio = conteggiPerTesto[numero];
+                if (conteggio > 0) {
+                    candidati.aggiungi(numero, testi[numero], conteggio, idPerTesto[numero][conteggio - 1]);
+                }
+            }
+            candidati.esaminati += fine - inizio;
+            fine = inizio;
+        }
+        return candidati;
+    }
+
+    /**
+     * Verifica i candidati sul testo e conserva solo i testi migliori che coprono le prime
+     * {@code esecuzioni} esecuzioni. Non legge l'indice.
+     */
+    static Classifica classifica(Candidati candidati, String[] termini, long esecuzioni) {
+        // In cima al heap c'è il testo peggiore tra quelli tenuti
+        PriorityQueue<Corrispondenza> migliori = new PriorityQueue<>(ORDINE.reversed());
+        long tenute = 0;
+        long totale = 0;
+        for (int i = 0; i < candidati.dimensione; i++) {
+            double punteggio = punteggio(candidati.testi[i], termini);
+            if (punteggio == 0) {
+                continue;
+            }
+            int conteggio = candidati.conteggi[i];
+            totale += conteggio;
+            migliori.add(new Corrispondenza(candidati.numeri[i], punteggio, candidati.ultimiId[i], conteggio));
+            tenute += conteggio;
+            while (migliori.size() > 1 && tenute - migliori.peek().conteggio >= esecuzioni) {
+                tenute -= migliori.poll().conteggio;
+            }
+        }
+        boolean stimato = candidati.esaminati < candidati.daEsaminare;
+        if (stimato) {
+            totale = Math.round((double) totale * candidati.daEsaminare / candidati.esaminati);
+        }
+        List<Corrispondenza> ordinate = new ArrayList<>(migliori);
+        ordinate.sort(ORDINE);
+        return new Classifica(ordinate, totale, stimato);
+    }
+
+    /**
+     * Id della pagina richiesta, dai testi della classifica.
+     */
+    Risultati pagina(Classifica classifica, int inizio, int limite) {
+        // Le esecuzioni di uno stesso testo sono consecutive, dalla più recente
+        List<Risultato> pagina = new ArrayList<>(Math.min(limite, 1024));
+        long salto = inizio;
+        for (Corrispondenza c : classifica.ordinate) {
+            if (pagina.size() >= limite) {
+                break;
+            }
+            int conteggio = conteggiPerTesto[c.numero];
+            if (salto >= conteggio) {
+                salto -= conteggio;
+                continue;
+            }
+            long[] ids = idPerTesto[c.numero];
+            for (int i = conteggio - 1 - (int) salto; i >= 0 && pagina.size() < limite; i--) {
+                pagina.add(new Risultato(ids[i], c.punteggio));
+            }
+            salto = 0;
+        }
+        return new Risultati(classifica.totale, classifica.stimato, pagina);
+    }
+
+    int getNumeroTesti() {
+        return numeroTesti;
+    }
+
+    long getNumeroVoci() {
+        return numeroVoci;
+    }
+
+    private int nuovoTesto(String testo) {
+        int numero = numeroTesti;
+        if (numero == testi.length) {
+            int capacita = numero * 2;
+            testi = Arrays.copyOf(testi, capacita);
+            idPerTesto = Arrays.copyOf(idPerTesto, capacita);
+            conteggiPerTesto = Arrays.copyOf(conteggiPerTesto, capacita);
+        }
+        testi[numero] = testo;
+        idPerTesto[numero] = new long[1];
+        numeriTesti.put(testo, numero);
+        numeroTesti++;
+        for (int i = 0; i < testo.length(); i++) {
+            for (int lunghezza = 1; lunghezza <= 3 && i + lunghezza <= testo.length(); lunghezza++) {
+                ListaPosting lista = posting.computeIfAbsent(chiave(testo, i, lunghezza), t -> new ListaPosting());
+                // Una chiave ripetuta nello stesso testo compare una volta sola
+                if (lista.ultimo != numero) {
+                    lista.aggiungi(numero);
+                }
+            }
+        }
+        return numero;
+    }
+
+    // Trigrammi del termine, o il termine stesso se è più corto
+    static Set<Long> chiavi(String termine) {
+        Set<Long> chiavi = new LinkedHashSet<>();
+        if (termine.length() < 3) {
+            chiavi.add(chiave(termine, 0, termine.length()));
+        }
+        for (int i = 0; i + 3 <= termine.length(); i++) {
+            chiavi.add(chiave(termine, i, 3));
+        }
+        return chiavi;
+    }
+
+    // Caratteri da 16 bit affiancati; la lunghezza nei bit alti distingue coppie e singoli dai trigrammi
+    private static long chiave(String testo, int i, int lunghezza) {
+        long chiave = 0;
+        for (int j = 0; j < lunghezza; j++) {
+            chiave = chiave << 16 | testo.charAt(i + j);
+        }
+        return lunghezza == 3 ? chiave : chiave | (long) lunghezza << 48;
+    }
+
+    static double punteggio(String testo, String[] termini) {
+        double coperto = 0;
+        for (String termine : termini) {
+            int posizione = testo.indexOf(termine);
+            if (posizione < 0) {
+                return 0;
+            }
+            while (posizione >= 0) {
+                boolean parolaIntera = !parte(testo, posizione - 1) && !parte(testo, posizione + termine.length());
+                coperto += termine.length() * (parolaIntera ? 2 : 1);
+                posizione = testo.indexOf(termine, posizione + 1);
+            }
+        }
+        return coperto / testo.length();
+    }
+
+    private static boolean parte(String testo, int posizione) {
+        if (posizione < 0 || posizione >= testo.length()) {
+            return false;
+        }
+        char c = testo.charAt(posizione);
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * Numeri dei testi crescenti, come differenze dal precedente in varint (7 bit per byte).
+     * Ogni {@link #BLOCCO} numeri si annotano il numero precedente e la posizione nei dati, così
+     * l'intersezione con pochi candidati salta i blocchi che non possono contenerli.
+     */
+    static final class ListaPosting {
+        private static final int BLOCCO = 64;
+
+        private byte[] dati = new byte[4];
+        private int lunghezza;
+        private int conteggio;
+        private int ultimo = -1;
+        private int[] basiBlocchi = new int[1];
+        private int[] posizioniBlocchi = new int[1];
+
+        void aggiungi(int numero) {
+            if (conteggio % BLOCCO == 0) {
+                int blocco = conteggio / BLOCCO;
+                if (blocco == basiBlocchi.length) {
+                    basiBlocchi = Arrays.copyOf(basiBlocchi, blocco * 2);
+                    posizioniBlocchi = Arrays.copyOf(posizioniBlocchi, blocco * 2);
+                }
+                basiBlocchi[blocco] = ultimo;
+                posizioniBlocchi[blocco] = lunghezza;
+            }
+            int differenza = numero - ultimo;
+            if (lunghezza + 5 > dati.length) {
+                dati = Arrays.copyOf(dati, Math.max(dati.length * 2, lunghezza + 5));
+            }
+            while ((differenza & ~0x7F) != 0) {
+                dati[lunghezza++] = (byte) ((differenza & 0x7F) | 0x80);
+                differenza >>>= 7;
+            }
+            dati[lunghezza++] = (byte) differenza;
+            ultimo = numero;
+            conteggio++;
+        }
+
+        int getConteggio() {
+            return conteggio;
+        }
+
+        int[] decodifica() {
+            return decodifica(0, conteggio);
+        }
+
+        // Numeri dalla posizione da (inclusa) ad a (esclusa), partendo dal blocco che contiene da
+        int[] decodifica(int da, int a) {
+            int[] numeri = new int[a - da];
+            int blocco = da / BLOCCO;
+            int numero = basiBlocchi[blocco];
+            int posizione = posizioniBlocchi[blocco];
+            for (int i = blocco * BLOCCO; i < a; i++) {
+                int differenza = 0;
+                int spostamento = 0;
+                byte b;
+                do {
+                    b = dati[posizione++];
+                    differenza |= (b & 0x7F) << spostamento;
+                    spostamento += 7;
+                } while (b < 0);
+                numero += differenza;
+                if (i >= da) {
+                    numeri[i - da] = numero;
+                }
+            }
+            return numeri;
+        }
+
+        // Candidati (crescenti) presenti anche in questa lista
+        int[] interseca(int[] candidati) {
+            int[] comuni = new int[candidati.length];
+            int trovati = 0;
+            int blocchi = (conteggio + BLOCCO - 1) / BLOCCO;
+            int blocco = 0;
+            int letti = 0;
+            int numero = -1;
+            int posizione = 0;
+            for (int candidato : candidati) {
+                // Il candidato non può stare prima dell'ultimo blocco che inizia dopo un numero minore
+                while (blocco + 1 < blocchi && basiBlocchi[blocco + 1] < candidato) {
+                    blocco++;
+                }
+                if (blocco * BLOCCO > letti) {
+                    letti = blocco * BLOCCO;
+                    numero = basiBlocchi[blocco];
+                    posizione = posizioniBlocchi[blocco];
+                }
+                while (numero < candidato && letti < conteggio) {
+                    int differenza = 0;
+                    int spostamento = 0;
+                    byte b;
+                    do {
+                        b = dati[posizione++];
+                        differenza |= (b & 0x7F) << spostamento;
+                        spostamento += 7;
+                    } while (b < 0);
+                    numero += differenza;
+                    letti++;
+                }
+                if (numero == candidato) {
+                    comuni[trovati++] = candidato;
+                }
+            }
+            return Arrays.copyOf(comuni, trovati);
+        }
+    }
+
+    /**
+     * Copia dei testi candidati, letta sotto lock e verificabile fuori.
+     */
+    static final class Candidati {
+        private final long daEsaminare;
+        private long esaminati;
+        private int dimensione;
+        private int[] numeri = new int[16];
+        private String[] testi = new String[16];
+        private int[] conteggi = new int[16];
+        private long[] ultimiId = new long[16];
+
+        private Candidati(long daEsaminare) {
+            this.daEsaminare = daEsaminare;
+        }
+
+        private void aggiungi(int numero, String testo, int conteggio, long ultimoId) {
+            if (dimensione == numeri.length) {
+                int capacita = dimensione * 2;
+                numeri = Arrays.copyOf(numeri, capacita);
+                testi = Arrays.copyOf(testi, capacita);
+                conteggi = Arrays.copyOf(conteggi, capacita);
+                ultimiId = Arrays.copyOf(ultimiId, capacita);
+            }
+            numeri[dimensione] = numero;
+            testi[dimensione] = testo;
+            conteggi[dimensione] = conteggio;
+            ultimiId[dimensione] = ultimoId;
+            dimensione++;
+        }
+    }
+
+    static final class Classifica {
+        private final List<Corrispondenza> ordinate;
+        private final long totale;
+        private final boolean stimato;
+
+        private Classifica(List<Corrispondenza> ordinate, long totale, boolean stimato) {
+            this.ordinate = ordinate;
+            this.totale = totale;
+            this.stimato = stimato;
+        }
+    }
+
+    private static final class Corrispondenza {
+        private final int numero;
+        private final double punteggio;
+        private final long ultimoId;
+        private final int conteggio;
+
+        private Corrispondenza(int numero, double punteggio, long ultimoId, int conteggio) {
+            this.numero = numero;
+            this.punteggio = punteggio;
+            this.ultimoId = ultimoId;
+            this.conteggio = conteggio;
+        }
+    }
+
+    static final class Risultato {
+        private final long id;
+        private final double punteggio;
+
+        Risultato(long id, double punteggio) {
+            this.id = id;
+            this.punteggio = punteggio;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        double getPunteggio() {
+            return punteggio;
+        }
+    }
+
+    static final class Risultati {
+        private final long totale;
+        private final boolean totaleStimato;
+        private final List<Risultato> risultati;
+
+        Risultati(long totale, boolean totaleStimato, List<Risultato> risultati) {
+            this.totale = totale;
+            this.totaleStimato = totaleStimato;
+            this.risultati = risultati;
+        }
+
+        long getTotale() {
+            return totale;
+        }
+
+        // Vero se i testi da verificare erano troppi e il totale è proporzionale a quelli esaminati
+        boolean isTotaleStimato() {
+            return totaleStimato;
+        }
+
+        List<Risultato> getRisultati() {
+            return risultati;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.example.controller;
+
+import com.example.demo.DemoApplication;
+import com.example.dto.StructuredQueryRequest;
+import com.example.service.BigQueryService;
+import com.example.service.QueryCostService;
+import com.example.service.QueryJobService;
+import com.example.service.QueryJobService.QueryAnnullataException;
+import com.example.service.QueryJobService.QueryJobHandle;
+import com.example.service.QueryLatencyStats;
+import com.example.service.QueryMetrics;
+import com.example.service.QueryResultCache;
+import com.example.service.QueryValidationService;
+import com.example.service.QueryValidationService.ValidationResult;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.TableResult;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.never;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@WebMvcTest(BigQueryController.class)
+@ContextConfiguration(classes = DemoApplication.class)
+class BigQueryControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockitoBean
+    private BigQueryService bigQueryService;
+
+    @MockitoBean
+    private QueryValidationService queryValidationService;
+
+    @MockitoBean
+    private QueryJobService queryJobService;
+
+    @MockitoBean
+    private QueryResultCache queryResultCache;
+
+    @MockitoBean
+    private QueryMetrics queryMetrics;
+
+    @MockitoBean
+    private QueryLatencyStats queryLatencyStats;
+
+    @BeforeEach
+    void setUp() {
+        ValidationResult valida = mock(ValidationResult.class);
+        when(valida.isValida()).thenReturn(true);
+        when(valida.getAvvisi()).thenReturn(List.of());
+        when(queryValidationService.validaQuery(any())).thenReturn(valida);
+    }
+
+    @Test
+    void scriveLeRisposteInStreaming() throws Exception {
+        TableResult result = mock(TableResult.class);
+        when(queryJobService.getTimeoutEffettivo(isNull())).thenReturn(60_000L);
+        when(bigQueryService.runQueryWithHistoryAsync(eq("SELECT 1"), isNull(), any(), anyBoolean(), anyLong(), any()))
+                .thenReturn(CompletableFuture.completedFuture(result));
+        AtomicReference<String> thread = new AtomicReference<>();
+        doAnswer(inv -> {
+            thread.set(Thread.currentThread().getName());
+            inv.getArgument(1, OutputStream.class).write("{\"n\":1}\n".getBytes());
+            return null;
+        }).when(bigQueryService).writeNdjson(eq(result), any());
+
+        MvcResult avviata = mockMvc.perform(post("/bigquery/query")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"sql\":\"SELECT 1\",\"format\":\"ndjson\"}"))
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(scritta(avviata)))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                .andExpect(content().string("{\"n\":1}\n"))
+                // Senza job creato da questa richiesta (cache, esecuzione condivisa) non c'è stima
+                .andExpect(header().doesNotExist(BigQueryController.HEADER_BYTES_STIMATI));
+        // Il corpo viene scritto dall'executor limitato dello streaming, non dal thread della richiesta
+        assertThat(thread.get()).startsWith("bq-streaming-");
+    }
+
+    @Test
+    void restituisceLaStimaDeiByteNellaRispostaRiuscita() throws Exception {
+        TableResult result = mock(TableResult.class);
+        when(queryJobService.getTimeoutEffettivo(isNull())).thenReturn(60_000L);
+        when(bigQueryService.runQueryWithHistoryAsync(eq("SELECT 1"), isNull(), any(), anyBoolean(), anyLong(), any()))
+                .thenAnswer(inv -> {
+                    inv.<Consumer<QueryCostService.Stima>>getArgument(5).accept(new QueryCostService.Stima(1_234L, 0.01, 10_000L));
+                    return CompletableFuture.completedFuture(result);
+                });
+
+        MvcResult avviata = mockMvc.perform(post("/bigquery/query")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"sql\":\"SELECT 1\"}"))
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(avviata))
+                .andExpect(status().isOk())
+                .andExpect(header().string(BigQueryController.HEADER_BYTES_STIMATI, "1234"));
+    }
+
+    @Test
+    void scriveInNdjsonLeQueryStrutturate() throws Exception {
+        TableResult result = mock(TableResult.class);
+        when(queryJobService.getTimeoutEffettivo(isNull())).thenReturn(60_000L);
+        String sql = "SELECT * FROM `p`.`d`.`t` LIMIT @limit";
+        when(bigQueryService.buildQuery(any(StructuredQueryRequest.class))).thenReturn(new BigQueryService.BuiltQuery(sql, Map.of()));
+        when(bigQueryService.runQueryWithHistoryAsync(eq(sql), eq(Map.of()), any(), anyBoolean(), anyLong(), any()))
+                .thenReturn(CompletableFuture.completedFuture(result));
+        doAnswer(inv -> {
+            OutputStream out = inv.getArgument(1, OutputStream.class);
+            out.write("{\"n\":1}\n".getBytes());
+            out.write("{\"n\":2}\n".getBytes());
+            return null;
+        }).when(bigQueryService).writeNdjson(eq(result), any());
+
+        MvcResult avviata = mockMvc.perform(post("/bigquery/query-structured")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"table\":\"p.d.t\",\"format\":\"NDJSON\"}"))
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(scritta(avviata)))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                .andExpect(content().string("{\"n\":1}\n{\"n\":2}\n"));
+        // La latenza va all'impronta del SQL generato
+        verify(queryLatencyStats).registra(eq("/bigquery/query-structured"), eq(sql), anyLong(), eq(QueryMetrics.SUCCESSO));
+    }
+
+    @Test
+    void scriveIlJsonInStreamingPaginaPerPagina() throws Exception {
+        TableResult result = mock(TableResult.class);
+        when(queryJobService.getTimeoutEffettivo(isNull())).thenReturn(60_000L);
+        when(bigQueryService.runQueryWithHistoryAsync(eq("SELECT 1"), isNull(), any(), anyBoolean(), anyLong(), any()))
+                .thenReturn(CompletableFuture.completedFuture(result));
+        doAnswer(inv -> {
+            OutputStream out = inv.getArgument(1, OutputStream.class);
+            out.write("[{\"n\":1}".getBytes());
+            out.flush();
+            out.write(",{\"n\":2}]".getBytes());
+            return null;
+        }).when(bigQueryService).writeJson(eq(result), any(OutputStream.class));
+
+        MvcResult avviata = mockMvc.perform(post("/bigquery/query")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"sql\":\"SELECT 1\",\"stream\":true}"))
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(scritta(avviata)))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(content().string("[{\"n\":1},{\"n\":2}]"));
+    }
+
+    @Test
+    void annullaLaQueryAlloScadereDellaRichiesta() throws Exception {
+        CompletableFuture<TableResult> inCorso = new CompletableFuture<>();
+        when(queryJobService.getTimeoutEffettivo(1L)).thenReturn(1L);
+        when(bigQueryService.runQueryWithHistoryAsync(eq("SELECT 1"), isNull(), any(), anyBoolean(), eq(1L), any()))
+                .thenReturn(inCorso);
+
+        MvcResult avviata = mockMvc.perform(post("/bigquery/query")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"sql\":\"SELECT 1\",\"timeoutMs\":1}"))
+                .andReturn();
+        // MockMvc non gestisce le scadenze asincrone: il timeout del container va simulato
+        MockAsyncContext contesto = (MockAsyncContext) avviata.getRequest().getAsyncContext();
+        for (AsyncListener listener : contesto.getListeners()) {
+            listener.onTimeout(new AsyncEvent(contesto));
+        }
+
+        mockMvc.perform(asyncDispatch(avviata)).andExpect(status().isGatewayTimeout());
+        assertThat(inCorso).isCompletedExceptionally();
+        assertThat(inCorso.isCancelled()).isTrue();
+        assertThatThrownBy(inCorso::join).isInstanceOfSatisfying(QueryAnnullataException.class,
+                e -> assertThat(e.isScaduta()).isTrue());
+        // Anche le query scadute entrano nei percentili, con il proprio esito
+        verify(queryLatencyStats).registra(eq("/bigquery/query"), eq("SELECT 1"), anyLong(), eq(QueryLatencyStats.TIMEOUT));
+    }
+
+    @Test
+    void restituisceLaPrimaPaginaSenzaBloccareIlThreadDellaRichiesta() throws Exception {
+        CompletableFuture<BigQueryService.PaginaRisultati> inCorso = new CompletableFuture<>();
+        when(queryJobService.getTimeoutEffettivo(isNull())).thenReturn(60_000L);
+        when(bigQueryService.eseguiPaginataAsync(eq("SELECT 1"), isNull(), any(), eq(50L), eq(60_000L))).thenReturn(inCorso);
+
+        MvcResult avviata = mockMvc.perform(post("/bigquery/query/pages").param("pageSize", "50")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"sql\":\"SELECT 1\"}"))
+                .andReturn();
+        // La richiesta è già tornata al container mentre il job è in corso
+        assertThat(avviata.getRequest().isAsyncStarted()).isTrue();
+        inCorso.complete(new BigQueryService.PaginaRisultati(List.of(Map.of("n", 1)), 2, "cursore-2"));
+
+        mockMvc.perform(asyncDispatch(avviata))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.righe").value(1))
+                .andExpect(jsonPath("$.cursore").value("cursore-2"));
+        verify(queryLatencyStats).registra(eq("/bigquery/query/pages"), eq("SELECT 1"), anyLong(), eq(QueryMetrics.SUCCESSO));
+    }
+
+    @Test
+    void annullaLaQueryPaginataAlloScadereDellaRichiesta() throws Exception {
+        CompletableFuture<BigQueryService.PaginaRisultati> inCorso = new CompletableFuture<>();
+        when(queryJobService.getTimeoutEffettivo(1L)).thenReturn(1L);
+        when(bigQueryService.eseguiPaginataAsync(eq("SELECT 1"), isNull(), any(), isNull(), eq(1L))).thenReturn(inCorso);
+
+        MvcResult avviata = mockMvc.perform(post("/bigquery/query/pages")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"sql\":\"SELECT 1\",\"timeoutMs\":1}"))
+                .andReturn();
+        MockAsyncContext contesto = (MockAsyncContext) avviata.getRequest().getAsyncContext();
+        for (AsyncListener listener : contesto.getListeners()) {
+            listener.onTimeout(new AsyncEvent(contesto));
+        }
+
+        mockMvc.perform(asyncDispatch(avviata)).andExpect(status().isGatewayTimeout());
+        assertThatThrownBy(inCorso::join).isInstanceOfSatisfying(QueryAnnullataException.class,
+                e -> assertThat(e.isScaduta()).isTrue());
+    }
+
+    @Test
+    void limitaLaPaginaDeiRisultatiDiUnJob() throws Exception {
+        Job job = mock(Job.class);
+        QueryJobHandle handle = mock(QueryJobHandle.class);
+        when(handle.getId()).thenReturn("job-1");
+        when(handle.getStato()).thenReturn("COMPLETATO");
+        when(handle.await()).thenReturn(job);
+        when(queryJobService.getJob("job-1")).thenReturn(handle);
+        when(queryJobService.leggiRisultati(eq(job), any(BigQuery.QueryResultsOption[].class))).thenReturn(mock(TableResult.class));
+
+        mockMvc.perform(get("/bigquery/jobs/job-1").param("pageSize", "10000000"))
+                .andExpect(status().isOk());
+        verify(queryJobService).leggiRisultati(eq(job), eq(BigQuery.QueryResultsOption.pageSize(10_000)));
+
+        mockMvc.perform(get("/bigquery/jobs/job-1").param("pageSize", "0"))
+                .andExpect(status().isBadRequest());
+        verify(queryJobService, never()).leggiRisultati(eq(job), eq(BigQuery.QueryResultsOption.pageSize(0)));
+    }
+
+    /**
+     * Al risultato della query segue un secondo passaggio asincrono, in cui il corpo
+     * in streaming viene scritto fuori dal thread della richiesta.
+     */
+    private MvcResult scritta(MvcResult avviata) throws Exception {
+        return mockMvc.perform(asyncDispatch(avviata)).andReturn();
+    }
+}
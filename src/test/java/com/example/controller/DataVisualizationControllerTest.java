@@ -0,0 +1,70 @@
+package com.example.controller;
+
+import com.example.demo.DemoApplication;
+import com.example.service.BigQueryService;
+import com.example.service.DataVisualizationService;
+import com.example.service.QueryCostService.BudgetSuperatoException;
+import com.example.service.QueryCostService.Stima;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@WebMvcTest(DataVisualizationController.class)
+@ContextConfiguration(classes = DemoApplication.class)
+class DataVisualizationControllerTest {
+
+    private static final String CORPO = "{\"sql\":\"SELECT 1\"}";
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockitoBean
+    private BigQueryService bigQueryService;
+
+    @MockitoBean
+    private DataVisualizationService dataVisualizationService;
+
+    @Test
+    void addebitaLaQueryAllIpERispondeTooManyRequestsABudgetEsaurito() throws Exception {
+        Stima stima = new Stima(1_000L, 0.01, 10_000L);
+        when(bigQueryService.runQuery(eq("SELECT 1"), isNull(), anyBoolean(), eq("10.0.0.7")))
+                .thenThrow(new BudgetSuperatoException("Budget per IP esaurito", stima, true, 42));
+
+        mockMvc.perform(post("/bigquery/visualization/chart")
+                        .header("X-Forwarded-For", "10.0.0.7, 192.168.0.1")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(CORPO))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "42"))
+                .andExpect(jsonPath("$.stima.bytesStimati").value(1_000));
+    }
+
+    @Test
+    void rispondeBadRequestPerUnaQueryOltreIlLimitePerRichiesta() throws Exception {
+        Stima stima = new Stima(50_000L, 0.3, 10_000L);
+        when(bigQueryService.runQuery(eq("SELECT 1"), isNull(), anyBoolean(), any()))
+                .thenThrow(new BudgetSuperatoException("Query troppo costosa", stima, false));
+
+        mockMvc.perform(post("/bigquery/visualization/chart-advanced")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(CORPO))
+                .andExpect(status().isBadRequest())
+                .andExpect(header().doesNotExist(HttpHeaders.RETRY_AFTER))
+                .andExpect(jsonPath("$.stima.entroLimite").value(false));
+    }
+}
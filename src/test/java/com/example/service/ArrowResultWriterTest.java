@@ -0,0 +1,79 @@
+package com.example.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.gax.paging.Page;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.TableResult;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.DecimalVector;
+import org.apache.arrow.vector.TimeStampMicroTZVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ArrowResultWriterTest {
+
+    private static final Schema SCHEMA = Schema.of(
+            Field.of("id", LegacySQLTypeName.INTEGER),
+            Field.of("nome", LegacySQLTypeName.STRING),
+            Field.of("quando", LegacySQLTypeName.TIMESTAMP),
+            Field.of("importo", LegacySQLTypeName.NUMERIC));
+
+    @Test
+    void scriveUnoStreamLeggibileDaArrow() throws Exception {
+        List<FieldValueList> righe = new ArrayList<>();
+        righe.add(riga("1", "a, \"b\"", "1408452095.22", "12.5"));
+        righe.add(riga("2", null, null, null));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ArrowResultWriter(SCHEMA, new ObjectMapper()).write(tableResult(righe), out);
+
+        try (RootAllocator allocator = new RootAllocator();
+             ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(out.toByteArray()), allocator)) {
+            assertThat(reader.loadNextBatch()).isTrue();
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+
+            assertThat(root.getRowCount()).isEqualTo(2);
+            assertThat(((BigIntVector) root.getVector("id")).get(1)).isEqualTo(2L);
+            assertThat(((VarCharVector) root.getVector("nome")).getObject(0).toString()).isEqualTo("a, \"b\"");
+            assertThat(root.getVector("nome").isNull(1)).isTrue();
+            assertThat(((TimeStampMicroTZVector) root.getVector("quando")).get(0)).isEqualTo(1408452095220000L);
+            assertThat(((DecimalVector) root.getVector("importo")).getObject(0)).isEqualByComparingTo(new BigDecimal("12.5"));
+            assertThat(root.getVector("importo").isNull(1)).isTrue();
+            assertThat(reader.loadNextBatch()).isFalse();
+        }
+    }
+
+    private static FieldValueList riga(String... valori) {
+        List<FieldValue> campi = new ArrayList<>();
+        for (String valore : valori) {
+            campi.add(FieldValue.of(FieldValue.Attribute.PRIMITIVE, valore));
+        }
+        return FieldValueList.of(campi, SCHEMA.getFields());
+    }
+
+    private static TableResult tableResult(List<FieldValueList> righe) {
+        Page<FieldValueList> pagina = new Page<>() {
+            @Override public boolean hasNextPage() { return false; }
+            @Override public String getNextPageToken() { return null; }
+            @Override public Page<FieldValueList> getNextPage() { return null; }
+            @Override public Iterable<FieldValueList> iterateAll() { return righe; }
+            @Override public Iterable<FieldValueList> getValues() { return righe; }
+        };
+        return new TableResult(SCHEMA, righe.size(), pagina);
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.service;
+
+import com.example.service.BigQueryResilience.CircuitoApertoException;
+import com.example.service.BigQueryResilience.StatoCircuito;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.QueryJobConfiguration;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+class BigQueryResilienceTest {
+
+    private static final QueryJobConfiguration CONFIG = QueryJobConfiguration.of("SELECT 1");
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final FakeBigQuery fake = new FakeBigQuery();
+    private QueryJobService queryJobService;
+
+    @AfterEach
+    void tearDown() {
+        if (queryJobService != null) {
+            queryJobService.arresta();
+        }
+    }
+
+    @Test
+    void ritentaGliErroriTransitori() throws Exception {
+        BigQueryResilience resilience = crea(registry, 4, 10, 60_000);
+        fake.fallisci("create", 1, FakeBigQuery.errore(500, "backendError"))
+                .fallisci("create", 1, FakeBigQuery.errore(403, "rateLimitExceeded"));
+
+        QueryJobService.QueryJobHandle handle = creaQueryJobService(resilience).submit(CONFIG);
+
+        assertThat(handle.getFuture().get(5, TimeUnit.SECONDS)).isNotNull();
+        assertThat(fake.chiamate("create")).isEqualTo(3);
+        assertThat(registry.get("bigquery.resilience.retries").tag("class", "transitorio").counter().count()).isEqualTo(1);
+        assertThat(registry.get("bigquery.resilience.retries").tag("class", "limite").counter().count()).isEqualTo(1);
+        assertThat(registry.get("bigquery.resilience.calls").tag("outcome", "successo_dopo_retry").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void nonRitentaGliErroriPermanenti() {
+        BigQueryResilience resilience = crea(registry, 4, 10, 60_000);
+        fake.fallisci("create", 1, FakeBigQuery.errore(400, "invalidQuery"));
+
+        assertThatThrownBy(() -> creaQueryJobService(resilience).submit(CONFIG))
+                .isInstanceOfSatisfying(BigQueryException.class, e -> assertThat(e.getReason()).isEqualTo("invalidQuery"));
+        assertThat(fake.chiamate("create")).isEqualTo(1);
+        assertThat(resilience.getStato()).isEqualTo(StatoCircuito.CHIUSO);
+    }
+
+    @Test
+    void nonDuplicaIlJobCreatoPrimaDellErrore() throws Exception {
+        BigQueryResilience resilience = crea(registry, 4, 10, 60_000);
+        fake.creaPrimaDiFallire().fallisci("create", 1, FakeBigQuery.errore(503, "backendError"));
+
+        QueryJobService.QueryJobHandle handle = creaQueryJobService(resilience).submit(CONFIG);
+
+        assertThat(handle.getFuture().get(5, TimeUnit.SECONDS)).isNotNull();
+        assertThat(fake.chiamate("create")).isEqualTo(2);
+        assertThat(fake.jobCreati()).isEqualTo(1);
+    }
+
+    @Test
+    void ilPollingSuperaGliErroriTransitori() throws Exception {
+        BigQueryResilience resilience = crea(registry, 4, 10, 60_000);
+        fake.inEsecuzionePer(1).fallisci("getJob", 2, FakeBigQuery.errore(503, "backendError"));
+
+        QueryJobService.QueryJobHandle handle = creaQueryJobService(resilience).submit(CONFIG);
+
+        assertThat(handle.getFuture().get(5, TimeUnit.SECONDS)).isNotNull();
+        assertThat(fake.chiamate("getJob")).isEqualTo(4);
+    }
+
+    @Test
+    void ilCircuitoApertoRifiutaSenzaChiamareBigQuery() throws Exception {
+        BigQueryResilience resilience = crea(registry, 1, 4, 100);
+        QueryJobService service = creaQueryJobService(resilience);
+        fake.fallisci("create", 4, FakeBigQuery.errore(503, "backendError"));
+        for (int i = 0; i < 4; i++) {
+            assertThatThrownBy(() -> service.submit(CONFIG)).isInstanceOf(BigQueryException.class);
+        }
+
+        assertThatThrownBy(() -> service.submit(CONFIG))
+                .isInstanceOfSatisfying(CircuitoApertoException.class, e -> assertThat(e.getRetryAfterSecondi()).isEqualTo(1));
+        assertThat(fake.chiamate("create")).isEqualTo(4);
+        assertThat(resilience.getStato()).isEqualTo(StatoCircuito.APERTO);
+        assertThat(registry.get("bigquery.resilience.calls").tag("outcome", "rifiutata").counter().count()).isEqualTo(1);
+
+        // Trascorsa la pausa, la chiamata di prova riesce e richiude il circuito
+        Thread.sleep(150);
+        assertThat(resilience.getStato()).isEqualTo(StatoCircuito.SEMI_APERTO);
+        service.submit(CONFIG).getFuture().get(5, TimeUnit.SECONDS);
+        assertThat(resilience.getStato()).isEqualTo(StatoCircuito.CHIUSO);
+    }
+
+    @Test
+    void laProvaFallitaRiapreIlCircuito() throws Exception {
+        BigQueryResilience resilience = crea(registry, 1, 2, 100);
+        QueryJobService service = creaQueryJobService(resilience);
+        fake.fallisci("create", 3, FakeBigQuery.errore(502, "backendError"));
+        for (int i = 0; i < 2; i++) {
+            assertThatThrownBy(() -> service.submit(CONFIG)).isInstanceOf(BigQueryException.class);
+        }
+
+        Thread.sleep(150);
+        assertThatThrownBy(() -> service.submit(CONFIG)).isInstanceOf(BigQueryException.class);
+
+        assertThat(resilience.getStato()).isEqualTo(StatoCircuito.APERTO);
+        assertThatThrownBy(() -> service.submit(CONFIG)).isInstanceOf(CircuitoApertoException.class);
+    }
+
+    @Test
+    void unLimiteDiFrequenzaNonRichiudeIlCircuito() throws Exception {
+        BigQueryResilience resilience = crea(registry, 1, 2, 100);
+        QueryJobService service = creaQueryJobService(resilience);
+        fake.fallisci("create", 2, FakeBigQuery.errore(503, "backendError"))
+                .fallisci("create", 1, FakeBigQuery.errore(429, "rateLimitExceeded"));
+        for (int i = 0; i < 2; i++) {
+            assertThatThrownBy(() -> service.submit(CONFIG)).isInstanceOf(BigQueryException.class);
+        }
+
+        Thread.sleep(150);
+        assertThatThrownBy(() -> service.submit(CONFIG)).isInstanceOf(BigQueryException.class);
+
+        // La prova limitata non conta come riuscita: serve un'altra prova, che riesce e richiude il circuito
+        assertThat(resilience.getStato()).isEqualTo(StatoCircuito.SEMI_APERTO);
+        service.submit(CONFIG).getFuture().get(5, TimeUnit.SECONDS);
+        assertThat(resilience.getStato()).isEqualTo(StatoCircuito.CHIUSO);
+    }
+
+    @Test
+    void limitaLAttesaComplessivaTraITentativi() {
+        BigQueryResilience resilience = crea(registry, 100, 1_000, 60_000);
+        ReflectionTestUtils.setField(resilience, "attesaBaseLimiteMs", 20L);
+        ReflectionTestUtils.setField(resilience, "attesaMassimaMs", 20L);
+        ReflectionTestUtils.setField(resilience, "attesaTotaleMassimaMs", 100L);
+        BigQueryException limite = FakeBigQuery.errore(429, "rateLimitExceeded");
+
+        long inizio = System.nanoTime();
+        assertThatThrownBy(() -> resilience.esegui("create", () -> { throw limite; })).isSameAs(limite);
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inizio)).isLessThan(1_000L);
+        assertThat(registry.get("bigquery.resilience.calls").tag("outcome", "esaurito").counter().count()).isEqualTo(1);
+        // Almeno 5 tentativi con attese di al più 20 ms restano entro i 100 ms
+        assertThat(registry.get("bigquery.resilience.retries").counter().count()).isBetween(5.0, 99.0);
+    }
+
+    @Test
+    void ilBackoffCresceFinoAlMassimo() {
+        BigQueryResilience resilience = crea(registry, 4, 10, 60_000);
+        ReflectionTestUtils.setField(resilience, "attesaBaseMs", 100L);
+        ReflectionTestUtils.setField(resilience, "attesaMassimaMs", 1_000L);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(resilience.attesa(1, BigQueryResilience.Classe.TRANSITORIO)).isBetween(0L, 100L);
+            assertThat(resilience.attesa(3, BigQueryResilience.Classe.TRANSITORIO)).isBetween(0L, 400L);
+            assertThat(resilience.attesa(30, BigQueryResilience.Classe.TRANSITORIO)).isBetween(0L, 1_000L);
+        }
+    }
+
+    static BigQueryResilience crea(MeterRegistry registry, int maxTentativi, int chiamateMinime, long aperturaMs) {
+        BigQueryResilience resilience = new BigQueryResilience();
+        ReflectionTestUtils.setField(resilience, "maxTentativi", maxTentativi);
+        ReflectionTestUtils.setField(resilience, "attesaBaseMs", 1L);
+        ReflectionTestUtils.setField(resilience, "attesaBaseLimiteMs", 1L);
+        ReflectionTestUtils.setField(resilience, "attesaMassimaMs", 5L);
+        ReflectionTestUtils.setField(resilience, "attesaTotaleMassimaMs", 1_000L);
+        ReflectionTestUtils.setField(resilience, "finestra", 20);
+        ReflectionTestUtils.setField(resilience, "chiamateMinime", chiamateMinime);
+        ReflectionTestUtils.setField(resilience, "sogliaErrori", 0.5);
+        ReflectionTestUtils.setField(resilience, "aperturaMs", aperturaMs);
+        ReflectionTestUtils.setField(resilience, "chiamateProva", 1);
+        ReflectionTestUtils.setField(resilience, "meterRegistry", registry);
+        resilience.inizializza();
+        return resilience;
+    }
+
+    private QueryJobService creaQueryJobService(BigQueryResilience resilience) throws InterruptedException {
+        queryJobService = QueryJobServiceTest.crea(fake.getBigQuery(),
+                QueryJobServiceTest.scheduler(mock(QueryScheduler.Permesso.class)), resilience);
+        return queryJobService;
+    }
+}
@@ -0,0 +1,272 @@
+package com.example.service;
+
+import com.example.entity.QueryHistory;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.TableResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BigQueryServiceCondivisaTest {
+
+    private static final String SQL = "SELECT COUNT(*) FROM `progetto.dataset.ordini`";
+    private static final int RICHIEDENTI = 8;
+
+    private final QueryJobService queryJobService = mock(QueryJobService.class);
+    private final QueryHistoryWriter writer = mock(QueryHistoryWriter.class);
+    private final List<QueryJobService.QueryJobHandle> handles = new ArrayList<>();
+    private final TableResult risultato = mock(TableResult.class);
+    private BigQueryService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        AtomicInteger contatore = new AtomicInteger();
+        when(queryJobService.submit(any(), any(), any())).thenAnswer(invocation -> {
+            QueryJobService.QueryJobHandle handle = new QueryJobService.QueryJobHandle(
+                    JobId.of("job-" + contatore.incrementAndGet()), SQL);
+            synchronized (handles) {
+                handles.add(handle);
+            }
+            return handle;
+        });
+        when(queryJobService.leggiRisultati(any(Job.class))).thenReturn(risultato);
+        when(queryJobService.leggiRisultati(any(Job.class), any(BigQuery.QueryResultsOption[].class))).thenReturn(risultato);
+        when(risultato.getTotalRows()).thenReturn(3L);
+        // Il writer applica subito le modifiche alla riga, senza scrivere sul database
+        doAnswer(invocation -> {
+            invocation.<Consumer<QueryHistory>>getArgument(1).accept(invocation.getArgument(0));
+            return null;
+        }).when(writer).aggiorna(any(), any());
+
+        QueryHistoryService queryHistoryService = new QueryHistoryService();
+        ReflectionTestUtils.setField(queryHistoryService, "queryHistoryWriter", writer);
+
+        service = new BigQueryService(queryJobService);
+        ReflectionTestUtils.setField(service, "queryHistoryService", queryHistoryService);
+        ReflectionTestUtils.setField(service, "queryResultCache", mock(QueryResultCache.class));
+        ReflectionTestUtils.setField(service, "queryCostService", mock(QueryCostService.class));
+        ReflectionTestUtils.setField(service, "queryMetrics", new QueryMetrics(new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(service, "threadRisultati", 2);
+        service.avvia();
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.arresta();
+    }
+
+    @Test
+    void leRichiesteConcorrentiCondividonoUnSoloJob() throws Exception {
+        List<CompletableFuture<TableResult>> futures = avviaInsieme(RICHIEDENTI);
+
+        verify(queryJobService, times(1)).submit(any(), any(), any());
+        completa(handles.get(0));
+        for (CompletableFuture<TableResult> future : futures) {
+            assertThat(future.get(5, TimeUnit.SECONDS)).isSameAs(risultato);
+        }
+
+        // Una riga di cronologia per richiesta: una sola esegue il job, le altre sono marcate come condivise
+        List<QueryHistory> righe = righeInserite(RICHIEDENTI);
+        verify(writer, timeout(1_000).times(RICHIEDENTI)).aggiorna(any(), any());
+        assertThat(righe).filteredOn(QueryHistory::getCoalesced).hasSize(RICHIEDENTI - 1);
+        assertThat(righe).allSatisfy(riga -> {
+            assertThat(riga.getSuccess()).isTrue();
+            assertThat(riga.getRowsReturned()).isEqualTo(3);
+            assertThat(riga.getJobId()).isEqualTo("job-1");
+        });
+
+        // Terminata l'esecuzione, la stessa query crea un nuovo job
+        service.runQueryWithHistoryAsync(SQL, null, "10.0.0.1", true, null);
+        verify(queryJobService, times(2)).submit(any(), any(), any());
+    }
+
+    @Test
+    void annullaIlJobSoloQuandoAbbandonaLUltimoRichiedente() throws Exception {
+        List<CompletableFuture<TableResult>> futures = avviaInsieme(RICHIEDENTI);
+        QueryJobService.QueryJobHandle handle = handles.get(0);
+
+        for (int i = 0; i < RICHIEDENTI - 1; i++) {
+            futures.get(i).completeExceptionally(new QueryJobService.QueryAnnullataException("Client disconnesso"));
+        }
+        verify(queryJobService, never()).annulla(anyString(), any(QueryJobService.QueryAnnullataException.class));
+
+        // Chi arriva ora si unisce ancora all'esecuzione in corso
+        CompletableFuture<TableResult> ultimo = service.runQueryWithHistoryAsync(SQL, null, "10.0.0.2", true, null);
+        futures.get(RICHIEDENTI - 1).completeExceptionally(new QueryJobService.QueryAnnullataException("Timeout della richiesta"));
+        verify(queryJobService, never()).annulla(anyString(), any(QueryJobService.QueryAnnullataException.class));
+
+        ArgumentCaptor<QueryJobService.QueryAnnullataException> motivo = ArgumentCaptor.forClass(QueryJobService.QueryAnnullataException.class);
+        ultimo.completeExceptionally(new QueryJobService.QueryAnnullataException("Client disconnesso"));
+        verify(queryJobService).annulla(eq("job-1"), motivo.capture());
+        assertThat(motivo.getValue().getMessage()).isEqualTo("Client disconnesso");
+
+        // Abbandonata da tutti, l'esecuzione non accetta nuovi richiedenti: la stessa query crea un nuovo job
+        CompletableFuture<TableResult> nuova = service.runQueryWithHistoryAsync(SQL, null, "10.0.0.3", true, null);
+        verify(queryJobService, times(2)).submit(any(), any(), any());
+        completa(handles.get(1));
+        assertThat(nuova.get(5, TimeUnit.SECONDS)).isSameAs(risultato);
+        // Il completamento tardivo del job abbandonato non tocca l'esecuzione nuova
+        handle.getFuture().completeExceptionally(new QueryJobService.QueryAnnullataException("Client disconnesso"));
+        verify(queryJobService, times(1)).annulla(anyString(), any(QueryJobService.QueryAnnullataException.class));
+    }
+
+    @Test
+    void chiAbbandonaNonInterrompeGliAltriRichiedenti() throws Exception {
+        // Chi crea il job registra l'esito del job; chi si unisce registra il proprio
+        CompletableFuture<TableResult> primo = service.runQueryWithHistoryAsync(SQL, null, "10.0.0.9", true, null);
+        List<CompletableFuture<TableResult>> futures = avviaInsieme(2);
+
+        futures.get(0).completeExceptionally(new QueryJobService.QueryAnnullataException("Client disconnesso"));
+        completa(handles.get(0));
+
+        assertThat(primo.get(5, TimeUnit.SECONDS)).isSameAs(risultato);
+        assertThat(futures.get(1).get(5, TimeUnit.SECONDS)).isSameAs(risultato);
+        assertThatThrownBy(() -> futures.get(0).get()).isInstanceOf(QueryJobService.QueryAnnullataException.class);
+        verify(queryJobService, never()).annulla(anyString(), any(QueryJobService.QueryAnnullataException.class));
+
+        // La richiesta abbandonata risulta annullata, con l'id del job che avrebbe condiviso
+        verify(writer, timeout(1_000).times(3)).aggiorna(any(), any());
+        assertThat(righeInserite(3)).filteredOn(QueryHistory::getCancelled).singleElement().satisfies(riga -> {
+            assertThat(riga.getCoalesced()).isTrue();
+            assertThat(riga.getJobId()).isEqualTo("job-1");
+        });
+    }
+
+    @Test
+    void chiudeLaCronologiaDopoLaLetturaDeiRisultati() throws Exception {
+        when(queryJobService.leggiRisultati(any(Job.class))).thenAnswer(invocation -> {
+            Thread.sleep(100);
+            return risultato;
+        });
+
+        CompletableFuture<TableResult> future = service.runQueryWithHistoryAsync(SQL, null, "10.0.0.1", true, null);
+        completa(handles.get(0));
+
+        assertThat(future.get(5, TimeUnit.SECONDS)).isSameAs(risultato);
+        verify(writer, timeout(1_000)).aggiorna(any(), any());
+        QueryHistory riga = righeInserite(1).get(0);
+        // Il tempo registrato comprende la lettura dei risultati, e le righe vengono dal risultato letto
+        assertThat(riga.getExecutionTimeMs()).isGreaterThanOrEqualTo(100L);
+        assertThat(riga.getRowsReturned()).isEqualTo(3);
+        verify(queryJobService, never()).leggiRisultati(any(Job.class), eq(BigQuery.QueryResultsOption.pageSize(1)));
+    }
+
+    @Test
+    void inviaSenzaLeggereIRisultatiPerContareLeRighe() throws Exception {
+        QueryJobService.QueryJobHandle handle = service.submitQueryWithHistory(SQL, null, "10.0.0.1");
+        completa(handle);
+
+        verify(writer, timeout(1_000)).aggiorna(any(), any());
+        assertThat(righeInserite(1).get(0).getSuccess()).isTrue();
+        verify(queryJobService, never()).leggiRisultati(any(Job.class), any(BigQuery.QueryResultsOption[].class));
+    }
+
+    @Test
+    void annullaIlJobDellaQueryPaginataAbbandonata() {
+        CompletableFuture<BigQueryService.PaginaRisultati> pagina = service.eseguiPaginataAsync(SQL, null, "10.0.0.1", 10L, 1_000L);
+
+        // Il chiamante non attende il job
+        assertThat(pagina).isNotDone();
+        verify(queryJobService).submit(any(), eq("10.0.0.1"), eq(1_000L));
+        pagina.completeExceptionally(new QueryJobService.QueryAnnullataException("Client disconnesso"));
+
+        ArgumentCaptor<QueryJobService.QueryAnnullataException> motivo = ArgumentCaptor.forClass(QueryJobService.QueryAnnullataException.class);
+        verify(queryJobService).annulla(eq("job-1"), motivo.capture());
+        assertThat(motivo.getValue().getMessage()).isEqualTo("Client disconnesso");
+    }
+
+    @Test
+    void passaLaStimaSoloAllaRichiestaCheCreaIlJob() {
+        QueryCostService queryCostService = mock(QueryCostService.class);
+        QueryCostService.Stima stima = new QueryCostService.Stima(1_000L, 0.01, 10_000L);
+        when(queryCostService.verificaEPrenota(SQL, null, "10.0.0.1")).thenReturn(stima);
+        ReflectionTestUtils.setField(service, "queryCostService", queryCostService);
+        List<QueryCostService.Stima> ricevute = new ArrayList<>();
+
+        service.runQueryWithHistoryAsync(SQL, null, "10.0.0.1", true, null, ricevute::add);
+        // Chi si unisce all'esecuzione in corso non spende byte
+        service.runQueryWithHistoryAsync(SQL, null, "10.0.0.2", true, null, ricevute::add);
+
+        assertThat(ricevute).containsExactly(stima);
+    }
+
+    @Test
+    void rimborsaIlBudgetSeIlJobNonVieneCreato() {
+        QueryCostService queryCostService = mock(QueryCostService.class);
+        QueryCostService.Stima stima = new QueryCostService.Stima(1_000L, 0.01, 10_000L);
+        when(queryCostService.verificaEPrenota(SQL, null, "10.0.0.1")).thenReturn(stima);
+        ReflectionTestUtils.setField(service, "queryCostService", queryCostService);
+        QueryScheduler.CodaPienaException codaPiena = new QueryScheduler.CodaPienaException("Coda piena", 5);
+        when(queryJobService.submit(any(), any(), any())).thenThrow(codaPiena);
+
+        assertThatThrownBy(() -> service.runQueryWithHistoryAsync(SQL, null, "10.0.0.1", true, null)).isSameAs(codaPiena);
+        assertThatThrownBy(() -> service.runQueryAsync(SQL, null, true, "10.0.0.1", null)).isSameAs(codaPiena);
+
+        verify(queryCostService, times(2)).rimborsa(stima);
+    }
+
+    /**
+     * Avvia le richieste identiche da thread diversi, tutte nello stesso momento.
+     */
+    private List<CompletableFuture<TableResult>> avviaInsieme(int numero) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(numero);
+        try {
+            CountDownLatch via = new CountDownLatch(1);
+            List<Future<CompletableFuture<TableResult>>> avviate = new ArrayList<>();
+            for (int i = 0; i < numero; i++) {
+                String ip = "10.0.0." + i;
+                avviate.add(pool.submit(() -> {
+                    via.await();
+                    return service.runQueryWithHistoryAsync(SQL, null, ip, true, null);
+                }));
+            }
+            via.countDown();
+            List<CompletableFuture<TableResult>> futures = new ArrayList<>();
+            for (Future<CompletableFuture<TableResult>> avviata : avviate) {
+                futures.add(avviata.get(5, TimeUnit.SECONDS));
+            }
+            return futures;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private List<QueryHistory> righeInserite(int numero) {
+        ArgumentCaptor<QueryHistory> righe = ArgumentCaptor.forClass(QueryHistory.class);
+        verify(writer, times(numero)).inserisci(righe.capture());
+        return righe.getAllValues();
+    }
+
+    private static void completa(QueryJobService.QueryJobHandle handle) {
+        handle.getFuture().complete(mock(Job.class));
+    }
+}
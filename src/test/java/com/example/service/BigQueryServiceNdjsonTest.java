@@ -0,0 +1,112 @@
+package com.example.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.gax.paging.Page;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.TableResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BigQueryServiceNdjsonTest {
+
+    private static final Schema SCHEMA = Schema.of(
+            Field.of("id", LegacySQLTypeName.INTEGER),
+            Field.of("nome", LegacySQLTypeName.STRING));
+
+    private BigQueryService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new BigQueryService(null);
+        ReflectionTestUtils.setField(service, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(service, "righePerFlushNdjson", 2);
+        ReflectionTestUtils.setField(service, "bigQueryResilience", BigQueryResilienceTest.crea(new SimpleMeterRegistry(), 1, 10, 60_000));
+        ReflectionTestUtils.setField(service, "queryMetrics", new QueryMetrics(new SimpleMeterRegistry()));
+    }
+
+    @Test
+    void scriveUnOggettoPerRiga() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        service.writeNdjson(new TableResult(SCHEMA, 3, new Pagine(3, 1, new AtomicInteger())), out);
+
+        assertThat(out.toString(StandardCharsets.UTF_8)).isEqualTo(
+                "{\"id\":0,\"nome\":\"riga-0\"}\n{\"id\":1,\"nome\":\"riga-1\"}\n{\"id\":2,\"nome\":\"riga-2\"}\n");
+    }
+
+    @Test
+    void smetteDiPaginareSeIlClientSiDisconnette() {
+        AtomicInteger pagineLette = new AtomicInteger();
+        OutputStream disconnesso = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Connessione chiusa dal client");
+            }
+        };
+
+        assertThatThrownBy(() -> service.writeNdjson(
+                new TableResult(SCHEMA, 10_000_000, new Pagine(1_000, 10, pagineLette)), disconnesso))
+                .isInstanceOf(IOException.class);
+        assertThat(pagineLette.get()).isZero();
+    }
+
+    /**
+     * Risultato paginato che conta le pagine richieste dopo la prima.
+     */
+    private static final class Pagine implements Page<FieldValueList> {
+        private final int pagine;
+        private final int righePerPagina;
+        private final AtomicInteger pagineLette;
+        private final int numero;
+
+        private Pagine(int pagine, int righePerPagina, AtomicInteger pagineLette) {
+            this(pagine, righePerPagina, pagineLette, 0);
+        }
+
+        private Pagine(int pagine, int righePerPagina, AtomicInteger pagineLette, int numero) {
+            this.pagine = pagine;
+            this.righePerPagina = righePerPagina;
+            this.pagineLette = pagineLette;
+            this.numero = numero;
+        }
+
+        @Override public boolean hasNextPage() { return numero < pagine - 1; }
+        @Override public String getNextPageToken() { return hasNextPage() ? String.valueOf(numero + 1) : null; }
+
+        @Override
+        public Page<FieldValueList> getNextPage() {
+            pagineLette.incrementAndGet();
+            return new Pagine(pagine, righePerPagina, pagineLette, numero + 1);
+        }
+
+        @Override public Iterable<FieldValueList> iterateAll() { throw new UnsupportedOperationException(); }
+
+        @Override
+        public Iterable<FieldValueList> getValues() {
+            FieldValueList[] righe = new FieldValueList[righePerPagina];
+            for (int i = 0; i < righePerPagina; i++) {
+                int id = numero * righePerPagina + i;
+                righe[i] = FieldValueList.of(List.of(
+                        FieldValue.of(FieldValue.Attribute.PRIMITIVE, String.valueOf(id)),
+                        FieldValue.of(FieldValue.Attribute.PRIMITIVE, "riga-" + id)), SCHEMA.getFields());
+            }
+            return List.of(righe);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.service;
+
+import com.google.api.gax.paging.Page;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.TableResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ColumnarResultTest {
+
+    private static final Schema SCHEMA = Schema.of(
+            Field.of("nome", LegacySQLTypeName.STRING),
+            Field.of("quantita", LegacySQLTypeName.INTEGER),
+            Field.of("prezzo", LegacySQLTypeName.FLOAT),
+            Field.of("attivo", LegacySQLTypeName.BOOLEAN));
+
+    @Test
+    void conservaValoriENull() {
+        List<FieldValueList> righe = new ArrayList<>();
+        righe.add(riga("a", "1", "1.5", "true"));
+        righe.add(riga(null, null, null, null));
+        righe.add(riga("c", "3", "2.25", "false"));
+
+        ColumnarResult result = ColumnarResult.from(tableResult(righe));
+
+        assertThat(result.getNumeroRighe()).isEqualTo(3);
+        assertThat(result.getString(0, 0)).isEqualTo("a");
+        assertThat(result.getLong(1, 2)).isEqualTo(3L);
+        assertThat(result.getDouble(2, 0)).isEqualTo(1.5);
+        assertThat(result.getBoolean(3, 0)).isTrue();
+        assertThat(result.getBoolean(3, 2)).isFalse();
+        for (int colonna = 0; colonna < 4; colonna++) {
+            assertThat(result.isNull(colonna, 1)).isTrue();
+        }
+        assertThat(Double.isNaN(result.getDouble(1, 1))).isTrue();
+
+        Map<String, Object> prima = result.toList().get(0);
+        assertThat(prima).containsEntry("nome", "a").containsEntry("quantita", 1L).containsEntry("attivo", true);
+    }
+
+    @Test
+    void passaAgliOffsetConMoltiValoriDistinti() {
+        List<FieldValueList> righe = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            righe.add(riga(i % 7 == 0 ? null : "valore-" + i, String.valueOf(i), "0", "true"));
+        }
+
+        ColumnarResult result = ColumnarResult.from(tableResult(righe));
+
+        assertThat(result.getNumeroRighe()).isEqualTo(10_000);
+        assertThat(result.getString(0, 1)).isEqualTo("valore-1");
+        assertThat(result.getString(0, 9_999)).isEqualTo("valore-9999");
+        assertThat(result.isNull(0, 7)).isTrue();
+        assertThat(result.getLong(1, 9_999)).isEqualTo(9_999L);
+    }
+
+    @Test
+    void ricostruisceTableResult() {
+        Schema schema = Schema.of(Field.of("quando", LegacySQLTypeName.TIMESTAMP), Field.of("n", LegacySQLTypeName.INTEGER));
+        List<FieldValueList> righe = List.of(FieldValueList.of(List.of(
+                FieldValue.of(FieldValue.Attribute.PRIMITIVE, "1408452095.22"),
+                FieldValue.of(FieldValue.Attribute.PRIMITIVE, "42")), schema.getFields()));
+
+        TableResult ricostruito = ColumnarResult.from(tableResult(schema, righe)).toTableResult();
+
+        FieldValueList riga = ricostruito.iterateAll().iterator().next();
+        assertThat(riga.get("quando").getTimestampValue()).isEqualTo(1408452095220000L);
+        assertThat(riga.get("n").getLongValue()).isEqualTo(42L);
+        assertThat(ricostruito.getTotalRows()).isEqualTo(1);
+    }
+
+    private static FieldValueList riga(String... valori) {
+        List<FieldValue> campi = new ArrayList<>();
+        for (String valore : valori) {
+            campi.add(FieldValue.of(FieldValue.Attribute.PRIMITIVE, valore));
+        }
+        return FieldValueList.of(campi, SCHEMA.getFields());
+    }
+
+    private static TableResult tableResult(List<FieldValueList> righe) {
+        return tableResult(SCHEMA, righe);
+    }
+
+    private static TableResult tableResult(Schema schema, List<FieldValueList> righe) {
+        Page<FieldValueList> pagina = new Page<>() {
+            @Override public boolean hasNextPage() { return false; }
+            @Override public String getNextPageToken() { return null; }
+            @Override public Page<FieldValueList> getNextPage() { return null; }
+            @Override public Iterable<FieldValueList> iterateAll() { return righe; }
+            @Override public Iterable<FieldValueList> getValues() { return righe; }
+        };
+        return new TableResult(schema, righe.size(), pagina);
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CsvWriterTest {
+
+    @Test
+    void quotaSoloICampiCheLoRichiedono() throws IOException {
+        StringWriter out = new StringWriter();
+        try (CsvWriter csv = new CsvWriter(out)) {
+            csv.campo("semplice").campo("a,b").campo("dice \"ciao\"").campo("riga1\nriga2").vuoto();
+            csv.fineRiga();
+        }
+
+        assertThat(out.toString()).isEqualTo("semplice,\"a,b\",\"dice \"\"ciao\"\"\",\"riga1\nriga2\",\r\n");
+    }
+
+    @Test
+    void scriveINumeriSenzaPerdereCifre() throws IOException {
+        StringWriter out = new StringWriter();
+        try (CsvWriter csv = new CsvWriter(out)) {
+            csv.campo(0L).campo(-42L).campo(Long.MAX_VALUE).campo(Long.MIN_VALUE).campo(1.5).campo(true);
+            csv.fineRiga();
+        }
+
+        assertThat(out.toString())
+                .isEqualTo("0,-42," + Long.MAX_VALUE + "," + Long.MIN_VALUE + ",1.5,true\r\n");
+    }
+
+    @Test
+    void gestisceValoriPiuGrandiDelBuffer() throws IOException {
+        String lungo = "x".repeat(200_000) + ",";
+        StringWriter out = new StringWriter();
+        try (CsvWriter csv = new CsvWriter(out)) {
+            for (int i = 0; i < 3; i++) {
+                csv.campo(lungo).campo((long) i);
+                csv.fineRiga();
+            }
+        }
+
+        String riga = "\"" + lungo + "\",";
+        assertThat(out.toString()).isEqualTo(riga + "0\r\n" + riga + "1\r\n" + riga + "2\r\n");
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.service;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.JobStatus;
+import com.google.cloud.bigquery.TableResult;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * BigQuery locale per i test, con iniezione di guasti.
+ * create e getJob consumano gli errori programmati con {@link #fallisci}; i job creati
+ * risultano in esecuzione per i primi controlli indicati e poi completati.
+ * Gli altri metodi dell'interfaccia non sono supportati.
+ */
+class FakeBigQuery implements InvocationHandler {
+
+    private final Map<String, Deque<RuntimeException>> guasti = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> chiamate = new ConcurrentHashMap<>();
+    private final Set<JobId> creati = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger controlliInCorso = new AtomicInteger();
+    private volatile boolean creaPrimaDiFallire;
+    private volatile JobInfo ultimoJob;
+    private volatile String threadUltimaCreazione;
+    private volatile TableResult risultati;
+
+    private final BigQuery bigQuery = (BigQuery) Proxy.newProxyInstance(
+            BigQuery.class.getClassLoader(), new Class<?>[] { BigQuery.class }, this);
+
+    BigQuery getBigQuery() {
+        return bigQuery;
+    }
+
+    /**
+     * Le prossime {@code volte} chiamate al metodo falliscono con l'errore indicato.
+     */
+    synchronized FakeBigQuery fallisci(String metodo, int volte, RuntimeException errore) {
+        Deque<RuntimeException> coda = guasti.computeIfAbsent(metodo, m -> new ArrayDeque<>());
+        for (int i = 0; i < volte; i++) {
+            coda.add(errore);
+        }
+        return this;
+    }
+
+    /**
+     * Gli errori di create arrivano dopo che il job è stato creato (es. timeout sulla risposta).
+     */
+    FakeBigQuery creaPrimaDiFallire() {
+        creaPrimaDiFallire = true;
+        return this;
+    }
+
+    /**
+     * I prossimi controlli con getJob vedono il job ancora in esecuzione.
+     */
+    FakeBigQuery inEsecuzionePer(int controlli) {
+        controlliInCorso.set(controlli);
+        return this;
+    }
+
+    /**
+     * Risultato restituito da getQueryResults dei job completati.
+     */
+    FakeBigQuery risultati(TableResult risultati) {
+        this.risultati = risultati;
+        return this;
+    }
+
+    JobInfo getUltimoJob() {
+        return ultimoJob;
+    }
+
+    String getThreadUltimaCreazione() {
+        return threadUltimaCreazione;
+    }
+
+    int chiamate(String metodo) {
+        AtomicInteger n = chiamate.get(metodo);
+        return n != null ? n.get() : 0;
+    }
+
+    int jobCreati() {
+        return creati.size();
+    }
+
+    static BigQueryException errore(int codice, String motivo) {
+        return new BigQueryException(codice, motivo, new BigQueryError(motivo, null, "Errore simulato: " + motivo));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "toString": return "FakeBigQuery";
+            case "hashCode": return System.identityHashCode(proxy);
+            case "equals": return proxy == args[0];
+            default: break;
+        }
+        chiamate.computeIfAbsent(method.getName(), m -> new AtomicInteger()).incrementAndGet();
+        switch (method.getName()) {
+            case "create":
+                return crea((JobInfo) args[0]);
+            case "getJob":
+                guasto("getJob");
+                JobId jobId = args[0] instanceof JobId ? (JobId) args[0] : JobId.of((String) args[0]);
+                if (!creati.contains(jobId)) {
+                    return null;
+                }
+                return job(jobId, controlliInCorso.getAndUpdate(n -> Math.max(0, n - 1)) > 0
+                        ? JobStatus.State.RUNNING : JobStatus.State.DONE);
+            case "cancel":
+                return true;
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    private Job crea(JobInfo jobInfo) {
+        JobId jobId = jobInfo.getJobId();
+        ultimoJob = jobInfo;
+        threadUltimaCreazione = Thread.currentThread().getName();
+        if (creaPrimaDiFallire) {
+            if (!creati.add(jobId)) {
+                throw new BigQueryException(409, "Already Exists", new BigQueryError("duplicate", null, "Already Exists"));
+            }
+            guasto("create");
+        } else {
+            guasto("create");
+            if (!creati.add(jobId)) {
+                throw new BigQueryException(409, "Already Exists", new BigQueryError("duplicate", null, "Already Exists"));
+            }
+        }
+        return job(jobId, JobStatus.State.RUNNING);
+    }
+
+    private synchronized void guasto(String metodo) {
+        Deque<RuntimeException> coda = guasti.get(metodo);
+        RuntimeException errore = coda != null ? coda.poll() : null;
+        if (errore != null) {
+            throw errore;
+        }
+    }
+
+    private Job job(JobId jobId, JobStatus.State stato) {
+        JobStatus status = mock(JobStatus.class);
+        when(status.getState()).thenReturn(stato);
+        Job job = mock(Job.class);
+        when(job.getJobId()).thenReturn(jobId);
+        when(job.getStatus()).thenReturn(status);
+        try {
+            when(job.getQueryResults(any(BigQuery.QueryResultsOption[].class))).thenReturn(risultati);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        return job;
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.service;
+
+import com.example.demo.DemoApplication;
+import com.example.entity.QueryHistory;
+import com.example.repository.QueryHistoryRepository;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Le sezioni vengono calcolate su altri thread: i dati devono essere già committati
+@DataJpaTest
+@ContextConfiguration(classes = { DemoApplication.class, PerformanceMonitoringServiceTest.Repository.class })
+@ImportAutoConfiguration(JacksonAutoConfiguration.class)
+@Import({ PerformanceDashboardService.class, PerformanceMonitoringService.class, QueryHistoryRollupService.class })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class PerformanceDashboardServiceTest {
+
+    @Autowired
+    private PerformanceDashboardService service;
+
+    @Autowired
+    private QueryHistoryRepository repository;
+
+    @Autowired
+    private QueryHistoryRollupService rollupService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("TRUNCATE TABLE query_history");
+        jdbcTemplate.execute("TRUNCATE TABLE query_history_rollup");
+        jdbcTemplate.execute("TRUNCATE TABLE query_fingerprint_rollup");
+    }
+
+    @Test
+    void mantieneLEtagFinchéIDatiNonCambiano() throws Exception {
+        salva(riga("SELECT 1", true));
+
+        PerformanceDashboardService.Istantanea prima = service.getIstantanea();
+        JsonNode dashboard = objectMapper.readTree(prima.getJson());
+        assertThat(dashboard.get("statistiche").get("queryTotali").asLong()).isEqualTo(1);
+        assertThat(dashboard.has("raccomandazioni")).isTrue();
+        assertThat(dashboard.get("analisiUtenti").get("statistichePerIp")).hasSize(1);
+        assertThat(dashboard.has("timestamp")).isTrue();
+
+        // Ricalcolata senza modifiche: stesso corpo e stesso ETag
+        PerformanceDashboardService.Istantanea ricalcolata = service.aggiorna();
+        assertThat(ricalcolata.getEtag()).isEqualTo(prima.getEtag());
+        assertThat(ricalcolata.getJson()).isSameAs(prima.getJson());
+        assertThat(service.getIstantanea()).isSameAs(ricalcolata);
+
+        salva(riga("SELECT 2", false));
+        PerformanceDashboardService.Istantanea dopo = service.aggiorna();
+        assertThat(dopo.getEtag()).isNotEqualTo(prima.getEtag());
+        assertThat(objectMapper.readTree(dopo.getJson()).get("statistiche").get("queryFallite").asLong()).isEqualTo(1);
+        assertThat(service.getIstantanea()).isSameAs(dopo);
+    }
+
+    private void salva(QueryHistory riga) {
+        repository.save(riga);
+        rollupService.aggiungi(List.of(riga));
+    }
+
+    private static QueryHistory riga(String sql, boolean success) {
+        QueryHistory queryHistory = new QueryHistory(sql, "10.0.0.1");
+        QueryFingerprint impronta = QueryFingerprint.di(sql);
+        queryHistory.setFingerprint(impronta.getHash());
+        queryHistory.setNormalizedQuery(impronta.getTesto());
+        queryHistory.setCreatedAt(LocalDateTime.of(2025, 6, 2, 9, 30));
+        queryHistory.setSuccess(success);
+        queryHistory.setExecutionTimeMs(100L);
+        return queryHistory;
+    }
+}
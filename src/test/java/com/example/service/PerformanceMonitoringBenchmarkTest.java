@@ -0,0 +1,113 @@
+package com.example.service;
+
+import com.example.demo.DemoApplication;
+import com.example.repository.QueryHistoryRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Statistiche della dashboard su milioni di righe di cronologia.
+ * Eseguire con: JAVA_TOOL_OPTIONS="-Xmx8g" mvn test -Dtest=PerformanceMonitoringBenchmarkTest -Dbenchmark=true
+ * (righe con -Dbenchmark.rows, limite in millisecondi per milione di righe con -Dbenchmark.max-ms-per-million).
+ * Il database è quello in memoria dell'applicazione: con 5 milioni di righe servono circa 8 GB di heap.
+ * Nessuna statistica legge l'intera cronologia: vengono dagli aggregati per ora, IP e impronta
+ * e dall'indice sui tempi, quindi la durata non cresce con le righe.
+ */
+@DataJpaTest(showSql = false)
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+@ContextConfiguration(classes = { DemoApplication.class, PerformanceMonitoringServiceTest.Repository.class })
+@Import(PerformanceMonitoringService.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class PerformanceMonitoringBenchmarkTest {
+
+    private static final Logger log = LoggerFactory.getLogger(PerformanceMonitoringBenchmarkTest.class);
+
+    private static final long RIGHE_PER_BLOCCO = 250_000;
+
+    @Autowired
+    private PerformanceMonitoringService service;
+
+    @Autowired
+    private QueryHistoryRepository repository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("TRUNCATE TABLE query_history");
+        jdbcTemplate.execute("TRUNCATE TABLE query_history_rollup");
+        jdbcTemplate.execute("TRUNCATE TABLE query_fingerprint_rollup");
+    }
+
+    @Test
+    void restaVeloceConMilioniDiRighe() {
+        long righe = Long.getLong("benchmark.rows", 5_000_000L);
+        // Il costo cresce con le righe lette: il limite è proporzionale, così vale per ogni -Dbenchmark.rows
+        long limiteMs = Long.getLong("benchmark.max-ms-per-million", 5_000L) * Math.max(1, righe / 1_000_000);
+        // Inserimento a blocchi, ognuno nella propria transazione
+        for (long primo = 1; primo <= righe; primo += RIGHE_PER_BLOCCO) {
+            jdbcTemplate.update("INSERT INTO query_history (id, sql_query, execution_time_ms, rows_returned, success, "
+                    + "created_at, user_ip, coalesced, cancelled, server_time_ms, bytes_processed, bytes_billed, cache_hit, "
+                    + "fingerprint, normalized_query) "
+                    + "SELECT X, 'SELECT * FROM t' || MOD(X, 1000), MOD(X * 7919, 60000), 10, MOD(X, 10) <> 0, "
+                    + "DATEADD('SECOND', -X, CURRENT_TIMESTAMP), '10.0.0.' || MOD(X, 200), FALSE, FALSE, "
+                    + "MOD(X * 7919, 50000), X, X * 2, MOD(X, 3) = 0, MOD(X, 1000), 'select * from t' || MOD(X, 1000) "
+                    + "FROM SYSTEM_RANGE(?, ?)",
+                    primo, Math.min(righe, primo + RIGHE_PER_BLOCCO - 1));
+        }
+        assertThat(repository.count()).isEqualTo(righe);
+        // Aggregati equivalenti a quelli mantenuti dal writer della cronologia
+        jdbcTemplate.update("INSERT INTO query_history_rollup (bucket_start, user_ip, total_queries, successful_queries, "
+                + "cancelled_queries, total_time_ms, successful_time_ms, max_time_ms, successful_min_time_ms, "
+                + "successful_max_time_ms, job_stats_queries, server_time_ms, client_time_ms, bytes_processed, "
+                + "bytes_billed, bigquery_cache_hits) "
+                + "SELECT DATE_TRUNC('HOUR', created_at), user_ip, COUNT(*), SUM(CASE WHEN success THEN 1 ELSE 0 END), "
+                + "SUM(CASE WHEN cancelled THEN 1 ELSE 0 END), SUM(execution_time_ms), "
+                + "SUM(CASE WHEN success THEN execution_time_ms ELSE 0 END), MAX(execution_time_ms), "
+                + "MIN(CASE WHEN success THEN execution_time_ms END), "
+                + "COALESCE(MAX(CASE WHEN success THEN execution_time_ms END), 0), "
+                + "SUM(CASE WHEN success THEN 1 ELSE 0 END), SUM(CASE WHEN success THEN server_time_ms ELSE 0 END), "
+                + "SUM(CASE WHEN success THEN GREATEST(execution_time_ms - server_time_ms, 0) ELSE 0 END), "
+                + "SUM(CASE WHEN success THEN bytes_processed ELSE 0 END), SUM(CASE WHEN success THEN bytes_billed ELSE 0 END), "
+                + "SUM(CASE WHEN success AND cache_hit THEN 1 ELSE 0 END) "
+                + "FROM query_history GROUP BY DATE_TRUNC('HOUR', created_at), user_ip");
+        jdbcTemplate.update("INSERT INTO query_fingerprint_rollup (fingerprint, normalized_query, successful_queries) "
+                + "SELECT fingerprint, MIN(normalized_query), COUNT(*) FROM query_history WHERE success "
+                + "GROUP BY fingerprint");
+
+        // Prima esecuzione di riscaldamento: compilazione delle query e JIT
+        service.getStatistichePerformance();
+        long inizio = System.nanoTime();
+        Map<String, Object> stats = service.getStatistichePerformance();
+        long durataMs = (System.nanoTime() - inizio) / 1_000_000;
+
+        inizio = System.nanoTime();
+        Map<String, Object> trend = service.getAnalisiTrend(LocalDateTime.now().minusDays(30), LocalDateTime.now());
+        Map<String, Object> utenti = service.getAnalisiUtenti();
+        long durataAggregatiMs = (System.nanoTime() - inizio) / 1_000_000;
+
+        log.info("getStatistichePerformance su {} righe: {} ms, trend e utenti: {} ms", righe, durataMs, durataAggregatiMs);
+        assertThat(stats).containsEntry("queryTotali", righe);
+        assertThat(trend).containsKey("queryPerGiorno");
+        assertThat((List<?>) utenti.get("statistichePerIp")).hasSize(200);
+        assertThat(durataMs + durataAggregatiMs).isLessThan(limiteMs);
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.service;
+
+import com.example.demo.DemoApplication;
+import com.example.entity.QueryHistory;
+import com.example.repository.QueryHistoryRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@DataJpaTest
+@ContextConfiguration(classes = { DemoApplication.class, PerformanceMonitoringServiceTest.Repository.class })
+@Import({ PerformanceMonitoringService.class, QueryHistoryRollupService.class, QueryHistoryRetentionService.class,
+        QueryHistoryWriter.class, QueryHistorySearchIndex.class, QueryMetrics.class, SimpleMeterRegistry.class })
+class PerformanceMonitoringServiceTest {
+
+    @EnableJpaRepositories(basePackageClasses = QueryHistoryRepository.class)
+    static class Repository {
+    }
+
+    @Autowired
+    private PerformanceMonitoringService service;
+
+    @Autowired
+    private QueryHistoryRepository repository;
+
+    @Autowired
+    private QueryHistoryRollupService rollupService;
+
+    @Autowired
+    private QueryHistoryRetentionService retentionService;
+
+    @Test
+    void calcolaLeStatisticheNelDatabase() {
+        // Lunedì 2 giugno 2025
+        LocalDateTime lunedi = LocalDateTime.of(2025, 6, 2, 9, 30);
+        salva(List.of(
+                riga("SELECT 1", lunedi, true, 100L, 60L, true),
+                riga("select  2 -- ripetuta", lunedi.plusHours(1), true, 300L, 100L, false),
+                riga("SELECT 2", lunedi.plusDays(6), true, 200L, null, null),
+                riga("SELECT 3", lunedi.plusDays(6), false, 50L, null, null)));
+
+        Map<String, Object> stats = service.getStatistichePerformance();
+
+        assertThat(stats).containsEntry("queryTotali", 4L)
+                .containsEntry("queryRiuscite", 3L)
+                .containsEntry("queryFallite", 1L)
+                .containsEntry("tempoEsecuzioneMedio", 200L)
+                .containsEntry("tempoEsecuzioneMassimo", 300L)
+                .containsEntry("tempoEsecuzioneMinimo", 100L)
+                .containsEntry("tempoServerMedio", 80L)
+                .containsEntry("tempoClientMedio", 120L)
+                .containsEntry("percentualeCacheHitBigQuery", 50.0)
+                .containsEntry("queryPerOra", Map.of(9, 3L, 10, 1L))
+                .containsEntry("queryPerGiorno", Map.of("MONDAY", 2L, "SUNDAY", 2L));
+        // Le prime tre query hanno la stessa impronta
+        String impronta = QueryFingerprint.esadecimale(QueryFingerprint.di("SELECT 1").getHash());
+        assertThat((List<?>) stats.get("queryPiuLente")).singleElement()
+                .isEqualTo(Map.of("impronta", impronta, "query", "select ?", "esecuzioni", 3L,
+                        "tempoEsecuzioneMedio", 200L, "tempoEsecuzioneMassimo", 300L));
+        assertThat((List<?>) stats.get("queryPiuFrequenti")).singleElement()
+                .isEqualTo(Map.of("impronta", impronta, "query", "select ?", "frequenza", 3L));
+    }
+
+    @Test
+    void iConteggiNonCambianoDopoLaCompattazione() {
+        LocalDateTime vecchia = LocalDateTime.now().minusDays(40);
+        QueryHistory annullata = riga("SELECT 4", vecchia, false, 20L, null, null);
+        annullata.setCancelled(true);
+        List<QueryHistory> righe = List.of(
+                riga("SELECT 1", vecchia, true, 100L, null, null),
+                riga("SELECT 2", vecchia, false, 50L, null, null),
+                annullata,
+                riga("SELECT 3", LocalDateTime.now(), true, 300L, null, null));
+        salva(righe);
+        righe.forEach(q -> q.setRolledUp(true));
+        Map<String, Object> prima = service.getStatistichePerformance();
+
+        assertThat(retentionService.compatta(LocalDateTime.now().minusDays(30))).isEqualTo(3);
+        Map<String, Object> dopo = service.getStatistichePerformance();
+
+        assertThat(repository.count()).isEqualTo(1);
+        for (Map<String, Object> stats : List.of(prima, dopo)) {
+            assertThat(stats).containsEntry("queryTotali", 4L)
+                    .containsEntry("queryRiuscite", 2L)
+                    .containsEntry("queryFallite", 1L)
+                    .containsEntry("queryAnnullate", 1L)
+                    .containsEntry("percentualeSuccesso", 50.0)
+                    .containsEntry("tempoEsecuzioneMedio", 200L)
+                    .containsEntry("tempoEsecuzioneMassimo", 300L)
+                    .containsEntry("tempoEsecuzioneMinimo", 100L);
+            // SELECT 1 e SELECT 3 hanno la stessa impronta: la riga compattata resta nella frequenza
+            assertThat((List<?>) stats.get("queryPiuFrequenti")).singleElement()
+                    .isEqualTo(Map.of("impronta", QueryFingerprint.esadecimale(QueryFingerprint.di("SELECT 1").getHash()),
+                            "query", "select ?", "frequenza", 2L));
+        }
+    }
+
+    @Test
+    void trendEUtentiDagliAggregati() {
+        LocalDateTime giorno = LocalDateTime.of(2025, 6, 2, 9, 30);
+        QueryHistory altroIp = riga("SELECT 1", giorno.plusDays(1), true, 500L, null, null);
+        altroIp.setUserIp("10.0.0.2");
+        salva(List.of(
+                riga("SELECT 1", giorno, true, 100L, null, null),
+                riga("SELECT 1", giorno.plusMinutes(10), true, 300L, null, null),
+                riga("SELECT 1", giorno.plusHours(2), false, 50L, null, null),
+                altroIp));
+
+        Map<String, Object> trend = service.getAnalisiTrend(giorno.minusMinutes(5), giorno.plusDays(2));
+
+        assertThat(trend.get("queryPerGiorno")).isEqualTo(Map.of("2025-06-02", 3L, "2025-06-03", 1L));
+        assertThat(trend.get("tempoMedioPerGiorno")).isEqualTo(Map.of("2025-06-02", 200.0, "2025-06-03", 500.0));
+        assertThat(trend.get("successoPerGiorno")).isEqualTo(Map.of(
+                "2025-06-02", Map.of("riuscite", 2L, "fallite", 1L),
+                "2025-06-03", Map.of("riuscite", 1L)));
+        assertThat(service.getAnalisiTrend(giorno.plusDays(5), giorno.plusDays(6))).containsKey("messaggio");
+
+        assertThat(service.getAnalisiUtenti().get("statistichePerIp")).isEqualTo(List.of(
+                Map.of("ip", "10.0.0.1", "queryTotali", 3L, "queryRiuscite", 2L, "tempoMedio", 150.0),
+                Map.of("ip", "10.0.0.2", "queryTotali", 1L, "queryRiuscite", 1L, "tempoMedio", 500.0)));
+    }
+
+    // Come il writer della cronologia: righe e aggregati insieme
+    private void salva(List<QueryHistory> righe) {
+        repository.saveAll(righe);
+        rollupService.aggiungi(righe);
+    }
+
+    private static QueryHistory riga(String sql, LocalDateTime createdAt, boolean success, Long executionTimeMs,
+                                     Long serverTimeMs, Boolean cacheHit) {
+        QueryHistory queryHistory = new QueryHistory(sql, "10.0.0.1");
+        QueryFingerprint impronta = QueryFingerprint.di(sql);
+        queryHistory.setFingerprint(impronta.getHash());
+        queryHistory.setNormalizedQuery(impronta.getTesto());
+        queryHistory.setCreatedAt(createdAt);
+        queryHistory.setSuccess(success);
+        queryHistory.setExecutionTimeMs(executionTimeMs);
+        queryHistory.setServerTimeMs(serverTimeMs);
+        queryHistory.setCacheHit(cacheHit);
+        return queryHistory;
+    }
+}
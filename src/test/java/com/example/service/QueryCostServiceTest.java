@@ -0,0 +1,119 @@
+package com.example.service;
+
+import com.example.service.QueryCostService.BudgetSuperatoException;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.JobStatistics;
+import com.google.cloud.bigquery.QueryJobConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class QueryCostServiceTest {
+
+    private BigQuery bigQuery;
+    private QueryCostService service;
+
+    @BeforeEach
+    void setUp() {
+        bigQuery = mock(BigQuery.class);
+        service = new QueryCostService(bigQuery, BigQueryResilienceTest.crea(new SimpleMeterRegistry(), 1, 10, 60_000));
+        ReflectionTestUtils.setField(service, "jobLocation", "US");
+        ReflectionTestUtils.setField(service, "abilitato", true);
+        ReflectionTestUtils.setField(service, "maxBytesPerQuery", 1_000L);
+        ReflectionTestUtils.setField(service, "maxBytesPerIp", 2_500L);
+        ReflectionTestUtils.setField(service, "finestraIpMs", 60_000L);
+        ReflectionTestUtils.setField(service, "usdPerTib", 6.25);
+    }
+
+    @Test
+    void stimaTramiteDryRun() {
+        rispondiConByte(800L);
+
+        QueryCostService.Stima stima = service.stima("SELECT 1", null);
+
+        assertThat(stima.getBytesStimati()).isEqualTo(800L);
+        ArgumentCaptor<JobInfo> captor = ArgumentCaptor.forClass(JobInfo.class);
+        verify(bigQuery).create(captor.capture());
+        QueryJobConfiguration config = captor.getValue().getConfiguration();
+        assertThat(config.dryRun()).isTrue();
+        assertThat(config.useQueryCache()).isFalse();
+    }
+
+    @Test
+    void rifiutaQueryOltreIlLimitePerRichiesta() {
+        rispondiConByte(5_000L);
+
+        assertThatThrownBy(() -> service.verificaEPrenota("SELECT 1", null, "10.0.0.1"))
+                .isInstanceOfSatisfying(BudgetSuperatoException.class, e -> {
+                    assertThat(e.isBudgetIp()).isFalse();
+                    assertThat(e.getStima().getBytesStimati()).isEqualTo(5_000L);
+                });
+        assertThat(service.getBytesResidui("10.0.0.1")).isEqualTo(2_500L);
+    }
+
+    @Test
+    void esaurisceIlBudgetDellIp() {
+        rispondiConByte(1_000L);
+
+        service.verificaEPrenota("SELECT 1", null, "10.0.0.1");
+        service.verificaEPrenota("SELECT 1", null, "10.0.0.1");
+        assertThat(service.getBytesResidui("10.0.0.1")).isEqualTo(500L);
+
+        assertThatThrownBy(() -> service.verificaEPrenota("SELECT 1", null, "10.0.0.1"))
+                .isInstanceOfSatisfying(BudgetSuperatoException.class, e -> {
+                    assertThat(e.isBudgetIp()).isTrue();
+                    // La prima prenotazione esce dalla finestra di un minuto
+                    assertThat(e.getRetryAfterSecondi()).isBetween(59L, 60L);
+                });
+        // Il budget è per IP: un altro client non è penalizzato
+        assertThat(service.verificaEPrenota("SELECT 1", null, "10.0.0.2")).isNotNull();
+    }
+
+    @Test
+    void laFinestraScorreConLePrenotazioni() throws Exception {
+        ReflectionTestUtils.setField(service, "finestraIpMs", 300L);
+        rispondiConByte(1_000L);
+
+        service.verificaEPrenota("SELECT 1", null, "10.0.0.1");
+        Thread.sleep(150);
+        service.verificaEPrenota("SELECT 1", null, "10.0.0.1");
+        assertThat(service.getBytesResidui("10.0.0.1")).isEqualTo(500L);
+
+        // Scaduta solo la prima prenotazione: la seconda conta ancora, non si riparte da zero
+        Thread.sleep(200);
+        assertThat(service.getBytesResidui("10.0.0.1")).isEqualTo(1_500L);
+    }
+
+    @Test
+    void rimborsaUnaPrenotazioneUnaSolaVolta() {
+        rispondiConByte(1_000L);
+
+        QueryCostService.Stima prima = service.verificaEPrenota("SELECT 1", null, "10.0.0.1");
+        service.verificaEPrenota("SELECT 1", null, "10.0.0.1");
+
+        service.rimborsa(prima);
+        service.rimborsa(prima);
+        service.rimborsa(null);
+
+        assertThat(service.getBytesResidui("10.0.0.1")).isEqualTo(1_500L);
+    }
+
+    private void rispondiConByte(long bytes) {
+        JobStatistics.QueryStatistics statistiche = mock(JobStatistics.QueryStatistics.class);
+        when(statistiche.getTotalBytesProcessed()).thenReturn(bytes);
+        Job job = mock(Job.class);
+        when(job.getStatistics()).thenReturn(statistiche);
+        when(bigQuery.create(any(JobInfo.class))).thenReturn(job);
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class QueryFingerprintTest {
+
+    @Test
+    void rimuoveValoriCommentiESpazi() {
+        assertThat(QueryFingerprint.normalizza("""
+                SELECT name, COUNT(*)  -- conteggio
+                FROM `my-project.dataset.Users` u /* alias */
+                WHERE u.age >= 18 AND u.city = 'Roma' AND u.score<>-1.5e3
+                  AND u.id IN (1, 2,3) # filtro
+                GROUP BY name LIMIT 10"""))
+                .isEqualTo("select name, count(*) from `my-project.dataset.Users` u where u.age >= ? and u.city = ? "
+                        + "and u.score <>- ? and u.id in(?+) group by name limit ?");
+    }
+
+    @Test
+    void leQueryCheDifferisconoSoloPerIValoriHannoLaStessaImpronta() {
+        QueryFingerprint prima = QueryFingerprint.di("select * from t where a = 'x' and b in (1)");
+        QueryFingerprint seconda = QueryFingerprint.di("SELECT *\n  FROM t WHERE a=\"it's\" AND b IN (4, 5, 6)");
+        QueryFingerprint diversa = QueryFingerprint.di("select * from t where c = 'x'");
+
+        assertThat(seconda.getHash()).isEqualTo(prima.getHash());
+        assertThat(seconda.getTesto()).isEqualTo(prima.getTesto());
+        assertThat(diversa.getHash()).isNotEqualTo(prima.getHash());
+    }
+
+    @Test
+    void riconosceStringheTripleRawEConEscape() {
+        assertThat(QueryFingerprint.normalizza("select r'a\\d', '''multi ' riga''', 'l\\'apice', @param, 0xFF from t"))
+                .isEqualTo("select ?, ?, ?, @param, ? from t");
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.service;
+
+import com.example.demo.DemoApplication;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Export NDJSON e paginazione per chiave su milioni di righe, con poca memoria.
+ * Eseguire con: JAVA_TOOL_OPTIONS="-Xmx256m" mvn test -Dtest=QueryHistoryExportBenchmarkTest -Dbenchmark=true
+ * (righe con -Dbenchmark.history-rows).
+ */
+@DataJpaTest(showSql = false)
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@ContextConfiguration(classes = { DemoApplication.class, PerformanceMonitoringServiceTest.Repository.class })
+@ImportAutoConfiguration(JacksonAutoConfiguration.class)
+@Import({ QueryHistoryService.class, QueryHistoryWriter.class, QueryHistoryRollupService.class,
+        QueryHistorySearchIndex.class, QueryMetrics.class, SimpleMeterRegistry.class })
+@TestPropertySource(properties = {
+        "spring.datasource.url=jdbc:h2:file:./target/benchmark/export",
+        "spring.jpa.hibernate.ddl-auto=create-drop" })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class QueryHistoryExportBenchmarkTest {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryHistoryExportBenchmarkTest.class);
+
+    private static final long RIGHE_PER_BLOCCO = 250_000;
+
+    @Autowired
+    private QueryHistoryService service;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("TRUNCATE TABLE query_history");
+    }
+
+    @Test
+    void esportaMilioniDiRigheAMemoriaCostante() throws Exception {
+        long righe = Long.getLong("benchmark.history-rows", 2_000_000L);
+        for (long primo = 1; primo <= righe; primo += RIGHE_PER_BLOCCO) {
+            jdbcTemplate.update("INSERT INTO query_history (id, sql_query, execution_time_ms, rows_returned, success, "
+                    + "created_at, user_ip, coalesced, cancelled, fingerprint, normalized_query, rolled_up) "
+                    + "SELECT X, 'SELECT * FROM t' || MOD(X, 1000), MOD(X * 7919, 60000), 10, MOD(X, 10) <> 0, "
+                    + "DATEADD('SECOND', -20 * X, CURRENT_TIMESTAMP), '10.0.0.' || MOD(X, 200), FALSE, FALSE, "
+                    + "MOD(X, 1000), 'select * from t' || MOD(X, 1000), TRUE FROM SYSTEM_RANGE(?, ?)",
+                    primo, Math.min(righe, primo + RIGHE_PER_BLOCCO - 1));
+        }
+
+        // Prima pagina e pagina dopo metà della cronologia: il costo non dipende dalla posizione
+        long inizio = System.nanoTime();
+        QueryHistoryService.PaginaCronologia prima = service.getCronologia(null, 50);
+        long primaPaginaUs = (System.nanoTime() - inizio) / 1_000;
+        String cursoreMeta = new HistoryCursor(LocalDateTime.now().minusSeconds(10 * righe), Long.MAX_VALUE).codifica();
+        inizio = System.nanoTime();
+        QueryHistoryService.PaginaCronologia meta = service.getCronologia(cursoreMeta, 50);
+        long paginaMetaUs = (System.nanoTime() - inizio) / 1_000;
+
+        ContaByte conteggio = new ContaByte();
+        inizio = System.nanoTime();
+        long esportate = service.esportaNdjson(LocalDateTime.of(1970, 1, 1, 0, 0), LocalDateTime.now(), conteggio);
+        long durataMs = Math.max(1, (System.nanoTime() - inizio) / 1_000_000);
+
+        log.info("{} righe: prima pagina {} us, pagina a metà {} us; export di {} MB in {} ms ({} righe/s) con {} MB di heap",
+                righe, primaPaginaUs, paginaMetaUs, conteggio.byteScritti >> 20, durataMs, esportate * 1000 / durataMs,
+                Runtime.getRuntime().maxMemory() >> 20);
+        assertThat(prima.getRighe()).hasSize(50);
+        assertThat(meta.getRighe()).hasSize(50);
+        assertThat(esportate).isEqualTo(righe);
+    }
+
+    // Scarta i dati contando i byte scritti
+    private static final class ContaByte extends OutputStream {
+        private long byteScritti;
+
+        @Override
+        public void write(int b) {
+            byteScritti++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            byteScritti += len;
+        }
+    }
+}
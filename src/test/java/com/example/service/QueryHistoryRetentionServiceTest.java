@@ -0,0 +1,73 @@
+package com.example.service;
+
+import com.example.demo.DemoApplication;
+import com.example.entity.QueryHistory;
+import com.example.repository.QueryHistoryRepository;
+import com.example.repository.QueryHistoryRollupRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@DataJpaTest
+@ContextConfiguration(classes = { DemoApplication.class, PerformanceMonitoringServiceTest.Repository.class })
+@Import({ QueryHistoryRetentionService.class, QueryHistoryRollupService.class, QueryHistoryWriter.class,
+        QueryHistorySearchIndex.class, QueryMetrics.class, SimpleMeterRegistry.class })
+@TestPropertySource(properties = "bigquery.history.retention.batch-size=2")
+class QueryHistoryRetentionServiceTest {
+
+    @Autowired
+    private QueryHistoryRetentionService retentionService;
+
+    @Autowired
+    private QueryHistoryRollupService rollupService;
+
+    @Autowired
+    private QueryHistorySearchIndex searchIndex;
+
+    @Autowired
+    private QueryHistoryRepository repository;
+
+    @Autowired
+    private QueryHistoryRollupRepository rollupRepository;
+
+    @Test
+    void eliminaLeRigheVecchieMantenendoGliAggregati() {
+        LocalDateTime vecchia = LocalDateTime.now().minusDays(40);
+        // Già conteggiate dal writer
+        List<QueryHistory> aggregate = List.of(riga(vecchia, true), riga(vecchia, false), riga(vecchia, true));
+        repository.saveAll(aggregate);
+        rollupService.aggiungi(aggregate);
+        aggregate.forEach(q -> q.setRolledUp(true));
+        // Mai conclusa: viene aggregata dalla compattazione
+        QueryHistory abbandonata = riga(vecchia.plusMinutes(1), null);
+        QueryHistory recente = riga(LocalDateTime.now(), true);
+        repository.saveAll(List.of(abbandonata, recente));
+        searchIndex.aggiungi(repository.findAll());
+
+        long eliminate = retentionService.compatta(LocalDateTime.now().minusDays(30));
+
+        assertThat(eliminate).isEqualTo(4);
+        assertThat(repository.findAll()).containsExactly(recente);
+        assertThat(rollupRepository.countRiuscite()).isEqualTo(2);
+        assertThat(rollupRepository.getAggregatiPerIp()).singleElement()
+                .satisfies(row -> assertThat(row[1]).isEqualTo(4L));
+        assertThat(searchIndex.getNumeroVoci()).isEqualTo(1);
+    }
+
+    private static QueryHistory riga(LocalDateTime createdAt, Boolean success) {
+        QueryHistory queryHistory = new QueryHistory("SELECT 1", "10.0.0.1");
+        queryHistory.setCreatedAt(createdAt);
+        queryHistory.setSuccess(success);
+        queryHistory.setExecutionTimeMs(success != null ? 100L : null);
+        return queryHistory;
+    }
+}
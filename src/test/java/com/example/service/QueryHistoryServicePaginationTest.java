@@ -0,0 +1,103 @@
+package com.example.service;
+
+import com.example.demo.DemoApplication;
+import com.example.entity.QueryHistory;
+import com.example.repository.QueryHistoryRepository;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@DataJpaTest
+@ContextConfiguration(classes = { DemoApplication.class, PerformanceMonitoringServiceTest.Repository.class })
+@ImportAutoConfiguration(JacksonAutoConfiguration.class)
+@Import({ QueryHistoryService.class, QueryHistoryWriter.class, QueryHistoryRollupService.class,
+        QueryHistorySearchIndex.class, QueryMetrics.class, SimpleMeterRegistry.class })
+class QueryHistoryServicePaginationTest {
+
+    private static final LocalDateTime ORA = LocalDateTime.of(2025, 6, 2, 9, 30);
+
+    @Autowired
+    private QueryHistoryService service;
+
+    @Autowired
+    private QueryHistoryRepository repository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Test
+    void scorreLaCronologiaPerChiaveAncheConDatePariMerito() {
+        // Cinque righe, tre con la stessa data di creazione
+        List<QueryHistory> righe = repository.saveAll(List.of(
+                riga("SELECT 1", ORA, true, false),
+                riga("SELECT 2", ORA.plusMinutes(1), true, false),
+                riga("SELECT 3", ORA.plusMinutes(1), false, false),
+                riga("SELECT 4", ORA.plusMinutes(1), false, true),
+                riga("SELECT 5", ORA.plusMinutes(2), true, false)));
+
+        List<Long> letti = new ArrayList<>();
+        String cursore = null;
+        do {
+            QueryHistoryService.PaginaCronologia pagina = service.getCronologia(cursore, 2);
+            pagina.getRighe().forEach(q -> letti.add(q.getId()));
+            cursore = pagina.getCursoreSuccessivo();
+        } while (cursore != null);
+
+        assertThat(letti).containsExactly(righe.get(4).getId(), righe.get(3).getId(), righe.get(2).getId(),
+                righe.get(1).getId(), righe.get(0).getId());
+        assertThat(service.getQueryRiuscite(null, 10).getRighe()).extracting(QueryHistory::getSqlQuery)
+                .containsExactly("SELECT 5", "SELECT 2", "SELECT 1");
+        assertThat(service.getQueryFallite(null, 10).getRighe()).extracting(QueryHistory::getSqlQuery)
+                .containsExactly("SELECT 3");
+        assertThat(service.getQueryAnnullate(null, 10).getRighe()).extracting(QueryHistory::getSqlQuery)
+                .containsExactly("SELECT 4");
+        // Quattro righe nel periodo: dopo la prima pagina di tre ne resta una
+        QueryHistoryService.PaginaCronologia periodo = service.getCronologiaQuery(ORA.plusMinutes(1), ORA.plusMinutes(2), null, 3);
+        assertThat(service.getCronologiaQuery(ORA.plusMinutes(1), ORA.plusMinutes(2), periodo.getCursoreSuccessivo(), 3)
+                .getRighe()).singleElement().extracting(QueryHistory::getSqlQuery).isEqualTo("SELECT 2");
+        assertThatThrownBy(() -> service.getCronologia("non-valido", 2)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void esportaLaCronologiaDelPeriodoComeNdjson() throws Exception {
+        repository.saveAll(List.of(
+                riga("SELECT 1", ORA.minusDays(1), true, false),
+                riga("SELECT 2", ORA, true, false),
+                riga("SELECT 3", ORA.plusMinutes(1), false, true)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        long righe = service.esportaNdjson(ORA, ORA.plusDays(1), out);
+
+        String[] linee = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertThat(righe).isEqualTo(2);
+        assertThat(linee).hasSize(2);
+        JsonNode prima = objectMapper.readTree(linee[0]);
+        assertThat(prima.get("sqlQuery").asText()).isEqualTo("SELECT 2");
+        assertThat(objectMapper.readTree(linee[1]).get("cancelled").asBoolean()).isTrue();
+    }
+
+    private static QueryHistory riga(String sql, LocalDateTime createdAt, boolean success, boolean cancelled) {
+        QueryHistory queryHistory = new QueryHistory(sql, "10.0.0.1");
+        queryHistory.setCreatedAt(createdAt);
+        queryHistory.setSuccess(success);
+        queryHistory.setCancelled(cancelled);
+        queryHistory.setExecutionTimeMs(100L);
+        return queryHistory;
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.service;
+
+import com.example.entity.QueryHistory;
+import com.example.repository.QueryHistoryRepository;
+import com.example.repository.QueryHistoryRollupRepository;
+import com.google.cloud.bigquery.JobStatistics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class QueryHistoryServiceTest {
+
+    private QueryHistoryRepository repository;
+    private QueryHistoryRollupRepository rollupRepository;
+    private QueryHistoryService service;
+    private QueryHistoryWriter writer;
+    private QueryHistorySearchIndex searchIndex;
+    private QueryHistory queryHistory;
+
+    @BeforeEach
+    void setUp() {
+        repository = mock(QueryHistoryRepository.class);
+        writer = QueryHistoryWriterTest.crea(repository, new SimpleMeterRegistry(), 100, 50);
+        service = new QueryHistoryService();
+        ReflectionTestUtils.setField(service, "queryHistoryRepository", repository);
+        rollupRepository = mock(QueryHistoryRollupRepository.class);
+        ReflectionTestUtils.setField(service, "rollupRepository", rollupRepository);
+        ReflectionTestUtils.setField(service, "queryHistoryWriter", writer);
+        searchIndex = new QueryHistorySearchIndex();
+        ReflectionTestUtils.setField(service, "searchIndex", searchIndex);
+        queryHistory = new QueryHistory("SELECT 1", "10.0.0.1");
+        queryHistory.setId(1L);
+        when(repository.findAllById(List.of(1L))).thenReturn(List.of(queryHistory));
+    }
+
+    @AfterEach
+    void tearDown() {
+        writer.arresta();
+    }
+
+    @Test
+    void leggeLeStatisticheGeneraliDagliAggregati() {
+        when(rollupRepository.getTotali()).thenReturn(List.<Object[]>of(new Object[] { 10L, 7L, 1L }));
+
+        Map<String, Object> stats = service.getStatisticheGenerali();
+
+        assertThat(stats).containsEntry("queryTotali", 10L)
+                .containsEntry("queryRiuscite", 7L)
+                .containsEntry("queryFallite", 2L)
+                .containsEntry("queryAnnullate", 1L)
+                .containsEntry("percentualeSuccesso", 70.0);
+        // Nessuna scansione della cronologia
+        verify(repository, never()).count();
+    }
+
+    @Test
+    void registraLeStatisticheDelJob() {
+        JobStatistics.QueryStatistics statistiche = mock(JobStatistics.QueryStatistics.class);
+        when(statistiche.getCreationTime()).thenReturn(1_000L);
+        when(statistiche.getStartTime()).thenReturn(1_200L);
+        when(statistiche.getEndTime()).thenReturn(3_000L);
+        when(statistiche.getTotalBytesProcessed()).thenReturn(5_000L);
+        when(statistiche.getTotalBytesBilled()).thenReturn(10_485_760L);
+        when(statistiche.getCacheHit()).thenReturn(false);
+        when(statistiche.getTotalSlotMs()).thenReturn(750L);
+
+        service.aggiornaQueryCompletata(queryHistory, 2_600L, 10, true, null, "job-1", statistiche);
+        writer.svuota();
+
+        verify(repository).findAllById(List.of(1L));
+        assertThat(queryHistory.getJobId()).isEqualTo("job-1");
+        assertThat(queryHistory.getServerTimeMs()).isEqualTo(2_000L);
+        assertThat(queryHistory.getBytesProcessed()).isEqualTo(5_000L);
+        assertThat(queryHistory.getBytesBilled()).isEqualTo(10_485_760L);
+        assertThat(queryHistory.getCacheHit()).isFalse();
+        assertThat(queryHistory.getSlotMs()).isEqualTo(750L);
+        assertThat(queryHistory.getJobStartedAt()).isAfter(queryHistory.getJobCreatedAt());
+        assertThat(queryHistory.getJobEndedAt()).isAfter(queryHistory.getJobStartedAt());
+    }
+
+    @Test
+    void senzaStatisticheRegistraSoloLEsito() {
+        service.aggiornaQueryCompletata(queryHistory, 40L, 3, true, null, "job-1", null);
+        writer.svuota();
+
+        assertThat(queryHistory.getSuccess()).isTrue();
+        assertThat(queryHistory.getJobId()).isEqualTo("job-1");
+        assertThat(queryHistory.getServerTimeMs()).isNull();
+        assertThat(queryHistory.getBytesProcessed()).isNull();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void cercaNellIndiceERestituisceLeRighePerPertinenza() {
+        QueryHistory lunga = new QueryHistory("SELECT * FROM orders JOIN customers USING (id)", "10.0.0.2");
+        lunga.setId(2L);
+        QueryHistory breve = new QueryHistory("select * from ORDERS", "10.0.0.3");
+        breve.setId(3L);
+        QueryHistory altra = new QueryHistory("SELECT * FROM customers", "10.0.0.4");
+        altra.setId(4L);
+        searchIndex.aggiungi(List.of(lunga, breve, altra));
+        when(repository.findAllById(List.of(3L, 2L))).thenReturn(List.of(lunga, breve));
+
+        Map<String, Object> risposta = service.cercaQuery("orders", 0, 10);
+
+        assertThat(risposta.get("totaleRisultati")).isEqualTo(2L);
+        List<Map<String, Object>> risultati = (List<Map<String, Object>>) risposta.get("risultati");
+        assertThat(risultati).extracting(r -> r.get("id")).isEqualTo(List.of(3L, 2L));
+        assertThat(risultati.get(0).get("query")).isEqualTo("select * from ORDERS");
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.service;
+
+import com.example.demo.DemoApplication;
+import com.example.entity.QueryHistory;
+import com.example.repository.QueryHistoryRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Scrittura della cronologia e compattazione con milioni di righe storiche, sul database su file
+ * della modalità persistente.
+ * Eseguire con: mvn test -Dtest=QueryHistoryWriterBenchmarkTest -Dbenchmark=true
+ * (righe storiche con -Dbenchmark.history-rows, nuove esecuzioni con -Dbenchmark.inserts,
+ * esecuzioni al secondo minime con -Dbenchmark.min-rate).
+ */
+@DataJpaTest(showSql = false)
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@ContextConfiguration(classes = { DemoApplication.class, PerformanceMonitoringServiceTest.Repository.class })
+@Import({ QueryHistoryRetentionService.class, QueryHistoryRollupService.class, QueryHistoryWriter.class,
+        QueryHistorySearchIndex.class, QueryMetrics.class, SimpleMeterRegistry.class })
+@TestPropertySource(properties = {
+        "spring.datasource.url=jdbc:h2:file:./target/benchmark/history",
+        "spring.jpa.hibernate.ddl-auto=create-drop",
+        "bigquery.history.retention.batch-size=10000" })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class QueryHistoryWriterBenchmarkTest {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryHistoryWriterBenchmarkTest.class);
+
+    private static final long RIGHE_PER_BLOCCO = 250_000;
+
+    @Autowired
+    private QueryHistoryWriter writer;
+
+    @Autowired
+    private QueryHistoryRetentionService retentionService;
+
+    @Autowired
+    private QueryHistoryRepository repository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("TRUNCATE TABLE query_history");
+        jdbcTemplate.execute("TRUNCATE TABLE query_history_rollup");
+        jdbcTemplate.execute("TRUNCATE TABLE query_fingerprint_rollup");
+    }
+
+    @Test
+    void scriveVeloceConMilioniDiRigheStoriche() {
+        long righe = Long.getLong("benchmark.history-rows", 10_000_000L);
+        int nuove = Integer.getInteger("benchmark.inserts", 100_000);
+        long minimoAlSecondo = Long.getLong("benchmark.min-rate", 2_000L);
+        // Una riga ogni 20 secondi all'indietro: 10 milioni di righe coprono circa 6 anni e mezzo
+        for (long primo = 1; primo <= righe; primo += RIGHE_PER_BLOCCO) {
+            jdbcTemplate.update("INSERT INTO query_history (id, sql_query, execution_time_ms, rows_returned, success, "
+                    + "created_at, user_ip, coalesced, cancelled, fingerprint, normalized_query, rolled_up) "
+                    + "SELECT X, 'SELECT * FROM t' || MOD(X, 1000), MOD(X * 7919, 60000), 10, MOD(X, 10) <> 0, "
+                    + "DATEADD('SECOND', -20 * X, CURRENT_TIMESTAMP), '10.0.0.' || MOD(X, 200), FALSE, FALSE, "
+                    + "MOD(X, 1000), 'select * from t' || MOD(X, 1000), TRUE FROM SYSTEM_RANGE(?, ?)",
+                    primo, Math.min(righe, primo + RIGHE_PER_BLOCCO - 1));
+        }
+        // La sequenza degli id riparte dopo le righe storiche: con l'ottimizzatore pooled di Hibernate
+        // il valore letto è l'ultimo id del blocco di 50
+        jdbcTemplate.execute("ALTER SEQUENCE query_history_seq RESTART WITH " + (righe + 50));
+
+        long inizio = System.nanoTime();
+        for (int i = 0; i < nuove; i++) {
+            QueryHistory queryHistory = new QueryHistory("SELECT * FROM t" + (i % 1000), "10.0.0." + (i % 200));
+            writer.inserisci(queryHistory);
+            writer.aggiorna(queryHistory, q -> {
+                q.setSuccess(true);
+                q.setExecutionTimeMs(100L);
+            });
+        }
+        writer.svuota();
+        long durataMs = Math.max(1, (System.nanoTime() - inizio) / 1_000_000);
+        long alSecondo = nuove * 1000L / durataMs;
+
+        // Compattazione dei primi 30 giorni di righe storiche (circa 130 mila righe)
+        LocalDateTime limite = LocalDateTime.now().minusDays(Math.max(0, righe * 20 / 86_400 - 30));
+        inizio = System.nanoTime();
+        long eliminate = retentionService.compatta(limite);
+        long durataCompattazioneMs = Math.max(1, (System.nanoTime() - inizio) / 1_000_000);
+
+        log.info("{} esecuzioni scritte con {} righe storiche: {} ms ({}/s); compattazione di {} righe: {} ms ({} righe/s)",
+                nuove, righe, durataMs, alSecondo, eliminate, durataCompattazioneMs,
+                eliminate * 1000 / durataCompattazioneMs);
+        assertThat(repository.count()).isEqualTo(righe + nuove - eliminate);
+        assertThat(alSecondo).isGreaterThanOrEqualTo(minimoAlSecondo);
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.service;
+
+import com.example.entity.QueryHistory;
+import com.example.repository.QueryHistoryRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class QueryHistoryWriterTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final QueryHistoryRepository repository = mock(QueryHistoryRepository.class);
+    private final List<QueryHistory> salvate = new ArrayList<>();
+    private QueryHistoryWriter writer;
+
+    @AfterEach
+    void tearDown() {
+        writer.arresta();
+    }
+
+    @Test
+    void unisceInizioEFineInUnSoloInserimento() {
+        writer = crea(repository, registry, 100, 50);
+        registraSalvataggi();
+        QueryHistory queryHistory = new QueryHistory("SELECT 1", "10.0.0.1");
+
+        writer.inserisci(queryHistory);
+        writer.aggiorna(queryHistory, q -> q.setSuccess(true));
+        writer.svuota();
+
+        assertThat(salvate).containsExactly(queryHistory);
+        assertThat(queryHistory.getSuccess()).isTrue();
+        verify(repository, never()).findAllById(any());
+    }
+
+    @Test
+    void aggiornaLeRigheGiaScritte() {
+        writer = crea(repository, registry, 100, 50);
+        registraSalvataggi();
+        QueryHistory queryHistory = new QueryHistory("SELECT 1", "10.0.0.1");
+        writer.inserisci(queryHistory);
+        writer.svuota();
+
+        QueryHistory letta = new QueryHistory("SELECT 1", "10.0.0.1");
+        letta.setId(queryHistory.getId());
+        when(repository.findAllById(List.of(queryHistory.getId()))).thenReturn(List.of(letta));
+        writer.aggiorna(queryHistory, q -> q.setSuccess(false));
+        writer.svuota();
+
+        assertThat(letta.getSuccess()).isFalse();
+    }
+
+    @Test
+    void aggiungeAgliAggregatiSoloLeQueryConcluse() {
+        writer = crea(repository, registry, 100, 50);
+        registraSalvataggi();
+        QueryHistoryRollupService rollupService = (QueryHistoryRollupService) ReflectionTestUtils.getField(writer, "rollupService");
+        QueryHistory conclusa = new QueryHistory("SELECT 1", "10.0.0.1");
+        QueryHistory inCorso = new QueryHistory("SELECT 2", "10.0.0.1");
+
+        writer.inserisci(conclusa);
+        writer.inserisci(inCorso);
+        writer.aggiorna(conclusa, q -> q.setSuccess(true));
+        // Un secondo esito non conta due volte
+        writer.aggiorna(conclusa, q -> q.setSuccess(false));
+        writer.svuota();
+
+        ArgumentCaptor<Collection<QueryHistory>> concluse = ArgumentCaptor.captor();
+        verify(rollupService).aggiungi(concluse.capture());
+        assertThat(concluse.getValue()).containsExactly(conclusa);
+    }
+
+    @Test
+    void conLaCodaPienaScriveIlChiamante() {
+        writer = crea(repository, registry, 2, 50);
+        registraSalvataggi();
+
+        for (int i = 0; i < 3; i++) {
+            writer.inserisci(new QueryHistory("SELECT " + i, "10.0.0.1"));
+        }
+
+        // Il terzo evento ha svuotato la coda prima di essere scritto
+        assertThat(writer.getNumeroInCoda()).isZero();
+        assertThat(salvate).extracting(QueryHistory::getSqlQuery).containsExactly("SELECT 0", "SELECT 1", "SELECT 2");
+        assertThat(registry.get("bigquery.history.writer.overflow").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void scriveALotti() {
+        writer = crea(repository, registry, 100, 2);
+        registraSalvataggi();
+
+        for (int i = 0; i < 5; i++) {
+            writer.inserisci(new QueryHistory("SELECT " + i, "10.0.0.1"));
+        }
+        writer.svuota();
+
+        // Il lotto pieno sveglia anche il thread di scrittura: conta solo la dimensione dei lotti
+        ArgumentCaptor<Iterable<QueryHistory>> lotti = ArgumentCaptor.captor();
+        verify(repository, atLeast(3)).saveAll(lotti.capture());
+        assertThat(lotti.getAllValues()).allSatisfy(lotto -> assertThat(lotto).hasSizeLessThanOrEqualTo(2));
+        assertThat(salvate).hasSize(5);
+    }
+
+    @Test
+    void seIlLottoFallisceRitentaRigaPerRiga() {
+        writer = crea(repository, registry, 100, 50);
+        AtomicLong ids = new AtomicLong();
+        when(repository.saveAll(anyIterable())).thenAnswer(inv -> {
+            List<QueryHistory> lotto = new ArrayList<>();
+            for (QueryHistory queryHistory : inv.<Iterable<QueryHistory>>getArgument(0)) {
+                // Come l'INSERT reale, l'id viene assegnato anche se la transazione poi fallisce
+                queryHistory.setId(ids.incrementAndGet());
+                lotto.add(queryHistory);
+            }
+            if (lotto.stream().anyMatch(q -> q.getSqlQuery().equals("ROTTA"))) {
+                throw new IllegalStateException("Vincolo violato");
+            }
+            salvate.addAll(lotto);
+            return lotto;
+        });
+        QueryHistory valida = new QueryHistory("SELECT 1", "10.0.0.1");
+        QueryHistory rotta = new QueryHistory("ROTTA", "10.0.0.1");
+
+        writer.inserisci(valida);
+        writer.inserisci(rotta);
+        writer.aggiorna(rotta, q -> q.setSuccess(true));
+        writer.svuota();
+
+        // La riga valida viene salvata da sola; si perdono i due eventi di quella rotta, che resta senza id
+        assertThat(salvate).containsExactly(valida);
+        assertThat(rotta.getId()).isNull();
+        assertThat(registry.get("bigquery.history.writer.failed").counter().count()).isEqualTo(2);
+
+        // Anche l'esito che arriva dopo viene contato come perso
+        writer.aggiorna(rotta, q -> q.setSuccess(false));
+        writer.svuota();
+        assertThat(registry.get("bigquery.history.writer.failed").counter().count()).isEqualTo(3);
+    }
+
+    @Test
+    void contaLeModificheDiRigheNonPiuPresenti() {
+        writer = crea(repository, registry, 100, 50);
+        registraSalvataggi();
+        QueryHistory queryHistory = new QueryHistory("SELECT 1", "10.0.0.1");
+        writer.inserisci(queryHistory);
+        writer.svuota();
+
+        when(repository.findAllById(List.of(queryHistory.getId()))).thenReturn(List.of());
+        writer.aggiorna(queryHistory, q -> q.setSuccess(true));
+        writer.svuota();
+
+        assertThat(registry.get("bigquery.history.writer.failed").counter().count()).isEqualTo(1);
+    }
+
+    /**
+     * Writer con un intervallo lungo, così le scritture avvengono solo con {@link QueryHistoryWriter#svuota}.
+     */
+    static QueryHistoryWriter crea(QueryHistoryRepository repository, MeterRegistry registry, int capacita, int dimensioneLotto) {
+        QueryHistoryWriter writer = new QueryHistoryWriter();
+        ReflectionTestUtils.setField(writer, "queryHistoryRepository", repository);
+        ReflectionTestUtils.setField(writer, "transactionManager", mock(PlatformTransactionManager.class));
+        ReflectionTestUtils.setField(writer, "rollupService", mock(QueryHistoryRollupService.class));
+        ReflectionTestUtils.setField(writer, "searchIndex", mock(QueryHistorySearchIndex.class));
+        ReflectionTestUtils.setField(writer, "queryMetrics", new QueryMetrics(registry));
+        ReflectionTestUtils.setField(writer, "meterRegistry", registry);
+        ReflectionTestUtils.setField(writer, "capacita", capacita);
+        ReflectionTestUtils.setField(writer, "dimensioneLotto", dimensioneLotto);
+        ReflectionTestUtils.setField(writer, "intervalloMs", 60_000L);
+        writer.avvia();
+        return writer;
+    }
+
+    private void registraSalvataggi() {
+        AtomicLong ids = new AtomicLong();
+        when(repository.saveAll(anyIterable())).thenAnswer(inv -> {
+            List<QueryHistory> lotto = new ArrayList<>();
+            for (QueryHistory queryHistory : inv.<Iterable<QueryHistory>>getArgument(0)) {
+                queryHistory.setId(ids.incrementAndGet());
+                lotto.add(queryHistory);
+            }
+            salvate.addAll(lotto);
+            return lotto;
+        });
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.service;
+
+import com.example.service.QueryJobService.QueryAnnullataException;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.QueryJobConfiguration;
+import com.google.cloud.bigquery.TableResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class QueryJobServiceTest {
+
+    private static final QueryJobConfiguration CONFIG = QueryJobConfiguration.of("SELECT 1");
+
+    private final FakeBigQuery fake = new FakeBigQuery();
+    private final QueryScheduler.Permesso permesso = mock(QueryScheduler.Permesso.class);
+    private QueryJobService service;
+
+    @AfterEach
+    void tearDown() {
+        if (service != null) {
+            service.arresta();
+        }
+    }
+
+    @Test
+    void controllaIlJobFinoAlCompletamentoELeggeIRisultati() throws Exception {
+        TableResult risultati = mock(TableResult.class);
+        fake.inEsecuzionePer(3).risultati(risultati);
+        service = crea(fake.getBigQuery(), scheduler(permesso), BigQueryResilienceTest.crea(new SimpleMeterRegistry(), 1, 10, 60_000));
+
+        QueryJobService.QueryJobHandle handle = service.submit(CONFIG, "10.0.0.1");
+
+        assertThat(service.getJob(handle.getId())).isSameAs(handle);
+        assertThat(handle.getFuture().get(5, TimeUnit.SECONDS)).isNotNull();
+        assertThat(handle.getStato()).isEqualTo("COMPLETATO");
+        assertThat(fake.chiamate("getJob")).isEqualTo(4);
+        assertThat(service.leggiRisultati(handle.await())).isSameAs(risultati);
+        assertThat(service.leggiRisultati(handle.getJobId())).isSameAs(risultati);
+        assertThat(service.getNumeroJobInEsecuzione()).isZero();
+        verify(permesso).rilascia();
+        // Il limite lato BigQuery segue il timeout della query, con un margine
+        assertThat(((QueryJobConfiguration) fake.getUltimoJob().getConfiguration()).getJobTimeoutMs()).isEqualTo(65_000L);
+    }
+
+    @Test
+    void annullaIlJobSuRichiesta() throws Exception {
+        fake.inEsecuzionePer(Integer.MAX_VALUE);
+        service = crea(fake.getBigQuery(), scheduler(permesso), BigQueryResilienceTest.crea(new SimpleMeterRegistry(), 1, 10, 60_000));
+        QueryJobService.QueryJobHandle handle = service.submit(CONFIG);
+
+        assertThat(service.annulla(handle.getId())).isTrue();
+
+        assertThat(handle.getStato()).isEqualTo("ANNULLATO");
+        assertThatThrownBy(handle::await).isInstanceOfSatisfying(QueryAnnullataException.class,
+                e -> assertThat(e.isScaduta()).isFalse());
+        assertThat(fake.chiamate("cancel")).isEqualTo(1);
+        assertThat(service.getNumeroJobInEsecuzione()).isZero();
+        verify(permesso).rilascia();
+        // Il secondo annullamento non chiama di nuovo BigQuery
+        assertThat(service.annulla(handle.getId())).isTrue();
+        assertThat(fake.chiamate("cancel")).isEqualTo(1);
+        assertThat(service.annulla("inesistente")).isFalse();
+    }
+
+    @Test
+    void annullaIlJobAlloScadereDelTimeout() throws Exception {
+        fake.inEsecuzionePer(Integer.MAX_VALUE);
+        service = crea(fake.getBigQuery(), scheduler(permesso), BigQueryResilienceTest.crea(new SimpleMeterRegistry(), 1, 10, 60_000));
+
+        QueryJobService.QueryJobHandle handle = service.submit(CONFIG, null, 50L);
+
+        // L'annullamento completa il future come annullato, non come fallito
+        assertThatThrownBy(() -> handle.getFuture().get(5, TimeUnit.SECONDS)).isInstanceOf(QueryAnnullataException.class);
+        assertThat(handle.getStato()).isEqualTo("ANNULLATO");
+        assertThatThrownBy(handle::await).isInstanceOfSatisfying(QueryAnnullataException.class,
+                e -> assertThat(e.isScaduta()).isTrue());
+        // Il future viene completato prima della cancel, sul thread di polling
+        verify(permesso, timeout(1_000)).rilascia();
+        for (long limite = System.currentTimeMillis() + 1_000; fake.chiamate("cancel") == 0 && System.currentTimeMillis() < limite; ) {
+            Thread.sleep(5);
+        }
+        assertThat(fake.chiamate("cancel")).isEqualTo(1);
+        assertThat(((QueryJobConfiguration) fake.getUltimoJob().getConfiguration()).getJobTimeoutMs()).isEqualTo(5_050L);
+    }
+
+    @Test
+    void creaIlJobQuandoLoSchedulerAssegnaIlPosto() throws Exception {
+        CompletableFuture<QueryScheduler.Permesso> posto = new CompletableFuture<>();
+        QueryScheduler scheduler = mock(QueryScheduler.class);
+        when(scheduler.acquisisci("10.0.0.1")).thenReturn(posto);
+        service = crea(fake.getBigQuery(), scheduler, BigQueryResilienceTest.crea(new SimpleMeterRegistry(), 1, 10, 60_000));
+
+        // La richiesta in coda non blocca il chiamante
+        QueryJobService.QueryJobHandle handle = service.submit(CONFIG, "10.0.0.1");
+
+        assertThat(handle.getStato()).isEqualTo("IN_CODA");
+        assertThat(service.getJob(handle.getId())).isSameAs(handle);
+        assertThat(fake.chiamate("create")).isZero();
+
+        posto.complete(permesso);
+
+        assertThat(handle.getFuture().get(5, TimeUnit.SECONDS)).isNotNull();
+        assertThat(fake.chiamate("create")).isEqualTo(1);
+        assertThat(fake.getUltimoJob().getJobId().getJob()).isEqualTo(handle.getId());
+        // I ritentativi della creazione non fermano il pool di polling
+        assertThat(fake.getThreadUltimaCreazione()).startsWith("bq-job-create-");
+        verify(permesso, timeout(1_000)).rilascia();
+    }
+
+    @Test
+    void annullaLaRichiestaInCodaSenzaCreareIlJob() throws Exception {
+        CompletableFuture<QueryScheduler.Permesso> posto = new CompletableFuture<>();
+        QueryScheduler scheduler = mock(QueryScheduler.class);
+        when(scheduler.acquisisci(any())).thenReturn(posto);
+        service = crea(fake.getBigQuery(), scheduler, BigQueryResilienceTest.crea(new SimpleMeterRegistry(), 1, 10, 60_000));
+        QueryJobService.QueryJobHandle handle = service.submit(CONFIG);
+
+        assertThat(service.annulla(handle.getId())).isTrue();
+
+        assertThat(handle.getStato()).isEqualTo("ANNULLATO");
+        // Il posto in coda viene liberato e BigQuery non viene chiamato
+        assertThat(posto.isCancelled()).isTrue();
+        assertThat(fake.chiamate("create")).isZero();
+        assertThat(fake.chiamate("cancel")).isZero();
+        verify(permesso, never()).rilascia();
+    }
+
+    @Test
+    void loScadereDellAttesaInCodaFallisceLaRichiesta() throws Exception {
+        CompletableFuture<QueryScheduler.Permesso> posto = new CompletableFuture<>();
+        QueryScheduler scheduler = mock(QueryScheduler.class);
+        when(scheduler.acquisisci(any())).thenReturn(posto);
+        service = crea(fake.getBigQuery(), scheduler, BigQueryResilienceTest.crea(new SimpleMeterRegistry(), 1, 10, 60_000));
+        QueryJobService.QueryJobHandle handle = service.submit(CONFIG);
+
+        QueryScheduler.CodaPienaException scaduta = new QueryScheduler.CodaPienaException("Tempo di attesa in coda superato", 2);
+        posto.completeExceptionally(scaduta);
+
+        assertThatThrownBy(handle::await).isSameAs(scaduta);
+        assertThat(fake.chiamate("create")).isZero();
+    }
+
+    @Test
+    void limitaITimeoutRichiesti() throws Exception {
+        service = crea(fake.getBigQuery(), scheduler(permesso), BigQueryResilienceTest.crea(new SimpleMeterRegistry(), 1, 10, 60_000));
+
+        assertThat(service.getTimeoutEffettivo(null)).isEqualTo(60_000L);
+        assertThat(service.getTimeoutEffettivo(0L)).isEqualTo(60_000L);
+        assertThat(service.getTimeoutEffettivo(1_000L)).isEqualTo(1_000L);
+        assertThat(service.getTimeoutEffettivo(Long.MAX_VALUE)).isEqualTo(120_000L);
+    }
+
+    static QueryScheduler scheduler(QueryScheduler.Permesso permesso) {
+        QueryScheduler scheduler = mock(QueryScheduler.class);
+        when(scheduler.acquisisci(any())).thenReturn(CompletableFuture.completedFuture(permesso));
+        return scheduler;
+    }
+
+    static QueryJobService crea(BigQuery bigQuery, QueryScheduler scheduler, BigQueryResilience resilience) {
+        QueryJobService service = new QueryJobService(bigQuery, scheduler, resilience, new QueryMetrics(new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(service, "jobLocation", "US");
+        ReflectionTestUtils.setField(service, "pollThreads", 1);
+        ReflectionTestUtils.setField(service, "threadCreazione", 1);
+        ReflectionTestUtils.setField(service, "intervalloPollingIniziale", 1L);
+        ReflectionTestUtils.setField(service, "intervalloPollingMassimo", 5L);
+        ReflectionTestUtils.setField(service, "maxJobInEsecuzione", 10);
+        ReflectionTestUtils.setField(service, "ritenzioneJobCompletatiMs", 60_000L);
+        ReflectionTestUtils.setField(service, "timeoutPredefinitoMs", 60_000L);
+        ReflectionTestUtils.setField(service, "timeoutMassimoMs", 120_000L);
+        service.avvia();
+        return service;
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class QueryLatencyStatsTest {
+
+    @Test
+    void iBucketHannoErroreRelativoLimitato() {
+        for (long latenza : new long[] { 0, 7, 15, 16, 100, 1_234, 98_765, 3_600_000 }) {
+            long valore = LatencyHistogram.valore(LatencyHistogram.bucket(latenza));
+            assertThat((double) valore).isCloseTo(latenza, within(latenza * 0.125 + 0.5));
+        }
+    }
+
+    @Test
+    void calcolaIPercentiliPerEndpointEImpronta() {
+        QueryLatencyStats stats = crea(200);
+        long adesso = System.currentTimeMillis();
+        for (int i = 1; i <= 100; i++) {
+            stats.registra("/bigquery/query", "SELECT  1", i * 10L, adesso);
+        }
+        stats.registra("/bigquery/jobs", "select 1", 5_000, adesso);
+
+        Map<String, Object> percentili = stats.getPercentili("1m", 10);
+
+        Map<?, ?> complessivo = (Map<?, ?>) percentili.get("complessivo");
+        assertThat(complessivo.get("conteggio")).isEqualTo(101L);
+        assertThat(complessivo.get("max")).isEqualTo(5_000L);
+        assertThat((Long) complessivo.get("p50")).isBetween(450L, 570L);
+        Map<?, ?> query = (Map<?, ?>) ((Map<?, ?>) percentili.get("perEndpoint")).get("/bigquery/query");
+        assertThat((Long) query.get("p95")).isBetween(840L, 1_000L);
+        assertThat((Long) query.get("p99")).isLessThanOrEqualTo(1_000L);
+        // Spazi e maiuscole non cambiano l'impronta
+        assertThat((List<?>) percentili.get("perImpronta")).hasSize(1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void registraTuttiGliEsitiConLaLoroSerie() {
+        QueryLatencyStats stats = crea(200);
+        long adesso = System.currentTimeMillis();
+        stats.registra("/bigquery/query", "SELECT 1", 100, QueryMetrics.SUCCESSO, adesso);
+        stats.registra("/bigquery/query", "SELECT 1", 60_000,
+                QueryLatencyStats.esito(new CompletionException(new QueryJobService.QueryAnnullataException("Scaduta", true))), adesso);
+        stats.registra("/bigquery/query", "SELECT 1", 30,
+                QueryLatencyStats.esito(new QueryJobService.QueryAnnullataException("Client disconnesso")), adesso);
+        stats.registra("/bigquery/query", "SELECT 1", 20, QueryLatencyStats.esito(new IllegalStateException()), adesso);
+
+        Map<String, Object> percentili = stats.getPercentili("1m", 10);
+
+        // Le richieste scadute restano nella coda dei percentili complessivi
+        assertThat(((Map<?, ?>) percentili.get("complessivo")).get("max")).isEqualTo(60_000L);
+        Map<String, ?> perEsito = (Map<String, ?>) percentili.get("perEsito");
+        assertThat(perEsito.keySet()).containsExactly(
+                QueryMetrics.ANNULLATA, QueryMetrics.ERRORE, QueryMetrics.SUCCESSO, QueryLatencyStats.TIMEOUT);
+        assertThat(((Map<?, ?>) perEsito.get(QueryLatencyStats.TIMEOUT)).get("conteggio")).isEqualTo(1L);
+        assertThat(((Map<?, ?>) perEsito.get(QueryMetrics.SUCCESSO)).get("max")).isEqualTo(100L);
+    }
+
+    @Test
+    void leFetteScaduteEsconoDallaFinestra() {
+        QueryLatencyStats stats = crea(200);
+        long adesso = System.currentTimeMillis();
+        stats.registra("/bigquery/query", "SELECT 1", 100, adesso - 120_000);
+        stats.registra("/bigquery/query", "SELECT 1", 200, adesso);
+
+        assertThat(((Map<?, ?>) stats.getPercentili("1m", 10).get("complessivo")).get("conteggio")).isEqualTo(1L);
+        assertThat(((Map<?, ?>) stats.getPercentili("5m", 10).get("complessivo")).get("conteggio")).isEqualTo(2L);
+        assertThatThrownBy(() -> stats.getPercentili("2h", 10)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void limitaLeImpronteTracciate() {
+        QueryLatencyStats stats = crea(2);
+        long adesso = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            stats.registra("/bigquery/query", "SELECT * FROM t" + i, 10, adesso);
+        }
+
+        Map<String, Object> percentili = stats.getPercentili("1m", 10);
+
+        assertThat((List<?>) percentili.get("perImpronta")).hasSize(2);
+        assertThat(((Map<?, ?>) percentili.get("complessivo")).get("conteggio")).isEqualTo(5L);
+    }
+
+    private static QueryLatencyStats crea(int maxImpronte) {
+        QueryLatencyStats stats = new QueryLatencyStats();
+        ReflectionTestUtils.setField(stats, "maxImpronte", maxImpronte);
+        return stats;
+    }
+}
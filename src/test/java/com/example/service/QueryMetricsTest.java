@@ -0,0 +1,43 @@
+package com.example.service;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class QueryMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final QueryMetrics queryMetrics = new QueryMetrics(registry);
+
+    @Test
+    void registraLEsitoDiOgniChiamata() {
+        assertThat(queryMetrics.misura(QueryMetrics.CREAZIONE_JOB, () -> "job", "operation", "create")).isEqualTo("job");
+        assertThatThrownBy(() -> queryMetrics.misura(QueryMetrics.CREAZIONE_JOB, () -> {
+            throw new IllegalStateException("errore");
+        }, "operation", "create")).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> queryMetrics.misura(QueryMetrics.CREAZIONE_JOB, () -> {
+            throw new CancellationException();
+        }, "operation", "create")).isInstanceOf(CancellationException.class);
+
+        assertThat(timer(QueryMetrics.SUCCESSO).count()).isEqualTo(1);
+        assertThat(timer(QueryMetrics.ERRORE).count()).isEqualTo(1);
+        assertThat(timer(QueryMetrics.ANNULLATA).count()).isEqualTo(1);
+    }
+
+    @Test
+    void pubblicaIPercentili() {
+        queryMetrics.registra(queryMetrics.avvia(), QueryMetrics.VALIDAZIONE, "endpoint", "/bigquery/query", "outcome", "valid");
+
+        Timer timer = registry.get(QueryMetrics.VALIDAZIONE).tag("endpoint", "/bigquery/query").timer();
+        assertThat(timer.takeSnapshot().percentileValues()).hasSize(3);
+    }
+
+    private Timer timer(String esito) {
+        return registry.get(QueryMetrics.CREAZIONE_JOB).tags("operation", "create", "outcome", esito).timer();
+    }
+}
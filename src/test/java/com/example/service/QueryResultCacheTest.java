@@ -0,0 +1,141 @@
+package com.example.service;
+
+import com.google.cloud.bigquery.QueryParameterValue;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class QueryResultCacheTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    void normalizzaSpaziMaNonICommenti() {
+        assertThat(QueryResultCache.normalizzaSql("SELECT  1,\n\t2 ;")).isEqualTo("SELECT 1, 2");
+        assertThat(QueryResultCache.normalizzaSql("SELECT 'a  b', `t  1`")).isEqualTo("SELECT 'a  b', `t  1`");
+        assertThat(QueryResultCache.normalizzaSql("SELECT '''x -- y'''")).isEqualTo("SELECT '''x -- y'''");
+
+        // Il commento di riga si chiude all'a capo: le due query hanno risultati diversi
+        assertThat(QueryResultCache.normalizzaSql("SELECT 1 -- x\n, 2")).isEqualTo("SELECT 1 , 2");
+        assertThat(QueryResultCache.normalizzaSql("SELECT 1 -- x , 2")).isEqualTo("SELECT 1");
+        assertThat(QueryResultCache.normalizzaSql("SELECT 1 # x\n, 2")).isEqualTo("SELECT 1 , 2");
+        assertThat(QueryResultCache.normalizzaSql("SELECT /* a */ 1/*b*/+2")).isEqualTo("SELECT 1 +2");
+    }
+
+    @Test
+    void distingueQueryCheDifferisconoSoloDopoUnCommento() {
+        QueryResultCache cache = crea(1_000, 60_000);
+
+        QueryResultCache.Chiave a = cache.chiave("SELECT 1 -- x\n, 2", null);
+        QueryResultCache.Chiave b = cache.chiave("SELECT 1 -- x , 2", null);
+
+        assertThat(a).isNotEqualTo(b);
+        assertThat(cache.chiave("SELECT  1 -- altro\n, 2;", Map.of())).isEqualTo(a);
+        assertThat(cache.chiave("SELECT 1", Map.of("p", QueryParameterValue.int64(1L))))
+                .isNotEqualTo(cache.chiave("SELECT 1", Map.of("p", QueryParameterValue.int64(2L))));
+    }
+
+    @Test
+    void nonMemorizzaLeQueryNonDeterministiche() {
+        QueryResultCache cache = crea(1_000, 60_000);
+
+        assertThat(cache.chiave("SELECT CURRENT_TIMESTAMP()", null)).isNull();
+        assertThat(cache.chiave("select rand() as r", null)).isNull();
+        assertThat(cache.chiave("SELECT GENERATE_UUID()", null)).isNull();
+        // Citata solo in un commento, o come parte di un altro nome, la funzione non conta
+        assertThat(cache.chiave("SELECT 1 -- senza RAND()", null)).isNotNull();
+        assertThat(cache.chiave("SELECT nowhere FROM t", null)).isNotNull();
+    }
+
+    @Test
+    void rimuoveLaVoceMenoUsataDiRecente() {
+        QueryResultCache cache = crea(300, 60_000);
+        QueryResultCache.Chiave a = cache.chiave("SELECT 'a'", null);
+        QueryResultCache.Chiave b = cache.chiave("SELECT 'b'", null);
+        QueryResultCache.Chiave c = cache.chiave("SELECT 'c'", null);
+        ColumnarResult ra = risultato(100);
+        cache.put(a, ra);
+        cache.put(b, risultato(100));
+        cache.put(c, risultato(100));
+
+        // La lettura di a la rende la più recente: esce b
+        assertThat(cache.get(a)).isSameAs(ra);
+        cache.put(cache.chiave("SELECT 'd'", null), risultato(100));
+
+        assertThat(cache.get(b)).isNull();
+        assertThat(cache.get(a)).isSameAs(ra);
+        assertThat(cache.get(c)).isNotNull();
+        assertThat(cache.getNumeroVoci()).isEqualTo(3);
+        assertThat(registry.get("bigquery.cache.evictions").tag("cause", "size").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void limitaIByteOccupatiNonIlNumeroDiVoci() {
+        QueryResultCache cache = crea(1_000, 60_000);
+        for (int i = 0; i < 10; i++) {
+            cache.put(cache.chiave("SELECT " + i, null), risultato(50));
+        }
+        assertThat(cache.getNumeroVoci()).isEqualTo(10);
+        assertThat(cache.getBytesOccupati()).isEqualTo(500);
+
+        // Una voce grande fa uscire quante voci piccole servono a rientrare nel limite
+        QueryResultCache.Chiave grande = cache.chiave("SELECT 'grande'", null);
+        cache.put(grande, risultato(800));
+
+        assertThat(cache.getBytesOccupati()).isEqualTo(1_000);
+        assertThat(cache.getNumeroVoci()).isEqualTo(5);
+        assertThat(cache.get(cache.chiave("SELECT 5", null))).isNull();
+        assertThat(cache.get(cache.chiave("SELECT 6", null))).isNotNull();
+        assertThat(cache.get(grande)).isNotNull();
+
+        // Oltre il limite per voce non viene memorizzata
+        cache.put(cache.chiave("SELECT 'enorme'", null), risultato(1_001));
+        assertThat(cache.get(cache.chiave("SELECT 'enorme'", null))).isNull();
+        assertThat(cache.getBytesOccupati()).isEqualTo(1_000);
+
+        // La sostituzione di una voce non conta due volte i suoi byte
+        cache.put(grande, risultato(700));
+        assertThat(cache.getBytesOccupati()).isEqualTo(900);
+    }
+
+    @Test
+    void scadeDopoIlTtl() throws Exception {
+        QueryResultCache cache = crea(1_000, 20);
+        QueryResultCache.Chiave chiave = cache.chiave("SELECT 1", null);
+        cache.put(chiave, risultato(100));
+        assertThat(cache.get(chiave)).isNotNull();
+
+        Thread.sleep(50);
+
+        assertThat(cache.get(chiave)).isNull();
+        assertThat(cache.getNumeroVoci()).isZero();
+        assertThat(cache.getBytesOccupati()).isZero();
+        assertThat(registry.get("bigquery.cache.evictions").tag("cause", "expired").counter().count()).isEqualTo(1);
+        assertThat(registry.get("bigquery.cache.requests").tag("result", "hit").counter().count()).isEqualTo(1);
+        assertThat(registry.get("bigquery.cache.requests").tag("result", "miss").counter().count()).isEqualTo(1);
+    }
+
+    private QueryResultCache crea(long maxBytes, long ttlMs) {
+        QueryResultCache cache = new QueryResultCache();
+        ReflectionTestUtils.setField(cache, "abilitata", true);
+        ReflectionTestUtils.setField(cache, "maxBytes", maxBytes);
+        ReflectionTestUtils.setField(cache, "maxBytesPerVoce", maxBytes);
+        ReflectionTestUtils.setField(cache, "maxRighePerVoce", 100_000L);
+        ReflectionTestUtils.setField(cache, "ttlMs", ttlMs);
+        ReflectionTestUtils.setField(cache, "meterRegistry", registry);
+        cache.registraMetriche();
+        return cache;
+    }
+
+    private static ColumnarResult risultato(long bytes) {
+        ColumnarResult risultato = mock(ColumnarResult.class);
+        when(risultato.getDimensioneStimataBytes()).thenReturn(bytes);
+        return risultato;
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.service;
+
+import com.example.service.QueryScheduler.CodaPienaException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class QuerySchedulerTest {
+
+    @Test
+    void rifiutaQuandoLaCodaEPiena() {
+        QueryScheduler scheduler = crea(1, 1, 0, 5_000);
+
+        QueryScheduler.Permesso permesso = scheduler.acquisisci("10.0.0.1").join();
+
+        assertThatThrownBy(() -> scheduler.acquisisci("10.0.0.2"))
+                .isInstanceOfSatisfying(CodaPienaException.class, e -> assertThat(e.getRetryAfterSecondi()).isEqualTo(2));
+        permesso.rilascia();
+        permesso.rilascia();
+        assertThat(scheduler.getNumeroAttivi()).isZero();
+    }
+
+    @Test
+    void serveIClientInModoEquo() {
+        QueryScheduler scheduler = crea(1, 1, 10, 5_000);
+        List<String> ordine = Collections.synchronizedList(new ArrayList<>());
+
+        QueryScheduler.Permesso primo = scheduler.acquisisci("a").join();
+        // Due richieste in coda da "a", poi una da "b": "b" non deve aspettare entrambe
+        List<CompletableFuture<QueryScheduler.Permesso>> inCoda = new ArrayList<>();
+        for (String client : List.of("a", "a", "b")) {
+            CompletableFuture<QueryScheduler.Permesso> permesso = scheduler.acquisisci(client);
+            assertThat(permesso).isNotDone();
+            inCoda.add(permesso);
+            permesso.thenAccept(p -> {
+                ordine.add(client);
+                p.rilascia();
+            });
+        }
+        assertThat(scheduler.getNumeroInCoda()).isEqualTo(3);
+
+        primo.rilascia();
+
+        assertThat(inCoda).allMatch(CompletableFuture::isDone);
+        assertThat(ordine).hasSize(3);
+        assertThat(ordine.get(2)).isEqualTo("a");
+        assertThat(scheduler.getNumeroAttivi()).isZero();
+        assertThat(scheduler.getNumeroInCoda()).isZero();
+    }
+
+    @Test
+    void chiRinunciaLasciaLaCoda() {
+        QueryScheduler scheduler = crea(1, 1, 10, 5_000);
+        QueryScheduler.Permesso primo = scheduler.acquisisci("a").join();
+        CompletableFuture<QueryScheduler.Permesso> annullata = scheduler.acquisisci("b");
+        CompletableFuture<QueryScheduler.Permesso> servita = scheduler.acquisisci("c");
+
+        annullata.cancel(false);
+        assertThat(scheduler.getNumeroInCoda()).isEqualTo(1);
+
+        primo.rilascia();
+
+        assertThat(servita).isCompleted();
+        assertThat(servita.join().getClient()).isEqualTo("c");
+        assertThat(scheduler.getNumeroAttivi()).isEqualTo(1);
+        servita.join().rilascia();
+        assertThat(scheduler.getNumeroAttivi()).isZero();
+    }
+
+    @Test
+    void fallisceLAttesaOltreIlMassimo() {
+        QueryScheduler scheduler = crea(1, 1, 10, 50);
+        QueryScheduler.Permesso primo = scheduler.acquisisci("a").join();
+
+        CompletableFuture<QueryScheduler.Permesso> inAttesa = scheduler.acquisisci("b");
+
+        assertThatThrownBy(() -> inAttesa.get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(CodaPienaException.class);
+        assertThat(scheduler.getNumeroInCoda()).isZero();
+        // Il posto liberato dopo la scadenza non viene assegnato alla richiesta scaduta
+        primo.rilascia();
+        assertThat(scheduler.getNumeroAttivi()).isZero();
+    }
+
+    private static QueryScheduler crea(int maxGlobali, int maxPerClient, int maxCoda, long attesaMassimaMs) {
+        QueryScheduler scheduler = new QueryScheduler();
+        ReflectionTestUtils.setField(scheduler, "maxGlobali", maxGlobali);
+        ReflectionTestUtils.setField(scheduler, "maxPerClient", maxPerClient);
+        ReflectionTestUtils.setField(scheduler, "maxCoda", maxCoda);
+        ReflectionTestUtils.setField(scheduler, "attesaMassimaMs", attesaMassimaMs);
+        ReflectionTestUtils.setField(scheduler, "retryAfterSecondi", 2L);
+        ReflectionTestUtils.setField(scheduler, "pesiConfigurati", "");
+        ReflectionTestUtils.setField(scheduler, "meterRegistry", new SimpleMeterRegistry());
+        scheduler.inizializza();
+        return scheduler;
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.service;
+
+import com.google.cloud.bigquery.JobId;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ResultCursorTest {
+
+    private static final byte[] CHIAVE = "chiave-di-prova".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void codificaEDecodifica() {
+        JobId jobId = JobId.newBuilder().setProject("progetto").setJob("job-1").setLocation("EU").build();
+
+        ResultCursor cursore = ResultCursor.decodifica(new ResultCursor(jobId, "token/2==", 250).codifica(CHIAVE), CHIAVE);
+
+        assertThat(cursore.getJobId()).isEqualTo(jobId);
+        assertThat(cursore.getPageToken()).isEqualTo("token/2==");
+        assertThat(cursore.getPageSize()).isEqualTo(250);
+    }
+
+    @Test
+    void primaPaginaSenzaToken() {
+        JobId jobId = JobId.newBuilder().setJob("job-1").build();
+
+        ResultCursor cursore = ResultCursor.decodifica(new ResultCursor(jobId, null, 100).codifica(CHIAVE), CHIAVE);
+
+        assertThat(cursore.getPageToken()).isNull();
+        assertThat(cursore.getJobId().getLocation()).isNull();
+    }
+
+    @Test
+    void rifiutaCursoriMalformati() {
+        assertThatThrownBy(() -> ResultCursor.decodifica("%%%", CHIAVE)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ResultCursor.decodifica("YWJj", CHIAVE)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ResultCursor.decodifica("YWJj.%%", CHIAVE)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void rifiutaCursoriContraffatti() {
+        JobId jobId = JobId.newBuilder().setProject("progetto").setJob("job-1").build();
+        String cursore = new ResultCursor(jobId, null, 100).codifica(CHIAVE);
+        String firma = cursore.substring(cursore.indexOf('.'));
+
+        // Stesso formato, job di un altro progetto, con la firma del cursore originale
+        String altroJob = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString("altro-progetto\njob-2\n\n\n100".getBytes(StandardCharsets.UTF_8));
+        assertThatThrownBy(() -> ResultCursor.decodifica(altroJob + firma, CHIAVE))
+                .isInstanceOf(IllegalArgumentException.class);
+        // Il formato precedente, senza firma, non è più accettato
+        assertThatThrownBy(() -> ResultCursor.decodifica(cursore.substring(0, cursore.indexOf('.')), CHIAVE))
+                .isInstanceOf(IllegalArgumentException.class);
+        // Firmato con un'altra chiave (es. un'altra installazione)
+        assertThatThrownBy(() -> ResultCursor.decodifica(cursore, "altra".getBytes(StandardCharsets.UTF_8)))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RowDecoderTest {
+
+    private static final Logger log = LoggerFactory.getLogger(RowDecoderTest.class);
+
+    private static final FieldList INDIRIZZO = FieldList.of(
+            Field.of("citta", LegacySQLTypeName.STRING),
+            Field.of("cap", LegacySQLTypeName.INTEGER));
+
+    private static final Schema SCHEMA = Schema.of(
+            Field.of("id", LegacySQLTypeName.INTEGER),
+            Field.of("prezzo", LegacySQLTypeName.FLOAT),
+            Field.of("attivo", LegacySQLTypeName.BOOLEAN),
+            Field.of("importo", LegacySQLTypeName.NUMERIC),
+            Field.of("creato", LegacySQLTypeName.TIMESTAMP),
+            Field.newBuilder("etichette", LegacySQLTypeName.STRING).setMode(Field.Mode.REPEATED).build(),
+            Field.of("indirizzo", LegacySQLTypeName.RECORD, INDIRIZZO),
+            Field.of("nota", LegacySQLTypeName.STRING));
+
+    // La scrittura precedente non sapeva serializzare REPEATED e RECORD: il confronto JSON usa solo colonne scalari
+    private static final Schema SCALARI = Schema.of(
+            Field.of("id", LegacySQLTypeName.INTEGER),
+            Field.of("prezzo", LegacySQLTypeName.FLOAT),
+            Field.of("attivo", LegacySQLTypeName.BOOLEAN),
+            Field.of("importo", LegacySQLTypeName.NUMERIC),
+            Field.of("creato", LegacySQLTypeName.TIMESTAMP),
+            Field.of("nota", LegacySQLTypeName.STRING));
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void convertePerTipoDiColonna() {
+        Map<String, Object> riga = RowDecoder.of(SCHEMA).decode(riga(42));
+
+        assertThat(riga.keySet()).containsExactly("id", "prezzo", "attivo", "importo", "creato", "etichette",
+                "indirizzo", "nota");
+        assertThat(riga).containsEntry("id", 42L)
+                .containsEntry("prezzo", 9.5)
+                .containsEntry("attivo", true)
+                .containsEntry("importo", new BigDecimal("123.450000000"))
+                .containsEntry("creato", Instant.parse("2014-08-19T12:41:35.220Z"))
+                .containsEntry("etichette", List.of("a", "b"))
+                .containsEntry("indirizzo", Map.of("citta", "Roma", "cap", 100L))
+                .containsEntry("nota", null);
+        assertThat(riga.get("assente")).isNull();
+        assertThat(riga.containsKey("nota")).isTrue();
+    }
+
+    @Test
+    void scriveLaRigaComeJsonTipizzato() throws Exception {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator generator = objectMapper.createGenerator(out)) {
+            RowDecoder.of(SCHEMA).write(riga(42), generator);
+        }
+
+        assertThat(out.toString()).isEqualTo("{\"id\":42,\"prezzo\":9.5,\"attivo\":true,\"importo\":123.450000000,"
+                + "\"creato\":\"2014-08-19T12:41:35.220Z\",\"etichette\":[\"a\",\"b\"],"
+                + "\"indirizzo\":{\"citta\":\"Roma\",\"cap\":100},\"nota\":null}");
+    }
+
+    @Test
+    void senzaSchemaNonHaColonne() {
+        RowDecoder decoder = RowDecoder.of(null);
+
+        assertThat(decoder.getNumeroColonne()).isZero();
+        assertThat(decoder.decode(FieldValueList.of(List.of()))).isEmpty();
+    }
+
+    /**
+     * Confronto con la conversione precedente per nome (HashMap per riga, valori testuali non convertiti)
+     * e con la scrittura JSON precedente (writeObject del valore grezzo, che scrive NUMERIC e TIMESTAMP come testo).
+     * Eseguire con: mvn test -Dtest=RowDecoderTest -Dbenchmark=true
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void confrontaConLaConversionePerNome() throws Exception {
+        int numeroRighe = Integer.getInteger("benchmark.rows", 200_000);
+        List<FieldValueList> righe = new ArrayList<>(numeroRighe);
+        List<FieldValueList> righeScalari = new ArrayList<>(numeroRighe);
+        for (int i = 0; i < numeroRighe; i++) {
+            righe.add(riga(i));
+            righeScalari.add(rigaScalare(i));
+        }
+        RowDecoder decoderScalari = RowDecoder.of(SCALARI);
+
+        long[] migliori = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+        // Cinque ripetizioni, le prime fanno da riscaldamento: si tiene la migliore
+        for (int ripetizione = 0; ripetizione < 5; ripetizione++) {
+            long inizio = System.nanoTime();
+            List<Map<String, Object>> perNome = new ArrayList<>(numeroRighe);
+            for (FieldValueList riga : righe) {
+                Map<String, Object> map = new HashMap<>();
+                for (Field field : SCHEMA.getFields()) {
+                    map.put(field.getName(), riga.get(field.getName()).getValue());
+                }
+                perNome.add(map);
+            }
+            migliori[0] = Math.min(migliori[0], System.nanoTime() - inizio);
+
+            inizio = System.nanoTime();
+            RowDecoder decoder = RowDecoder.of(SCHEMA);
+            List<Map<String, Object>> decodificate = new ArrayList<>(numeroRighe);
+            for (FieldValueList riga : righe) {
+                decodificate.add(decoder.decode(riga));
+            }
+            migliori[1] = Math.min(migliori[1], System.nanoTime() - inizio);
+            assertThat(decodificate).hasSameSizeAs(perNome);
+
+            inizio = System.nanoTime();
+            try (JsonGenerator generator = objectMapper.createGenerator(OutputStream.nullOutputStream())) {
+                List<Field> campi = SCALARI.getFields();
+                generator.writeStartArray();
+                for (FieldValueList riga : righeScalari) {
+                    generator.writeStartObject();
+                    for (int i = 0; i < campi.size(); i++) {
+                        generator.writeFieldName(campi.get(i).getName());
+                        generator.writeObject(riga.get(i).getValue());
+                    }
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+            }
+            migliori[2] = Math.min(migliori[2], System.nanoTime() - inizio);
+
+            inizio = System.nanoTime();
+            try (JsonGenerator generator = objectMapper.createGenerator(OutputStream.nullOutputStream())) {
+                generator.writeStartArray();
+                for (FieldValueList riga : righeScalari) {
+                    decoderScalari.write(riga, generator);
+                }
+                generator.writeEndArray();
+            }
+            migliori[3] = Math.min(migliori[3], System.nanoTime() - inizio);
+        }
+
+        log.info("{} righe, ns per riga: conversione per nome {}, RowDecoder.decode {}; JSON con writeObject {}, "
+                        + "RowDecoder.write {}", numeroRighe, migliori[0] / numeroRighe, migliori[1] / numeroRighe,
+                migliori[2] / numeroRighe, migliori[3] / numeroRighe);
+        // Nessuna soglia: la conversione tipizzata (NUMERIC, TIMESTAMP) fa più lavoro dei valori testuali non convertiti
+    }
+
+    private static FieldValueList riga(long id) {
+        FieldValueList indirizzo = FieldValueList.of(List.of(primitivo("Roma"), primitivo("100")), INDIRIZZO);
+        return FieldValueList.of(List.of(
+                primitivo(String.valueOf(id)),
+                primitivo("9.5"),
+                primitivo("true"),
+                primitivo("123.450000000"),
+                primitivo("1408452095.22"),
+                FieldValue.of(FieldValue.Attribute.REPEATED, List.of(primitivo("a"), primitivo("b"))),
+                FieldValue.of(FieldValue.Attribute.RECORD, indirizzo),
+                FieldValue.of(FieldValue.Attribute.PRIMITIVE, null)), SCHEMA.getFields());
+    }
+
+    private static FieldValueList rigaScalare(long id) {
+        return FieldValueList.of(List.of(
+                primitivo(String.valueOf(id)),
+                primitivo("9.5"),
+                primitivo("true"),
+                primitivo("123.450000000"),
+                primitivo("1408452095.22"),
+                primitivo("nota " + id)), SCALARI.getFields());
+    }
+
+    private static FieldValue primitivo(String valore) {
+        return FieldValue.of(FieldValue.Attribute.PRIMITIVE, valore);
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TrigramIndexTest {
+
+    private static final Logger log = LoggerFactory.getLogger(TrigramIndexTest.class);
+
+    @Test
+    void trovaITestiCheContengonoTuttiITermini() {
+        TrigramIndex indice = new TrigramIndex();
+        indice.aggiungi(1, "SELECT * FROM `proj.sales.orders` WHERE country = 'IT'");
+        indice.aggiungi(2, "SELECT id FROM `proj.sales.customers`");
+        indice.aggiungi(3, "select * from `proj.sales.orders` where country = 'IT'");
+        indice.aggiungi(4, "SELECT count(*) FROM `proj.hr.employees`");
+
+        assertThat(ids(indice.cerca("ORDERS country", 0, 10))).containsExactly(3, 1);
+        assertThat(ids(indice.cerca("sales", 0, 10))).containsExactlyInAnyOrder(1, 2, 3);
+        assertThat(indice.cerca("sales", 0, 10).getTotale()).isEqualTo(3);
+        assertThat(indice.cerca("orders hr", 0, 10).getTotale()).isZero();
+        // Termini più corti di un trigramma, dalle liste delle coppie e dei singoli caratteri
+        assertThat(ids(indice.cerca("hr", 0, 10))).containsExactly(4);
+        assertThat(ids(indice.cerca("it", 0, 10))).containsExactly(3, 1);
+        assertThat(ids(indice.cerca("( *", 0, 10))).containsExactly(4);
+        assertThat(indice.cerca("zz", 0, 10).getTotale()).isZero();
+    }
+
+    @Test
+    void ordinaPerPertinenzaEPaginaLeEsecuzioni() {
+        TrigramIndex indice = new TrigramIndex();
+        indice.aggiungi(1, "select * from orders");
+        indice.aggiungi(2, "select * from orders_archive join customers using (id) where total > 100");
+        indice.aggiungi(3, "select * from orders");
+        indice.aggiungi(4, "select * from orders");
+
+        // Il testo più corto con la parola intera viene prima, dalla esecuzione più recente
+        assertThat(ids(indice.cerca("orders", 0, 10))).containsExactly(4, 3, 1, 2);
+        assertThat(ids(indice.cerca("orders", 1, 2))).containsExactly(3, 1);
+        assertThat(ids(indice.cerca("orders", 3, 2))).containsExactly(2);
+        assertThat(indice.cerca("orders", 3, 2).getTotale()).isEqualTo(4);
+    }
+
+    @Test
+    void stimaIlTotaleOltreITestiDaVerificare() {
+        TrigramIndex indice = new TrigramIndex();
+        int testi = TrigramIndex.TESTI_DA_VERIFICARE * 4;
+        for (int i = 1; i <= testi; i++) {
+            indice.aggiungi(i, "select * from orders_" + i + " where country = 'it'");
+        }
+        indice.aggiungi(testi + 1, "select * from orders");
+        indice.aggiungi(testi + 2, "select * from orders");
+
+        TrigramIndex.Risultati risultati = indice.cerca("orders", 0, 3);
+
+        // Il testo più pertinente è tra i più recenti e le sue esecuzioni escono per prime
+        assertThat(ids(risultati)).containsExactly(testi + 2, testi + 1, testi);
+        assertThat(risultati.isTotaleStimato()).isTrue();
+        assertThat(risultati.getTotale()).isBetween((long) testi, (long) testi + 1_000);
+        assertThat(indice.cerca("orders_17 ", 0, 3).isTotaleStimato()).isFalse();
+    }
+
+    @Test
+    void rimuoveLeEsecuzioniEliminate() {
+        TrigramIndex indice = new TrigramIndex();
+        indice.aggiungi(1, "select * from orders");
+        indice.aggiungi(2, "select * from orders");
+        indice.aggiungi(3, "select * from customers");
+
+        indice.rimuovi(Map.of(1L, "select * from orders", 3L, "SELECT * FROM customers"));
+
+        assertThat(ids(indice.cerca("from", 0, 10))).containsExactly(2);
+        assertThat(indice.getNumeroVoci()).isEqualTo(1);
+    }
+
+    @Test
+    void listaPostingCompressaIntersecaICandidati() {
+        TrigramIndex.ListaPosting lista = new TrigramIndex.ListaPosting();
+        for (int numero : new int[] { 0, 5, 127, 128, 300, 70_000, 2_000_000 }) {
+            lista.aggiungi(numero);
+        }
+
+        assertThat(lista.decodifica()).containsExactly(0, 5, 127, 128, 300, 70_000, 2_000_000);
+        assertThat(lista.decodifica(2, 5)).containsExactly(127, 128, 300);
+        assertThat(lista.interseca(new int[] { 1, 5, 128, 129, 2_000_000 })).containsExactly(5, 128, 2_000_000);
+
+        // Con più blocchi l'intersezione salta quelli che non possono contenere i candidati
+        TrigramIndex.ListaPosting lunga = new TrigramIndex.ListaPosting();
+        for (int numero = 0; numero < 10_000; numero += 3) {
+            lunga.aggiungi(numero);
+        }
+        assertThat(lunga.interseca(new int[] { 0, 1, 191, 192, 193, 6_000, 9_999, 10_002 })).containsExactly(0, 192, 6_000, 9_999);
+        // Una finestra nel mezzo parte dal blocco che la contiene
+        assertThat(lunga.decodifica(130, 133)).containsExactly(390, 393, 396);
+    }
+
+    /**
+     * Latenza di ricerca con un milione di esecuzioni, quasi tutte con testo distinto: termini rari
+     * e termini presenti in quasi tutti i testi.
+     * Eseguire con: mvn test -Dtest=TrigramIndexTest -Dbenchmark=true
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void cercaInMenoDiDieciMillisecondiConUnMilioneDiEsecuzioni() {
+        int esecuzioni = Integer.getInteger("benchmark.rows", 1_000_000);
+        String[] paesi = { "IT", "FR", "DE", "ES", "US", "UK", "JP", "BR" };
+        Random random = new Random(42);
+        TrigramIndex indice = new TrigramIndex();
+        long inizio = System.nanoTime();
+        for (int i = 1; i <= esecuzioni; i++) {
+            indice.aggiungi(i, "SELECT customer_id, SUM(amount) AS total FROM `analytics.sales.orders_" + random.nextInt(5_000)
+                    + "` WHERE country = '" + paesi[random.nextInt(paesi.length)] + "' AND customer_id = "
+                    + random.nextInt(1_000_000) + " GROUP BY customer_id ORDER BY total DESC LIMIT " + (10 + random.nextInt(90)));
+        }
+        long costruzioneMs = (System.nanoTime() - inizio) / 1_000_000;
+
+        String[] ricerche = new String[1_000];
+        for (int i = 0; i < ricerche.length; i++) {
+            ricerche[i] = switch (i % 7) {
+                case 0 -> "orders_" + random.nextInt(5_000) + "`";
+                case 1 -> "customer_id = " + random.nextInt(1_000_000);
+                case 2 -> "orders_" + random.nextInt(5_000) + "` " + "'" + paesi[random.nextInt(paesi.length)] + "'";
+                case 3 -> "orders";
+                case 4 -> "country";
+                case 5 -> "sales orders";
+                default -> "it";
+            };
+        }
+        for (String ricerca : ricerche) {
+            indice.cerca(ricerca, 0, 20);
+        }
+        long[] durate = new long[ricerche.length];
+        for (int i = 0; i < ricerche.length; i++) {
+            long t = System.nanoTime();
+            indice.cerca(ricerche[i], 0, 20);
+            durate[i] = System.nanoTime() - t;
+        }
+        Arrays.sort(durate);
+        double p50Ms = durate[durate.length / 2] / 1e6;
+        double p99Ms = durate[durate.length * 99 / 100] / 1e6;
+
+        log.info("{} esecuzioni ({} testi distinti) indicizzate in {} ms; ricerca p50 {} ms, p99 {} ms",
+                indice.getNumeroVoci(), indice.getNumeroTesti(), costruzioneMs, String.format("%.2f", p50Ms), String.format("%.2f", p99Ms));
+        assertThat(p99Ms).isLessThan(10);
+    }
+
+    private static long[] ids(TrigramIndex.Risultati risultati) {
+        return risultati.getRisultati().stream().mapToLong(TrigramIndex.Risultato::getId).toArray();
+    }
+}